@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import util.IndexedFastaReader;
+
 public class AlignmentGenerator {
 
 	protected File referenceFile;
@@ -29,21 +31,14 @@ public class AlignmentGenerator {
 	public List<ProtoSequence> getAlignment(String contig, int startPos, int endPos) throws IOException {
 		List<ProtoSequence> seqs = new ArrayList<ProtoSequence>();
 
-		FastaReader refReader = new FastaReader(referenceFile);
-		StringBuilder refSeq = new StringBuilder();
-
-		Integer intContig = FastaReader.getIntegerTrack(contig);
-
-		for(int i=startPos; i<endPos; i++) {
-			char base = refReader.getBaseAt(intContig, i);
-			refSeq.append(base);
-		}
+		IndexedFastaReader refReader = IndexedFastaReader.forFile(referenceFile);
+		String refSeq = refReader.getSequence(contig, startPos, endPos-1);
 
 		System.out.println(">reference");
-		System.out.println(refSeq.toString());
+		System.out.println(refSeq);
 		
 		for(SampleReader reader : sampleReaders) {
-			ProtoSequence seq = new ProtoSequence(refSeq.toString(), startPos);
+			ProtoSequence seq = new ProtoSequence(refSeq, startPos);
 			seq.setSampleName(reader.getSampleName());
 			reader.advanceTo(contig, startPos);
 			Variant var = reader.getVariant();
@@ -112,6 +112,7 @@ public class BEDFile extends IntervalsFile {
 			List<Interval> list = intervals.get(contig);
 			Collections.sort(list, new IntervalComparator());
 		}
+		clearPackedIntervals();
 	}
 
 	
@@ -9,6 +9,8 @@ import json.JSONString;
 
 import org.w3c.dom.NodeList;
 
+import util.coverage.CoverageCalculator;
+
 /**
  * A small container class for some Depth Of Coverage metrics computed by the GaTK
  * @author brendan
@@ -141,6 +143,26 @@ public class DOCMetrics extends FileBuffer implements JSONString {
 		this.fractionAboveCutoff = fractionAboveCutoff;
 	}
 	
+	/**
+	 * Set the mean coverage, coverage proportions and fraction of bases above the default cutoffs
+	 * from a raw depth histogram, in which the i-th element is the number of bases with depth i
+	 * @param depthHistogram
+	 */
+	public void setDepthHistogram(int[] depthHistogram) {
+		double[] covs = CoverageCalculator.convertCountsToProportions(depthHistogram);
+		
+		int[] cutoffs = new int[]{1, 10, 15, 20, 25, 50, 100};
+		double[] covAboveCutoffs = new double[cutoffs.length];
+		for(int i=0; i<covAboveCutoffs.length; i++) {
+			covAboveCutoffs[i] = covs[cutoffs[i]];
+		}
+		
+		setMeanCoverage(CoverageCalculator.getMean(depthHistogram));
+		setCoverageProportions(covs);
+		setCutoffs(cutoffs);
+		setFractionAboveCutoff(covAboveCutoffs);
+	}
+	
 	public void setCoverageProportions(double[] prop) {
 		coverageProportions = prop;
 	}
@@ -35,6 +35,9 @@ public class FileTypeGuesser {
 		if (file.getName().endsWith("vcf")) {
 			return new VCFFile(file);
 		}
+		if (file.getName().endsWith(".vsnap")) {
+			return new VariantSnapshotFile(file);
+		}
 		if (file.getName().contains("fastq") ) {
 			return new FastQFile(file);
 		}
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 
 import util.Interval;
+import util.PackedIntervals;
 import util.coverage.HasIntervals;
 
 
@@ -20,6 +21,11 @@ import util.coverage.HasIntervals;
  * Annoyingly, this can't subclass BasicIntervalContainer since it must also subclass FileBuffer
  * Ideally, this thing would wrap some implementation of BasicIntervalContainer and delegate
  * most methods to it, right now we're duplicating a lot of code. 
+ * 
+ * contains(..) and intersects(..) are answered from a PackedIntervals for each contig, which is built from
+ * the intervals map when first needed, and rebuilt if the map is replaced (as buildIntervalsMap() does) or 
+ * modified through addIntervals(..). Subclasses that change the lists in the map in place should call 
+ * clearPackedIntervals() afterwards. 
  * @author brendan
  *
  */
@@ -29,6 +35,10 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 	protected final IntervalComparator intComp = new IntervalComparator();
 	protected boolean wasMerged = false; //set true if any intervals were merged
 	
+	//Merged, packed intervals for each contig, and the intervals map they were built from
+	private volatile Map<String, PackedIntervals> packed = null;
+	private Map<String, List<Interval>> packedSource = null;
+	
 	public IntervalsFile(File source) {
 		super(source);
 	}
@@ -107,6 +117,50 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 			Collections.sort(oldInts);
 			mergeIntervals(oldInts);
 		}
+		clearPackedIntervals();
+	}
+	
+	/**
+	 * Discard the packed intervals, so they're rebuilt from the intervals map when next needed
+	 */
+	protected synchronized void clearPackedIntervals() {
+		packed = null;
+		packedSource = null;
+	}
+	
+	/**
+	 * Return the packed intervals for each contig, building them if they don't exist or the intervals
+	 * map has been replaced since they were built
+	 * @return
+	 */
+	private Map<String, PackedIntervals> getPacked() {
+		Map<String, PackedIntervals> current = packed;
+		if (current != null && packedSource == intervals) {
+			return current;
+		}
+		synchronized(this) {
+			if (packed == null || packedSource != intervals) {
+				Map<String, PackedIntervals> newPacked = new HashMap<String, PackedIntervals>();
+				if (intervals != null) {
+					for(String contig : intervals.keySet()) {
+						newPacked.put(contig, new PackedIntervals(intervals.get(contig)));
+					}
+				}
+				packedSource = intervals;
+				packed = newPacked;
+			}
+			return packed;
+		}
+	}
+	
+	/**
+	 * Return the merged intervals for the given contig packed into primitive arrays, or null
+	 * if the contig isn't in this file
+	 * @param contig
+	 * @return
+	 */
+	public PackedIntervals getPackedIntervals(String contig) {
+		return getPacked().get(contig);
 	}
 	
 	/**
@@ -195,38 +249,13 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 	}
 	
 	public boolean contains(String contig, int pos, boolean warn) {
-		List<Interval> cInts = intervals.get(contig);
-		Interval qInterval = new Interval(pos, pos);
+		PackedIntervals cInts = getPackedIntervals(contig);
 		if (cInts == null) {
 			if (warn)
 				System.out.println("Contig " + contig + " is not in BED file!");
 			return false;
 		}
-		else {
-			int index = Collections.binarySearch(cInts, qInterval, intComp);
-			if (index >= 0) {
-				//System.out.println("Interval " + cInts.get(index) + " contains the position " + pos);
-				//An interval starts with the query position so we do contain the given pos
-				return true;
-			}
-			else {
-				//No interval starts with the query pos, but we 
-				int keyIndex = -index-1 -1;
-				if (keyIndex < 0) {
-					//System.out.println("Interval #0 does NOT contain the position " + pos);
-					return false;
-				}
-				Interval cInterval = cInts.get(keyIndex);
-				if (pos >= cInterval.begin && pos < cInterval.end) {
-					//System.out.println("Interval " + cInterval + " contains the position " + pos);
-					return true;
-				}
-				else {
-					//System.out.println("Interval " + cInterval + " does NOT contain the position " + pos);
-					return false;
-				}
-			}
-		}
+		return cInts.contains(pos);
 	}
 
 	public boolean intersects(String contig, Interval qInterval) {
@@ -235,51 +264,65 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 	}
 
 	public boolean intersects(String contig, Interval qInterval, boolean warn) {
-		List<Interval> cInts = intervals.get(contig);
-		Interval qIntervalBegin = new Interval(qInterval.begin, qInterval.begin);
-		Interval qIntervalEnd = new Interval(qInterval.end - 1, qInterval.end - 1);
+		return intersects(contig, qInterval.begin, qInterval.end, warn);
+	}
+
+	/**
+	 * True if any interval shares a site with the range [start, end). An empty range (such as an insertion)
+	 * intersects if start is in an interval, or if an interval begins at start-1
+	 * @param contig
+	 * @param start
+	 * @param end
+	 * @param warn If true, emit a warning if the contig isn't in this file
+	 * @return
+	 */
+	public boolean intersects(String contig, int start, int end, boolean warn) {
+		PackedIntervals cInts = getPackedIntervals(contig);
 		if (cInts == null) {
 			if (warn)
 				System.out.println("Contig " + contig + " is not in BED file!");
 			return false;
 		}
-		else {
-			int indexBegin = Collections.binarySearch(cInts, qIntervalBegin, intComp);
-			int indexEnd = Collections.binarySearch(cInts, qIntervalEnd, intComp);
-			if (indexBegin >= 0 || indexEnd >= 0) {
-				//An interval starts with one the query interval begin or end
-				return true;
-			}
-			else {
-				//No interval starts with begin or end
-				int keyIndexBegin = -indexBegin-1 -1;
-				int keyIndexEnd = -indexEnd-1 -1;
-				if (keyIndexBegin < 0 && keyIndexEnd < 0) {
-					//System.out.println("Interval " + cInts.get(indexBegin) + " does not contain the interval " + qInterval.begin + ", " + qInterval.end);
-					//System.out.println("False - keyIndexBegin<0 and keyIndexEnd<0");
-					//System.out.println("Interval #0 does NOT contain the interval " + begin + ", " + end);
-					return false;
-				} 
-				if (keyIndexBegin < keyIndexEnd) {
-					//System.out.println("spans across the start of a bed region");
-					//System.out.println("True - keyIndexBegin < keyIndexEnd");
-					return true;
-				}
-				if (keyIndexBegin == keyIndexEnd) {
-					//System.out.println("start and end are both directly downstream the same interval start");
-					Interval cInterval = cInts.get(keyIndexBegin);
-					if (qInterval.begin < cInterval.end) { // use < rather than <= because of 0-based intervals assumed (bed style)
-						//System.out.println("True - the query interval starts before the binarySearch interval end");
-						return true;
-					} else {
-						//System.out.println("False - the query interval starts after the binarySearch interval end");
-						return false;
-					}
-				}
-				//If nothing else stuck then something is potentially wrong with the intervals
-				//System.out.println("Interval " + cInterval + " does NOT contain the position " + pos);
-				throw new IllegalArgumentException("Intervals appear to be malformed for intersects method");
+		return cInts.intersects(start, end);
+	}
+	
+	/**
+	 * Create a new Cursor for looking up a series of positions in sorted order
+	 * @return
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+	
+	/**
+	 * Looks up positions in this file for a stream of queries sorted by contig and then position, such as
+	 * the variants in a sorted VCF, in amortized constant time per query. Queries that aren't in order are still
+	 * answered correctly, just more slowly. Never warns about missing contigs. Use one cursor per thread.
+	 * @author brendan
+	 *
+	 */
+	public class Cursor {
+		
+		private String contig = null;
+		private PackedIntervals.Cursor contigCursor = null;
+		
+		private PackedIntervals.Cursor forContig(String queryContig) {
+			if (contig == null || !contig.equals(queryContig)) {
+				contig = queryContig;
+				PackedIntervals cInts = getPackedIntervals(queryContig);
+				contigCursor = cInts == null ? null : cInts.cursor();
 			}
+			return contigCursor;
+		}
+		
+		public boolean contains(String queryContig, int pos) {
+			PackedIntervals.Cursor cursor = forContig(queryContig);
+			return cursor != null && cursor.contains(pos);
+		}
+		
+		public boolean intersects(String queryContig, int start, int end) {
+			PackedIntervals.Cursor cursor = forContig(queryContig);
+			return cursor != null && cursor.intersects(start, end);
 		}
 	}
 
@@ -297,8 +340,6 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 	
 	public int[] intersectsWhich(String contig, Interval qInterval, boolean warn) {
 		List<Interval> cInts = intervals.get(contig);
-		Interval qIntervalBegin = new Interval(qInterval.begin, qInterval.begin);
-		Interval qIntervalEnd = new Interval(qInterval.end - 1, qInterval.end - 1);
 		int indexBegin;
 		int indexEnd;
 		int[] intersects = new int[2];
@@ -310,15 +351,44 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 			return intersects;
 		}
 		else {
-			indexBegin = Collections.binarySearch(cInts, qIntervalBegin, intComp);
-			indexEnd = Collections.binarySearch(cInts, qIntervalEnd, intComp);
+			indexBegin = searchBegins(cInts, qInterval.begin);
+			indexEnd = searchBegins(cInts, qInterval.end - 1);
 
-			intersects = intersectsWhichCalc(cInts, qIntervalBegin, qIntervalEnd, indexBegin, indexEnd);
+			intersects = intersectsWhichCalc(cInts, qInterval.begin, qInterval.end - 1, indexBegin, indexEnd);
 			return intersects;
 		}
 	}
+	
+	/**
+	 * Binary search the (sorted) intervals for one that begins at pos, without creating a key Interval. 
+	 * Returns the same thing as Collections.binarySearch would with an IntervalComparator
+	 * @param cInts
+	 * @param pos
+	 * @return
+	 */
+	private static int searchBegins(List<Interval> cInts, int pos) {
+		int lo = 0;
+		int hi = cInts.size()-1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int begin = cInts.get(mid).begin;
+			if (begin < pos) {
+				lo = mid+1;
+			}
+			else if (begin > pos) {
+				hi = mid-1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -(lo+1);
+	}
 
-	private int[] intersectsWhichCalc(List<Interval> cInts, Interval qIntervalBegin, Interval qIntervalEnd, int indexBegin, int indexEnd) {
+	/**
+	 * qBegin and qEnd are the first and last positions of the query
+	 */
+	private int[] intersectsWhichCalc(List<Interval> cInts, int qBegin, int qEnd, int indexBegin, int indexEnd) {
 		int[] intersects = {-1, -1}; //default -1 indicates no intervals intersect with query
 		int keyIndexBegin = -indexBegin-1 -1;
 		int keyIndexEnd = -indexEnd-1 -1;
@@ -332,7 +402,7 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 		} else if (keyIndexBegin < 0) {
 			//query start before first interval
 			firstIntersect = 0;
-		} else if (qIntervalBegin.begin <= cInts.get(keyIndexBegin).end) {
+		} else if (qBegin <= cInts.get(keyIndexBegin).end) {
 			//query begin in one of the intervals
 			firstIntersect = keyIndexBegin;
 		} else {
@@ -347,7 +417,7 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 		} else if (keyIndexEnd < 0) {
 			//query end before first interval
 			lastIntersect = -1; //no intersect possible
-		} else if (qIntervalEnd.end <= cInts.get(keyIndexEnd).end) {
+		} else if (qEnd <= cInts.get(keyIndexEnd).end) {
 			//query end in one of the intervals
 			lastIntersect = keyIndexEnd;
 		} else {
@@ -381,8 +451,6 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 
 	public ArrayList<Integer> nearest(String contig, Interval qInterval, boolean warn) {
 		List<Interval> cInts = intervals.get(contig);
-		Interval qIntervalBegin = new Interval(qInterval.begin, qInterval.begin);
-		Interval qIntervalEnd = new Interval(qInterval.end, qInterval.end);
 		int indexBegin;
 		int indexEnd;
 		ArrayList<Integer> nearest = new ArrayList<Integer>();
@@ -394,15 +462,15 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 			return nearest;
 		}
 		else {
-			indexBegin = Collections.binarySearch(cInts, qIntervalBegin, intComp);
-			indexEnd = Collections.binarySearch(cInts, qIntervalEnd, intComp);
+			indexBegin = searchBegins(cInts, qInterval.begin);
+			indexEnd = searchBegins(cInts, qInterval.end);
 
-			int[] intersects = intersectsWhichCalc(cInts, qIntervalBegin, qIntervalEnd, indexBegin, indexEnd);
+			int[] intersects = intersectsWhichCalc(cInts, qInterval.begin, qInterval.end, indexBegin, indexEnd);
 			if (intersects[0] == -1) { 
 				//query does not intersect any of the intervals (returns -1s)
 				//we need to find nearest
 				// in order of nearer then farther
-				nearest = nearestCalc(contig, cInts, qIntervalBegin, qIntervalEnd, indexBegin, indexEnd);
+				nearest = nearestCalc(contig, cInts, qInterval.begin, qInterval.end, indexBegin, indexEnd);
 				return nearest;
 			} else { // make nearest list from all of the intersected intervals (from left to right)
 				for (int i=0; i < intersects.length; i++) {
@@ -415,7 +483,7 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 		}
 	}
 	
-	private ArrayList<Integer> nearestCalc(String contig, List<Interval> cInts, Interval qIntervalBegin, Interval qIntervalEnd, int indexBegin, int indexEnd) {
+	private ArrayList<Integer> nearestCalc(String contig, List<Interval> cInts, int qBegin, int qEnd, int indexBegin, int indexEnd) {
 		//WARNING: Assumes you already checked and there are no intersects!
 		int keyIndexBegin = -indexBegin-1 -1;
 		int keyIndexEnd = -indexEnd-1 -1;
@@ -428,13 +496,13 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 			//An interval starts with the query begin
 			//beginIntersects = true!;
 			throw new IllegalArgumentException("No intersections allowed for this method, but the query " + contig + ":" + 
-					qIntervalBegin.begin + "-" + qIntervalEnd.end + " is at the start of an interval");
+					qBegin + "-" + qEnd + " is at the start of an interval");
 		}
 		if (indexEnd >= 0) {
 			//An interval starts with the query end
 			//endIntersects = true!;
 			throw new IllegalArgumentException("No intersections allowed for this method, but the query " + contig + ":" + 
-					qIntervalBegin.begin + "-" + qIntervalEnd.end + " is at the end of an interval");
+					qBegin + "-" + qEnd + " is at the end of an interval");
 		}
 		if (keyIndexBegin < 0 || keyIndexEnd < 0) {
 			//query before first interval (assumes no intersect)
@@ -452,19 +520,19 @@ public abstract class IntervalsFile extends FileBuffer implements HasIntervals {
 
 		//Now assume that query must be between two intervals (assumes no intersect)
 		Interval intervalToLeft = cInts.get(keyIndexBegin);
-		beginDistance = qIntervalBegin.begin - intervalToLeft.end;
+		beginDistance = qBegin - intervalToLeft.end;
 		if (beginDistance < 0) {
 			//query must overlap an interval
 			throw new IllegalArgumentException("No intersections allowed for this method, but the query " + contig + ":" + 
-					qIntervalBegin.begin + "-" + qIntervalEnd.end + " begin appears to overlap with the end of an interval " +
+					qBegin + "-" + qEnd + " begin appears to overlap with the end of an interval " +
 					contig + ":" + cInts.get(keyIndexBegin).begin + "-" + cInts.get(keyIndexBegin).end);
 		}
 		Interval intervalToRight = cInts.get(keyIndexEnd + 1);
-		endDistance = intervalToRight.begin - qIntervalEnd.end;
+		endDistance = intervalToRight.begin - qEnd;
 		if (endDistance < 0) {
 			//query must intersect an interval
 			throw new IllegalArgumentException("No intersections allowed for this method, but the query " + contig + ":" + 
-					qIntervalBegin.begin + "-" + qIntervalEnd.end + " end appears to overlap with the begin of an interval " +
+					qBegin + "-" + qEnd + " end appears to overlap with the begin of an interval " +
 					contig + ":" + cInts.get(keyIndexBegin).begin + "-" + cInts.get(keyIndexBegin).end);
 		}
 
@@ -0,0 +1,26 @@
+package buffer;
+
+import java.io.File;
+
+/**
+ * A binary variant snapshot, as written by operator.variant.VariantPoolToSnapshot and read by
+ * buffer.variant.VariantSnapshot
+ * @author brendan
+ *
+ */
+public class VariantSnapshotFile extends FileBuffer {
+
+	public VariantSnapshotFile() {
+		//blank on purpose
+	}
+	
+	public VariantSnapshotFile(File file) {
+		super(file);
+	}
+	
+	@Override
+	public String getTypeStr() {
+		return "VariantSnapshotFile";
+	}
+
+}
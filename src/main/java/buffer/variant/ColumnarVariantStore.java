@@ -0,0 +1,811 @@
+package buffer.variant;
+
+import gene.Gene;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import json.JSONArray;
+import util.vcfParser.VCFParser.GTType;
+
+/**
+ * A VariantStore that keeps variants in per-contig parallel primitive arrays instead of
+ * one VariantRec object per variant. Positions and qualities live in int[] and double[] columns,
+ * ref, alt and genotype strings are dictionary-encoded to ints, and every property / annotation key
+ * gets its own dense column. For whole-genome sized pools this is far smaller than a VariantPool
+ * and puts much less pressure on the garbage collector.
+ *
+ * VariantRecs returned from getVariantsForContig(..) and findRecord(..) are lightweight views
+ * that read from and write through to the columns, so annotators and writers can use them just
+ * like regular VariantRecs. Views are positional, so a view obtained before new records are added to an
+ * unsorted contig should not be used after the contig has been re-sorted.
+ * @author brendan
+ *
+ */
+public class ColumnarVariantStore implements VariantStore {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final Map<String, ContigColumns> store = new LinkedHashMap<String, ContigColumns>(25);
+
+	//Ref, alt and genotype strings are highly redundant, so all contigs share one dictionary
+	private final StringDictionary alleles = new StringDictionary();
+	private final StringDictionary genotypes = new StringDictionary();
+
+	public ColumnarVariantStore() {
+		//blank on purpose, create an empty store
+	}
+
+	public ColumnarVariantStore(VariantLineReader reader) throws IOException {
+		do {
+			VariantRec rec = reader.toVariantRec();
+
+			if (rec == null) {
+				if (reader.getCurrentLine() != null && reader.getCurrentLine().length()>0)
+					System.err.println("Warning, could not import variant from line: " + reader.getCurrentLine() );
+			}
+			else {
+				this.addRecord(rec);
+			}
+		} while (reader.advanceLine());
+	}
+
+	@Override
+	public synchronized void addRecord(VariantRec rec) {
+		ContigColumns cols = store.get(rec.getContig());
+		if (cols == null) {
+			cols = new ContigColumns(rec.getContig());
+			store.put(rec.getContig(), cols);
+		}
+		synchronized(cols) {
+			cols.append(rec);
+		}
+	}
+
+	@Override
+	public void addAll(VariantStore source, boolean allowDuplicates) {
+		for(String contig : source.getContigs()) {
+			for(VariantRec var : source.getVariantsForContig(contig)) {
+				if (var instanceof VariantStub) {
+					var = ((VariantStub)var).toFullRecord();
+				}
+				if (allowDuplicates || findRecord(contig, var.getStart(), var.getRef(), var.getAlt()) == null) {
+					addRecord(var);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a sorted list of views of all variants on the given contig. If records have been
+	 * added out of order since the last call the contig is re-sorted first.
+	 */
+	@Override
+	public List<VariantRec> getVariantsForContig(String contig) {
+		final ContigColumns cols = store.get(contig);
+		if (cols == null) {
+			return new ArrayList<VariantRec>();
+		}
+		cols.sortIfNeeded();
+		return new AbstractList<VariantRec>() {
+
+			@Override
+			public VariantRec get(int index) {
+				if (index < 0 || index >= cols.size) {
+					throw new IndexOutOfBoundsException("Index: " + index + " size: " + cols.size);
+				}
+				return cols.view(index);
+			}
+
+			@Override
+			public int size() {
+				return cols.size;
+			}
+
+		};
+	}
+
+	@Override
+	public Collection<String> getContigs() {
+		return store.keySet();
+	}
+
+	@Override
+	public int getContigCount() {
+		return store.size();
+	}
+
+	@Override
+	public int size() {
+		int total = 0;
+		for(ContigColumns cols : store.values()) {
+			total += cols.size;
+		}
+		return total;
+	}
+
+	/**
+	 * Find a variant with the given start position and ref allele whose alt is, or whose alt alleles contain,
+	 * the given alt. This matches the semantics of VariantPool.findRecord(contig, pos, ref, alt)
+	 */
+	@Override
+	public VariantRec findRecord(String contig, int start, String ref, String alt) {
+		ContigColumns cols = store.get(contig);
+		if (cols == null) {
+			return null;
+		}
+		int refId = alleles.lookup(ref);
+		if (refId < 0) {
+			return null;
+		}
+
+		cols.sortIfNeeded();
+		int index = cols.firstIndexAt(start);
+		while(index < cols.size && cols.starts[index] == start) {
+			if (cols.refs[index] == refId) {
+				String recAlt = alleles.get(cols.alts[index]);
+				if (recAlt.equals(alt)) {
+					return cols.view(index);
+				}
+				String[] alts = recAlt.split(",");
+				for(int i=0; i<alts.length; i++) {
+					if (alts[i].equals(alt)) {
+						return cols.view(index);
+					}
+				}
+			}
+			index++;
+		}
+		return null;
+	}
+
+	/**
+	 * Sort all contigs by start position. This happens automatically when variants are retrieved,
+	 * but can be called eagerly after a bulk import.
+	 */
+	public synchronized void sortAllContigs() {
+		for(ContigColumns cols : store.values()) {
+			cols.sortIfNeeded();
+		}
+	}
+
+	public String toString() {
+		return "Columnar store with " + this.size() + " variants in " + store.size() + " contigs ";
+	}
+
+	/**
+	 * Maps strings to small int ids and back again
+	 */
+	static class StringDictionary {
+		private final Map<String, Integer> ids = new HashMap<String, Integer>(1024);
+		private final List<String> values = new ArrayList<String>(1024);
+
+		synchronized int encode(String str) {
+			Integer id = ids.get(str);
+			if (id == null) {
+				id = values.size();
+				values.add(str);
+				ids.put(str, id);
+			}
+			return id;
+		}
+
+		/**
+		 * Returns the id of the given string, or -1 if it has never been encoded
+		 */
+		synchronized int lookup(String str) {
+			Integer id = ids.get(str);
+			return id == null ? -1 : id;
+		}
+
+		synchronized String get(int id) {
+			return values.get(id);
+		}
+	}
+
+	/**
+	 * All of the data for the variants on a single contig, stored column-wise
+	 */
+	class ContigColumns {
+		final String contig;
+		int size = 0;
+		boolean sorted = true;
+
+		int[] starts = new int[INITIAL_CAPACITY];
+		int[] ends = new int[INITIAL_CAPACITY];
+		int[] refs = new int[INITIAL_CAPACITY];
+		int[] alts = new int[INITIAL_CAPACITY];
+		int[] gts = new int[INITIAL_CAPACITY];
+		byte[] zygosities = new byte[INITIAL_CAPACITY];
+		double[] quals = new double[INITIAL_CAPACITY];
+		Gene[] genes = null; //Rarely used, so only created when needed
+
+		//Dense per-key columns. A row without a value for a key is marked absent in the column
+		final Map<String, DoubleColumn> props = new LinkedHashMap<String, DoubleColumn>();
+		final Map<String, IntColumn> ints = new LinkedHashMap<String, IntColumn>();
+		final Map<String, ObjectColumn<String>> annotations = new LinkedHashMap<String, ObjectColumn<String>>();
+		final Map<String, ObjectColumn<JSONArray>> jsonobjs = new LinkedHashMap<String, ObjectColumn<JSONArray>>();
+
+		ContigColumns(String contig) {
+			this.contig = contig;
+		}
+
+		int capacity() {
+			return starts.length;
+		}
+
+		StringDictionary alleles() {
+			return alleles;
+		}
+
+		void append(VariantRec rec) {
+			if (size == capacity()) {
+				grow(capacity() * 2);
+			}
+			int row = size;
+			size++;
+			if (row > 0 && rec.getStart() < starts[row-1]) {
+				sorted = false;
+			}
+			starts[row] = rec.getStart();
+			ends[row] = rec.getEnd();
+			refs[row] = alleles.encode(rec.getRef());
+			alts[row] = alleles.encode(rec.getAlt());
+			gts[row] = rec.getGenotype() == null ? -1 : genotypes.encode(rec.getGenotype());
+			zygosities[row] = (byte)(rec.getZygosity() == null ? -1 : rec.getZygosity().ordinal());
+			quals[row] = rec.getQuality() == null ? Double.NaN : rec.getQuality();
+			if (rec.getGene() != null) {
+				setGene(row, rec.getGene());
+			}
+
+			if (rec instanceof VariantStub) {
+				return; //Stubs have no properties or annotations
+			}
+			for(String key : rec.getPropertyKeys()) {
+				setProperty(row, key, rec.getProperty(key));
+			}
+			for(String key : rec.getIntKeys()) {
+				setInt(row, key, rec.getPropertyInt(key));
+			}
+			for(String key : rec.getAnnotationKeys()) {
+				setAnnotation(row, key, rec.getAnnotation(key));
+			}
+			for(String key : rec.getJsonobjKeys()) {
+				setJSON(row, key, rec.getjsonProperty(key));
+			}
+		}
+
+		private void grow(int newCapacity) {
+			starts = Arrays.copyOf(starts, newCapacity);
+			ends = Arrays.copyOf(ends, newCapacity);
+			refs = Arrays.copyOf(refs, newCapacity);
+			alts = Arrays.copyOf(alts, newCapacity);
+			gts = Arrays.copyOf(gts, newCapacity);
+			zygosities = Arrays.copyOf(zygosities, newCapacity);
+			quals = Arrays.copyOf(quals, newCapacity);
+			if (genes != null) {
+				genes = Arrays.copyOf(genes, newCapacity);
+			}
+			//Annotation columns grow lazily when they are written to
+		}
+
+		void setGene(int row, Gene g) {
+			if (genes == null) {
+				genes = new Gene[capacity()];
+			}
+			genes[row] = g;
+		}
+
+		Gene getGene(int row) {
+			return genes == null ? null : genes[row];
+		}
+
+		void setProperty(int row, String key, Double val) {
+			DoubleColumn col = props.get(key);
+			if (col == null) {
+				col = new DoubleColumn(capacity());
+				props.put(key, col);
+			}
+			col.set(row, val, capacity());
+		}
+
+		void setInt(int row, String key, Integer val) {
+			IntColumn col = ints.get(key);
+			if (col == null) {
+				col = new IntColumn(capacity());
+				ints.put(key, col);
+			}
+			col.set(row, val, capacity());
+		}
+
+		void setAnnotation(int row, String key, String val) {
+			ObjectColumn<String> col = annotations.get(key);
+			if (col == null) {
+				col = new ObjectColumn<String>(capacity());
+				annotations.put(key, col);
+			}
+			col.set(row, val, capacity());
+		}
+
+		void setJSON(int row, String key, JSONArray val) {
+			ObjectColumn<JSONArray> col = jsonobjs.get(key);
+			if (col == null) {
+				col = new ObjectColumn<JSONArray>(capacity());
+				jsonobjs.put(key, col);
+			}
+			col.set(row, val, capacity());
+		}
+
+		/**
+		 * Returns the index of the first row with start >= pos. The contig must be sorted.
+		 */
+		int firstIndexAt(int pos) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (starts[mid] < pos) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		synchronized VariantRec view(int row) {
+			GTType zyg = zygosities[row] < 0 ? null : GTType.values()[zygosities[row]];
+			String gt = gts[row] < 0 ? null : genotypes.get(gts[row]);
+			Double qual = Double.isNaN(quals[row]) ? null : quals[row];
+			return new ColumnarVariantRec(this, row, alleles.get(refs[row]), alleles.get(alts[row]), qual, gt, zyg);
+		}
+
+		/**
+		 * Stable-sort all columns by start position, if anything was added out of order
+		 */
+		synchronized void sortIfNeeded() {
+			if (sorted) {
+				return;
+			}
+			Integer[] order = new Integer[size];
+			for(int i=0; i<size; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return starts[a] < starts[b] ? -1 : (starts[a] == starts[b] ? 0 : 1);
+				}
+			});
+			int[] perm = new int[size];
+			for(int i=0; i<size; i++) {
+				perm[i] = order[i];
+			}
+
+			starts = permute(starts, perm);
+			ends = permute(ends, perm);
+			refs = permute(refs, perm);
+			alts = permute(alts, perm);
+			gts = permute(gts, perm);
+			quals = permute(quals, perm);
+			byte[] newZyg = new byte[zygosities.length];
+			for(int i=0; i<size; i++) {
+				newZyg[i] = zygosities[perm[i]];
+			}
+			zygosities = newZyg;
+			if (genes != null) {
+				Gene[] newGenes = new Gene[genes.length];
+				for(int i=0; i<size; i++) {
+					newGenes[i] = genes[perm[i]];
+				}
+				genes = newGenes;
+			}
+			for(DoubleColumn col : props.values()) {
+				col.permute(perm);
+			}
+			for(IntColumn col : ints.values()) {
+				col.permute(perm);
+			}
+			for(ObjectColumn<String> col : annotations.values()) {
+				col.permute(perm);
+			}
+			for(ObjectColumn<JSONArray> col : jsonobjs.values()) {
+				col.permute(perm);
+			}
+			sorted = true;
+		}
+
+		private int[] permute(int[] src, int[] perm) {
+			int[] dest = new int[src.length];
+			for(int i=0; i<perm.length; i++) {
+				dest[i] = src[perm[i]];
+			}
+			return dest;
+		}
+
+		private double[] permute(double[] src, int[] perm) {
+			double[] dest = new double[src.length];
+			for(int i=0; i<perm.length; i++) {
+				dest[i] = src[perm[i]];
+			}
+			return dest;
+		}
+	}
+
+	/**
+	 * Bit flags, one per row
+	 */
+	static class Presence {
+		long[] bits;
+
+		Presence(int capacity) {
+			bits = new long[(capacity >> 6) + 1];
+		}
+
+		boolean get(int row) {
+			int word = row >> 6;
+			return word < bits.length && (bits[word] & (1L << row)) != 0;
+		}
+
+		void set(int row, boolean present) {
+			int word = row >> 6;
+			if (word >= bits.length) {
+				bits = Arrays.copyOf(bits, Math.max(word + 1, bits.length * 2));
+			}
+			if (present) {
+				bits[word] |= (1L << row);
+			} else {
+				bits[word] &= ~(1L << row);
+			}
+		}
+
+		void permute(int[] perm) {
+			long[] newBits = new long[Math.max(bits.length, (perm.length >> 6) + 1)];
+			for(int i=0; i<perm.length; i++) {
+				if (get(perm[i])) {
+					newBits[i >> 6] |= (1L << i);
+				}
+			}
+			bits = newBits;
+		}
+	}
+
+	static class DoubleColumn {
+		double[] values;
+		final Presence present;
+		final Presence nulls; //Keys may be explicitly assigned a null value
+
+		DoubleColumn(int capacity) {
+			values = new double[capacity];
+			present = new Presence(capacity);
+			nulls = new Presence(capacity);
+		}
+
+		void set(int row, Double val, int capacity) {
+			if (values.length < capacity) {
+				values = Arrays.copyOf(values, capacity);
+			}
+			present.set(row, true);
+			nulls.set(row, val == null);
+			values[row] = val == null ? 0 : val;
+		}
+
+		boolean has(int row) {
+			return present.get(row);
+		}
+
+		Double get(int row) {
+			if (row >= values.length || !present.get(row) || nulls.get(row)) {
+				return null;
+			}
+			return values[row];
+		}
+
+		void permute(int[] perm) {
+			//Columns only grow when written to, so may be shorter than the contig
+			double[] dest = new double[Math.max(values.length, perm.length)];
+			for(int i=0; i<perm.length; i++) {
+				if (perm[i] < values.length) {
+					dest[i] = values[perm[i]];
+				}
+			}
+			values = dest;
+			present.permute(perm);
+			nulls.permute(perm);
+		}
+	}
+
+	static class IntColumn {
+		int[] values;
+		final Presence present;
+		final Presence nulls; //Keys may be explicitly assigned a null value
+
+		IntColumn(int capacity) {
+			values = new int[capacity];
+			present = new Presence(capacity);
+			nulls = new Presence(capacity);
+		}
+
+		void set(int row, Integer val, int capacity) {
+			if (values.length < capacity) {
+				values = Arrays.copyOf(values, capacity);
+			}
+			present.set(row, true);
+			nulls.set(row, val == null);
+			values[row] = val == null ? 0 : val;
+		}
+
+		boolean has(int row) {
+			return present.get(row);
+		}
+
+		Integer get(int row) {
+			if (row >= values.length || !present.get(row) || nulls.get(row)) {
+				return null;
+			}
+			return values[row];
+		}
+
+		void permute(int[] perm) {
+			//Columns only grow when written to, so may be shorter than the contig
+			int[] dest = new int[Math.max(values.length, perm.length)];
+			for(int i=0; i<perm.length; i++) {
+				if (perm[i] < values.length) {
+					dest[i] = values[perm[i]];
+				}
+			}
+			values = dest;
+			present.permute(perm);
+			nulls.permute(perm);
+		}
+	}
+
+	/**
+	 * Column of object values, null marks absence and NULL_VALUE marks a key assigned to null
+	 */
+	static class ObjectColumn<T> {
+		private static final Object NULL_VALUE = new Object();
+		Object[] values;
+
+		ObjectColumn(int capacity) {
+			values = new Object[capacity];
+		}
+
+		void set(int row, T val, int capacity) {
+			if (values.length < capacity) {
+				values = Arrays.copyOf(values, capacity);
+			}
+			values[row] = val == null ? NULL_VALUE : val;
+		}
+
+		boolean has(int row) {
+			return row < values.length && values[row] != null;
+		}
+
+		@SuppressWarnings("unchecked")
+		T get(int row) {
+			if (row >= values.length || values[row] == NULL_VALUE) {
+				return null;
+			}
+			return (T)values[row];
+		}
+
+		void permute(int[] perm) {
+			//Columns only grow when written to, so may be shorter than the contig
+			Object[] dest = new Object[Math.max(values.length, perm.length)];
+			for(int i=0; i<perm.length; i++) {
+				if (perm[i] < values.length) {
+					dest[i] = values[perm[i]];
+				}
+			}
+			values = dest;
+		}
+	}
+
+	/**
+	 * A VariantRec that is a view onto a single row of a ContigColumns. All reads and writes of properties,
+	 * annotations, position, alt and quality go straight to the columns, so changes made by annotators are
+	 * kept in the store. Reads and writes both lock the ContigColumns, so views can be used from many threads.
+	 */
+	static class ColumnarVariantRec extends VariantRec {
+
+		private final ContigColumns cols;
+		private final int row;
+
+		ColumnarVariantRec(ContigColumns cols, int row, String ref, String alt, Double qual, String gt, GTType zygosity) {
+			super(cols.contig, cols.starts[row], cols.ends[row], ref, alt, qual, gt, zygosity);
+			this.cols = cols;
+			this.row = row;
+			//Storage lives in the columns, not in this object
+			props = null;
+			ints = null;
+			annotations = null;
+			jsonobj = null;
+		}
+
+		@Override
+		public void addProperty(String key, Double val) {
+			synchronized(cols) {
+				cols.setProperty(row, key, val);
+			}
+		}
+
+		@Override
+		public void addAnnotation(String key, String anno) {
+			synchronized(cols) {
+				cols.setAnnotation(row, key, anno);
+			}
+		}
+
+		@Override
+		public void addPropertyInt(String key, Integer num) {
+			synchronized(cols) {
+				cols.setInt(row, key, num);
+			}
+		}
+
+		@Override
+		public void addAnnotationJSON(String key, JSONArray masterlist) {
+			synchronized(cols) {
+				cols.setJSON(row, key, masterlist);
+			}
+		}
+
+		@Override
+		public Double getProperty(String key) {
+			synchronized(cols) {
+				DoubleColumn col = cols.props.get(key);
+				return col == null ? null : col.get(row);
+			}
+		}
+
+		@Override
+		public Integer getPropertyInt(String key) {
+			synchronized(cols) {
+				IntColumn col = cols.ints.get(key);
+				return col == null ? null : col.get(row);
+			}
+		}
+
+		@Override
+		public String getAnnotation(String key) {
+			synchronized(cols) {
+				ObjectColumn<String> col = cols.annotations.get(key);
+				return col == null ? null : col.get(row);
+			}
+		}
+
+		@Override
+		public JSONArray getjsonProperty(String key) {
+			synchronized(cols) {
+				ObjectColumn<JSONArray> col = cols.jsonobjs.get(key);
+				return col == null ? null : col.get(row);
+			}
+		}
+
+		@Override
+		public boolean hasProperty(String key) {
+			return getProperty(key) != null;
+		}
+
+		@Override
+		public Collection<String> getPropertyKeys() {
+			List<String> keys = new ArrayList<String>();
+			synchronized(cols) {
+				for(Map.Entry<String, DoubleColumn> entry : cols.props.entrySet()) {
+					if (entry.getValue().has(row)) {
+						keys.add(entry.getKey());
+					}
+				}
+			}
+			return keys;
+		}
+
+		@Override
+		public Collection<String> getIntKeys() {
+			List<String> keys = new ArrayList<String>();
+			synchronized(cols) {
+				for(Map.Entry<String, IntColumn> entry : cols.ints.entrySet()) {
+					if (entry.getValue().has(row)) {
+						keys.add(entry.getKey());
+					}
+				}
+			}
+			return keys;
+		}
+
+		@Override
+		public Collection<String> getAnnotationKeys() {
+			List<String> keys = new ArrayList<String>();
+			synchronized(cols) {
+				for(Map.Entry<String, ObjectColumn<String>> entry : cols.annotations.entrySet()) {
+					if (entry.getValue().has(row)) {
+						keys.add(entry.getKey());
+					}
+				}
+			}
+			return keys;
+		}
+
+		@Override
+		public Collection<String> getJsonobjKeys() {
+			List<String> keys = new ArrayList<String>();
+			synchronized(cols) {
+				for(Map.Entry<String, ObjectColumn<JSONArray>> entry : cols.jsonobjs.entrySet()) {
+					if (entry.getValue().has(row)) {
+						keys.add(entry.getKey());
+					}
+				}
+			}
+			return keys;
+		}
+
+		@Override
+		public String annotationsToString() {
+			StringBuilder sb = new StringBuilder();
+			for(String key : getAnnotationKeys()) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(key + ": " + getAnnotation(key));
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public void setQuality(Double quality) {
+			super.setQuality(quality);
+			synchronized(cols) {
+				cols.quals[row] = quality == null ? Double.NaN : quality;
+			}
+		}
+
+		@Override
+		public void setAlt(String newAlt) {
+			super.setAlt(newAlt);
+			int alt = cols.alleles().encode(newAlt);
+			synchronized(cols) {
+				cols.alts[row] = alt;
+			}
+		}
+
+		@Override
+		public void setPosition(String contig, int start, int end) {
+			if (! contig.equals(cols.contig)) {
+				throw new IllegalArgumentException("Cannot move a variant in a columnar store to a different contig");
+			}
+			super.setPosition(contig, start, end);
+			synchronized(cols) {
+				cols.starts[row] = start;
+				cols.ends[row] = end;
+				if ((row > 0 && cols.starts[row-1] > start) || (row < cols.size-1 && cols.starts[row+1] < start)) {
+					cols.sorted = false;
+				}
+			}
+		}
+
+		@Override
+		public void setGene(Gene g) {
+			super.setGene(g);
+			synchronized(cols) {
+				cols.setGene(row, g);
+			}
+		}
+
+		@Override
+		public Gene getGene() {
+			synchronized(cols) {
+				return cols.getGene(row);
+			}
+		}
+	}
+
+}
@@ -24,8 +24,10 @@ import org.w3c.dom.NodeList;
 import buffer.BEDFile;
 import buffer.CSVFile;
 import buffer.FileBuffer;
+import buffer.IntervalsFile;
 import buffer.ReferenceFile;
 import buffer.VCFFile;
+import buffer.VariantSnapshotFile;
 import ncbi.GeneInfoDB;
 import operator.OperationFailedException;
 import operator.Operator;
@@ -45,8 +47,9 @@ public class VariantPool extends Operator implements VariantStore {
 	public static final String STRIPINITIALMATCHINGBASEPARAM = "strip.initial.matching.bases"; //if specified as attribute, otherwise default to true (i.e. will strip)
 	public static final String STRIPTRAILINGMATCHINGBASEPARAM = "strip.trailing.matching.bases"; //if specified as attribute, otherwise default to true (i.e. will strip)
 	public static final String IONTORRENTFILE = "ion.torrent"; //if True, it will create a different csv line reader. /default to false
+	public static final String IMPORT_THREADS = "import.threads"; //Threads used to decompress and parse VCF input, defaults to the pipeline's thread count
 
-	private Map<String, List<VariantRec>>  vars = new HashMap<String, List<VariantRec>>();
+	private Map<String, List<VariantRec>>  vars = new LinkedHashMap<String, List<VariantRec>>(); //Contigs in the order they were first added
 	private VariantRec qRec = new VariantRec("?", 0, 0, "x", "x", 0.0, "./.", GTType.UNKNOWN);
 	private boolean operationPerformed = false; //Set to true when performOperation called, avoids loading variants multiple times
 	
@@ -143,6 +146,18 @@ public class VariantPool extends Operator implements VariantStore {
 			//varLineReader.advanceLine(); // this shouldn't be here - setFile already primes the reader, currentLine should then be ready
 		}
 		
+		//VCFs are parsed in parallel, but the records arrive in the same order
+		if (varLineReader instanceof VCFParser) {
+			((VCFParser)varLineReader).readAllVariants(new VCFParser.VariantHandler() {
+				@Override
+				public void handleVariant(VariantRec var) {
+					addRecordNoSort(var);
+				}
+			});
+			sortAllContigs();
+			return;
+		}
+		
 		//int lineNumber = 0;
 		do {
 			VariantRec rec = varLineReader.toVariantRec();
@@ -982,7 +997,7 @@ public class VariantPool extends Operator implements VariantStore {
 	 * Remove all variants from this pool
 	 */
 	public void clear() {
-		vars = new HashMap<String, List<VariantRec>>();
+		vars = new LinkedHashMap<String, List<VariantRec>>();
 	}
 	
 	/**
@@ -1047,10 +1062,11 @@ public class VariantPool extends Operator implements VariantStore {
 	
 	public void filterByBED(BEDFile bedFile, VariantPool pool) throws IOException {
 		bedFile.buildIntervalsMap();
+		IntervalsFile.Cursor cursor = bedFile.cursor();
 		for(String contig : getContigs()) {
 			List<VariantRec> vars = getVariantsForContig(contig);
 			for(VariantRec rec : vars) {
-				if (bedFile.contains(contig, rec.getStart(), false)) {
+				if (cursor.contains(contig, rec.getStart())) {
 					pool.addRecordNoSort(rec);
 				}
 			}
@@ -1065,10 +1081,11 @@ public class VariantPool extends Operator implements VariantStore {
 	 */
 	public void removeVariantNotInBED(BEDFile bedFile) throws IOException {
 		bedFile.buildIntervalsMap();
+		IntervalsFile.Cursor cursor = bedFile.cursor();
 		for(String contig : getContigs()) {
 			List<VariantRec> vars = getVariantsForContig(contig);
 			for(VariantRec rec : vars) {
-				if (! bedFile.contains(contig, rec.getStart(), false)) {
+				if (! cursor.contains(contig, rec.getStart())) {
 					removeVariant(rec); 
 				}
 			}
@@ -1158,6 +1175,9 @@ public class VariantPool extends Operator implements VariantStore {
 				if (obj instanceof CSVFile) {
 					inputVariants = (CSVFile)obj;					
 				}
+				if (obj instanceof VariantSnapshotFile) {
+					inputVariants = (VariantSnapshotFile)obj;
+				}
 				if (obj instanceof VariantLineReader) {
 					this.varLineReader = (VariantLineReader)obj;
 				}
@@ -1231,45 +1251,92 @@ public class VariantPool extends Operator implements VariantStore {
 			return;
 		}
 				
-		if (inputVariants instanceof VCFFile) {
+		if (inputVariants instanceof VCFFile || inputVariants instanceof CSVFile || inputVariants instanceof VariantSnapshotFile) {
 			try {
-				this.varLineReader = new VCFParser( (VCFFile)inputVariants );
-				
-				//Get attribute for trimming initial matching bases (defaults to true)
-				String stripStr = this.getAttribute(STRIPINITIALMATCHINGBASEPARAM);
-				if (stripStr != null) {
-					((VCFParser) this.varLineReader).setStripInitialMatchingBases(Boolean.parseBoolean(stripStr));
-				} else {
-					((VCFParser) this.varLineReader).setStripInitialMatchingBases(true); //default to trim bases
-				}
-				
+				this.varLineReader = createReaderForInput();
 				importFromVariantReader();
 			} catch (IOException e) {
 				e.printStackTrace();
 				throw new OperationFailedException("IO error reading file: " + inputVariants.getAbsolutePath(), this);
 			}
 		}
+				
+		
+		logger.info("Created variant pool with " + getContigs().size() + " contigs and " + this.size() + " total variants");
+	}
+	
+	/**
+	 * Create a new VariantLineReader for the input file given to this pool, configured as performOperation
+	 * would configure it. Returns null if the input is not a VCF, CSV or variant snapshot file. 
+	 * @return
+	 * @throws IOException
+	 */
+	private VariantLineReader createReaderForInput() throws IOException {
+		if (inputVariants instanceof VCFFile) {
+			VCFParser vcfParser = new VCFParser( (VCFFile)inputVariants );
+			vcfParser.setThreads(getImportThreads());
+			
+			//Get attribute for trimming initial matching bases (defaults to true)
+			String stripStr = this.getAttribute(STRIPINITIALMATCHINGBASEPARAM);
+			if (stripStr != null) {
+				vcfParser.setStripInitialMatchingBases(Boolean.parseBoolean(stripStr));
+			} else {
+				vcfParser.setStripInitialMatchingBases(true); //default to trim bases
+			}
+			return vcfParser;
+		}
+		
+		if (inputVariants instanceof VariantSnapshotFile) {
+			return new VariantSnapshotReader( inputVariants.getFile() );
+		}
 		
 		if (inputVariants instanceof CSVFile) {
-			try {
-				String ionTorrentFile = this.getAttribute(IONTORRENTFILE);
-				if (ionTorrentFile != null && Boolean.parseBoolean(ionTorrentFile) ) {
-					logger.info("IonTorrent file flagged");
-					this.varLineReader = new IonTorrentCallsOnlyTableParser( ((CSVFile)inputVariants).getFile() );
-					importFromVariantReader();
-				}
-				else {
-					this.varLineReader = new CSVLineReader( ((CSVFile)inputVariants).getFile() );
-					importFromVariantReader();
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-				throw new OperationFailedException("IO error reading file: " + inputVariants.getAbsolutePath(), this);
+			String ionTorrentFile = this.getAttribute(IONTORRENTFILE);
+			if (ionTorrentFile != null && Boolean.parseBoolean(ionTorrentFile) ) {
+				Logger.getLogger(Pipeline.primaryLoggerName).info("IonTorrent file flagged");
+				return new IonTorrentCallsOnlyTableParser( ((CSVFile)inputVariants).getFile() );
+			}
+			else {
+				return new CSVLineReader( ((CSVFile)inputVariants).getFile() );
 			}
 		}
-				
 		
-		logger.info("Created variant pool with " + getContigs().size() + " contigs and " + this.size() + " total variants");
+		return null;
+	}
+	
+	/**
+	 * Number of threads to use when reading VCF input, from the import.threads attribute if given, otherwise
+	 * the pipeline's thread count
+	 * @return
+	 * @throws IllegalArgumentException If import.threads is not a positive integer
+	 */
+	private int getImportThreads() {
+		String threadsStr = getAttribute(IMPORT_THREADS);
+		if (threadsStr != null) {
+			return Pipeline.parseThreadCount(IMPORT_THREADS, threadsStr);
+		}
+		if (getPipelineOwner() != null) {
+			return getPipelineOwner().getThreadCount();
+		}
+		return VCFParser.DEFAULT_THREADS;
+	}
+	
+	/**
+	 * Open a reader over this pool's input variants WITHOUT importing them, so that the
+	 * variants can be streamed through the pool in batches (see operator.variant.StreamingAnnotator).
+	 * As in importFromVariantReader(), callers should convert the current record before calling advanceLine(),
+	 * and skip null records. Returns null if this pool has no input. 
+	 * @return
+	 * @throws IOException
+	 */
+	public VariantLineReader openVariantReader() throws IOException {
+		if (varLineReader != null) {
+			if (inputVariants != null) {
+				varLineReader.setFile(inputVariants.getFile());
+			}
+			return varLineReader;
+		}
+		return createReaderForInput();
 	}
 	
 	/**
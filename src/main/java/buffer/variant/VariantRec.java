@@ -12,7 +12,7 @@ import java.util.TreeSet;
 
 import json.JSONArray;
 import json.JSONObject;
-import util.smallMap.SmallMap;
+import util.smallMap.SlotMap;
 import util.vcfParser.VCFParser.GTType;
 
 /**
@@ -30,10 +30,11 @@ public class VariantRec {
 	Double qual;
 	String GT;
 	protected GTType zygosity;
-	protected Map<String, Double> props = new SmallMap<String, Double>(); 
-	protected Map<String, Integer> ints = new SmallMap<String, Integer>(); 
-	protected Map<String, String> annotations = new SmallMap<String, String>(); 
-	protected Map<String,JSONArray> jsonobj = new SmallMap<String, JSONArray>();
+	//Keys are interned in the global KeyRegistry, so each map is just a pair of small arrays
+	protected Map<String, Double> props = new SlotMap<Double>(); 
+	protected Map<String, Integer> ints = new SlotMap<Integer>(); 
+	protected Map<String, String> annotations = new SlotMap<String>(); 
+	protected Map<String,JSONArray> jsonobj = new SlotMap<JSONArray>();
 
 	Gene gene;
 	
@@ -0,0 +1,762 @@
+package buffer.variant;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import json.JSONArray;
+import json.JSONException;
+import util.vcfParser.VCFParser.GTType;
+
+/**
+ * A compact binary snapshot of a fully annotated set of variants, which can be memory-mapped and
+ * queried by region without parsing or deserializing the whole thing. Write one with write(..) (or the
+ * VariantPoolToSnapshot operator), then open it with the constructor and use getVariantsForContig(..),
+ * query(..) or toVariantPool(). VariantSnapshotReader reads one as a VariantLineReader.
+ *
+ * The file consists of blocks of at most BLOCK_ROWS variants, with each contig split over as many blocks as
+ * it needs so that no block has to be held in memory whole while writing a large contig. These are followed by
+ * a table of all property / annotation keys, an index of the blocks, and a fixed-size footer pointing at the
+ * key table and index. Within a block
+ * variants are sorted by position and stored column-wise: start, end, quality, zygosity and string ids
+ * for ref, alt and genotype are dense columns, while each property, int, annotation and json key
+ * is a sparse column listing the rows that have a value. Strings are stored once per block
+ * in a string table. All numbers are big-endian.
+ *
+ * Only the index and key table are read when a snapshot is opened, blocks are mapped
+ * the first time they're needed. Genes attached to variants (VariantRec.getGene()) are not stored.
+ * Instances are safe for concurrent reads.
+ * @author brendan
+ *
+ */
+public class VariantSnapshot {
+
+	private static final int MAGIC = 0x56534E50; //"VSNP"
+	private static final int VERSION = 2;
+	private static final int FOOTER_LENGTH = 20;
+	
+	/**
+	 * Default maximum number of variants in a block
+	 */
+	public static final int BLOCK_ROWS = 1 << 16;
+
+	private static final byte TYPE_DOUBLE = 'D';
+	private static final byte TYPE_INT = 'I';
+	private static final byte TYPE_STRING = 'S';
+	private static final byte TYPE_JSON = 'J';
+
+	private static final byte NULL_QUALITY = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final GTType[] zygosities = GTType.values();
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final String[] keys;
+	private final Map<String, ContigEntry> contigs = new LinkedHashMap<String, ContigEntry>();
+	private int size = 0;
+
+	/**
+	 * The blocks of one contig, in position order, read from the index
+	 */
+	private static class ContigEntry {
+		String contig;
+		int count;
+		BlockEntry[] blocks;
+	}
+
+	/**
+	 * Location and summary of one block, read from the index
+	 */
+	private static class BlockEntry {
+		long offset;
+		int length;
+		int firstRow; //Row of the contig that is row 0 of this block
+		int count;
+		int minStart;
+		int maxEnd;
+		volatile Block block = null;
+	}
+
+	/**
+	 * A mapped block, with the offsets of each of its columns
+	 */
+	private class Block {
+		final String contig;
+		final ByteBuffer buf;
+		final int n;
+		final int maxLength;
+		final int startsAt;
+		final int endsAt;
+		final int qualsAt;
+		final int flagsAt;
+		final int zygAt;
+		final int refsAt;
+		final int altsAt;
+		final int gtsAt;
+		final Column[] columns;
+		final int stringCount;
+		final int stringOffsetsAt;
+		final int stringDataAt;
+		final String[] strings;
+
+		Block(String contig, ByteBuffer buf) {
+			this.contig = contig;
+			this.buf = buf;
+			n = buf.getInt(0);
+			maxLength = buf.getInt(4);
+			int pos = 8;
+			startsAt = pos; pos += 4*n;
+			endsAt = pos; pos += 4*n;
+			qualsAt = pos; pos += 8*n;
+			flagsAt = pos; pos += n;
+			zygAt = pos; pos += n;
+			refsAt = pos; pos += 4*n;
+			altsAt = pos; pos += 4*n;
+			gtsAt = pos; pos += 4*n;
+
+			columns = new Column[buf.getInt(pos)];
+			pos += 4;
+			for(int c=0; c<columns.length; c++) {
+				Column col = new Column();
+				col.type = buf.get(pos); pos++;
+				col.key = keys[buf.getInt(pos)]; pos += 4;
+				col.entries = buf.getInt(pos); pos += 4;
+				col.rowsAt = pos; pos += 4*col.entries;
+				col.valuesAt = pos; pos += (col.type == TYPE_DOUBLE ? 8 : 4)*col.entries;
+				col.nulls = buf.getInt(pos); pos += 4;
+				col.nullRowsAt = pos; pos += 4*col.nulls;
+				columns[c] = col;
+			}
+
+			stringCount = buf.getInt(pos);
+			pos += 4;
+			stringOffsetsAt = pos;
+			stringDataAt = pos + 4*(stringCount+1);
+			strings = new String[stringCount];
+		}
+
+		String string(int id) {
+			if (id < 0) {
+				return null;
+			}
+			String str = strings[id];
+			if (str == null) {
+				int from = buf.getInt(stringOffsetsAt + 4*id);
+				int to = buf.getInt(stringOffsetsAt + 4*(id+1));
+				byte[] bytes = new byte[to - from];
+				for(int i=0; i<bytes.length; i++) {
+					bytes[i] = buf.get(stringDataAt + from + i);
+				}
+				str = new String(bytes, UTF8);
+				strings[id] = str; //Benign race, all threads produce an equal string
+			}
+			return str;
+		}
+
+		int start(int row) {
+			return buf.getInt(startsAt + 4*row);
+		}
+
+		int end(int row) {
+			return buf.getInt(endsAt + 4*row);
+		}
+
+		/**
+		 * Index of the first row whose start is at least the given position
+		 */
+		int lowerBound(int pos) {
+			int lo = 0;
+			int hi = n;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (start(mid) < pos) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Create VariantRecs for rows [from, to)
+		 */
+		VariantRec[] decode(int from, int to) throws IOException {
+			VariantRec[] recs = new VariantRec[Math.max(0, to - from)];
+			for(int row=from; row<to; row++) {
+				Double qual = null;
+				if ((buf.get(flagsAt + row) & NULL_QUALITY) == 0) {
+					qual = buf.getDouble(qualsAt + 8*row);
+				}
+				byte zyg = buf.get(zygAt + row);
+				recs[row-from] = new VariantRec(contig,
+						start(row),
+						end(row),
+						string(buf.getInt(refsAt + 4*row)),
+						string(buf.getInt(altsAt + 4*row)),
+						qual,
+						string(buf.getInt(gtsAt + 4*row)),
+						zyg < 0 ? null : zygosities[zyg]);
+			}
+
+			for(Column col : columns) {
+				for(int e = col.firstEntry(buf, from); e < col.entries; e++) {
+					int row = buf.getInt(col.rowsAt + 4*e);
+					if (row >= to) {
+						break;
+					}
+					VariantRec rec = recs[row-from];
+					switch(col.type) {
+					case TYPE_DOUBLE:
+						rec.addProperty(col.key, buf.getDouble(col.valuesAt + 8*e));
+						break;
+					case TYPE_INT:
+						rec.addPropertyInt(col.key, buf.getInt(col.valuesAt + 4*e));
+						break;
+					case TYPE_STRING:
+						rec.addAnnotation(col.key, string(buf.getInt(col.valuesAt + 4*e)));
+						break;
+					case TYPE_JSON:
+						String json = string(buf.getInt(col.valuesAt + 4*e));
+						try {
+							rec.addAnnotationJSON(col.key, json == null ? null : new JSONArray(json));
+						} catch (JSONException ex) {
+							throw new IOException("Could not parse json value for key " + col.key + ": " + ex.getMessage());
+						}
+						break;
+					}
+				}
+
+				//Keys that are present but map to null
+				for(int e=0; e<col.nulls; e++) {
+					int row = buf.getInt(col.nullRowsAt + 4*e);
+					if (row >= from && row < to) {
+						VariantRec rec = recs[row-from];
+						switch(col.type) {
+						case TYPE_DOUBLE:
+							rec.addProperty(col.key, null);
+							break;
+						case TYPE_INT:
+							rec.addPropertyInt(col.key, null);
+							break;
+						case TYPE_STRING:
+							rec.addAnnotation(col.key, null);
+							break;
+						case TYPE_JSON:
+							rec.addAnnotationJSON(col.key, null);
+							break;
+						}
+					}
+				}
+			}
+			return recs;
+		}
+	}
+
+	/**
+	 * Location of one sparse key column within a block
+	 */
+	private static class Column {
+		byte type;
+		String key;
+		int entries;
+		int rowsAt;
+		int valuesAt;
+		int nulls;
+		int nullRowsAt;
+
+		/**
+		 * Index of the first entry whose row is at least the given row
+		 */
+		int firstEntry(ByteBuffer buf, int row) {
+			int lo = 0;
+			int hi = entries;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (buf.getInt(rowsAt + 4*mid) < row) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Open the given snapshot, reading only the index and key table
+	 * @param file
+	 * @throws IOException
+	 */
+	public VariantSnapshot(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		long fileLength = channel.size();
+		if (fileLength < 8 + FOOTER_LENGTH) {
+			close();
+			throw new IOException("File " + file.getName() + " is too short to be a variant snapshot");
+		}
+
+		ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+		ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, fileLength - FOOTER_LENGTH, FOOTER_LENGTH);
+		if (head.getInt(0) != MAGIC || footer.getInt(16) != MAGIC) {
+			close();
+			throw new IOException("File " + file.getName() + " is not a variant snapshot");
+		}
+		if (head.getInt(4) != VERSION) {
+			close();
+			throw new IOException("Unsupported variant snapshot version " + head.getInt(4) + " in file " + file.getName());
+		}
+
+		long keysAt = footer.getLong(0);
+		long indexAt = footer.getLong(8);
+		ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, keysAt, fileLength - FOOTER_LENGTH - keysAt);
+
+		keys = new String[tail.getInt()];
+		for(int i=0; i<keys.length; i++) {
+			keys[i] = readString(tail);
+		}
+
+		tail.position((int)(indexAt - keysAt));
+		int contigCount = tail.getInt();
+		for(int i=0; i<contigCount; i++) {
+			ContigEntry entry = new ContigEntry();
+			entry.contig = readString(tail);
+			entry.blocks = new BlockEntry[tail.getInt()];
+			for(int b=0; b<entry.blocks.length; b++) {
+				BlockEntry block = new BlockEntry();
+				block.offset = tail.getLong();
+				block.length = tail.getInt();
+				block.count = tail.getInt();
+				block.minStart = tail.getInt();
+				block.maxEnd = tail.getInt();
+				block.firstRow = entry.count;
+				entry.count += block.count;
+				entry.blocks[b] = block;
+			}
+			contigs.put(entry.contig, entry);
+			size += entry.count;
+		}
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private Block getBlock(String contig, BlockEntry entry) throws IOException {
+		Block block = entry.block;
+		if (block == null) {
+			block = new Block(contig, channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length));
+			entry.block = block;
+		}
+		return block;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * All contigs in the snapshot, in the order they were written
+	 * @return
+	 */
+	public Collection<String> getContigs() {
+		return Collections.unmodifiableCollection(contigs.keySet());
+	}
+
+	/**
+	 * Total number of variants in the snapshot
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Number of variants on the given contig
+	 * @param contig
+	 * @return
+	 */
+	public int getVariantCount(String contig) {
+		ContigEntry entry = contigs.get(contig);
+		return entry == null ? 0 : entry.count;
+	}
+
+	/**
+	 * Decode the variants in rows [from, to) of the given contig, in position order
+	 * @param contig
+	 * @param from
+	 * @param to
+	 * @return
+	 * @throws IOException
+	 */
+	public List<VariantRec> getVariants(String contig, int from, int to) throws IOException {
+		List<VariantRec> result = new ArrayList<VariantRec>();
+		ContigEntry entry = contigs.get(contig);
+		if (entry == null) {
+			return result;
+		}
+		for(BlockEntry blockEntry : entry.blocks) {
+			int blockFrom = Math.max(from, blockEntry.firstRow) - blockEntry.firstRow;
+			int blockTo = Math.min(to, blockEntry.firstRow + blockEntry.count) - blockEntry.firstRow;
+			if (blockFrom < blockTo) {
+				result.addAll(Arrays.asList(getBlock(contig, blockEntry).decode(blockFrom, blockTo)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decode all variants on the given contig, in position order
+	 * @param contig
+	 * @return
+	 * @throws IOException
+	 */
+	public List<VariantRec> getVariantsForContig(String contig) throws IOException {
+		return getVariants(contig, 0, getVariantCount(contig));
+	}
+
+	/**
+	 * Decode only those variants that overlap the half-open interval [start, end) on the given contig.
+	 * A variant covers [var.getStart(), var.getEnd()), or just its start position if its end is not
+	 * past its start (as for insertions)
+	 * @param contig
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	public List<VariantRec> query(String contig, int start, int end) throws IOException {
+		List<VariantRec> result = new ArrayList<VariantRec>();
+		ContigEntry entry = contigs.get(contig);
+		if (entry == null || start >= end) {
+			return result;
+		}
+		for(BlockEntry blockEntry : entry.blocks) {
+			if (blockEntry.count == 0 || end <= blockEntry.minStart || start >= blockEntry.maxEnd) {
+				continue;
+			}
+			Block block = getBlock(contig, blockEntry);
+
+			//No variant in the block is longer than maxLength, so nothing starting before this can reach the query
+			int from = block.lowerBound(start - Math.max(1, block.maxLength));
+			int to = block.lowerBound(end);
+			int first = -1;
+			int last = -1;
+			for(int row=from; row<to; row++) {
+				int varEnd = Math.max(block.end(row), block.start(row)+1);
+				if (varEnd > start) {
+					if (first < 0) {
+						first = row;
+					}
+					last = row;
+				}
+			}
+			if (first < 0) {
+				continue;
+			}
+			for(VariantRec rec : block.decode(first, last+1)) {
+				if (Math.max(rec.getEnd(), rec.getStart()+1) > start) {
+					result.add(rec);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decode everything into a new VariantPool
+	 * @return
+	 * @throws IOException
+	 */
+	public VariantPool toVariantPool() throws IOException {
+		VariantPool pool = new VariantPool();
+		for(String contig : contigs.keySet()) {
+			for(VariantRec rec : getVariantsForContig(contig)) {
+				pool.addRecordNoSort(rec);
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Release the file handle. Blocks already mapped remain valid until they're garbage collected
+	 */
+	public void close() throws IOException {
+		channel.close();
+		raf.close();
+	}
+
+	/**
+	 * Assigns small integer ids to strings, in order of first appearance
+	 */
+	private static class StringTable {
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		final List<String> strings = new ArrayList<String>();
+
+		int id(String str) {
+			if (str == null) {
+				return -1;
+			}
+			Integer id = ids.get(str);
+			if (id == null) {
+				id = strings.size();
+				ids.put(str, id);
+				strings.add(str);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Values for a single key and type within a block, in row order
+	 */
+	private static class ColumnBuilder {
+		final byte type;
+		final int keyId;
+		final List<Integer> rows = new ArrayList<Integer>();
+		final List<Object> values = new ArrayList<Object>();
+		final List<Integer> nullRows = new ArrayList<Integer>();
+
+		ColumnBuilder(byte type, int keyId) {
+			this.type = type;
+			this.keyId = keyId;
+		}
+
+		void add(int row, Object value) {
+			if (value == null) {
+				nullRows.add(row);
+			}
+			else {
+				rows.add(row);
+				values.add(value);
+			}
+		}
+	}
+
+	/**
+	 * Write all variants in the store to a new snapshot file, overwriting the destination if it exists
+	 * @param store
+	 * @param dest
+	 * @throws IOException
+	 */
+	public static void write(VariantStore store, File dest) throws IOException {
+		write(store, dest, BLOCK_ROWS);
+	}
+
+	/**
+	 * Write all variants in the store to a new snapshot file, with at most blockRows variants in each block
+	 * @param store
+	 * @param dest
+	 * @param blockRows
+	 * @throws IOException
+	 */
+	public static void write(VariantStore store, File dest, int blockRows) throws IOException {
+		if (blockRows < 1) {
+			throw new IllegalArgumentException("Block size must be at least 1, got " + blockRows);
+		}
+		//Contigs in sorted order, so the same pool always produces the same file
+		List<String> contigNames = new ArrayList<String>(store.getContigs());
+		Collections.sort(contigNames);
+
+		Map<String, Integer> keyIds = new LinkedHashMap<String, Integer>();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dest), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			long offset = 8;
+
+			ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+			DataOutputStream index = new DataOutputStream(indexBytes);
+			index.writeInt(contigNames.size());
+			for(String contig : contigNames) {
+				List<VariantRec> vars = new ArrayList<VariantRec>(store.getVariantsForContig(contig));
+				Collections.sort(vars, VariantRec.getPositionComparator());
+				writeString(index, contig);
+				index.writeInt((vars.size() + blockRows - 1) / blockRows);
+				for(int from=0; from<vars.size(); from+=blockRows) {
+					List<VariantRec> blockVars = vars.subList(from, Math.min(vars.size(), from + blockRows));
+					byte[] block = encodeBlock(blockVars, keyIds);
+					out.write(block);
+
+					int maxEnd = 0;
+					for(VariantRec var : blockVars) {
+						maxEnd = Math.max(maxEnd, Math.max(var.getEnd(), var.getStart()+1));
+					}
+					index.writeLong(offset);
+					index.writeInt(block.length);
+					index.writeInt(blockVars.size());
+					index.writeInt(blockVars.get(0).getStart());
+					index.writeInt(maxEnd);
+					offset += block.length;
+				}
+			}
+
+			long keysAt = offset;
+			ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+			DataOutputStream keyTable = new DataOutputStream(keyBytes);
+			keyTable.writeInt(keyIds.size());
+			for(String key : keyIds.keySet()) {
+				writeString(keyTable, key);
+			}
+			keyTable.flush();
+			out.write(keyBytes.toByteArray());
+			long indexAt = keysAt + keyBytes.size();
+
+			index.flush();
+			out.write(indexBytes.toByteArray());
+
+			out.writeLong(keysAt);
+			out.writeLong(indexAt);
+			out.writeInt(MAGIC);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static int keyId(Map<String, Integer> keyIds, String key) {
+		Integer id = keyIds.get(key);
+		if (id == null) {
+			id = keyIds.size();
+			keyIds.put(key, id);
+		}
+		return id;
+	}
+
+	private static ColumnBuilder column(Map<String, ColumnBuilder> columns, Map<String, Integer> keyIds, byte type, String key) {
+		String colKey = (char)type + key;
+		ColumnBuilder col = columns.get(colKey);
+		if (col == null) {
+			col = new ColumnBuilder(type, keyId(keyIds, key));
+			columns.put(colKey, col);
+		}
+		return col;
+	}
+
+	/**
+	 * Encode the given variants, which must be sorted by position, as a single block
+	 */
+	private static byte[] encodeBlock(List<VariantRec> vars, Map<String, Integer> keyIds) throws IOException {
+		int n = vars.size();
+		StringTable strings = new StringTable();
+		Map<String, ColumnBuilder> columns = new LinkedHashMap<String, ColumnBuilder>();
+		int maxLength = 0;
+		for(int row=0; row<n; row++) {
+			VariantRec var = vars.get(row);
+			maxLength = Math.max(maxLength, var.getEnd() - var.getStart());
+			for(String key : var.getPropertyKeys()) {
+				column(columns, keyIds, TYPE_DOUBLE, key).add(row, var.getProperty(key));
+			}
+			for(String key : var.getIntKeys()) {
+				column(columns, keyIds, TYPE_INT, key).add(row, var.getPropertyInt(key));
+			}
+			for(String key : var.getAnnotationKeys()) {
+				column(columns, keyIds, TYPE_STRING, key).add(row, var.getAnnotation(key));
+			}
+			for(String key : var.getJsonobjKeys()) {
+				JSONArray json = var.getjsonProperty(key);
+				column(columns, keyIds, TYPE_JSON, key).add(row, json == null ? null : json.toString());
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 40*n);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(n);
+		out.writeInt(maxLength);
+		for(VariantRec var : vars) {
+			out.writeInt(var.getStart());
+		}
+		for(VariantRec var : vars) {
+			out.writeInt(var.getEnd());
+		}
+		for(VariantRec var : vars) {
+			out.writeDouble(var.getQuality() == null ? Double.NaN : var.getQuality());
+		}
+		for(VariantRec var : vars) {
+			out.writeByte(var.getQuality() == null ? NULL_QUALITY : 0);
+		}
+		for(VariantRec var : vars) {
+			out.writeByte(var.getZygosity() == null ? -1 : var.getZygosity().ordinal());
+		}
+		for(VariantRec var : vars) {
+			out.writeInt(strings.id(var.getRef()));
+		}
+		for(VariantRec var : vars) {
+			out.writeInt(strings.id(var.getAlt()));
+		}
+		for(VariantRec var : vars) {
+			out.writeInt(strings.id(var.getGenotype()));
+		}
+
+		out.writeInt(columns.size());
+		for(ColumnBuilder col : columns.values()) {
+			out.writeByte(col.type);
+			out.writeInt(col.keyId);
+			out.writeInt(col.rows.size());
+			for(Integer row : col.rows) {
+				out.writeInt(row);
+			}
+			for(Object val : col.values) {
+				switch(col.type) {
+				case TYPE_DOUBLE:
+					out.writeDouble((Double)val);
+					break;
+				case TYPE_INT:
+					out.writeInt((Integer)val);
+					break;
+				default:
+					out.writeInt(strings.id((String)val));
+				}
+			}
+			out.writeInt(col.nullRows.size());
+			for(Integer row : col.nullRows) {
+				out.writeInt(row);
+			}
+		}
+
+		//String table goes last, since the columns above may add to it
+		out.writeInt(strings.strings.size());
+		List<byte[]> encoded = new ArrayList<byte[]>(strings.strings.size());
+		int dataOffset = 0;
+		out.writeInt(dataOffset);
+		for(String str : strings.strings) {
+			byte[] b = str.getBytes(UTF8);
+			encoded.add(b);
+			dataOffset += b.length;
+			out.writeInt(dataOffset);
+		}
+		for(byte[] b : encoded) {
+			out.write(b);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+}
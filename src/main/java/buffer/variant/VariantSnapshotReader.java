@@ -0,0 +1,153 @@
+package buffer.variant;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.NodeList;
+
+import pipeline.PipelineObject;
+
+/**
+ * A VariantLineReader that reads the variants from a binary VariantSnapshot, contig by contig in the
+ * order they were written and in position order within each contig. Variants are decoded in
+ * small batches, so this doesn't hold the whole snapshot in memory. 
+ * As with VCFParser, the reader is not positioned on the first variant until advanceLine() has been called.
+ * Since there are no text lines, getCurrentLine() returns a short description of the current variant.
+ * The snapshot is closed when advanceLine() reaches the end, or by close() if reading stops early.
+ * @author brendan
+ *
+ */
+public class VariantSnapshotReader extends PipelineObject implements VariantLineReader, Closeable {
+
+	private static final int BATCH_SIZE = 4096;
+	
+	private VariantSnapshot snapshot = null;
+	private Iterator<String> contigs = null;
+	private String contig = null;
+	private int nextRow = 0; //Row in the current contig of the first variant after the current batch
+	private List<VariantRec> batch = new ArrayList<VariantRec>();
+	private int batchIndex = -1;
+	private VariantRec current = null;
+	
+	public VariantSnapshotReader() {
+		//blank on purpose, set the file with setFile(..)
+	}
+	
+	public VariantSnapshotReader(File file) throws IOException {
+		setFile(file);
+	}
+	
+	@Override
+	public void setFile(File file) throws IOException {
+		if (snapshot != null) {
+			snapshot.close();
+		}
+		snapshot = new VariantSnapshot(file);
+		contigs = snapshot.getContigs().iterator();
+		contig = null;
+		nextRow = 0;
+		batch.clear();
+		batchIndex = -1;
+		current = null;
+	}
+
+	@Override
+	public boolean advanceLine() throws IOException {
+		if (snapshot == null) {
+			if (contigs != null) {
+				//Already reached the end
+				return false;
+			}
+			throw new IOException("No snapshot file has been set");
+		}
+		batchIndex++;
+		while (batchIndex >= batch.size()) {
+			if (contig != null && nextRow < snapshot.getVariantCount(contig)) {
+				batch = snapshot.getVariants(contig, nextRow, nextRow + BATCH_SIZE);
+				nextRow += batch.size();
+			}
+			else if (contigs.hasNext()) {
+				contig = contigs.next();
+				nextRow = 0;
+				batch.clear();
+			}
+			else {
+				current = null;
+				batch.clear();
+				close();
+				return false;
+			}
+			batchIndex = 0;
+		}
+		current = batch.get(batchIndex);
+		return true;
+	}
+
+	@Override
+	public String getCurrentLine() throws IOException {
+		if (current == null) {
+			return null;
+		}
+		return current.getContig() + "\t" + current.getStart() + "\t" + current.getRef() + "\t" + current.getAlt();
+	}
+
+	@Override
+	public String getHeader() throws IOException {
+		return "";
+	}
+
+	@Override
+	public VariantRec toVariantRec() {
+		return current;
+	}
+
+	/**
+	 * Close the snapshot, after which advanceLine() returns false
+	 */
+	@Override
+	public void close() throws IOException {
+		if (snapshot != null) {
+			snapshot.close();
+			snapshot = null;
+		}
+	}
+	
+	/**
+	 * The snapshot being read, which may also be queried directly until the reader reaches the end or is closed
+	 * @return
+	 */
+	public VariantSnapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	///////// PipelineObject implementation //////////////
+	
+	@Override
+	public void setAttribute(String key, String value) {
+		attributes.put(key, value);
+	}
+
+	@Override
+	public String getAttribute(String key) {
+		return attributes.get(key);
+	}
+
+	@Override
+	public Collection<String> getAttributeKeys() {
+		return attributes.keySet();
+	}
+
+	@Override
+	public void initialize(NodeList children) {
+		//Nothing to do
+	}
+	
+	private Map<String, String> attributes = new HashMap<String, String>();
+}
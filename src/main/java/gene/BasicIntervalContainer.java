@@ -5,17 +5,19 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import util.Interval;
+import util.IntervalIndex;
 import util.coverage.HasIntervals;
 
 /**
  * A list of intervals, grouped by contig. This is (or should be) the basic class
  * for looking up information from intervals for a particular range or site.  
  * 
- * Might be fun to subclass this to use an Interval Tree or some other sort of index
- * to allow faster lookups. But so far performance hasn't been an issue so we don't really 
- * worry about it. 
+ * Lookups use an IntervalIndex for each contig, which is built the first time the contig is queried (or 
+ * when buildIndex() is called) and thrown away if more intervals are added to the contig. Subclasses
+ * that modify allIntervals directly should call buildIndex() when they're done.
  * @author brendan
  *
  */
@@ -24,6 +26,39 @@ public class BasicIntervalContainer implements HasIntervals {
 	//A map from contig name to list of intervals, need to instantiate since addInterval() isn't always called
 	protected Map<String, List<Interval>> allIntervals = new HashMap<String, List<Interval>>();
 	
+	//Index of the intervals in each contig, built when needed
+	private final Map<String, IntervalIndex> indices = new ConcurrentHashMap<String, IntervalIndex>();
+	
+	/**
+	 * (Re)build the index for every contig. This isn't required, since indices are built as needed, but
+	 * should be called after allIntervals has been changed other than through addInterval(..)
+	 */
+	public void buildIndex() {
+		indices.clear();
+		for(String contig : allIntervals.keySet()) {
+			getIndex(contig);
+		}
+	}
+	
+	/**
+	 * Return the index of the intervals on the given contig, building it if necessary, or null
+	 * if there are no intervals on the contig. 
+	 * @param contig
+	 * @return
+	 */
+	public IntervalIndex getIndex(String contig) {
+		IntervalIndex index = indices.get(contig);
+		if (index == null) {
+			List<Interval> intervals = allIntervals.get(contig);
+			if (intervals == null) {
+				return null;
+			}
+			index = new IntervalIndex(intervals);
+			indices.put(contig, index);
+		}
+		return index;
+	}
+	
 	
 	/**
 	 * Get all intervals that overlap the given position on the given chromosome.
@@ -37,8 +72,7 @@ public class BasicIntervalContainer implements HasIntervals {
 	}
 	
 	/**
-	 * Get all intervals that overlap the given region. This just iterates over all intervals
-	 * and returns those that intersect. 
+	 * Get all intervals that overlap the given region, in order of start position.
 	 * Returns an empty (non-null) list if no intersecting intervals are found 
 	 * @param contig
 	 * @param start
@@ -46,25 +80,29 @@ public class BasicIntervalContainer implements HasIntervals {
 	 * @return
 	 */
 	public List<Interval> getIntervalsForRange(String contig, int start, int end) {
-		List<Interval> intervals = allIntervals.get(contig);
 		List<Interval> returnedIntervals = new ArrayList<Interval>(4);
-		
-		if (intervals == null) {
-			return returnedIntervals;
+		IntervalIndex index = getIndex(contig);
+		if (index != null) {
+			index.query(start, end, returnedIntervals);
 		}
-		
-		//Find all intervals that contain pos and store their info in a list
-		//Right now this stupidly scans every interval, a modified sort of binary search
-		//or an index of some kind would be a lot faster
-		for(Interval inter : intervals) {
-			if (inter.intersects(start, end)) {
-				returnedIntervals.add( inter);
-			}
-		}
-		
 		return returnedIntervals;
 	}
 	
+	/**
+	 * Return a cursor for looking up the intervals on the given contig that overlap a series of ranges
+	 * in order of start position, for instance all of the variants on a contig in a sorted VCF. 
+	 * Returns null if there are no intervals on the contig. 
+	 * @param contig
+	 * @return
+	 */
+	public IntervalIndex.Cursor getCursor(String contig) {
+		IntervalIndex index = getIndex(contig);
+		if (index == null) {
+			return null;
+		}
+		return index.cursor();
+	}
+	
 	/**
 	 * Intervals can have arbitrary Objects stored with them - this method returns all the Objects
 	 * stored for each interval that overlaps the given range. 
@@ -107,6 +145,7 @@ public class BasicIntervalContainer implements HasIntervals {
 			allIntervals.put(contig, intervals);
 		}
 		intervals.add(interval);
+		indices.remove(contig);
 	}
 	
 	@Override
@@ -105,6 +105,7 @@ public class ExonLookupService extends BasicIntervalContainer {
 				Collections.sort(intervals);
 			}
 		}
+		buildIndex();
 	}
 
 	
@@ -267,6 +268,7 @@ public class ExonLookupService extends BasicIntervalContainer {
 			line = reader.readLine();
 		}
 		reader.close();
+		buildIndex();
 	}
 	
 
@@ -48,6 +48,7 @@ public class MitoAnnoLookupContainer extends BasicIntervalContainer {
 		}
 		
 		reader.close();
+		buildIndex();
 	}
 	
 	private MitoAnnoInfo parseInfo(BufferedReader reader, String line) throws IOException {
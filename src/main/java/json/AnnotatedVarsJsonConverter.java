@@ -29,6 +29,22 @@ public class AnnotatedVarsJsonConverter {
 		this.ensureKeys = keys;
 	}
 	
+	/**
+	 * The keys that every json object will specify, may be null
+	 * @return
+	 */
+	public List<String> getKeys() {
+		return ensureKeys;
+	}
+	
+	/**
+	 * The annotation keys that will not be included in json objects
+	 * @return
+	 */
+	public Set<String> getExcludeKeys() {
+		return excludeKeys;
+	}
+	
 	public void setExcludeKeys(List<String> excludes) {
 		//excludeKeys = new HashSet<String>();
 		for(String key : excludes) {
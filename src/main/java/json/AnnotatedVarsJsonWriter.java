@@ -0,0 +1,533 @@
+package json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.vcfParser.VCFParser.GTType;
+import buffer.variant.VariantRec;
+
+/**
+ * Writes variants as json objects directly to a stream, producing exactly the same bytes as
+ * AnnotatedVarsJsonConverter.toJSON(var).toString() would, but without building a JSONObject (and its
+ * HashMap and boxed values) for every variant. Each object is formatted into a reusable byte buffer,
+ * and the quoted form of every key is computed only once.
+ *
+ * JSONObject emits keys in HashMap iteration order, which depends on the hashes of the keys, the size of
+ * the table and the order in which keys were added. We track which keys a JSONObject would have held and
+ * how big its table would have grown, then sort the keys into bucket order. In the very rare case that
+ * enough keys collide that HashMap would have converted a bucket to a tree (which changes the order) we
+ * just build the JSONObject.
+ *
+ * Configuration (keys to include and exclude, value for missing keys) is copied from the converter
+ * when the writer is created. This class is not thread safe.
+ * @author brendan
+ *
+ */
+public class AnnotatedVarsJsonWriter {
+
+	//Kinds of values an entry may hold
+	private static final byte STRING = 0;
+	private static final byte NUMBER = 1; //An Integer or Double object
+	private static final byte INT = 2;
+	private static final byte DOUBLE = 3;
+	private static final byte ARRAY = 4;
+
+	//Same as in java.util.HashMap
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int TREEIFY_THRESHOLD = 8;
+
+	private final AnnotatedVarsJsonConverter converter;
+	private final Set<String> excludeKeys;
+	private final String noValue;
+	private final int[] ensureIds;
+
+	//Every key seen so far, with its quoted form and hash
+	private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+	private byte[][] keyBytes = new byte[64][];
+	private int[] keyHashes = new int[64];
+	private int[] keySlots = new int[64]; //Entry holding each key, valid only if keyStamps[id] == stamp
+	private int[] keyStamps = new int[64];
+	private int keyCount = 0;
+	private int stamp = 0;
+
+	//Entries of the object currently being written, in the order they were added
+	private int[] entryKeys = new int[64];
+	private byte[] entryKinds = new byte[64];
+	private Object[] entryObjs = new Object[64];
+	private double[] entryNums = new double[64];
+	private boolean[] entryLive = new boolean[64];
+	private int entryCount = 0;
+
+	//Bucket sizes of the HashMap a JSONObject would be using
+	private int[] bucketSizes = new int[INITIAL_CAPACITY];
+	private int capacity = INITIAL_CAPACITY;
+	private int size = 0;
+	private boolean treeified = false;
+
+	private long[] order = new long[64];
+	private byte[] buf = new byte[8192];
+	private int len = 0;
+
+	private final int chrId;
+	private final int posId;
+	private final int qualityId;
+	private final int refId;
+	private final int altId;
+	private final int varFreqId;
+	private final int zygosityId;
+	private final int hgmdId;
+
+	public AnnotatedVarsJsonWriter(AnnotatedVarsJsonConverter converter) {
+		this.converter = converter;
+		this.excludeKeys = new HashSet<String>(converter.getExcludeKeys());
+		this.noValue = converter.getNO_VALUE();
+		List<String> keys = converter.getKeys();
+		if (keys == null) {
+			keys = Collections.emptyList();
+		}
+		ensureIds = new int[keys.size()];
+		for(int i=0; i<ensureIds.length; i++) {
+			ensureIds[i] = idOf(keys.get(i));
+		}
+
+		chrId = idOf("chr");
+		posId = idOf("pos");
+		qualityId = idOf("quality");
+		refId = idOf("ref");
+		altId = idOf("alt");
+		varFreqId = idOf("var.freq");
+		zygosityId = idOf("zygosity");
+		hgmdId = idOf(VariantRec.HGMD_HIT);
+	}
+
+	/**
+	 * Write the json object for the given variant to the stream
+	 * @param var
+	 * @param out
+	 * @throws IOException
+	 * @throws JSONException If the variant cannot be represented in json, for instance if it has a NaN quality
+	 */
+	public void write(VariantRec var, OutputStream out) throws IOException, JSONException {
+		addEntries(var);
+		if (treeified) {
+			out.write(converter.toJSON(var).toString().getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		int count = 0;
+		for(int i=0; i<entryCount; i++) {
+			if (entryLive[i]) {
+				order[count] = ((long)(keyHashes[entryKeys[i]] & (capacity-1)) << 32) | i;
+				count++;
+			}
+		}
+		Arrays.sort(order, 0, count);
+
+		len = 0;
+		append('{');
+		for(int j=0; j<count; j++) {
+			if (j > 0) {
+				append(',');
+			}
+			int entry = (int)order[j];
+			byte[] key = keyBytes[entryKeys[entry]];
+			ensureCapacity(key.length);
+			System.arraycopy(key, 0, buf, len, key.length);
+			len += key.length;
+			appendValue(entry);
+		}
+		append('}');
+		out.write(buf, 0, len);
+	}
+
+	/**
+	 * Add entries in exactly the same order and with the same values as AnnotatedVarsJsonConverter.toJSON
+	 * @param var
+	 * @throws JSONException
+	 */
+	private void addEntries(VariantRec var) throws JSONException {
+		clear();
+
+		for(String key : var.getAnnotationKeys()) {
+			if (!excludeKeys.contains(key)) {
+				String val = var.getAnnotation(key);
+				if (key.equals(VariantRec.GENOTYPE_QUALITY) && val.equals(".")) {
+					val = "0";
+				}
+				put(idOf(key), STRING, val);
+			}
+		}
+
+		for(String key : var.getJsonobjKeys()) {
+			if (!excludeKeys.contains(key)) {
+				put(idOf(key), ARRAY, var.getjsonProperty(key));
+			}
+		}
+
+		for(String key : var.getIntKeys()) {
+			if (!excludeKeys.contains(key)) {
+				put(idOf(key), NUMBER, var.getPropertyInt(key));
+			}
+		}
+
+		for(String key : var.getPropertyKeys()) {
+			if (excludeKeys.contains(key)) {
+				continue;
+			}
+			Double val = var.getProperty(key);
+			if (val.isInfinite() || val.isNaN()) {
+				put(idOf(key), STRING, "" + val);
+			}
+			else {
+				put(idOf(key), NUMBER, val);
+			}
+		}
+
+		put(chrId, STRING, var.getContig());
+		putNumber(posId, INT, var.getStart());
+		Double quality = var.getQuality();
+		JSONObject.testValidity(quality);
+		put(qualityId, NUMBER, quality);
+		put(refId, STRING, var.getRef());
+		put(altId, STRING, var.getAlt());
+
+		if (!var.hasProperty("var.freq")) {
+			double varFreq = 0.0;
+			if (var.getProperty(VariantRec.DEPTH) != null && var.getProperty(VariantRec.DEPTH) > 0 && var.getProperty(VariantRec.VAR_DEPTH) != null) {
+				varFreq = var.getProperty(VariantRec.VAR_DEPTH) / var.getProperty(VariantRec.DEPTH);
+			}
+			JSONObject.testValidity(varFreq);
+			putNumber(varFreqId, DOUBLE, varFreq);
+		}
+
+		String zyg = "";
+		if (var.getZygosity() == GTType.HET) {
+			zyg = "het";
+		} else if (var.getZygosity() == GTType.HOM) {
+			zyg = "hom";
+		} else if (var.getZygosity() == GTType.HEMI) {
+			zyg = "hemi";
+		} else if (var.getZygosity() == GTType.UNKNOWN) {
+			zyg = "unknown";
+		}
+		put(zygosityId, STRING, zyg);
+
+		int hgmd = slotOf(hgmdId);
+		if (hgmd >= 0) {
+			if (entryKinds[hgmd] != STRING) {
+				throw new JSONException("JSONObject[" + JSONObject.quote(VariantRec.HGMD_HIT) + "] not a string.");
+			}
+			put(hgmdId, STRING, ((String)entryObjs[hgmd]).length() > 5 ? "true" : "");
+		}
+
+		for(int i=0; i<ensureIds.length; i++) {
+			if (slotOf(ensureIds[i]) < 0) {
+				put(ensureIds[i], STRING, noValue);
+			}
+		}
+	}
+
+	private void clear() {
+		stamp++;
+		if (stamp == Integer.MAX_VALUE) {
+			Arrays.fill(keyStamps, 0);
+			stamp = 1;
+		}
+		entryCount = 0;
+		capacity = INITIAL_CAPACITY;
+		Arrays.fill(bucketSizes, 0, capacity, 0);
+		size = 0;
+		treeified = false;
+	}
+
+	/**
+	 * Obtain the id for the given key, registering it if it hasn't been seen before
+	 */
+	private int idOf(String key) {
+		Integer id = keyIds.get(key);
+		if (id != null) {
+			return id;
+		}
+
+		if (keyCount == keyBytes.length) {
+			int newLength = 2*keyCount;
+			keyBytes = Arrays.copyOf(keyBytes, newLength);
+			keyHashes = Arrays.copyOf(keyHashes, newLength);
+			keySlots = Arrays.copyOf(keySlots, newLength);
+			keyStamps = Arrays.copyOf(keyStamps, newLength);
+		}
+		keyBytes[keyCount] = (JSONObject.quote(key) + ":").getBytes(StandardCharsets.UTF_8);
+		int h = key.hashCode();
+		keyHashes[keyCount] = h ^ (h >>> 16);
+		keyIds.put(key, keyCount);
+		keyCount++;
+		return keyCount-1;
+	}
+
+	/**
+	 * Index of the entry currently holding the given key, or -1 if there isn't one
+	 */
+	private int slotOf(int id) {
+		return keyStamps[id] == stamp ? keySlots[id] : -1;
+	}
+
+	/**
+	 * Same as JSONObject.put: null values remove the key, existing keys keep their place
+	 */
+	private void put(int id, byte kind, Object val) {
+		if (val == null) {
+			remove(id);
+			return;
+		}
+		int slot = slotOf(id);
+		if (slot < 0) {
+			slot = addEntry(id);
+		}
+		entryKinds[slot] = kind;
+		entryObjs[slot] = val;
+	}
+
+	private void putNumber(int id, byte kind, double val) {
+		int slot = slotOf(id);
+		if (slot < 0) {
+			slot = addEntry(id);
+		}
+		entryKinds[slot] = kind;
+		entryObjs[slot] = null;
+		entryNums[slot] = val;
+	}
+
+	private void remove(int id) {
+		int slot = slotOf(id);
+		if (slot < 0) {
+			return;
+		}
+		entryLive[slot] = false;
+		keySlots[id] = -1;
+		bucketSizes[keyHashes[id] & (capacity-1)]--;
+		size--;
+	}
+
+	private int addEntry(int id) {
+		if (entryCount == entryKeys.length) {
+			int newLength = 2*entryCount;
+			entryKeys = Arrays.copyOf(entryKeys, newLength);
+			entryKinds = Arrays.copyOf(entryKinds, newLength);
+			entryObjs = Arrays.copyOf(entryObjs, newLength);
+			entryNums = Arrays.copyOf(entryNums, newLength);
+			entryLive = Arrays.copyOf(entryLive, newLength);
+			order = new long[newLength];
+		}
+		int slot = entryCount;
+		entryCount++;
+		entryKeys[slot] = id;
+		entryLive[slot] = true;
+		keyStamps[id] = stamp;
+		keySlots[id] = slot;
+
+		//HashMap converts a bucket to a tree (or grows early if it is small) when a ninth key is added to it
+		int bucket = keyHashes[id] & (capacity-1);
+		if (bucketSizes[bucket] >= TREEIFY_THRESHOLD) {
+			treeified = true;
+		}
+		bucketSizes[bucket]++;
+		size++;
+		if (size > capacity / 4 * 3) {
+			capacity *= 2;
+			if (bucketSizes.length < capacity) {
+				bucketSizes = new int[capacity];
+			}
+			Arrays.fill(bucketSizes, 0, capacity, 0);
+			for(int i=0; i<entryCount; i++) {
+				if (entryLive[i]) {
+					bucketSizes[keyHashes[entryKeys[i]] & (capacity-1)]++;
+				}
+			}
+		}
+		return slot;
+	}
+
+	private void appendValue(int entry) throws JSONException {
+		switch (entryKinds[entry]) {
+		case STRING:
+			appendQuoted((String)entryObjs[entry]);
+			break;
+		case NUMBER:
+			Object num = entryObjs[entry];
+			if (num instanceof Double) {
+				appendDouble((Double)num);
+			}
+			else {
+				appendInt((Integer)num);
+			}
+			break;
+		case INT:
+			appendInt((int)entryNums[entry]);
+			break;
+		case DOUBLE:
+			appendDouble(entryNums[entry]);
+			break;
+		default:
+			String str = entryObjs[entry].toString();
+			if (str == null) {
+				throw new JSONException("Null pointer");
+			}
+			appendQuoted(str, false);
+		}
+	}
+
+	private void ensureCapacity(int extra) {
+		if (len + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(2*buf.length, len + extra));
+		}
+	}
+
+	private void append(char c) {
+		ensureCapacity(1);
+		buf[len++] = (byte)c;
+	}
+
+	/**
+	 * Same as JSONObject.numberToString, without the intermediate Double
+	 */
+	private void appendDouble(double val) {
+		String str = Double.toString(val);
+		int end = str.length();
+		if (str.indexOf('.') > 0 && str.indexOf('e') < 0 && str.indexOf('E') < 0) {
+			while (str.charAt(end-1) == '0') {
+				end--;
+			}
+			if (str.charAt(end-1) == '.') {
+				end--;
+			}
+		}
+		ensureCapacity(end);
+		for(int i=0; i<end; i++) {
+			buf[len++] = (byte)str.charAt(i);
+		}
+	}
+
+	private void appendInt(int val) {
+		if (val == Integer.MIN_VALUE) {
+			appendQuoted(Integer.toString(val), false);
+			return;
+		}
+		ensureCapacity(11);
+		if (val < 0) {
+			buf[len++] = '-';
+			val = -val;
+		}
+		int digits = 1;
+		for(int v=val; v >= 10; v /= 10) {
+			digits++;
+		}
+		for(int i=len+digits-1; i>=len; i--) {
+			buf[i] = (byte)('0' + val % 10);
+			val /= 10;
+		}
+		len += digits;
+	}
+
+	private void appendQuoted(String str) {
+		appendQuoted(str, true);
+	}
+
+	/**
+	 * Append the UTF-8 bytes of the given string, quoted and escaped the same way as JSONObject.quote if quote is true
+	 */
+	private void appendQuoted(String str, boolean quote) {
+		int length = str.length();
+		ensureCapacity(6*length + 2);
+		if (quote) {
+			buf[len++] = '"';
+		}
+		char b;
+		char c = 0;
+		for(int i=0; i<length; i++) {
+			b = c;
+			c = str.charAt(i);
+			if (quote) {
+				switch (c) {
+				case '\\':
+				case '"':
+					buf[len++] = '\\';
+					buf[len++] = (byte)c;
+					continue;
+				case '/':
+					if (b == '<') {
+						buf[len++] = '\\';
+					}
+					buf[len++] = '/';
+					continue;
+				case '\b':
+					buf[len++] = '\\';
+					buf[len++] = 'b';
+					continue;
+				case '\t':
+					buf[len++] = '\\';
+					buf[len++] = 't';
+					continue;
+				case '\n':
+					buf[len++] = '\\';
+					buf[len++] = 'n';
+					continue;
+				case '\f':
+					buf[len++] = '\\';
+					buf[len++] = 'f';
+					continue;
+				case '\r':
+					buf[len++] = '\\';
+					buf[len++] = 'r';
+					continue;
+				default:
+					if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+						buf[len++] = '\\';
+						buf[len++] = 'u';
+						for(int shift=12; shift>=0; shift-=4) {
+							buf[len++] = (byte)Character.forDigit((c >> shift) & 0xF, 16);
+						}
+						continue;
+					}
+				}
+			}
+
+			if (c < 0x80) {
+				buf[len++] = (byte)c;
+			}
+			else if (c < 0x800) {
+				buf[len++] = (byte)(0xC0 | (c >> 6));
+				buf[len++] = (byte)(0x80 | (c & 0x3F));
+			}
+			else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i+1 < length && Character.isLowSurrogate(str.charAt(i+1))) {
+					int cp = Character.toCodePoint(c, str.charAt(i+1));
+					i++;
+					c = str.charAt(i);
+					buf[len++] = (byte)(0xF0 | (cp >> 18));
+					buf[len++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					buf[len++] = (byte)(0x80 | (cp & 0x3F));
+				}
+				else {
+					buf[len++] = '?'; //Same as String.getBytes for unpaired surrogates
+				}
+			}
+			else {
+				buf[len++] = (byte)(0xE0 | (c >> 12));
+				buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				buf[len++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+		if (quote) {
+			buf[len++] = '"';
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package ncbi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import pipeline.Pipeline;
+
+/**
+ * Fetches values for keys (records for ids, typically) from a remote service in the background. Keys are
+ * grouped into batches of up to batchSize that are fetched with a single request, at most maxInFlight
+ * requests run at once, and requests are started at least minInterval milliseconds apart so we stay under
+ * the service's rate limit. A key that is already being fetched isn't requested again; everyone asking for
+ * it gets the same result.
+ * Subclasses implement fetchBatch to make the actual request.
+ * @author brendan
+ *
+ */
+public abstract class BatchFetcher<K, V> {
+
+	/**
+	 * Receives the keys in each batch and the values fetched for them as soon as the batch is fetched,
+	 * before anyone waiting for them is woken up. Called from the fetching threads.
+	 */
+	public interface Listener<K, V> {
+		public void fetched(List<K> keys, Map<K, V> values);
+	}
+
+	private final int batchSize;
+	private final long minInterval;
+	private final ExecutorService pool;
+	private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<K, CompletableFuture<V>>();
+	private final Object rateLock = new Object();
+	private long nextRequestTime = 0; //Earliest time the next request may start, guarded by rateLock
+
+	/**
+	 * Create a new fetcher
+	 * @param batchSize Maximum number of keys to fetch in a single request
+	 * @param maxInFlight Maximum number of requests to run at once
+	 * @param minInterval Minimum time, in milliseconds, between the start of requests
+	 */
+	public BatchFetcher(int batchSize, int maxInFlight, long minInterval) {
+		this.batchSize = batchSize;
+		this.minInterval = minInterval;
+		this.pool = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ncbi-fetcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Fetch the values for all of the given keys. Keys missing from the returned map aren't known to the service
+	 * @param keys
+	 * @return
+	 * @throws Exception
+	 */
+	protected abstract Map<K, V> fetchBatch(List<K> keys) throws Exception;
+
+	/**
+	 * Start fetching all of the given keys that aren't already being fetched, and return a Future for the value of
+	 * every key. A Future's value is null if the service doesn't know about the key, and getting it throws an
+	 * ExecutionException if the request failed. The listener, if not null, receives the values from batches started
+	 * by this call.
+	 * @param keys
+	 * @param listener
+	 * @return
+	 */
+	public Map<K, Future<V>> fetchAll(Collection<K> keys, Listener<K, V> listener) {
+		Map<K, Future<V>> futures = new LinkedHashMap<K, Future<V>>();
+		List<K> batch = new ArrayList<K>(Math.min(batchSize, keys.size()));
+		Map<K, CompletableFuture<V>> batchFutures = new HashMap<K, CompletableFuture<V>>();
+		for(K key : keys) {
+			if (futures.containsKey(key)) {
+				continue;
+			}
+			CompletableFuture<V> future = new CompletableFuture<V>();
+			CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+			if (existing != null) {
+				futures.put(key, existing);
+				continue;
+			}
+
+			futures.put(key, future);
+			batch.add(key);
+			batchFutures.put(key, future);
+			if (batch.size() == batchSize) {
+				submit(batch, batchFutures, listener);
+				batch = new ArrayList<K>(batchSize);
+				batchFutures = new HashMap<K, CompletableFuture<V>>();
+			}
+		}
+		if (batch.size() > 0) {
+			submit(batch, batchFutures, listener);
+		}
+		return futures;
+	}
+
+	/**
+	 * Fetch the given keys and wait for the results. Keys whose values couldn't be fetched, either because the
+	 * service doesn't know about them or because the request failed, are missing from the returned map.
+	 * @param keys
+	 * @param listener
+	 * @return
+	 */
+	public Map<K, V> fetchAndWait(Collection<K> keys, Listener<K, V> listener) {
+		Map<K, V> values = new HashMap<K, V>();
+		for(Map.Entry<K, Future<V>> entry : fetchAll(keys, listener).entrySet()) {
+			V value = await(entry.getValue());
+			if (value != null) {
+				values.put(entry.getKey(), value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Wait for the future and return its value, or null if the request failed or the wait was interrupted
+	 * @param future
+	 * @return
+	 */
+	public static <V> V await(Future<V> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stop fetching threads once all started requests are done
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private void submit(final List<K> batch, final Map<K, CompletableFuture<V>> futures, final Listener<K, V> listener) {
+		pool.submit(new Runnable() {
+			@Override
+			public void run() {
+				Map<K, V> values = null;
+				Exception error = null;
+				try {
+					waitForTurn();
+					values = fetchBatch(batch);
+					if (listener != null) {
+						listener.fetched(batch, values);
+					}
+				}
+				catch (Exception ex) {
+					Logger.getLogger(Pipeline.primaryLoggerName).warning("Error fetching " + batch.size() + " records from NCBI : " + ex.getMessage());
+					error = ex;
+				}
+				finally {
+					for(K key : batch) {
+						inFlight.remove(key);
+						if (error != null || values == null) {
+							futures.get(key).completeExceptionally(error != null ? error : new IllegalStateException("No values fetched"));
+						}
+						else {
+							futures.get(key).complete(values.get(key));
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Block until minInterval has passed since the last request started
+	 * @throws InterruptedException
+	 */
+	private void waitForTurn() throws InterruptedException {
+		long wait;
+		synchronized(rateLock) {
+			long now = System.currentTimeMillis();
+			long start = Math.max(now, nextRequestTime);
+			nextRequestTime = start + minInterval;
+			wait = start - now;
+		}
+		if (wait > 0) {
+			Thread.sleep(wait);
+		}
+	}
+
+	/**
+	 * Number of keys that are currently being fetched
+	 * @return
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+}
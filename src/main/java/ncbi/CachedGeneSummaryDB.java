@@ -1,13 +1,15 @@
 package ncbi;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import pipeline.Pipeline;
@@ -18,27 +20,32 @@ import pipeline.Pipeline;
  * in the users home directory to store cached data, but should be able to gracefully handle cases where
  * the file gets deleted. In fact, deleting the file periodically may be good since it will force a re-download
  * of all genes. 
- *  Right now we write all information to the cache file every 10 cache misses, so if we're constantly missing
- * we write a lot, but if we we haven't downloaded any new info then we don't write much.
+ *  Summaries are kept in an IndexedRecordCache: new summaries are appended to the cache file as they're 
+ * downloaded, and a summary is only read from the file the first time it's asked for. Missing summaries 
+ * are downloaded by a BatchFetcher, and prefetchSummaries() downloads summaries for many genes at once in 
+ * the background.
  *  
  * @author brendan
  *
  */
 public class CachedGeneSummaryDB {
 	
-	private Map<String, GeneSummary> map = null;
+	private IndexedRecordCache cache = null; //Summaries stored on disk
+	private Map<String, GeneSummary> map = new ConcurrentHashMap<String, GeneSummary>(); //Summaries read from the cache or downloaded so far
 	private String cacheFilePath = System.getProperty("user.home") + System.getProperty("file.separator") + ".geneinfocache"; 
-	private FetchGeneInfo fetcher = new FetchGeneInfo(); //Fetches gene summaries from ncbi
+	private BatchFetcher<String, GeneRecord> fetcher = null; //Fetches gene records from ncbi, by gene id
     private GeneInfoDB geneInfo; //Stores symbol / refgene id information so we can look genes up by symbol
     
     public static int expirationDays = 90; // Force re-downloading of records older than a few months
-    private int missesSinceLastWrite = 0; //Number of cache misses since last writeToFile
+    private AtomicInteger expiredRecords = new AtomicInteger(); //Number of expired records found so far
     
     public static final int maxToDownload = 19; //Don't ever expire more than this number of records in any single run 
     //public int newRecordsDownloaded = 0; //Number of new records so far downloaded
     
     private boolean prohibitNewDownloads = false; //If true, nothing new will be downloaded
     
+    public static final int FETCH_BATCH_SIZE = 50; //Most genes to request at once, gene records are large
+    
 	public CachedGeneSummaryDB() throws IOException {
 	    this( GeneInfoDB.defaultDBPath );
 	}
@@ -53,10 +60,34 @@ public class CachedGeneSummaryDB {
 	    
 	    Logger logger = Logger.getLogger(Pipeline.primaryLoggerName);
 	    logger.info("Creating gene summary cache from : " + pathToGeneInfoFile + " and using cache in : " + cacheFilePath);
+	    setFetcher(new FetchGeneInfo(), CachedPubmedAbstractDB.MAX_REQUESTS_IN_FLIGHT, CachedPubmedAbstractDB.MIN_REQUEST_INTERVAL);
 	    
 		buildMapFromFile();
 	}
 	
+	/**
+	 * Use the given fetcher to download gene records, with at most maxInFlight requests at once started at least 
+	 * minInterval ms apart
+	 * @param geneFetcher
+	 * @param maxInFlight
+	 * @param minInterval
+	 */
+	void setFetcher(final FetchGeneInfo geneFetcher, int maxInFlight, long minInterval) {
+		if (fetcher != null) {
+			fetcher.shutdown();
+		}
+		fetcher = new BatchFetcher<String, GeneRecord>(FETCH_BATCH_SIZE, maxInFlight, minInterval) {
+			@Override
+			protected Map<String, GeneRecord> fetchBatch(List<String> ids) throws Exception {
+				Map<String, GeneRecord> records = new HashMap<String, GeneRecord>();
+				for(GeneRecord rec : geneFetcher.fetchInfoForGenes(ids)) {
+					records.put(rec.getGeneID(), rec);
+				}
+				return records;
+			}
+		};
+	}
+	
 	/**
 	 * If true, nothing new will be downloaded and only local cache will be used
 	 * @param prohibitNewDownloads
@@ -67,8 +98,8 @@ public class CachedGeneSummaryDB {
 
 	/**
 	 * Sets the expiration length of records in days. You should always follow 
-	 * this up with a call to buildMapFromFile(), which will discard the current info and
-	 * re-read the map, excluding all expired records 
+	 * this up with a call to buildMapFromFile(), which will discard the summaries read so far
+	 * so they're checked against the new expiration length
 	 * @param days
 	 */
 	public static void setExpirationLength(int days) {
@@ -82,7 +113,7 @@ public class CachedGeneSummaryDB {
 	 */
 	public boolean hasLocalSummary(String syn) {
 		String id = geneInfo.symbolForSynonym(syn);
-		return map.containsKey(id);
+		return id != null && (map.containsKey(id) || cache.containsKey(id));
 	}
 	
 	/**
@@ -103,7 +134,7 @@ public class CachedGeneSummaryDB {
 			return null;
 		}
 		
-		GeneSummary summary = map.get(symbol);
+		GeneSummary summary = lookup(symbol);
 		
 		//Sweet, cache hit. Return the info right away
 		if (summary != null) {
@@ -118,119 +149,147 @@ public class CachedGeneSummaryDB {
 		}
 		
 		if (! prohibitNewDownloads) {
-			try {
-
-				System.out.println("Fetching summary from NCBI for gene : " + symbol);
-				GeneRecord rec = fetcher.fetchInfoForGene(id);
-				String summaryString = rec.getSummary();
-
-				summary= new GeneSummary();
-				summary.symbol = symbol;
-				summary.date = "" + System.currentTimeMillis();
-				summary.summary = summaryString;
-				map.put(symbol, summary);
-				missesSinceLastWrite++;
-				if (missesSinceLastWrite > 20)
-					writeMapToFile();
-				//newRecordsDownloaded++;
-				return summaryString;
-			} catch (Exception e) {
-				e.printStackTrace();
+			System.out.println("Fetching summary from NCBI for gene : " + symbol);
+			fetcher.fetchAndWait(Collections.singletonList(id), storeSummaries(Collections.singletonMap(id, symbol)));
+			summary = map.get(symbol);
+			if (summary != null) {
+				return summary.summary;
 			}
 		}
 		return null;        
 		
 	}
 	
-	public void writeMapToFile() throws IOException {
-		System.out.println("Writing cached gene summaries to " + cacheFilePath);
-		if (map == null) //Map may not have been initialized
+	/**
+	 * Start downloading summaries for any of the given genes that aren't in the cache, without waiting for
+	 * them. Later requests for those summaries will wait for the downloads to finish rather than downloading
+	 * them again
+	 * @param syns
+	 */
+	public void prefetchSummaries(Collection<String> syns) {
+		if (prohibitNewDownloads) {
 			return;
+		}
 		
-		File cache = new File(cacheFilePath);
-		if (!cache.exists()) {
-			try {
-				cache.createNewFile();
-			} catch (IOException e) {
-
-				Logger logger = Logger.getLogger(Pipeline.primaryLoggerName);
-			    logger.warning("Could not create gene summary cache file at path : " + cache.getAbsolutePath() + " reason: " + e.getMessage());
-				//e.printStackTrace();
-				return;
+		Map<String, String> idToSymbol = new HashMap<String, String>();
+		for(String syn : syns) {
+			if (syn==null || syn.length()<2 || syn.length() > 8) {
+				continue;
+			}
+			String symbol = geneInfo.symbolForSynonym(syn);
+			if (symbol == null || map.containsKey(symbol) || cache.containsKey(symbol)) {
+				continue;
+			}
+			String id = geneInfo.idForSymbol(symbol);
+			if (id != null) {
+				idToSymbol.put(id, symbol);
 			}
 		}
 		
-		BufferedWriter writer = new BufferedWriter(new FileWriter(cache));
-		for(String symbol : map.keySet()) {
-			GeneSummary sum = map.get(symbol);
-			writer.write(symbol + "\t" + sum.date + "\t" + sum.summary + "\n");
+		if (idToSymbol.size() > 0) {
+			Logger.getLogger(Pipeline.primaryLoggerName).info("Prefetching " + idToSymbol.size() + " gene summaries");
+			fetcher.fetchAll(idToSymbol.keySet(), storeSummaries(idToSymbol));
 		}
-		System.out.println("Wrote " + map.keySet().size() + " summaries to cache");
-		writer.close();
-		missesSinceLastWrite = 0;
 	}
 	
-	public void buildMapFromFile() throws IOException {
-		map = new HashMap<String, GeneSummary>();
-		System.out.println("Initializing cached gene summary db from path: " + cacheFilePath);
-		File cache = new File(cacheFilePath);
-		if (!cache.exists()) {
-			try {
-				cache.createNewFile();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+	/**
+	 * Listener that adds downloaded summaries to the map and appends them to the cache
+	 * @param idToSymbol Official symbols of the genes being requested, by gene id
+	 * @return
+	 */
+	private BatchFetcher.Listener<String, GeneRecord> storeSummaries(final Map<String, String> idToSymbol) {
+		return new BatchFetcher.Listener<String, GeneRecord>() {
+			@Override
+			public void fetched(List<String> ids, Map<String, GeneRecord> records) {
+				List<String> lines = new ArrayList<String>(records.size());
+				for(String id : ids) {
+					GeneRecord rec = records.get(id);
+					if (rec == null) {
+						continue;
+					}
+					GeneSummary summary = new GeneSummary();
+					summary.symbol = idToSymbol.get(id);
+					summary.date = "" + System.currentTimeMillis();
+					summary.summary = rec.getSummary();
+					map.put(summary.symbol, summary);
+					lines.add(summary.symbol + "\t" + summary.date + "\t" + (summary.summary == null ? null : summary.summary.replace('\n', ' ').replace('\r', ' ')));
+				}
+				
+				try {
+					cache.putAll(lines);
+				} catch (IOException e) {
+					Logger.getLogger(Pipeline.primaryLoggerName).warning("Could not write " + lines.size() + " gene summaries to cache : " + e.getMessage());
+				}
 			}
-			return;
+		};
+	}
+	
+	/**
+	 * Find the summary for the given official symbol among those already read or in the cache, returning null if
+	 * there isn't one. As in older versions, which dropped expired summaries when reading the cache, the first 
+	 * few expired summaries found are treated as missing so they'll be downloaded again 
+	 * @param symbol
+	 * @return
+	 */
+	private GeneSummary lookup(String symbol) {
+		GeneSummary summary = map.get(symbol);
+		if (summary != null || cache == null) {
+			return summary;
 		}
 		
-		int expiredRecords = 0;
-		BufferedReader reader = new BufferedReader(new FileReader(cache));
-		String line = reader.readLine();
-		while(line != null) {
-			if (line.trim().length() == 0) {
-				line = reader.readLine();
-				continue;
+		try {
+			String line = cache.get(symbol);
+			if (line == null) {
+				return null;
 			}
 			
 			String[] toks = line.split("\t");
-			String symbol = toks[0];
-			String time = toks[1];
-			String summary = toks[2];
-			GeneSummary sum = new GeneSummary();
-			sum.symbol = symbol;
-			sum.date = time;
-			sum.summary = summary;
-			boolean expired = isExpired(sum); 
-			if (!expired || expiredRecords > maxToDownload) {
-				if (expired) {
-					//System.out.println("Preserving expired record for gene: " + symbol + " since we've already missed so many");
-				}
-				
-				if (map.containsKey(symbol)) {
-					GeneSummary existingSummary = map.get(symbol);	
-					//If record already exists somehow, be sure to use newest version found
-					Long existingBirthDate = Long.parseLong(existingSummary.date);
-					Long newBirthDate = Long.parseLong(sum.date);
-					System.out.println("Found multiple gene summary records for symbol " + symbol + ", using newest one");
-					if (newBirthDate > existingBirthDate) {
-						map.put(symbol, sum);
-					}
-					else {
-						//map already contains other one, no need to put it in
-					}
-					
-				}
-				else {
-					map.put(symbol, sum);
-				}
+			summary = new GeneSummary();
+			summary.symbol = toks[0];
+			summary.date = toks[1];
+			summary.summary = toks[2];
+			if (isExpired(summary) && expiredRecords.incrementAndGet() <= maxToDownload+1) {
+				return null;
 			}
-			else {
-				expiredRecords++;
-			}
-			line = reader.readLine();
+			map.put(symbol, summary);
+			return summary;
+		}
+		catch (IOException e) {
+			Logger.getLogger(Pipeline.primaryLoggerName).warning("Could not read summary for gene " + symbol + " from cache : " + e.getMessage());
+		}
+		catch (RuntimeException e) {
+			Logger.getLogger(Pipeline.primaryLoggerName).warning("Could not parse cached summary for gene " + symbol + " : " + e.getMessage());
+		}
+		return null;
+	}
+	
+	/**
+	 * New summaries are appended to the cache file as they're downloaded, so this just saves the cache index
+	 * (compacting the cache if needed) so the cache opens quickly next time
+	 * @throws IOException
+	 */
+	public void writeMapToFile() throws IOException {
+		if (cache == null) //Cache may not have been initialized
+			return;
+		
+		System.out.println("Writing cached gene summary index for " + cacheFilePath);
+		cache.flush();
+	}
+	
+	/**
+	 * Open the cache file, creating it if it doesn't exist, and discard any summaries read so far. Summaries
+	 * are read from the cache when they're first needed
+	 * @throws IOException
+	 */
+	public void buildMapFromFile() throws IOException {
+		System.out.println("Initializing cached gene summary db from path: " + cacheFilePath);
+		if (cache != null) {
+			cache.close();
 		}
-		System.out.println("Read in " + map.size() + " cached summaries from file " + cache.getAbsolutePath() + " " + expiredRecords + " of which were past expiration date");
+		map.clear();
+		expiredRecords.set(0);
+		cache = new IndexedRecordCache(new File(cacheFilePath));
+		System.out.println("Found " + cache.size() + " cached summaries in file " + cacheFilePath);
 	}
 			
 	/**
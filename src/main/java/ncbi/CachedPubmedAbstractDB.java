@@ -1,43 +1,47 @@
 package ncbi;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.xml.sax.SAXException;
-
 import pipeline.Pipeline;
 
 /**
  * Analagous to CachedGeneSUmmaryDB, this stores pubmed abstract information locally so we're not always
  * re-downloading it from ncbi, but grabs and stores new IDs as needed. Thus, the first lookup will be slow,
  * but all subsequent lookups should be very fast
+ * Abstracts are kept in an IndexedRecordCache, so new ones are appended to the cache file rather than
+ * rewriting it, and each abstract is only read from disk and parsed the first time it's asked for. Lookups
+ * don't block each other.
+ * Missing abstracts are downloaded by a BatchFetcher, which combines ids into multi-id requests, runs a few
+ * requests at once within NCBI's rate limit, and only requests an id once even if several threads want it. 
+ * prefetch() starts downloading abstracts in the background so they're ready by the time they're needed.
  * @author brendan
  *
  */
 public class CachedPubmedAbstractDB {
 
-	private Map<Integer, PubMedRecord> map = null;
-	private Set<Integer> brokenIDs = new HashSet<Integer>(); //Stores IDs for which retrieving data 
+	private IndexedRecordCache cache = null; //Abstracts stored on disk
+	private Map<Integer, PubMedRecord> map = new ConcurrentHashMap<Integer, PubMedRecord>(); //Abstracts read from the cache or downloaded so far
+	private Set<Integer> brokenIDs = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>()); //Stores IDs for which retrieving data 
 	private String cacheFilePath = System.getProperty("user.home") + System.getProperty("file.separator") + ".pubmedcache"; 
-	private PubMedFetcher fetcher = new PubMedFetcher(); //Fetches gene summaries from ncbi
+	private BatchFetcher<Integer, PubMedRecord> fetcher = null; //Fetches abstracts from ncbi
     private GenePubMedDB genePubMed; //Stores gene-pubmed id mapping
-    private int missesSinceLastWrite = 0; //Number of cache misses since last writeToFile
     
     public static final String defaultDBPath = System.getProperty("user.home") + "/resources/gene2pubmed_human";
     
+    public static final int FETCH_BATCH_SIZE = 200; //Most ids to request at once, longer urls may be refused
+    public static final int MAX_REQUESTS_IN_FLIGHT = 3;
+    public static final long MIN_REQUEST_INTERVAL = 340; //NCBI allows three requests per second without an API key
+    
     private boolean prohibitNewDownloads = false; //Prevent new downloads if true
     
     private static CachedPubmedAbstractDB db = null;
@@ -66,6 +70,7 @@ public class CachedPubmedAbstractDB {
 	    cacheFilePath = baseDir + System.getProperty("file.separator") + ".pubmedcache";
 	    
 	    logger.info("Creating pubmed cache from : " + pathToGene2PubmedFile + " and using cache in : " + cacheFilePath);
+	    setFetcher(new PubMedFetcher(), MAX_REQUESTS_IN_FLIGHT, MIN_REQUEST_INTERVAL);
 	    
 		buildMapFromFile();
 		logger.info("..done initializing pubmed cache");
@@ -76,14 +81,14 @@ public class CachedPubmedAbstractDB {
 	}
 
 	/**
-	 * Get the number of entries in the map
+	 * Get the number of abstracts in the cache
 	 * @return
 	 */
 	public int getMapSize() {
-		if (map == null)
+		if (cache == null)
 			return 0;
 		else 
-			return map.size();
+			return cache.size();
 	}
 	/**
 	 * Obtain a list of pubmed records for the given ids. If you're downloading lots of records
@@ -91,7 +96,7 @@ public class CachedPubmedAbstractDB {
 	 * @param pubmedIDs
 	 * @return 
 	 */
-	public synchronized List<PubMedRecord> getRecordForIDs(List<Integer> pubmedIDs) {
+	public List<PubMedRecord> getRecordForIDs(List<Integer> pubmedIDs) {
 		return getRecordForIDs(pubmedIDs, false);
 	}
 	
@@ -111,6 +116,31 @@ public class CachedPubmedAbstractDB {
 		this.prohibitNewDownloads = prohibitNewDownloads;
 	}
 
+	/**
+	 * Use the given fetcher to download abstracts, with at most maxInFlight requests at once started at least 
+	 * minInterval ms apart
+	 * @param pubMedFetcher
+	 * @param maxInFlight
+	 * @param minInterval
+	 */
+	void setFetcher(final PubMedFetcher pubMedFetcher, int maxInFlight, long minInterval) {
+		if (fetcher != null) {
+			fetcher.shutdown();
+		}
+		fetcher = new BatchFetcher<Integer, PubMedRecord>(FETCH_BATCH_SIZE, maxInFlight, minInterval) {
+			@Override
+			protected Map<Integer, PubMedRecord> fetchBatch(List<Integer> ids) throws Exception {
+				Map<Integer, PubMedRecord> records = new HashMap<Integer, PubMedRecord>();
+				for(PubMedRecord rec : pubMedFetcher.getPubMedRecordForIDs(ids)) {
+					if (rec != null) {
+						records.put(rec.pubMedID, rec);
+					}
+				}
+				return records;
+			}
+		};
+	}
+	
 	/**
 	 * Obtain a list of pubmed records for the given ids. If you're downloading lots of records
 	 * this is a lot more efficient than getting them one at a time. 
@@ -118,32 +148,15 @@ public class CachedPubmedAbstractDB {
 	 * @param disableCacheWrites If true we will not write newly downloaded records to local cache
 	 * @return 
 	 */
-	public synchronized List<PubMedRecord> getRecordForIDs(List<Integer> pubmedIDs, boolean disableCacheWrites) {
-		
-		//Make a list of all the ids we need to grab
-		List<Integer> idsToGrab = new ArrayList<Integer>();
-		for(Integer recID : pubmedIDs) {
-			if (! map.containsKey(recID) && (!brokenIDs.contains(recID))) {
-				idsToGrab.add(recID);
-			}
-		}
+	public List<PubMedRecord> getRecordForIDs(List<Integer> pubmedIDs, boolean disableCacheWrites) {
 		
-		//Grab the list of ids in an efficient way
+		//Grab the ids we don't have yet in an efficient way, waiting for any that are already being fetched
+		List<Integer> idsToGrab = missingIDs(pubmedIDs);
 		if ((! prohibitNewDownloads) && idsToGrab.size() > 0) {
-			int recordsDownloaded = forceFetchIDs(idsToGrab);
-			missesSinceLastWrite += recordsDownloaded;
+			fetcher.fetchAndWait(idsToGrab, storeRecords(disableCacheWrites));
 		}
 
 		
-		if (missesSinceLastWrite > 200 && (!disableCacheWrites)) {
-			try {
-				writeMapToFile();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		
 		
 		List<PubMedRecord> records = new ArrayList<PubMedRecord>(pubmedIDs.size());
 		for(Integer id : pubmedIDs) {
@@ -156,149 +169,164 @@ public class CachedPubmedAbstractDB {
 	}
 	
 	/**
-	 * Forces re-downloading of all ids in the list. These are then added directly to the map
+	 * Start downloading any of the given records that aren't in the cache, without waiting for them. Later
+	 * requests for them will wait for the downloads to finish rather than downloading them again
 	 * @param pubmedIDs
+	 * @param disableCacheWrites If true we will not write newly downloaded records to local cache
 	 */
-	private int forceFetchIDs(List<Integer> pubmedIDs) {
-		int recordsObtained = 0;
-
-		List<PubMedRecord> records;
-		try {
-			records = fetcher.getPubMedRecordForIDs(pubmedIDs);
-			for(PubMedRecord rec : records) {
-				if (rec != null) {
-					map.put(rec.pubMedID, rec);
-					recordsObtained++;
-				}
-			}
-			
-			//We need to determine which, if any, IDs resulted in errors, so see if there are any ids in 
-			//the input list which are not associated with an entry in the map. These are all 'broken'
-			for(Integer id : pubmedIDs) {
-				if (! map.containsKey(id))
-					brokenIDs.add(id);
+	public void prefetch(Collection<Integer> pubmedIDs, boolean disableCacheWrites) {
+		if (prohibitNewDownloads) {
+			return;
+		}
+		List<Integer> idsToGrab = missingIDs(pubmedIDs);
+		if (idsToGrab.size() > 0) {
+			Logger.getLogger(Pipeline.primaryLoggerName).info("Prefetching " + idsToGrab.size() + " pubmed abstracts");
+			fetcher.fetchAll(idsToGrab, storeRecords(disableCacheWrites));
+		}
+	}
+	
+	/**
+	 * Ids from the given list that aren't in the cache and aren't known to be broken
+	 * @param pubmedIDs
+	 * @return
+	 */
+	private List<Integer> missingIDs(Collection<Integer> pubmedIDs) {
+		List<Integer> idsToGrab = new ArrayList<Integer>();
+		for(Integer recID : pubmedIDs) {
+			PubMedRecord rec = lookup(recID);
+			if (rec == null && (!brokenIDs.contains(recID))) {
+				idsToGrab.add(recID);
 			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (ParserConfigurationException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (SAXException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
-		
-		
-		return recordsObtained;
+		return idsToGrab;
 	}
 	
 	/**
-	 * Obtain the full string containing the pubmed summary information for the given pubmed id 
-	 * If the summary is already in the local cache and has not expired, just return it. If not, we 
-	 * query ncbi and try to get it. 
-	 * @param symbol
+	 * Find the record for the given id among those already read or in the cache, returning null if there
+	 * isn't one
+	 * @param pubmedID
 	 * @return
 	 */
-	public synchronized PubMedRecord getRecordForID(Integer pubmedID) {
+	private PubMedRecord lookup(Integer pubmedID) {
 		PubMedRecord rec = map.get(pubmedID);
-		
-		//Sweet, cache hit. Return the info right away
-		if (rec != null) {
+		if (rec != null || cache == null) {
 			return rec;
 		}
-
-		if (! prohibitNewDownloads) {
-			try {
-				rec = fetcher.getPubMedRecordForID(pubmedID);
-
-				//Sanity check
-				if (!(rec.pubMedID == pubmedID)) {
-					throw new IllegalArgumentException("Obtained pubmedID does not match requested ID!");
-				}
-
+		
+		try {
+			String line = cache.get(pubmedID.toString());
+			if (line != null) {
+				rec = parseRecord(line);
 				map.put(pubmedID, rec);
-				missesSinceLastWrite++;
-				if (missesSinceLastWrite > 100)
-					writeMapToFile();
-				return rec;
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
+		} catch (IOException e) {
+			Logger.getLogger(Pipeline.primaryLoggerName).warning("Could not read pubmed abstract " + pubmedID + " from cache : " + e.getMessage());
+		} catch (RuntimeException e) {
+			Logger.getLogger(Pipeline.primaryLoggerName).warning("Could not parse cached pubmed abstract " + pubmedID + " : " + e.getMessage());
 		}
-		return null;        
-		
+		return rec;
 	}
 	
-	public synchronized void writeMapToFile() throws IOException {
-		//System.out.println("Writing cached gene summaries to " + cacheFilePath);
-		if (map == null) //Map may not have been initialized
-			return;
-		if (map.size() < 500) {
-			return; 
-		}
-		
-		File cache = new File(cacheFilePath);
-		if (!cache.exists()) {
-			try {
-				cache.createNewFile();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				return;
+	/**
+	 * Listener that adds downloaded records to the map, and appends them to the cache unless disableCacheWrites
+	 * is true. Requested ids that NCBI didn't return a record for are 'broken' and won't be requested again
+	 * @param disableCacheWrites
+	 * @return
+	 */
+	private BatchFetcher.Listener<Integer, PubMedRecord> storeRecords(final boolean disableCacheWrites) {
+		return new BatchFetcher.Listener<Integer, PubMedRecord>() {
+			@Override
+			public void fetched(List<Integer> ids, Map<Integer, PubMedRecord> records) {
+				List<String> lines = new ArrayList<String>(records.size());
+				for(PubMedRecord rec : records.values()) {
+					map.put(rec.pubMedID, rec);
+					lines.add(toCacheLine(rec));
+				}
+				for(Integer id : ids) {
+					if (! records.containsKey(id))
+						brokenIDs.add(id);
+				}
+				if (! disableCacheWrites) {
+					try {
+						cache.putAll(lines);
+					} catch (IOException e) {
+						Logger.getLogger(Pipeline.primaryLoggerName).warning("Could not write " + lines.size() + " pubmed abstracts to cache : " + e.getMessage());
+					}
+				}
 			}
-		}
+		};
+	}
+	
+	/**
+	 * Obtain the full string containing the pubmed summary information for the given pubmed id 
+	 * If the summary is already in the local cache and has not expired, just return it. If not, we 
+	 * query ncbi and try to get it. 
+	 * @param symbol
+	 * @return
+	 */
+	public PubMedRecord getRecordForID(Integer pubmedID) {
+		List<PubMedRecord> records = getRecordForIDs(Collections.singletonList(pubmedID), false);
+		if (records.isEmpty())
+			return null;
+		else
+			return records.get(0);
+	}
+	
+	/**
+	 * New abstracts are appended to the cache file as they're downloaded, so this just saves the cache index
+	 * (compacting the cache if needed) so the cache opens quickly next time
+	 * @throws IOException
+	 */
+	public void writeMapToFile() throws IOException {
+		if (cache == null) //Cache may not have been initialized
+			return;
 		
-		BufferedWriter writer = new BufferedWriter(new FileWriter(cache));
-		for(Integer id : map.keySet()) {
-			PubMedRecord sum = map.get(id);
-			writer.write(sum.toString() + "\n");
-		}
-		System.out.println("Wrote " + map.keySet().size() + " pubmed abstracts to cache");
-		writer.close();
-		missesSinceLastWrite = 0;
+		cache.flush();
 	}
 	
+	/**
+	 * Open the cache file, creating it if it doesn't exist. Abstracts are read from it when they're first needed
+	 * @throws IOException
+	 */
 	public void buildMapFromFile() throws IOException {
-		map = new HashMap<Integer, PubMedRecord>();
-		//System.out.println("Initializing cached pubmed db");
-		File cache = new File(cacheFilePath);
-		if (!cache.exists()) {
-			try {
-				cache.createNewFile();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			return;
+		if (cache != null) {
+			cache.close();
 		}
+		map.clear();
+		cache = new IndexedRecordCache(new File(cacheFilePath));
+		System.out.println("Found " + cache.size() + " cached pubmed abstracts in cache");
+	}
+	
+	/**
+	 * Line that stores the given record in the cache. Line breaks, which abstracts sometimes have, are 
+	 * replaced with spaces 
+	 * @param rec
+	 * @return
+	 */
+	private static String toCacheLine(PubMedRecord rec) {
+		return rec.toString().replace('\n', ' ').replace('\r', ' ');
+	}
+	
+	/**
+	 * Parse a line from the cache file 
+	 * @param line
+	 * @return
+	 */
+	private static PubMedRecord parseRecord(String line) {
+		String[] toks = line.split("\t");
+		Integer id = Integer.parseInt(toks[0]);
+		Integer year = Integer.parseInt(toks[1]);
+		String title = toks[2];
+		String citation = toks[3];
+		String abs = toks[4];
 		
-		int expiredRecords = 0;
-		BufferedReader reader = new BufferedReader(new FileReader(cache));
-		String line = reader.readLine();
-		while(line != null) {
-			if (line.trim().length() == 0) {
-				line = reader.readLine();
-				continue;
-			}
-			
-			String[] toks = line.split("\t");
-			Integer id = Integer.parseInt(toks[0]);
-			Integer year = Integer.parseInt(toks[1]);
-			String title = toks[2];
-			String citation = toks[3];
-			String abs = toks[4];
-			
-			PubMedRecord rec = new PubMedRecord();
-			rec.pubMedID = id;
-			rec.yearCreated = year;
-			rec.title = title;
-			rec.citation = citation;
-			rec.abs = abs;
-			map.put(id, rec);
-			line = reader.readLine();
-		}
-		System.out.println("Read in " + map.size() + " cached pubmed abstracts from cache");
+		PubMedRecord rec = new PubMedRecord();
+		rec.pubMedID = id;
+		rec.yearCreated = year;
+		rec.title = title;
+		rec.citation = citation;
+		rec.abs = abs;
+		return rec;
 	}
 	
 	
@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.StringWriter;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -30,7 +32,19 @@ import org.xml.sax.SAXException;
  */
 public class FetchGeneInfo {
 
-	final String eutilsURL = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/efetch.fcgi?";
+	final String eutilsURL;
+	
+	public FetchGeneInfo() {
+		this(PubMedFetcher.defaultEutilsURL);
+	}
+	
+	/**
+	 * Create a fetcher that queries the given efetch url, which should end with '?'
+	 * @param eutilsURL
+	 */
+	public FetchGeneInfo(String eutilsURL) {
+		this.eutilsURL = eutilsURL;
+	}
 	
 	/**
 	 * Obtain an xml-style String representation of the document 
@@ -72,6 +86,27 @@ public class FetchGeneInfo {
         return rec;
 	}
 	
+	/**
+	 * Obtain records for all of the given gene ids with a single request. Genes NCBI doesn't 
+	 * know about are missing from the list
+	 * @param geneIDs
+	 * @return
+	 */
+	public List<GeneRecord> fetchInfoForGenes(List<String> geneIDs) throws IOException, SAXException, ParserConfigurationException {
+		if (geneIDs.isEmpty()) {
+			return new ArrayList<GeneRecord>();
+		}
+		StringBuilder ids = new StringBuilder();
+		for(String id : geneIDs) {
+			ids.append(ids.length() == 0 ? id : "," + id);
+		}
+		URL eutils = new URL(eutilsURL + "db=gene&id=" + ids + "&retmode=xml");
+		URLConnection yc = eutils.openConnection();
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		Document doc = factory.newDocumentBuilder().parse( yc.getInputStream() );
+		return GeneRecordParser.parseAll(doc);
+	}
+	
 	public static void main(String[] args) throws Exception {
 //        FetchGeneInfo fetcher = new FetchGeneInfo();
 //        GeneInfoDB geneInfo = new GeneInfoDB(new File("/home/brendan/resources/LRG_RefSeqGene.txt"));
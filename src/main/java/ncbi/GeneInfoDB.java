@@ -1,11 +1,18 @@
 package ncbi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,15 +23,31 @@ import java.util.Map;
  * This generates its information from the the flat file  which can be 
  * obtained from :
  *  ftp://ftp.ncbi.nlm.nih.gov/gene/DATA/GENE_INFO/Mammalia/
+ * Parsing the flat file takes a while, so after it's parsed the records are written to a compact binary
+ * file next to it (with COMPACT_SUFFIX appended to the name), which is read instead the next time as long as
+ * the flat file has the same length and modification time it had when the compact file was written. The compact
+ * file ends with a marker and the record count, so a truncated file is never used. The compact file can also be
+ * given to the constructor directly. 
+ * Symbols and synonyms are looked up case-insensitively through an index built when the DB is loaded. 
  * @author brendan
  *
  */
 public class GeneInfoDB {
 
 	private Map<String, GeneInfo> map = null;
+	private List<GeneInfo> records = null; //All records in the order they appear in the file
+	
+	//Upper case official symbols and synonyms to all records with that symbol or synonym. Records whose official 
+	//symbol matches come first, then records with a matching synonym, each in file order
+	private Map<String, List<GeneInfo>> synonymIndex = null;
 	
 	private static GeneInfoDB geneInfoDB = null;
 	public static final String defaultDBPath = System.getProperty("user.home") + "/resources/Homo_sapiens.gene_info"; 
+	public static final String COMPACT_SUFFIX = ".bin";
+	
+	private static final int MAGIC = 0x47494e46; //'GINF'
+	private static final int VERSION = 2;
+	private static final int END_MARKER = 0x454e4447; //'ENDG'
 	
 	public static GeneInfoDB getDB() {
 		return geneInfoDB;
@@ -32,7 +55,33 @@ public class GeneInfoDB {
 	
 	public GeneInfoDB(File dbFile) throws IOException {
 		geneInfoDB = this;
-		buildDB(dbFile);
+		if (isCompact(dbFile)) {
+			readCompact(dbFile, null);
+		}
+		else {
+			File compactFile = new File(dbFile.getPath() + COMPACT_SUFFIX);
+			boolean loaded = false;
+			if (compactFile.exists()) {
+				try {
+					readCompact(compactFile, dbFile);
+					loaded = true;
+				}
+				catch (IOException ex) {
+					System.err.println("Warning, could not read compact gene info db " + compactFile.getPath() + " : " + ex.getMessage());
+				}
+			}
+			
+			if (! loaded) {
+				buildDB(dbFile);
+				try {
+					writeCompact(compactFile, dbFile);
+				}
+				catch (IOException ex) {
+					System.err.println("Warning, could not write compact gene info db " + compactFile.getPath() + " : " + ex.getMessage());
+				}
+			}
+		}
+		buildSynonymIndex();
 	}
 	
 	/**
@@ -107,26 +156,197 @@ public class GeneInfoDB {
 	
 	/**
 	 * Returns the gene record for the gene whose official symbol OR synonym
-	 * is the given symbol
+	 * is the given symbol. Official symbols take precedence over synonyms, and if several 
+	 * genes have the same synonym the first one in the file is returned
 	 * @param syn
 	 * @return
 	 */
 	public GeneInfo findRecordForSynonym(String syn) {
-		syn = syn.trim().toUpperCase();
-		GeneInfo rec = map.get(syn);
-		if (rec != null)
-			return rec;
-		else {
-			//Conduct laborious search for synonyms
-			for(String officialSymbol : map.keySet()) {
-				rec = map.get(officialSymbol);
+		List<GeneInfo> recs = recordsForSynonym(syn);
+		if (recs.isEmpty())
+			return null;
+		else
+			return recs.get(0);
+	}
+	
+	/**
+	 * Returns all gene records whose official symbol or synonym is the given symbol, with those
+	 * whose official symbol matches first. The list is empty if there are none
+	 * @param syn
+	 * @return
+	 */
+	public List<GeneInfo> recordsForSynonym(String syn) {
+		//Most callers pass trimmed, upper case symbols, so try those before making a new string 
+		List<GeneInfo> recs = synonymIndex.get(syn);
+		if (recs == null) {
+			recs = synonymIndex.get(syn.trim().toUpperCase());
+		}
+		if (recs == null)
+			return Collections.emptyList();
+		else
+			return Collections.unmodifiableList(recs);
+	}
+	
+	/**
+	 * True if the given symbol or synonym refers to more than one gene 
+	 * @param syn
+	 * @return
+	 */
+	public boolean isAmbiguous(String syn) {
+		return recordsForSynonym(syn).size() > 1;
+	}
+	
+	/**
+	 * Build the index from upper case symbols and synonyms to the records they refer to
+	 */
+	private void buildSynonymIndex() {
+		synonymIndex = new HashMap<String, List<GeneInfo>>(4*records.size());
+		for(GeneInfo rec : records) {
+			if (map.get(rec.symbol) == rec) {
+				addToIndex(rec.symbol, rec);
+			}
+		}
+		for(GeneInfo rec : records) {
+			if (map.get(rec.symbol) != rec) {
+				continue;
+			}
+			for(int i=0; i<rec.synonyms.length; i++) {
+				//'-' is used for genes with no synonyms
+				if (! rec.synonyms[i].equals("-")) {
+					addToIndex(rec.synonyms[i], rec);
+				}
+			}
+		}
+	}
+	
+	private void addToIndex(String symbol, GeneInfo rec) {
+		String key = symbol.trim().toUpperCase();
+		List<GeneInfo> recs = synonymIndex.get(key);
+		if (recs == null) {
+			recs = new ArrayList<GeneInfo>(1);
+			synonymIndex.put(key, recs);
+		}
+		if (! recs.contains(rec)) {
+			recs.add(rec);
+		}
+	}
+	
+	/**
+	 * Write all records to the given file in the compact binary form, which can be read much faster than
+	 * the original flat file
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeCompact(File file) throws IOException {
+		writeCompact(file, null);
+	}
+	
+	/**
+	 * Write all records to the given file in the compact binary form, recording the length and modification time
+	 * of the flat file they came from (if not null) so we can tell later whether it has changed 
+	 * @param file
+	 * @param source
+	 * @throws IOException
+	 */
+	private void writeCompact(File file, File source) throws IOException {
+		//Written to a uniquely named file first, so concurrent writers never mix their output
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(source == null ? -1L : source.length());
+			out.writeLong(source == null ? -1L : source.lastModified());
+			out.writeInt(records.size());
+			for(GeneInfo rec : records) {
+				out.writeUTF(rec.symbol);
+				out.writeUTF(rec.id);
+				out.writeInt(rec.synonyms.length);
 				for(int i=0; i<rec.synonyms.length; i++) {
-					if (rec.synonyms[i].equals(syn))
-						return rec;
+					out.writeUTF(rec.synonyms[i]);
 				}
 			}
+			out.writeInt(END_MARKER);
+			out.writeInt(records.size());
+		}
+		catch (IOException ex) {
+			out.close();
+			tmp.delete();
+			throw ex;
+		}
+		out.close();
+		
+		if (file.exists() && ! file.delete()) {
+			tmp.delete();
+			throw new IOException("Could not replace " + file.getAbsolutePath());
+		}
+		if (! tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Could not rename " + tmp.getAbsolutePath() + " to " + file.getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * True if the file begins with the marker written by writeCompact
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean isCompact(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return file.length() >= 4 && in.readInt() == MAGIC;
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Read records from a file written by writeCompact. If source isn't null it must be the flat file the compact
+	 * file was written from, unchanged since then 
+	 * @param file
+	 * @param source
+	 * @throws IOException If the file is incomplete or out of date
+	 */
+	private void readCompact(File file, File source) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file.getAbsolutePath() + " is not a compact gene info db");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported gene info db version " + version + " in " + file.getAbsolutePath());
+			}
+			long sourceLength = in.readLong();
+			long sourceModified = in.readLong();
+			if (source != null && (sourceLength != source.length() || sourceModified != source.lastModified())) {
+				throw new IOException(file.getAbsolutePath() + " is out of date with " + source.getAbsolutePath());
+			}
+			int count = in.readInt();
+			List<GeneInfo> recs = new ArrayList<GeneInfo>(count);
+			Map<String, GeneInfo> symbols = new HashMap<String, GeneInfo>(2*count);
+			for(int i=0; i<count; i++) {
+				GeneInfo rec = new GeneInfo();
+				rec.symbol = in.readUTF();
+				rec.id = in.readUTF();
+				rec.synonyms = new String[in.readInt()];
+				for(int j=0; j<rec.synonyms.length; j++) {
+					rec.synonyms[j] = in.readUTF();
+				}
+				recs.add(rec);
+				symbols.put(rec.symbol, rec);
+			}
+			if (in.readInt() != END_MARKER || in.readInt() != count || in.read() >= 0) {
+				throw new IOException(file.getAbsolutePath() + " is incomplete or corrupt");
+			}
+			records = recs;
+			map = symbols;
+		}
+		finally {
+			in.close();
 		}
-		return null;
 	}
 	
 	
@@ -140,6 +360,7 @@ public class GeneInfoDB {
 		String line = reader.readLine();
 		
 		map = new HashMap<String, GeneInfo>();
+		records = new ArrayList<GeneInfo>();
 		
 		while(line != null) {
 			if (line.trim().length() ==0 || line.startsWith("#")) {
@@ -156,6 +377,7 @@ public class GeneInfoDB {
 
 			rec = new GeneInfo();
 			map.put(symbol, rec);
+			records.add(rec);
 			rec.synonyms = synonyms;
 			rec.id = id;
 			rec.symbol = symbol;
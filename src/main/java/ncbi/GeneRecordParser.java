@@ -53,6 +53,26 @@ public class GeneRecordParser {
 		
 		return null;
 	}
+	
+	/**
+	 * Parse all of the genes in the given document, which may hold any number of them
+	 * @param doc
+	 * @return
+	 */
+	public static List<GeneRecord> parseAll(Document doc) {
+		List<GeneRecord> recs = new ArrayList<GeneRecord>();
+		Element root = doc.getDocumentElement();
+		NodeList children = root.getChildNodes();
+		
+		for(int i=0; i<children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeName() != null && child.getNodeName().equals(EntrezGene)) {
+				recs.add( parseGeneFromElement( (Element)child ) );
+			}
+		}
+		
+		return recs;
+	}
 
 	private static GeneRecord parseGeneFromElement(Element egene) {
 		String symbol = parseSymbol(egene);
@@ -0,0 +1,654 @@
+package ncbi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import pipeline.Pipeline;
+
+/**
+ * An on-disk cache of tab-separated text records, each on its own line and keyed by its first field. Records
+ * are only ever appended to the cache file, so adding a record never rewrites what's already there, and a
+ * record added again with the same key replaces the older one.
+ * The cache keeps only the position of each record in memory, and reads the record from disk when it's asked for.
+ * The positions are saved to an index file next to the cache file (with INDEX_SUFFIX appended) by flush() and close(),
+ * so opening the cache only needs to read the index and whatever was appended after it was saved. Saving rewrites the
+ * whole index, so it's best done once when a run is finished with the cache rather than after every few appends. A
+ * cache file without an index, like those written by older versions, is just scanned for keys.
+ * When replaced records take up more space than the live ones, flush() also compacts the cache file by
+ * copying only the live records to a new file.
+ * Reads and appends may happen from many threads at once; only compaction blocks other threads.
+ * Several processes may share a cache file: appends and compaction hold a lock on the file, and each append
+ * first picks up any records other processes have added, so records are never written over one another.
+ * Records added by other processes become visible here when this process next appends, or reopens the cache.
+ * @author brendan
+ *
+ */
+public class IndexedRecordCache implements Closeable {
+
+	public static final String INDEX_SUFFIX = ".idx";
+
+	private static final int MAGIC = 0x52434931; //'RCI1'
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int LENGTH_BITS = 24;
+	private static final int MAX_RECORD_LENGTH = (1 << LENGTH_BITS) - 1;
+	private static final long MIN_COMPACT_BYTES = 1L << 20; //Don't bother compacting until there's this much to gain
+
+	//One lock object per cache file, since a FileLock can't be held twice in the same JVM
+	private static final Map<String, Object> fileMonitors = new HashMap<String, Object>();
+
+	private final File cacheFile;
+	private final File indexFile;
+	private final Object fileMonitor;
+
+	//Key to position of its record, as offset << LENGTH_BITS | length (without the newline)
+	private final Map<String, Long> index = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong deadBytes = new AtomicLong(); //Bytes used by records that have been replaced
+
+	//Readers and appenders hold the read lock, compaction holds the write lock while it swaps files
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Object appendLock = new Object();
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private Object fileKey; //Identifies the file we have open, to notice when another process compacts the cache
+	private long length; //Length of all complete records in the cache file, guarded by appendLock
+	private long snapshots = 0; //Number of index snapshots taken, guarded by appendLock
+	private boolean indexChanged = false; //True if the index has changed since it was last saved, guarded by appendLock
+	private final Object indexLock = new Object();
+	private long lastWritten = 0; //Number of the most recent snapshot written to the index file, guarded by indexLock
+
+	/**
+	 * Open the cache stored in the given file, creating it if it doesn't exist
+	 * @param cacheFile
+	 * @throws IOException
+	 */
+	public IndexedRecordCache(File cacheFile) throws IOException {
+		this.cacheFile = cacheFile;
+		this.indexFile = new File(cacheFile.getPath() + INDEX_SUFFIX);
+		this.fileMonitor = monitorFor(cacheFile);
+		open();
+	}
+
+	/**
+	 * Obtain the record with the given key, without its trailing newline, or null if there isn't one
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public String get(String key) throws IOException {
+		if (! index.containsKey(key)) {
+			return null;
+		}
+
+		byte[] bytes;
+		lock.readLock().lock();
+		try {
+			//Look again, compaction may have moved the record
+			Long pos = index.get(key);
+			if (pos == null) {
+				return null;
+			}
+			bytes = new byte[(int)(pos & MAX_RECORD_LENGTH)];
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			long offset = pos >>> LENGTH_BITS;
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, offset + buf.position()) < 0) {
+					throw new EOFException("Unexpected end of cache file " + cacheFile.getAbsolutePath());
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+
+		String record = new String(bytes, UTF8);
+		if (! keyFor(record).equals(key)) {
+			Logger.getLogger(Pipeline.primaryLoggerName).warning("Cache index " + indexFile.getAbsolutePath() + " does not match cache file, ignoring record for " + key);
+			return null;
+		}
+		return record;
+	}
+
+	/**
+	 * True if there is a record with the given key
+	 * @param key
+	 * @return
+	 */
+	public boolean containsKey(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * Number of records in the cache
+	 * @return
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Append a single record to the cache
+	 * @param record
+	 * @throws IOException
+	 */
+	public void put(String record) throws IOException {
+		putAll(Collections.singletonList(record));
+	}
+
+	/**
+	 * Append all of the given records to the cache with a single write. Records may not contain newlines
+	 * @param records
+	 * @throws IOException
+	 */
+	public void putAll(Collection<String> records) throws IOException {
+		if (records.isEmpty()) {
+			return;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		List<String> keys = new ArrayList<String>(records.size());
+		List<Integer> lengths = new ArrayList<Integer>(records.size());
+		for(String record : records) {
+			if (record.indexOf('\n') >= 0 || record.indexOf('\r') >= 0) {
+				throw new IllegalArgumentException("Cache records cannot contain line breaks: " + record);
+			}
+			byte[] bytes = record.getBytes(UTF8);
+			if (bytes.length > MAX_RECORD_LENGTH) {
+				throw new IllegalArgumentException("Cache record for " + keyFor(record) + " is too long (" + bytes.length + " bytes)");
+			}
+			keys.add(keyFor(record));
+			lengths.add(bytes.length);
+			out.write(bytes);
+			out.write('\n');
+		}
+
+		byte[] bytes = out.toByteArray();
+		while (! append(bytes, keys, lengths)) {
+			//Another process compacted the cache, so our file is no longer the cache file
+			reopen();
+		}
+	}
+
+	/**
+	 * Write the records at the end of the cache file while holding the file lock, after finding any records that
+	 * other processes appended since we last looked. Returns false without writing anything if the cache file has
+	 * been replaced by another process
+	 * @throws IOException
+	 */
+	private boolean append(byte[] bytes, List<String> keys, List<Integer> lengths) throws IOException {
+		lock.readLock().lock();
+		try {
+			synchronized(appendLock) {
+				synchronized(fileMonitor) {
+					FileLock fileLock = channel.lock();
+					try {
+						if (isReplaced()) {
+							return false;
+						}
+						catchUp();
+
+						ByteBuffer buf = ByteBuffer.wrap(bytes);
+						long offset = length;
+						while (buf.hasRemaining()) {
+							channel.write(buf, offset + buf.position());
+						}
+						length += buf.capacity();
+						indexChanged = true;
+
+						for(int i=0; i<keys.size(); i++) {
+							addToIndex(keys.get(i), offset, lengths.get(i));
+							offset += lengths.get(i) + 1;
+						}
+						return true;
+					}
+					finally {
+						fileLock.release();
+					}
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Save the index so the cache can be opened quickly, if anything has been added since it was last saved,
+	 * compacting the cache file first if it's mostly taken up by replaced records
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		long dead = deadBytes.get();
+		if (dead > MIN_COMPACT_BYTES && dead > currentLength() - dead) {
+			compact();
+		}
+		else {
+			writeIndex();
+		}
+	}
+
+	/**
+	 * Rewrite the cache file so it contains only live records, then save the index
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		lock.writeLock().lock();
+		try {
+			synchronized(appendLock) {
+				synchronized(fileMonitor) {
+					FileLock fileLock = channel.lock();
+					try {
+						if (isReplaced()) {
+							//Another process just compacted it
+							file.close();
+							open();
+							return;
+						}
+						catchUp();
+						compactLocked();
+					}
+					finally {
+						//Closing the old file has already released its lock
+						if (fileLock.isValid()) {
+							fileLock.release();
+						}
+					}
+				}
+			}
+			writeIndex();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy the live records to a new file and swap it in for the cache file. The new file is locked before
+	 * it's renamed, so other processes can't append to it until we've switched to it. Called with the write lock,
+	 * appendLock and the file lock held
+	 * @throws IOException
+	 */
+	private void compactLocked() throws IOException {
+		File tmp = new File(cacheFile.getPath() + ".tmp");
+		Map<String, Long> compacted = new HashMap<String, Long>(2*index.size());
+		long offset = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			for(Map.Entry<String, Long> entry : index.entrySet()) {
+				int recordLength = (int)(entry.getValue() & MAX_RECORD_LENGTH);
+				ByteBuffer buf = ByteBuffer.allocate(recordLength);
+				long from = entry.getValue() >>> LENGTH_BITS;
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, from + buf.position()) < 0) {
+						throw new EOFException("Unexpected end of cache file " + cacheFile.getAbsolutePath());
+					}
+				}
+				out.write(buf.array());
+				out.write('\n');
+				compacted.put(entry.getKey(), (offset << LENGTH_BITS) | recordLength);
+				offset += recordLength + 1;
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		RandomAccessFile newFile = new RandomAccessFile(tmp, "rw");
+		FileLock newLock = newFile.getChannel().lock();
+		try {
+			if (! tmp.renameTo(cacheFile)) {
+				//Some platforms won't rename over an existing file
+				file.close();
+				if (! cacheFile.delete() || ! tmp.renameTo(cacheFile)) {
+					newLock.release();
+					newFile.close();
+					tmp.delete();
+					open();
+					throw new IOException("Could not replace " + cacheFile.getAbsolutePath());
+				}
+			}
+			file.close();
+			file = newFile;
+			channel = newFile.getChannel();
+			fileKey = currentFileKey();
+			length = offset;
+			indexChanged = true;
+			index.clear();
+			index.putAll(compacted);
+			deadBytes.set(0);
+		}
+		finally {
+			if (newLock.isValid()) {
+				newLock.release();
+			}
+		}
+	}
+
+	/**
+	 * Save the index if anything has been added since it was last saved, then close the cache file
+	 */
+	@Override
+	public void close() throws IOException {
+		writeIndex();
+		lock.writeLock().lock();
+		try {
+			file.close();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * The key for a record is its first tab-separated field
+	 * @param record
+	 * @return
+	 */
+	private static String keyFor(String record) {
+		int tab = record.indexOf('\t');
+		return tab < 0 ? record : record.substring(0, tab);
+	}
+
+	private static Object monitorFor(File cacheFile) throws IOException {
+		String path = cacheFile.getCanonicalPath();
+		synchronized(fileMonitors) {
+			Object monitor = fileMonitors.get(path);
+			if (monitor == null) {
+				monitor = new Object();
+				fileMonitors.put(path, monitor);
+			}
+			return monitor;
+		}
+	}
+
+	/**
+	 * The key identifying the file now at the cache file's path, or null if the platform doesn't provide one
+	 * @return
+	 * @throws IOException
+	 */
+	private Object currentFileKey() throws IOException {
+		if (! cacheFile.exists()) {
+			return null;
+		}
+		return Files.readAttributes(cacheFile.toPath(), BasicFileAttributes.class).fileKey();
+	}
+
+	/**
+	 * True if the file we have open is no longer the cache file, because another process compacted the cache
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean isReplaced() throws IOException {
+		return fileKey != null && ! fileKey.equals(currentFileKey());
+	}
+
+	/**
+	 * Index any records appended to the cache file by other processes. Called with appendLock and the file lock held
+	 * @throws IOException
+	 */
+	private void catchUp() throws IOException {
+		long size = channel.size();
+		if (size > length) {
+			long end = scan(length);
+			if (end < size) {
+				//Partial record left by a process that died while appending
+				channel.truncate(end);
+			}
+			indexChanged = indexChanged || end > length;
+			length = end;
+		}
+	}
+
+	private void reopen() throws IOException {
+		lock.writeLock().lock();
+		try {
+			file.close();
+			open();
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private long currentLength() {
+		synchronized(appendLock) {
+			return length;
+		}
+	}
+
+	private void addToIndex(String key, long offset, int recordLength) {
+		Long old = index.put(key, (offset << LENGTH_BITS) | recordLength);
+		if (old != null) {
+			deadBytes.addAndGet((old & MAX_RECORD_LENGTH) + 1);
+		}
+	}
+
+	/**
+	 * Open the cache file, read the index if there is a usable one and find the keys of any records
+	 * appended after it was written
+	 * @throws IOException
+	 */
+	private void open() throws IOException {
+		file = new RandomAccessFile(cacheFile, "rw");
+		channel = file.getChannel();
+		index.clear();
+		deadBytes.set(0);
+
+		synchronized(appendLock) {
+			synchronized(fileMonitor) {
+				FileLock fileLock = channel.lock();
+				try {
+					fileKey = currentFileKey();
+					long indexed = readIndex(channel.size());
+					length = scan(indexed);
+					indexChanged = length > indexed;
+					if (length < channel.size()) {
+						//Partial record left by an interrupted write
+						Logger.getLogger(Pipeline.primaryLoggerName).warning("Discarding incomplete record at end of cache file " + cacheFile.getAbsolutePath());
+						channel.truncate(length);
+					}
+				}
+				finally {
+					fileLock.release();
+				}
+			}
+		}
+
+		long live = 0;
+		for(Long pos : index.values()) {
+			live += (pos & MAX_RECORD_LENGTH) + 1;
+		}
+		deadBytes.set(Math.max(0, currentLength() - live));
+	}
+
+	/**
+	 * Read the index file, if it exists and describes no more than cacheLength bytes of the cache file,
+	 * returning the number of bytes it describes
+	 * @param cacheLength
+	 * @return
+	 */
+	private long readIndex(long cacheLength) {
+		if (! indexFile.exists()) {
+			return 0;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException("not a cache index");
+				}
+				long indexed = in.readLong();
+				if (indexed > cacheLength) {
+					throw new IOException("index describes more of the cache than exists");
+				}
+				int count = in.readInt();
+				for(int i=0; i<count; i++) {
+					String key = in.readUTF();
+					index.put(key, in.readLong());
+				}
+				return indexed;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException ex) {
+			Logger.getLogger(Pipeline.primaryLoggerName).warning("Could not use cache index " + indexFile.getAbsolutePath() + " (" + ex.getMessage() + "), rebuilding it from cache file");
+			index.clear();
+			return 0;
+		}
+	}
+
+	/**
+	 * Find the keys of all records starting at the given offset of the cache file, returning the offset
+	 * just past the last complete record
+	 * @param start
+	 * @return
+	 * @throws IOException
+	 */
+	private long scan(long start) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(cacheFile), 1 << 16);
+		try {
+			long skipped = 0;
+			while (skipped < start) {
+				long n = in.skip(start - skipped);
+				if (n <= 0) {
+					throw new EOFException();
+				}
+				skipped += n;
+			}
+
+			ByteArrayOutputStream key = new ByteArrayOutputStream();
+			long lineStart = start;
+			long offset = start;
+			boolean inKey = true;
+			int b = in.read();
+			while (b >= 0) {
+				if (b == '\n') {
+					long recordLength = offset - lineStart;
+					if (recordLength > 0 && recordLength <= MAX_RECORD_LENGTH) {
+						addToIndex(new String(key.toByteArray(), UTF8), lineStart, (int)recordLength);
+					}
+					else if (recordLength > 0) {
+						Logger.getLogger(Pipeline.primaryLoggerName).warning("Skipping record of " + recordLength + " bytes in cache file " + cacheFile.getAbsolutePath());
+					}
+					key.reset();
+					inKey = true;
+					lineStart = offset + 1;
+				}
+				else if (b == '\t') {
+					inKey = false;
+				}
+				else if (inKey) {
+					key.write(b);
+				}
+				offset++;
+				b = in.read();
+			}
+			return lineStart;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Save the position of every record, along with the length of the cache file they cover
+	 * @throws IOException
+	 */
+	private void writeIndex() throws IOException {
+		lock.readLock().lock();
+		try {
+			long covered;
+			long snapshotNumber;
+			Map<String, Long> snapshot;
+			synchronized(appendLock) {
+				if (! indexChanged) {
+					return;
+				}
+				indexChanged = false;
+				covered = length;
+				snapshot = new HashMap<String, Long>(index);
+				snapshots++;
+				snapshotNumber = snapshots;
+			}
+
+			synchronized(indexLock) {
+				//Never replace the index with an older one, which may describe the cache before it was compacted,
+				//and don't write one for a cache file another process has since replaced
+				if (snapshotNumber > lastWritten) {
+					synchronized(fileMonitor) {
+						FileLock fileLock = channel.lock();
+						try {
+							if (! isReplaced()) {
+								writeIndex(snapshot, covered);
+							}
+						}
+						finally {
+							fileLock.release();
+						}
+					}
+					lastWritten = snapshotNumber;
+				}
+			}
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void writeIndex(Map<String, Long> snapshot, long covered) throws IOException {
+
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(covered);
+			out.writeInt(snapshot.size());
+			for(Map.Entry<String, Long> entry : snapshot.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		if (indexFile.exists() && ! indexFile.delete()) {
+			tmp.delete();
+			throw new IOException("Could not replace " + indexFile.getAbsolutePath());
+		}
+		if (! tmp.renameTo(indexFile)) {
+			throw new IOException("Could not rename " + tmp.getAbsolutePath() + " to " + indexFile.getAbsolutePath());
+		}
+	}
+}
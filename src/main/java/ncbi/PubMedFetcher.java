@@ -25,7 +25,8 @@ import org.xml.sax.SAXException;
  */
 public class PubMedFetcher {
 	
-	final String eutilsURL = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/efetch.fcgi?";
+	public static final String defaultEutilsURL = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/efetch.fcgi?";
+	final String eutilsURL;
 	final static String ARTICLE_SET = "PubmedArticleSet";
 	final static String PUBMED_ARTICLE = "PubmedArticle";
 	final static String MEDLINE_CITATION = "MedlineCitation";
@@ -42,6 +43,17 @@ public class PubMedFetcher {
 	final static String ISSUE = "Issue";
 	final static String PMID = "PMID";
 	
+	public PubMedFetcher() {
+		this(defaultEutilsURL);
+	}
+	
+	/**
+	 * Create a fetcher that queries the given efetch url, which should end with '?'
+	 * @param eutilsURL
+	 */
+	public PubMedFetcher(String eutilsURL) {
+		this.eutilsURL = eutilsURL;
+	}
 
 	/**
 	 * Retrieve a list of pubmed records associated with the list of pubmed ids
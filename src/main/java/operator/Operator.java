@@ -156,6 +156,8 @@ public abstract class Operator extends PipelineObject {
 				if (p.waitFor() != 0) {
 					throw new OperationFailedException("Task terminated with nonzero exit value : " + System.err.toString() + " command was: " + command, this);
 				}
+				//The process may exit before everything it wrote has been copied to the file
+				outputConsumer.join();
 			} catch (InterruptedException e) {
 				throw new OperationFailedException("Task was interrupted : " + System.err.toString() + "\n" + e.getLocalizedMessage(), this);
 			}
@@ -166,7 +168,7 @@ public abstract class Operator extends PipelineObject {
 			throw new OperationFailedException("Task encountered an IO exception : " + System.err.toString() + "\n" + e1.getLocalizedMessage(), this);
 		}
 	}
-	
+
 	protected void executeCommandCaptureBinary(final String command, File outputFile) throws OperationFailedException {
 		Runtime r = Runtime.getRuntime();
 		final Process p;
@@ -61,31 +61,30 @@ public abstract class Annotator extends Operator {
 	public void performOperation() throws OperationFailedException {
 		if (variants == null)
 			throw new OperationFailedException("No variant pool specified", this);
+	
+		prepare();
 		
-		DecimalFormat formatter = new DecimalFormat("#0.00");
-		int tot = variants.size();
+		annotateBatch();
 		
+		cleanup();
+	}
 	
-		prepare();
+	/**
+	 * Annotate every variant currently in the pool (subject to the BED file, if there is one). This
+	 * is the body of performOperation(), but in streaming mode (see operator.variant.StreamingAnnotator)
+	 * the pool holds only one batch of variants and this is called once per batch, between a single call
+	 * to startStreaming() and one to finishStreaming()
+	 * @throws OperationFailedException
+	 */
+	public void annotateBatch() throws OperationFailedException {
+		DecimalFormat formatter = new DecimalFormat("#0.00");
+		int tot = variants.size();
 		
 		int varsAnnotated = 0;
 
 		for(String contig : variants.getContigs()) {
 			for(VariantRec rec : variants.getVariantsForContig(contig)) {
-				//TODO verify that recEnd is not incorrect for two alt alleles
-				Integer recLength = rec.getRef().length() - rec.getAlt().length(); //if >0 Indicates a deletion
-				if (recLength < 0) { //Indicates that it is an insertion
-					recLength = 0; 
-				} else if (recLength == 0) { //Indicates that it is an snv or mnv
-					if (rec.getRef().length() == 1) { // Indicates that it is an snv
-						recLength = 1;
-					} else { // Indicates that it is an mnv
-						recLength = rec.getRef().length();
-					}
-				}
-				Integer recEnd = rec.getStart() - 1 + recLength;
-				Interval recInterval = new Interval(rec.getStart() - 1, recEnd);
-				if (bedFile == null || bedFile.intersects(rec.getContig(), recInterval)) {
+				if (isInTargets(rec)) {
 					annotateVariant(rec);
 				
 					varsAnnotated++;
@@ -96,7 +95,55 @@ public abstract class Annotator extends Operator {
 				}
 			}
 		}
-		
+	}
+	
+	/**
+	 * True if there's no BED file or the variant overlaps it. A deletion covers the deleted bases, an insertion
+	 * is treated as a zero-length interval at its position, and SNVs and MNVs cover the reference bases
+	 * @param rec
+	 * @return
+	 */
+	protected boolean isInTargets(VariantRec rec) {
+		if (bedFile == null) {
+			return true;
+		}
+		//TODO verify that recEnd is not incorrect for two alt alleles
+		int recLength = rec.getRef().length() - rec.getAlt().length(); //if >0 Indicates a deletion
+		if (recLength < 0) { //Indicates that it is an insertion
+			recLength = 0; 
+		} else if (recLength == 0) { //Indicates that it is an snv or mnv
+			recLength = rec.getRef().length();
+		}
+		Interval recInterval = new Interval(rec.getStart() - 1, rec.getStart() - 1 + recLength);
+		return bedFile.intersects(rec.getContig(), recInterval);
+	}
+	
+	/**
+	 * True if this annotator can annotate a pool one batch at a time, with prepare() and cleanup() called only
+	 * once for the whole stream. Annotators whose prepare() or cleanup() look at the whole pool (to write it to a file
+	 * for an external tool, for instance), or that override performOperation(), must return false so that
+	 * the StreamingAnnotator materializes the full pool before running them. 
+	 * @return
+	 */
+	public boolean isStreamable() {
+		return true;
+	}
+	
+	/**
+	 * Called once before the first call to annotateBatch() in streaming mode
+	 * @throws OperationFailedException
+	 */
+	public void startStreaming() throws OperationFailedException {
+		if (variants == null)
+			throw new OperationFailedException("No variant pool specified", this);
+		prepare();
+	}
+	
+	/**
+	 * Called once after the last call to annotateBatch() in streaming mode
+	 * @throws OperationFailedException
+	 */
+	public void finishStreaming() throws OperationFailedException {
 		cleanup();
 	}
 
@@ -236,6 +283,8 @@ public abstract class Annotator extends Operator {
 				if (p.waitFor() != 0) {
 					throw new OperationFailedException("Task terminated with nonzero exit value : " + System.err.toString() + " command was: " + command, this);
 				}
+				//The process may exit before everything it wrote has been copied to the file
+				outputConsumer.join();
 			} catch (InterruptedException e) {
 				throw new OperationFailedException("Task was interrupted : " + System.err.toString() + "\n" + e.getLocalizedMessage(), this);
 			}
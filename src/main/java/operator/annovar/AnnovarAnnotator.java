@@ -246,4 +246,13 @@ public abstract class AnnovarAnnotator extends Annotator {
 					 rec.getProperty(VariantRec.GENOTYPE_QUALITY) + "\n");
 		writer.flush();
 	}
+
+	/**
+	 * Not streamable, performOperation() is overridden and runs annovar over the whole pool
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
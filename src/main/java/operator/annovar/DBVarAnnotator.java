@@ -36,6 +36,12 @@ public class DBVarAnnotator extends Annotator {
 		
 	}
 
-	
+	/**
+	 * Not streamable, performOperation() is overridden and reads the whole pool
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
 
 }
@@ -1,43 +1,116 @@
 package operator.bamutils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileReader.ValidationStringency;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
 import operator.IOOperator;
 import operator.OperationFailedException;
 import pipeline.Pipeline;
+import pipeline.PipelineXMLConstants;
 import buffer.BAMFile;
 
 /**
  * Base class for operators that read the contents of bam files, do some processing, and emit a new
- * bam file. Right now concurrency has not been implemented, so just one at a time.
+ * bam file. 
+ * If the input BAM is sorted by coordinate and indexed and more than one thread is available (the 'threads'
+ * attribute, which defaults to the pipeline thread count), the genome is split into shards of 'shard.size' bases 
+ * which are processed on a pool of threads. Each shard reads the records that start within it from its own 
+ * reader and writes them, compressed, to a part file. The parts are then concatenated, in shard order, after 
+ * the header, so the output has exactly the same records in the same order as if it had been processed
+ * in a single pass. Unmapped reads without a position go in the final shard. Otherwise, records are processed
+ * one at a time on a single thread.
+ * processRecord(..) calls are serialized unless a subclass says they're safe to make concurrently by overriding
+ * isThreadSafe(), but even then reading, decoding, encoding and compression all happen in parallel. 
  * @author brendan
  *
  */
 public abstract class BAMProcessor extends IOOperator {
 
+	public static final String SHARD_SIZE = "shard.size";
+	public static final int DEFAULT_SHARD_SIZE = 10000000;
+	
+	//Encoded records are compressed once this many bytes have built up
+	private static final int PART_BUFFER_SIZE = 1 << 16;
+
 	@Override
 	public void performOperation() throws OperationFailedException {
 				
 		Logger.getLogger(Pipeline.primaryLoggerName).info("Initializing BAMProcessor " + getObjectLabel());
 		
+		int shardSize = DEFAULT_SHARD_SIZE;
+		String shardAttr = getAttribute(SHARD_SIZE);
+		if (shardAttr != null) {
+			try {
+				shardSize = Integer.parseInt(shardAttr.trim());
+			}
+			catch (NumberFormatException nfe) {
+				throw new OperationFailedException("Could not parse " + SHARD_SIZE + " from : '" + shardAttr + "', expected a positive integer", this);
+			}
+			if (shardSize < 1) {
+				throw new OperationFailedException(SHARD_SIZE + " must be at least 1, found " + shardSize, this);
+			}
+		}
+		
 		BAMFile inputBAM = (BAMFile)super.getInputBufferForClass(BAMFile.class);
 		BAMFile outputBAM = (BAMFile)super.getOutputBufferForClass(BAMFile.class);
 		
 		if (inputBAM == null)
 			throw new OperationFailedException("No input BAM file found", this);
 
-//		if (inputBAM == null) {
-//			throw new OperationFailedException("No input BAM file found", this);
-
-			
-		processBAMFile(inputBAM, outputBAM);
-			
-			
+		int threads = getPipelineOwner().getThreadCount();
+		String threadsAttr = getAttribute(PipelineXMLConstants.THREADS_ATTR);
+		if (threadsAttr != null) {
+			try {
+				threads = Pipeline.parseThreadCount(PipelineXMLConstants.THREADS_ATTR, threadsAttr);
+			}
+			catch (IllegalArgumentException ex) {
+				throw new OperationFailedException(ex.getMessage(), this);
+			}
+		}
+		
+		if (threads > 1 && canShard(inputBAM)) {
+			try {
+				processBAMFileInShards(inputBAM, outputBAM, threads, shardSize);
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new OperationFailedException("Error processing " + inputBAM.getAbsolutePath() + " : " + e.getLocalizedMessage(), this);
+			} catch (InterruptedException e) {
+				throw new OperationFailedException("Interrupted while processing " + inputBAM.getAbsolutePath(), this);
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				throw new OperationFailedException("Error processing " + inputBAM.getAbsolutePath() + " : " + e.getCause().getLocalizedMessage(), this);
+			}
+		}
+		else {
+			processBAMFile(inputBAM, outputBAM);
+		}
 		
 		Logger.getLogger(Pipeline.primaryLoggerName).info("BAMProcessor " + getObjectLabel() + " has completed");
 	}
@@ -75,6 +148,245 @@ public abstract class BAMProcessor extends IOOperator {
 		writer.close();
 	}
 	
+	/**
+	 * True if the given BAM can be processed in shards, which requires that it be sorted by coordinate and indexed
+	 * @param inputBAM
+	 * @return
+	 */
+	public static boolean canShard(BAMFile inputBAM) {
+		if (inputBAM.getFile() == null) {
+			return false;
+		}
+		SAMFileReader.setDefaultValidationStringency(ValidationStringency.LENIENT);
+		SAMFileReader reader = new SAMFileReader(inputBAM.getFile());
+		try {
+			return reader.hasIndex() && reader.getFileHeader().getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Process the (coordinate sorted and indexed) input BAM in shards of shardSize bases, using the given number of threads,
+	 * and write the results to the output BAM. The output is the same as that from processBAMFile(..)
+	 * @param inputBAM
+	 * @param outputBAM
+	 * @param threads
+	 * @param shardSize
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 * @throws IllegalArgumentException If shardSize is less than one
+	 */
+	public void processBAMFileInShards(BAMFile inputBAM, BAMFile outputBAM, int threads, int shardSize) throws IOException, InterruptedException, ExecutionException {
+		if (shardSize < 1) {
+			throw new IllegalArgumentException("Shard size must be at least 1, found " + shardSize);
+		}
+		SAMFileReader.setDefaultValidationStringency(ValidationStringency.LENIENT);
+		final File inputFile = inputBAM.getFile();
+		final File outputFile = outputBAM.getFile();
+		SAMFileReader headerReader = new SAMFileReader(inputFile);
+		final SAMFileHeader header = headerReader.getFileHeader();
+		headerReader.close();
+		
+		final List<Shard> shards = new ArrayList<Shard>();
+		for(SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+			for(int start=1; start<=seq.getSequenceLength(); start+=shardSize) {
+				shards.add(new Shard(seq.getSequenceName(), start, (int)Math.min((long)start + shardSize, (long)seq.getSequenceLength()+1)));
+			}
+		}
+		shards.add(new Shard(null, 0, 0)); //Unmapped reads
+		
+		final List<File> parts = new ArrayList<File>();
+		for(int i=0; i<shards.size(); i++) {
+			parts.add(new File(outputFile.getAbsolutePath() + ".part" + i));
+		}
+		
+		Logger.getLogger(Pipeline.primaryLoggerName).info(getObjectLabel() + " processing " + inputBAM.getAbsolutePath() + " in " + shards.size() + " shards with " + threads + " threads");
+		
+		//Each worker has its own reader and takes the next unprocessed shard until there are none left 
+		final AtomicInteger nextShard = new AtomicInteger(0);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		File headerFile = new File(outputFile.getAbsolutePath() + ".header");
+		try {
+			for(int i=0; i<threads; i++) {
+				results.add(pool.submit(new Callable<long[]>() {
+					@Override
+					public long[] call() throws IOException {
+						long[] counts = new long[2];
+						SAMFileReader reader = new SAMFileReader(inputFile);
+						reader.setValidationStringency(ValidationStringency.LENIENT);
+						try {
+							int index = nextShard.getAndIncrement();
+							while(index < shards.size() && ! Thread.currentThread().isInterrupted()) {
+								processShard(reader, header, shards.get(index), parts.get(index), counts);
+								index = nextShard.getAndIncrement();
+							}
+						}
+						finally {
+							reader.close();
+						}
+						return counts;
+					}
+				}));
+			}
+			
+			long recordsRead = 0;
+			long recordsWritten = 0;
+			for(Future<long[]> result : results) {
+				long[] counts = result.get();
+				recordsRead += counts[0];
+				recordsWritten += counts[1];
+			}
+			
+			//Header only BAM, followed by all of the parts, followed by a single EOF block
+			SAMFileWriter headerWriter = new SAMFileWriterFactory().makeBAMWriter(header, true, headerFile);
+			headerWriter.close();
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16);
+			try {
+				byte[] buf = new byte[1 << 16];
+				copyWithoutEOF(headerFile, out, buf);
+				for(File part : parts) {
+					if (part.exists()) {
+						copyWithoutEOF(part, out, buf);
+					}
+				}
+				out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+			}
+			finally {
+				out.close();
+			}
+			
+			Logger.getLogger(Pipeline.primaryLoggerName).info(getObjectLabel() + " wrote " + recordsWritten + " of " + recordsRead + " from file " + inputBAM.getAbsolutePath());
+		}
+		finally {
+			pool.shutdownNow();
+			headerFile.delete();
+			for(File part : parts) {
+				part.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Process all records that start in the given shard, and write them to a part file, which is a 
+	 * series of BGZF blocks with no header. The part file is only created if there's at least one record to write.
+	 * The number of records read and written are added to counts[0] and counts[1]
+	 */
+	private void processShard(SAMFileReader reader, SAMFileHeader header, Shard shard, File part, long[] counts) throws IOException {
+		final boolean threadSafe = isThreadSafe();
+		BlockCompressedOutputStream out = null;
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream(2*PART_BUFFER_SIZE);
+		BAMRecordCodec codec = new BAMRecordCodec(header);
+		codec.setOutputStream(encoded);
+		SAMRecordIterator it = shard.contig == null 
+				? reader.queryUnmapped()
+				: reader.queryOverlapping(shard.contig, shard.start, shard.end-1);
+		try {
+			while(it.hasNext()) {
+				SAMRecord samRecord = it.next();
+				if (shard.contig != null && (samRecord.getAlignmentStart() < shard.start || samRecord.getAlignmentStart() >= shard.end)) {
+					continue; //Belongs to another shard
+				}
+				counts[0]++;
+				
+				if (threadSafe) {
+					SAMRecord outputRecord = processRecord(samRecord);
+					if (outputRecord != null) {
+						codec.encode(outputRecord);
+						counts[1]++;
+					}
+				}
+				else {
+					synchronized(this) {
+						SAMRecord outputRecord = processRecord(samRecord);
+						if (outputRecord != null) {
+							codec.encode(outputRecord);
+							counts[1]++;
+						}
+					}
+				}
+				
+				if (encoded.size() >= PART_BUFFER_SIZE) {
+					if (out == null) {
+						out = new BlockCompressedOutputStream(part);
+					}
+					encoded.writeTo(out);
+					encoded.reset();
+				}
+			}
+			if (encoded.size() > 0) {
+				if (out == null) {
+					out = new BlockCompressedOutputStream(part);
+				}
+				encoded.writeTo(out);
+			}
+		}
+		finally {
+			it.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+	
+	/**
+	 * Append the contents of the given BGZF file to the stream, leaving off the empty block that marks the end of the file
+	 */
+	private static void copyWithoutEOF(File part, OutputStream out, byte[] buf) throws IOException {
+		byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+		long length = part.length();
+		if (length >= eof.length) {
+			byte[] tail = new byte[eof.length];
+			InputStream tailIn = new FileInputStream(part);
+			try {
+				tailIn.skip(length - eof.length);
+				int read = 0;
+				while(read < tail.length) {
+					int n = tailIn.read(tail, read, tail.length - read);
+					if (n < 0) {
+						break;
+					}
+					read += n;
+				}
+			}
+			finally {
+				tailIn.close();
+			}
+			if (java.util.Arrays.equals(tail, eof)) {
+				length -= eof.length;
+			}
+		}
+		
+		InputStream in = new BufferedInputStream(new FileInputStream(part), buf.length);
+		try {
+			long remaining = length;
+			while(remaining > 0) {
+				int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+				if (n < 0) {
+					throw new IOException("Unexpected end of file reading " + part.getAbsolutePath());
+				}
+				out.write(buf, 0, n);
+				remaining -= n;
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Return true if processRecord(..) can safely be called from several threads at once, which is the case
+	 * if it doesn't modify any state of this object. By default this is false, and calls to processRecord are
+	 * serialized when processing a BAM in shards.
+	 * @return
+	 */
+	protected boolean isThreadSafe() {
+		return false;
+	}
+	
 	/**
 	 * Peform processing of single record from bam file, return record to be written to output. Return null
 	 * if read should not be in output file. 
@@ -82,4 +394,19 @@ public abstract class BAMProcessor extends IOOperator {
 	 * @return
 	 */
 	public abstract SAMRecord processRecord(SAMRecord samRecord);
+	
+	/**
+	 * A region of one contig, from start (inclusive) to end (exclusive), or the unmapped reads if contig is null
+	 */
+	static class Shard {
+		final String contig;
+		final int start;
+		final int end;
+		
+		Shard(String contig, int start, int end) {
+			this.contig = contig;
+			this.start = start;
+			this.end = end;
+		}
+	}
 }
@@ -20,6 +20,8 @@ import buffer.DOCMetrics;
  */
 public class FastDepthOfCoverage extends IOOperator {
 
+	//If false, approximate depths by sampling every 4th base (the old behavior) instead of computing them exactly
+	public static final String EXACT = "exact";
 	
 	public boolean requiresReference() {
 		return false;
@@ -38,26 +40,18 @@ public class FastDepthOfCoverage extends IOOperator {
 			
 			CoverageCalculator covCalc = new CoverageCalculator(bam.getFile(), intervals, false);
 			covCalc.setThreadCount( getPipelineOwner().getThreadCount() );
+			String exactAttr = this.getAttribute(EXACT);
+			if (exactAttr != null) {
+				covCalc.setExact( Boolean.parseBoolean(exactAttr) );
+			}
 			
 			int[] depthHistogram = covCalc.computeOverallCoverage();
 			
 			
 			//The depth histogram is an un-normalized raw counts of the number of bases with a certain read depth
 			//for instance, the 10th position in the list of the number of bases found with read depths = 10 
-			double mean = CoverageCalculator.getMean(depthHistogram);
-			double[] covs = CoverageCalculator.convertCountsToProportions(depthHistogram);
-			
-			int[] cutoffs = new int[]{1, 10, 15, 20, 25, 50, 100};
-			double[] covAboveCutoffs = new double[cutoffs.length];
-			for(int i=0; i<covAboveCutoffs.length; i++) {
-				covAboveCutoffs[i] = covs[cutoffs[i]];
-			}
-			
-			metrics.setMeanCoverage(mean);
-			metrics.setCoverageProportions(covs);
-			metrics.setCutoffs(cutoffs);
-			metrics.setFractionAboveCutoff(covAboveCutoffs);
-			
+			metrics.setDepthHistogram(depthHistogram);
+			double mean = metrics.getMeanCoverage();
 			
 			Logger.getLogger(Pipeline.primaryLoggerName).info(getObjectLabel() + " Found mean depth : " + mean);
 			
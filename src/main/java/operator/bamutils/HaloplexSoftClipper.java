@@ -10,7 +10,13 @@ import net.sf.samtools.SAMRecord;
 
 public class HaloplexSoftClipper extends BAMProcessor {
 	
-	private byte[] qualsToWrite = null;
+	/**
+	 * Records don't share any state, so they can be clipped concurrently
+	 */
+	@Override
+	protected boolean isThreadSafe() {
+		return true;
+	}
 	
 	@Override
 	public SAMRecord processRecord(SAMRecord samRecord) {
@@ -33,13 +39,8 @@ public class HaloplexSoftClipper extends BAMProcessor {
 			//clip read by converting base quality to zero
 			//byte[] qualities = samRecord.getBaseQualities();
 			
-			if (qualsToWrite == null || qualsToWrite.length != samRecord.getBaseQualities().length) {
-				qualsToWrite = Arrays.copyOf(samRecord.getBaseQualities(), samRecord.getBaseQualities().length);
-
-			}
-			else {
-				System.arraycopy(samRecord.getBaseQualities(), 0, qualsToWrite, 0, samRecord.getBaseQualities().length);
-			}
+			//A new array for each record, since the record holds on to it until it's written
+			byte[] qualsToWrite = Arrays.copyOf(samRecord.getBaseQualities(), samRecord.getBaseQualities().length);
 
 
 
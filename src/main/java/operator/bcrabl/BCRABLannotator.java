@@ -191,4 +191,13 @@ public class BCRABLannotator extends Annotator {
 			throw new OperationFailedException("Task encountered an IO exception : " + System.err.toString() + "\n" + e1.getLocalizedMessage(), this);
 		}
 	}
+
+	/**
+	 * Not streamable, prepare() writes the whole pool to a VCF for the annotation script
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
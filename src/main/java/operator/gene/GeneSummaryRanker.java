@@ -25,6 +25,16 @@ public class GeneSummaryRanker extends AbstractGeneRelevanceRanker  {
 	protected CachedGeneSummaryDB summaryDB = null;
 	
 	public void performOperation() throws OperationFailedException {
+		//Download any missing summaries in large batches up front rather than one gene at a time
+		if (genes != null) {
+			if (summaryDB == null) {
+				initializeDB();
+			}
+			if (summaryDB != null) {
+				summaryDB.prefetchSummaries(genes.getGeneNames());
+			}
+		}
+		
 		super.performOperation();
 		 
 		//Force a final write to the cache when we're done. 
@@ -91,11 +91,15 @@ public class PubmedRanker extends AbstractGeneAnnotator {
 			throw new IllegalStateException("IO error reading cached abstract db : " + e.getMessage());
 		}
 
+		if (genes != null && (! abstractDB.isProhibitNewDownloads())) {
+			prefetchAbstracts();
+		}
+		
 		//Actually annotate the genes
 		super.performOperation();
 		
 		//Write map back to file when were done
-		if (abstractDB != null && abstractDB.getMapSize() > 500) {
+		if (abstractDB != null) {
 			try {
 				abstractDB.writeMapToFile();
 			} catch (IOException e) {
@@ -108,17 +112,10 @@ public class PubmedRanker extends AbstractGeneAnnotator {
 
 	}
 	
-	@Override
-	public void annotateGene(Gene gene) {
-		if (rankingMap == null) {
-			try {
-				buildRankingMap();
-			} catch (IOException e) {
-				throw new IllegalStateException("IO error reading pubmed terms file : " + e.getMessage());
-
-			}
-		}
-		
+	/**
+	 * Open the gene info and gene to pubmed dbs, if they're not already open
+	 */
+	private void initGeneDBs() {
 		if (geneInfo == null) {
 			try {
 				String geneInfoPath = GeneInfoDB.defaultDBPath;
@@ -135,12 +132,6 @@ public class PubmedRanker extends AbstractGeneAnnotator {
 			}
 		}
 		
-	
-		String geneName = gene.getName();
-		if (geneName == null || geneName.startsWith("HLA-") || geneName.startsWith("MUC")) {
-			return;
-		}
-		
 		if (geneToPubmed == null) {
 			try {
 				String pubmedPath = System.getProperty("user.home") + "/resources/gene2pubmed_human";
@@ -153,8 +144,47 @@ public class PubmedRanker extends AbstractGeneAnnotator {
 				throw new IllegalStateException("Error opening gene2pubmed file : " + e.getMessage());
 			}
 		}
+	}
+	
+	/**
+	 * Start downloading abstracts for all of the genes we'll examine, so they can be downloaded in large, 
+	 * concurrent batches instead of a gene at a time 
+	 */
+	private void prefetchAbstracts() {
+		initGeneDBs();
+		List<Integer> pubmedIDs = new ArrayList<Integer>();
+		for(String geneName : genes.getGeneNames()) {
+			if (geneName == null || geneName.startsWith("HLA-") || geneName.startsWith("MUC")) {
+				continue;
+			}
+			String idStr = geneInfo.idForSymbolOrSynonym(geneName);
+			if (idStr != null) {
+				List<Integer> ids = geneToPubmed.getPubMedIDsForGene(Integer.parseInt(idStr));
+				if (ids != null) {
+					pubmedIDs.addAll(ids);
+				}
+			}
+		}
+		abstractDB.prefetch(pubmedIDs, disableCacheWrites);
+	}
+	
+	@Override
+	public void annotateGene(Gene gene) {
+		if (rankingMap == null) {
+			try {
+				buildRankingMap();
+			} catch (IOException e) {
+				throw new IllegalStateException("IO error reading pubmed terms file : " + e.getMessage());
+
+			}
+		}
 		
-		
+		initGeneDBs();
+	
+		String geneName = gene.getName();
+		if (geneName == null || geneName.startsWith("HLA-") || geneName.startsWith("MUC")) {
+			return;
+		}
 		
 		String idStr = geneInfo.idForSymbolOrSynonym(geneName);
 		if (idStr == null) {
@@ -178,4 +178,13 @@ public class VarBinAnnotator extends Annotator {
 
 		vb.annotateVarsFromTable(new File("varbin.final.table"));
 	}
+
+	/**
+	 * Not streamable, prepare() writes the whole pool to a filtered VCF for VarBin
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
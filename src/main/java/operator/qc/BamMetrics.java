@@ -6,13 +6,11 @@ import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.logging.Logger;
 
-import math.Histogram;
-import net.sf.samtools.SAMFileReader;
-import net.sf.samtools.SAMFileReader.ValidationStringency;
-import net.sf.samtools.SAMRecord;
 import operator.IOOperator;
 import operator.OperationFailedException;
 import pipeline.Pipeline;
+import util.bamUtil.BAMMetricsVisitor;
+import util.bamUtil.BAMVisitorPass;
 import buffer.BAMFile;
 import buffer.BAMMetrics;
 import buffer.FileBuffer;
@@ -68,126 +66,18 @@ public class BamMetrics extends IOOperator {
 	}
 	
 	public static BAMMetrics computeBAMMetrics(BAMFile inputBAM, buffer.BAMMetrics metrics) {
-		SAMFileReader.setDefaultValidationStringency(ValidationStringency.LENIENT);
 		if (inputBAM.getFile() == null) {
 			throw new IllegalArgumentException("File associated with inputBAM " + inputBAM.getAbsolutePath() + " is null");
 		}
-		final SAMFileReader inputSam = new SAMFileReader(inputBAM.getFile());
-		inputSam.setValidationStringency(ValidationStringency.LENIENT);		
-
-		int readCount = 0;
-		int unmappedCount = 0;
-		int unmappedMate = 0;
-		Histogram mqHisto = new Histogram(0, 80, 80);
-		Histogram insertSizeHisto = new Histogram(0, 1000, 100);
-		Histogram baseQHisto = new Histogram(0, 51, 51);
-		int dupCount = 0;
-		int failsVendorQuality = 0;
-		int hugeInsertSize = 0;
-		long basesAbove30 = 0;
-		long basesAbove20 = 0;
-		long basesAbove10 = 0;
-		long totalBaseCount = 0;
-		Histogram[] posHisto = null; 
-		boolean paired;
-		
-		final int baseSubSample = 1; //Only count 1 of every this many bases
-		final int readSubSample = 10; //Only look at 1 out of this many reads for getting base quality info
 		
-		for (final SAMRecord samRecord : inputSam) {
-			readCount++;
-						
-			mqHisto.addValue( samRecord.getMappingQuality() );
-			
-			paired = samRecord.getReadPairedFlag();
-			
-			if (paired && samRecord.getMateUnmappedFlag())
-				unmappedMate++;
-			if (samRecord.getReadUnmappedFlag())
-				unmappedCount++;
-			if (samRecord.getReadFailsVendorQualityCheckFlag())
-				failsVendorQuality++;
-			if (samRecord.getDuplicateReadFlag())
-				dupCount++;
-			
-			
-			
-			
-			
-			//For a subset of reads we look at each base in the read to compute the
-			//distribution of base qualities, etc. 
-			boolean countEachBase = readCount % readSubSample == 0;
-			if (countEachBase) {
-				byte[] baseQuals = samRecord.getBaseQualities();
-				
-				if (posHisto == null) {
-					posHisto = new Histogram[ Math.max(100, baseQuals.length) ];
-					for(int i=0; i<posHisto.length; i++)
-						posHisto[i] = new Histogram(0, 40, 40);
-				}
-				
-				
-				if (samRecord.getSecondOfPairFlag()) {
-					for(int i=0; i<baseQuals.length/2; i++) {
-						byte tmp = baseQuals[i];
-						baseQuals[i] = baseQuals[baseQuals.length-i-1];
-						baseQuals[baseQuals.length-i-1] = tmp;
-					}
-				}
-
-				for(int i=0; i<baseQuals.length; i+=baseSubSample) {
-					final int bq = (int) baseQuals[i];
-					if (bq > 30)
-						basesAbove30+=readSubSample*baseSubSample;
-					if (bq > 20)
-						basesAbove20+=readSubSample*baseSubSample;
-					if (bq > 10)
-						basesAbove10+=readSubSample*baseSubSample;
-					//int bq = (int)baseQuals[i];
-					baseQHisto.addValue( bq );
-
-					if (i < posHisto.length) {
-						int index = i;
-						if (paired && samRecord.getSecondOfPairFlag()) //invert for reverse orientation
-							index = posHisto.length - i -1;
-						posHisto[index].addValue( bq );
-					}
-				}
-				
-				totalBaseCount += readSubSample*baseQuals.length;
-			}//if we count examine each base in this read
-			
-			
-			if(paired){
-				int insertSize = Math.abs( samRecord.getInferredInsertSize() );
-				if (insertSize > 10000) {
-					hugeInsertSize++;
-				}
-				else {
-					insertSizeHisto.addValue(insertSize);
-				}				
-			}
-		} //end loop over all reads
-
-
-		inputSam.close();
-		
-		metrics.path = inputBAM.getFile().getAbsolutePath();
-		metrics.totalReads = readCount;
-		metrics.unmappedReads = unmappedCount;
-		metrics.duplicateReads = dupCount;
-		metrics.unmappedMates = unmappedMate;
-		metrics.lowVendorQualityReads = failsVendorQuality;
-		metrics.insertSizeHistogram = insertSizeHisto;
-		metrics.baseQualityHistogram = baseQHisto;
-		metrics.hugeInsertSize = hugeInsertSize;
-		metrics.basesQAbove10 = basesAbove10;
-		metrics.basesQAbove20 = basesAbove20;
-		metrics.basesQAbove30 = basesAbove30;
-//		metrics.mqHistogram = mqHisto;
-		metrics.setMqHistogram(mqHisto);
-		metrics.basesRead = totalBaseCount;
-		metrics.readPosQualHistos = posHisto;
+		BAMVisitorPass pass = new BAMVisitorPass(inputBAM.getFile());
+		pass.addVisitor(new BAMMetricsVisitor(metrics, inputBAM.getFile().getAbsolutePath()));
+		try {
+			pass.run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing metrics for " + inputBAM.getAbsolutePath(), e);
+		}
 		return metrics;
 	}
 	
@@ -0,0 +1,117 @@
+package operator.qc;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import operator.IOOperator;
+import operator.OperationFailedException;
+import pipeline.Pipeline;
+import pipeline.PipelineXMLConstants;
+import util.bamUtil.BAMMetricsVisitor;
+import util.bamUtil.BAMVisitorPass;
+import util.bamUtil.ReadCountVisitor;
+import util.coverage.CoverageVisitor;
+import buffer.BAMFile;
+import buffer.BAMMetrics;
+import buffer.BEDFile;
+import buffer.DOCMetrics;
+import buffer.FileBuffer;
+import buffer.TextBuffer;
+
+/**
+ * Computes BAM metrics (as BamMetrics does), per-contig read counts, and, if a BED file is given, depth of 
+ * coverage metrics over its intervals (as FastDepthOfCoverage does) in a single pass over a coordinate-sorted 
+ * BAM file, instead of reading the whole BAM once for each. Results go into whichever of a BAMMetrics and 
+ * DOCMetrics are given as outputs, and a text summary of the BAM metrics is written to a TextBuffer output
+ * if there is one. The collectors run on separate threads, up to the 'threads' attribute (defaults to the 
+ * pipeline thread count).
+ * @author brendan
+ *
+ */
+public class FusedBamMetrics extends IOOperator {
+
+	public static final String MIN_MQ = "min.mq";
+	
+	@Override
+	public void performOperation() throws OperationFailedException {
+		Logger logger = Logger.getLogger(Pipeline.primaryLoggerName);
+		BAMFile inputBAM = (BAMFile) getInputBufferForClass(BAMFile.class);
+		if (inputBAM == null) {
+			throw new OperationFailedException("No input bam file specified", this);
+		}
+		BEDFile intervals = (BEDFile) getInputBufferForClass(BEDFile.class);
+		BAMMetrics bamMetrics = (BAMMetrics) getOutputBufferForClass(BAMMetrics.class);
+		DOCMetrics docMetrics = (DOCMetrics) getOutputBufferForClass(DOCMetrics.class);
+		FileBuffer outputTextFile = getOutputBufferForClass(TextBuffer.class);
+		if (docMetrics != null && intervals == null) {
+			throw new OperationFailedException("A BED file is required to compute depth of coverage metrics", this);
+		}
+		
+		int threads = getPipelineOwner().getThreadCount();
+		String threadsAttr = getAttribute(PipelineXMLConstants.THREADS_ATTR);
+		if (threadsAttr != null) {
+			try {
+				threads = Pipeline.parseThreadCount(PipelineXMLConstants.THREADS_ATTR, threadsAttr);
+			}
+			catch (IllegalArgumentException ex) {
+				throw new OperationFailedException(ex.getMessage(), this);
+			}
+		}
+		int minMQ = 0;
+		String mqAttr = getAttribute(MIN_MQ);
+		if (mqAttr != null) {
+			minMQ = Integer.parseInt(mqAttr);
+		}
+		
+		BAMVisitorPass pass = new BAMVisitorPass(inputBAM.getFile());
+		pass.setThreads(threads);
+		if (bamMetrics == null && outputTextFile != null) {
+			bamMetrics = new BAMMetrics();
+		}
+		if (bamMetrics != null) {
+			pass.addVisitor(new BAMMetricsVisitor(bamMetrics, inputBAM.getFile().getAbsolutePath()));
+		}
+		ReadCountVisitor readCounter = new ReadCountVisitor(minMQ);
+		pass.addVisitor(readCounter);
+		if (docMetrics != null) {
+			try {
+				intervals.buildIntervalsMap();
+			} catch (IOException e) {
+				throw new OperationFailedException("Error reading intervals from " + intervals.getAbsolutePath() + " : " + e.getLocalizedMessage(), this);
+			}
+			pass.addVisitor(new CoverageVisitor(intervals, docMetrics, minMQ, false));
+		}
+		
+		logger.info(getObjectLabel() + " computing metrics for " + inputBAM.getAbsolutePath() + " in a single pass with up to " + threads + " threads");
+		try {
+			pass.run();
+		} catch (InterruptedException e) {
+			throw new OperationFailedException("Interrupted while computing metrics for " + inputBAM.getAbsolutePath(), this);
+		} catch (IllegalStateException e) {
+			throw new OperationFailedException("Error computing metrics for " + inputBAM.getAbsolutePath() + " : " + e.getLocalizedMessage(), this);
+		}
+		
+		for(Map.Entry<String, Long> entry : readCounter.getReadCounts().entrySet()) {
+			logger.info(getObjectLabel() + " reads on contig " + entry.getKey() + " : " + entry.getValue());
+		}
+		if (docMetrics != null) {
+			logger.info(getObjectLabel() + " found mean depth : " + docMetrics.getMeanCoverage());
+		}
+		
+		if (outputTextFile != null) {
+			try {
+				BufferedWriter writer = new BufferedWriter(new FileWriter(outputTextFile.getFile()));
+				writer.write(BamMetrics.getBAMMetricsSummary(bamMetrics));
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new OperationFailedException("Error writing to output file: " + outputTextFile.getAbsolutePath(), this);
+			}
+		}
+		logger.info(getObjectLabel() + " done computing metrics for " + inputBAM.getAbsolutePath() + ", read " + pass.getRecordsRead() + " records");
+	}
+
+}
@@ -22,7 +22,6 @@ import operator.snpeff.SnpEffGeneAnnotate.SnpEffInfo;
 import org.w3c.dom.NodeList;
 
 import pipeline.Pipeline;
-import util.Interval;
 import buffer.variant.VariantRec;
 import buffer.BEDFile;
 import buffer.IntervalsFile;
@@ -30,6 +29,7 @@ import buffer.IntervalsFile;
 /**
  * Uses SnpEff to provide gene annotations for the variants given
  * Breaks up annotation by chromosome
+ * If snpeff.stream is true, the chromosomes are instead piped through snpeff.workers SnpEff processes at once, see SnpEffStream
 // * This should eventually be re-written to extend AbstractSerialAnnotator
  * @author daniel
  *
@@ -43,10 +43,16 @@ public class SerialSnpEffGeneAnnotate extends Annotator {
 	public static final String UPDOWNSTREAM_LENGTH = "updownstream.length";
 	public static final String SPLICESITE_SIZE = "spliceSite.size";
 	public static final String MEMORY_STRING = "memory.string";
+	public static final String ALT_JAVA_HOME = SnpEffGeneAnnotate.ALT_JAVA_HOME;
+	public static final String STREAM = SnpEffGeneAnnotate.STREAM;
+	public static final String WORKERS = SnpEffGeneAnnotate.WORKERS;
 	
 	protected String snpEffDir = null;
 	protected String snpEffGenome = null;
 	protected String memoryStr = "-Xmx8G";
+	protected String javaHome = "java";
+	protected boolean stream = false;
+	protected int workers = 1;
 	
 	protected int updownStreamLength = 1000;
 	protected int spliceSiteSize = 10;
@@ -56,10 +62,14 @@ public class SerialSnpEffGeneAnnotate extends Annotator {
 	private Map<String, String> nmMap = new HashMap<String, String>();
 	Logger logger = Logger.getLogger(Pipeline.primaryLoggerName);
 	
-	public void prepare() {
+	public void prepare() throws OperationFailedException {
 		
 		List<String> contigs = new ArrayList<String>(bedFile.getContigs());
 		Collections.sort(contigs);
+		if (stream) {
+			prepareStream(contigs);
+			return;
+		}
 		File outputFile = new File(this.getProjectHome() + "/snpeff.output.vcf");
 		
 		ArrayList<File> inputs = new ArrayList<File>();
@@ -79,6 +89,35 @@ public class SerialSnpEffGeneAnnotate extends Annotator {
 
 	}
 	
+	/**
+	 * Pipe the variants on the given contigs through SnpEff, with the contigs split among several processes,
+	 * annotating each variant as its output arrives. SnpEff's own -t option isn't used since it may reorder output
+	 * @param contigs
+	 * @throws OperationFailedException
+	 */
+	private void prepareStream(List<String> contigs) throws OperationFailedException {
+		String[] command = new String[]{javaHome, memoryStr, "-jar", snpEffDir + "/snpEff.jar", "-c", snpEffDir + "/snpEff.config",
+				snpEffGenome, "-hgvs", "-nostats", "-ud", "" + updownStreamLength, "-spliceSiteSize", "" + spliceSiteSize};
+		
+		SnpEffStream snpEff = new SnpEffStream(this, command, new SnpEffStream.Handler() {
+			@Override
+			public String[] inputLines(VariantRec rec) {
+				return isInTargets(rec) ? convertVar(rec).split("\n") : null;
+			}
+
+			@Override
+			public String inputLineForOutput(String[] toks) {
+				return convertVar(toks[0], Integer.parseInt(toks[1]), toks[3], toks[4]);
+			}
+
+			@Override
+			public void annotate(VariantRec var, String outputLine) {
+				annotateFromList(var, parseOutputLineVCF(outputLine));
+			}
+		});
+		snpEff.run(SnpEffStream.shardByContig(variants, contigs, workers));
+	}
+	
 	private ArrayList<File> prepareContig(String contig){
 		int varsWritten = 0;
 		File outputFile = new File(this.getProjectHome() + "/snpeff.output." + contig + ".vcf");
@@ -94,19 +133,7 @@ public class SerialSnpEffGeneAnnotate extends Annotator {
 			
 					for(VariantRec rec: variants.getVariantsForContig(contig)) {
 						System.out.println("variant ref = " + rec.getRef() + "  | variant alt = " + rec.getAlt());
-						Integer recLength = rec.getRef().length() - rec.getAlt().length(); //if >0 Indicates a deletion
-						if (recLength < 0) { //Indicates that it is an insertion
-							recLength = 0; 
-						} else if (recLength == 0) { //Indicates that it is an snv or mnv
-							if (rec.getRef().length() == 1) { // Indicates that it is an snv
-								recLength = 1;
-							} else { // Indicates that it is an mnv
-								recLength = rec.getRef().length();
-							}
-						}
-						Integer recEnd = rec.getStart() - 1 + recLength;
-						Interval recInterval = new Interval(rec.getStart() - 1, recEnd);
-						if (bedFile == null || bedFile.intersects(rec.getContig(), recInterval)) {
+						if (isInTargets(rec)) {
 							String varStr = convertVar(rec);		
 							writer.write(varStr + "\n");
 							varsWritten++;
@@ -127,7 +154,7 @@ public class SerialSnpEffGeneAnnotate extends Annotator {
 	private void runSnpEff(File input, File outputFile){
 		//Next, run snpeff using the input file we just made
 		String threadStr = " -t ";
-		String command = "java " + memoryStr + " -jar " + snpEffDir + "/snpEff.jar -c " + snpEffDir + "/snpEff.config " + snpEffGenome + " -hgvs -nostats " + threadStr + "-ud " + updownStreamLength + " -spliceSiteSize " + spliceSiteSize + " " + input.getAbsolutePath(); 
+		String command = javaHome + " " + memoryStr + " -jar " + snpEffDir + "/snpEff.jar -c " + snpEffDir + "/snpEff.config " + snpEffGenome + " -hgvs -nostats " + threadStr + "-ud " + updownStreamLength + " -spliceSiteSize " + spliceSiteSize + " " + input.getAbsolutePath(); 
 		Logger.getLogger(Pipeline.primaryLoggerName).info("Executing command: " + command);
 		try {
 			
@@ -179,6 +206,9 @@ public class SerialSnpEffGeneAnnotate extends Annotator {
 	
 	@Override
 	public void annotateVariant(VariantRec var) throws OperationFailedException {
+		if (stream) {
+			return; //Already annotated in prepare()
+		}
 		if (annos == null) {
 			throw new OperationFailedException("Map not initialized", this);
 			
@@ -530,6 +560,24 @@ public class SerialSnpEffGeneAnnotate extends Annotator {
 			memoryAttr = this.getPipelineProperty(MEMORY_STRING);
 		if(memoryAttr != null)
 			memoryStr = memoryAttr;
+		
+		String altJavaHome = this.getAttribute(ALT_JAVA_HOME);
+		if (altJavaHome != null) {
+			javaHome = altJavaHome;
+		}
+		
+		String streamStr = this.getAttribute(STREAM);
+		if (streamStr != null) {
+			stream = Boolean.parseBoolean(streamStr);
+		}
+		
+		String workersStr = this.getAttribute(WORKERS);
+		if (workersStr != null) {
+			workers = Integer.parseInt(workersStr);
+			if (workers < 1) {
+				throw new IllegalArgumentException(WORKERS + " must be at least 1, got " + workersStr);
+			}
+		}
 	}
 	
 	
@@ -541,5 +589,14 @@ public class SerialSnpEffGeneAnnotate extends Annotator {
 		String transcript;
 		String exon;
 	}
+
+	/**
+	 * Not streamable, prepare() runs SnpEff over the whole pool
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
 
@@ -30,11 +30,12 @@ import buffer.variant.VariantRec;
 import operator.OperationFailedException;
 import operator.annovar.Annotator;
 import pipeline.Pipeline;
-import util.Interval;
 
 
 /**
  * Uses SnpEff to provide gene annotations for the variants given 
+ * If snpeff.stream is true, variants are piped through snpeff.workers SnpEff processes at once instead of
+ * going through input and output files, see SnpEffStream
  * @author brendan, modified by chrisk
  *
  */
@@ -48,6 +49,8 @@ public class SnpEffGeneAnnotate extends Annotator {
 	public static final String SPLICESITE_SIZE = "spliceSite.size";
 	public static final String ALT_JAVA_HOME = "alt.java.home";
 	public static final String TRANSCRIPTS_FROM_ARUPBED = "transcripts.from.arupbed";
+	public static final String STREAM = "snpeff.stream"; //If true, pipe variants through SnpEff instead of using files
+	public static final String WORKERS = "snpeff.workers"; //Number of SnpEff processes to run at once when streaming
 
 
 	protected String javaHome = null;
@@ -58,11 +61,17 @@ public class SnpEffGeneAnnotate extends Annotator {
 	protected int spliceSiteSize = 10;
 	protected boolean performMitoSub = false; //If true, do a substitution of mito chr name to 
 	protected boolean trsFromArupBed = false; //if true, expect ArupBEDFile input with transcripts in 4th column
+	protected boolean stream = false;
+	protected int workers = 1;
 	
 	private Map<String, List<SnpEffInfo> > annos = null;
 	private Map<String, String> nmMap = new HashMap<String, String>();
 	
-	public void prepare() {
+	public void prepare() throws OperationFailedException {
+		if (stream) {
+			prepareStream();
+			return;
+		}
 		
 		//First we have to build an input file
 		File input = new File(this.getProjectHome() + "/snpeff.input.vcf");
@@ -79,19 +88,7 @@ public class SnpEffGeneAnnotate extends Annotator {
 			
 				for(String contig: variants.getContigs()) {
 					for(VariantRec rec: variants.getVariantsForContig(contig)) {
-						Integer recLength = rec.getRef().length() - rec.getAlt().length(); //if >0 Indicates a deletion
-						if (recLength < 0) { //Indicates that it is an insertion
-							recLength = 0; 
-						} else if (recLength == 0) { //Indicates that it is an snv or mnv
-							if (rec.getRef().length() == 1) { // Indicates that it is an snv
-								recLength = 1;
-							} else { // Indicates that it is an mnv
-								recLength = rec.getRef().length();
-							}
-						}
-						Integer recEnd = rec.getStart() - 1 + recLength;
-						Interval recInterval = new Interval(rec.getStart() - 1, recEnd);
-						if (bedFile == null || bedFile.intersects(rec.getContig(), recInterval)) {
+						if (isInTargets(rec)) {
 							String varStr = convertVarWithInfoEND(rec);		
 							writer.write(varStr + "\n");
 							varsWritten++;
@@ -150,6 +147,38 @@ public class SnpEffGeneAnnotate extends Annotator {
 
 	}
 	
+	/**
+	 * Pipe the variants through SnpEff, one process per shard of contigs, annotating each variant as its
+	 * output arrives. Nothing is left to do in annotateVariant afterwards
+	 * @throws OperationFailedException
+	 */
+	private void prepareStream() throws OperationFailedException {
+		String[] command = new String[]{javaHome, "-Xmx16g", "-jar", snpEffDir + "/snpEff.jar", "-c", snpEffDir + "/snpEff.config",
+				snpEffGenome, "-hgvs", "-nostats", "-ud", "" + updownStreamLength};
+		
+		SnpEffStream snpEff = new SnpEffStream(this, command, new SnpEffStream.Handler() {
+			@Override
+			public String[] inputLines(VariantRec var) {
+				return isInTargets(var) ? convertVarWithInfoEND(var).split("\n") : null;
+			}
+
+			@Override
+			public String inputLineForOutput(String[] toks) {
+				return convertVar(toks[0], Integer.parseInt(toks[1]), toks[3], toks[4], findInfoEndFromVCF(toks[7]));
+			}
+
+			@Override
+			public void annotate(VariantRec var, String outputLine) throws OperationFailedException {
+				try {
+					annotateFromList(var, parseOutputLineVCF(outputLine));
+				} catch (IOException e) {
+					throw new OperationFailedException(e.getMessage(), SnpEffGeneAnnotate.this);
+				}
+			}
+		});
+		snpEff.run(SnpEffStream.shardByContig(variants, variants.getContigs(), workers));
+	}
+	
 	/**
 	 * InfoToks should be field 7 from a VCF record (the INFO column), we split this into tokens on ; and search for the END field,
 	 * If found return it, otherwise return '.'
@@ -167,6 +196,9 @@ public class SnpEffGeneAnnotate extends Annotator {
 	
 	@Override
 	public void annotateVariant(VariantRec var) throws OperationFailedException {
+		if (stream) {
+			return; //Already annotated in prepare()
+		}
 		
 		if (annos == null) {
 			throw new OperationFailedException("Map not initialized", this);
@@ -457,6 +489,19 @@ public class SnpEffGeneAnnotate extends Annotator {
 					+ " set true but no ArupBEDFile passed as input");
 		}
 
+		String streamStr = this.getAttribute(STREAM);
+		if (streamStr != null) {
+			stream = Boolean.parseBoolean(streamStr);
+		}
+		
+		String workersStr = this.getAttribute(WORKERS);
+		if (workersStr != null) {
+			workers = Integer.parseInt(workersStr);
+			if (workers < 1) {
+				throw new IllegalArgumentException(WORKERS + " must be at least 1, got " + workersStr);
+			}
+		}
+
 		//only load and use preferred nms if not using nms from arupbed
 		String nmDefs = this.getAttribute(NM_DEFS);
 		if (trsFromArupBed && nmDefs != null) {
@@ -482,6 +527,15 @@ public class SnpEffGeneAnnotate extends Annotator {
 		String warning;
 		String impact;
 	}
+
+	/**
+	 * Not streamable, prepare() runs SnpEff over the whole pool
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
 
 
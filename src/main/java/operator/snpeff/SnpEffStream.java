@@ -0,0 +1,316 @@
+package operator.snpeff;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+import operator.Operator;
+import operator.OperationFailedException;
+import operator.StringPipeHandler;
+import pipeline.Pipeline;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+
+/**
+ * Runs SnpEff as a filter, writing variants to its stdin while reading the annotated records from its stdout,
+ * so nothing is written to disk and annotations are applied to each VariantRec as its output line arrives.
+ * The variants are split into shards by contig and each shard is handled by its own SnpEff process, with
+ * all of the processes running at once.
+ * SnpEff writes exactly one output record for each input record, in the same order, so we match output
+ * lines to variants by keeping a queue of the lines written but not yet read back. Only the lines in flight
+ * are held in memory. An output line that doesn't match the next line in the queue, input lines with no
+ * output, a nonzero exit value, or any exception from the Handler all cause run() to fail, and the process
+ * of a shard that failed is destroyed.
+ * @author brendan
+ *
+ */
+public class SnpEffStream {
+
+	public static final String HEADER = "##fileformat=VCFv4.1\n#CHROM	POS	ID	REF	ALT	QUAL	FILTER	INFO	FORMAT	sample\n";
+
+	/**
+	 * Converts variants to SnpEff input and applies the annotations SnpEff produces for them. Called from the
+	 * worker threads, but all lines for a given variant are handled by the same thread
+	 */
+	public interface Handler {
+
+		/**
+		 * The VCF lines to send to SnpEff for the variant, one for each alt, or null if the variant
+		 * shouldn't be annotated
+		 */
+		public String[] inputLines(VariantRec var);
+
+		/**
+		 * Compute the input line that produced the given (tab-split) output line
+		 */
+		public String inputLineForOutput(String[] toks);
+
+		/**
+		 * Add the annotations from the SnpEff output line to the variant
+		 */
+		public void annotate(VariantRec var, String outputLine) throws OperationFailedException;
+	}
+
+	private final Operator owner;
+	private final String[] command;
+	private final Handler handler;
+	private OperationFailedException failure = null; //First error seen by any worker, guarded by this
+
+	/**
+	 * Create a new stream
+	 * @param owner Operator reported as the source of errors
+	 * @param command SnpEff command and arguments, without an input file so SnpEff reads stdin
+	 * @param handler
+	 */
+	public SnpEffStream(Operator owner, String[] command, Handler handler) {
+		this.owner = owner;
+		this.command = command;
+		this.handler = handler;
+	}
+
+	/**
+	 * Split the variants on the given contigs into at most the given number of shards with roughly equal
+	 * numbers of variants. A contig is never split across shards, and contigs keep their order within a shard.
+	 * @param variants
+	 * @param contigs
+	 * @param shardCount
+	 * @return
+	 */
+	public static List<List<VariantRec>> shardByContig(VariantPool variants, Collection<String> contigs, int shardCount) {
+		List<String> inOrder = new ArrayList<String>();
+		for(String contig : contigs) {
+			if (variants.getVariantsForContig(contig).size() > 0) {
+				inOrder.add(contig);
+			}
+		}
+
+		//Largest contigs first, each to the shard with the fewest variants so far
+		final VariantPool pool = variants;
+		List<String> bySize = new ArrayList<String>(inOrder);
+		Collections.sort(bySize, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return pool.getVariantsForContig(b).size() - pool.getVariantsForContig(a).size();
+			}
+		});
+		int shards = Math.max(1, Math.min(shardCount, bySize.size()));
+		int[] sizes = new int[shards];
+		int[] shardOfContig = new int[inOrder.size()];
+		for(String contig : bySize) {
+			int smallest = 0;
+			for(int i=1; i<shards; i++) {
+				if (sizes[i] < sizes[smallest]) {
+					smallest = i;
+				}
+			}
+			sizes[smallest] += variants.getVariantsForContig(contig).size();
+			shardOfContig[inOrder.indexOf(contig)] = smallest;
+		}
+
+		List<List<VariantRec>> result = new ArrayList<List<VariantRec>>();
+		for(int i=0; i<shards; i++) {
+			result.add(new ArrayList<VariantRec>(sizes[i]));
+		}
+		for(int i=0; i<inOrder.size(); i++) {
+			result.get(shardOfContig[i]).addAll(variants.getVariantsForContig(inOrder.get(i)));
+		}
+		return result;
+	}
+
+	/**
+	 * Annotate all of the variants in the shards, running one SnpEff process per shard, and return when all
+	 * processes have finished
+	 * @param shards
+	 * @throws OperationFailedException If any shard could not be annotated
+	 */
+	public void run(List<List<VariantRec>> shards) throws OperationFailedException {
+		Logger.getLogger(Pipeline.primaryLoggerName).info("Streaming variants through " + shards.size() + " SnpEff processes, command: " + Arrays.toString(command));
+		List<Worker> workers = new ArrayList<Worker>();
+		for(int i=0; i<shards.size(); i++) {
+			Worker worker = new Worker(shards.get(i), i);
+			workers.add(worker);
+			worker.start();
+		}
+		for(Worker worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				for(Worker w : workers) {
+					w.interrupt();
+				}
+				throw new OperationFailedException("Interrupted while waiting for SnpEff : " + e.getLocalizedMessage(), owner);
+			}
+		}
+		synchronized(this) {
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private synchronized void fail(OperationFailedException ex) {
+		if (failure == null) {
+			failure = ex;
+		}
+	}
+
+	private synchronized boolean hasFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * A line sent to SnpEff and the variant it came from
+	 */
+	static class Pending {
+		final String line;
+		final VariantRec var;
+
+		Pending(String line, VariantRec var) {
+			this.line = line;
+			this.var = var;
+		}
+	}
+
+	/**
+	 * Runs one SnpEff process over a shard. A separate thread writes the input while this one reads the
+	 * output, otherwise both processes could block on full pipes.
+	 */
+	class Worker extends Thread {
+		final List<VariantRec> shard;
+		final LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<Pending>();
+
+		Worker(List<VariantRec> shard, int index) {
+			super("snpeff-worker-" + index);
+			this.shard = shard;
+		}
+
+		public void run() {
+			final Process p;
+			try {
+				p = new ProcessBuilder(command).start();
+			} catch (IOException e) {
+				fail(new OperationFailedException("Could not start SnpEff : " + e.getLocalizedMessage(), owner));
+				return;
+			}
+
+			Thread errConsumer = new StringPipeHandler(p.getErrorStream(), System.err);
+			errConsumer.start();
+			Thread writer = new Thread(getName() + "-input") {
+				public void run() {
+					writeInput(p);
+				}
+			};
+			writer.start();
+
+			try {
+				readOutput(p);
+				writer.join();
+				if (pending.size() > 0) {
+					throw new OperationFailedException("SnpEff produced no output for " + pending.size() + " variant lines, the first was: " + pending.peek().line, owner);
+				}
+				int exitValue = p.waitFor();
+				if (exitValue != 0) {
+					throw new OperationFailedException("SnpEff terminated with nonzero exit value " + exitValue + ", command was: " + Arrays.toString(command), owner);
+				}
+				errConsumer.join();
+			}
+			catch (OperationFailedException e) {
+				fail(e);
+			}
+			catch (IOException e) {
+				fail(new OperationFailedException("Error reading SnpEff output : " + e.getLocalizedMessage(), owner));
+			}
+			catch (InterruptedException e) {
+				fail(new OperationFailedException("Interrupted while running SnpEff", owner));
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+				fail(new OperationFailedException("Error handling SnpEff output : " + e, owner));
+			}
+			finally {
+				if (hasFailed()) {
+					p.destroy();
+				}
+			}
+		}
+
+		/**
+		 * Write the header and every variant line, adding each line to the pending queue before it is written.
+		 * SnpEff's input is always closed, and if anything goes wrong the process is destroyed, so the reading
+		 * thread never waits for output that isn't coming
+		 */
+		private void writeInput(Process p) {
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()), 1 << 16);
+			try {
+				writer.write(HEADER);
+				for(VariantRec var : shard) {
+					if (hasFailed()) {
+						break;
+					}
+					String[] lines = handler.inputLines(var);
+					if (lines == null) {
+						continue;
+					}
+					for(String line : lines) {
+						pending.add(new Pending(line, var));
+						writer.write(line);
+						writer.write('\n');
+					}
+				}
+				writer.flush();
+			} catch (IOException e) {
+				fail(new OperationFailedException("Error writing variants to SnpEff : " + e.getLocalizedMessage(), owner));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				fail(new OperationFailedException("Error writing variants to SnpEff : " + e, owner));
+			}
+			finally {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					fail(new OperationFailedException("Error writing variants to SnpEff : " + e.getLocalizedMessage(), owner));
+				}
+				if (hasFailed()) {
+					p.destroy();
+				}
+			}
+		}
+
+		/**
+		 * Read output lines as they arrive and annotate the variant each one belongs to
+		 */
+		private void readOutput(Process p) throws IOException, OperationFailedException {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()), 1 << 16);
+			try {
+				String line = reader.readLine();
+				while(line != null) {
+					if (line.length() == 0 || line.startsWith("#")) {
+						line = reader.readLine();
+						continue;
+					}
+					String[] toks = line.split("\t");
+					String inputLine = toks.length < 8 ? null : handler.inputLineForOutput(toks);
+					Pending next = pending.poll();
+					if (next == null || !next.line.equals(inputLine)) {
+						throw new OperationFailedException("Unexpected SnpEff output line " + line + (next == null ? "" : ", expected output for " + next.line), owner);
+					}
+					handler.annotate(next.var, line);
+					line = reader.readLine();
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+	}
+}
@@ -342,4 +342,12 @@ public class SolrAnnotator extends Annotator {
         return Collections.unmodifiableMap(map);
     }
 
+	/**
+	 * Not streamable, cleanup() checks that every variant in the pool has been processed
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
@@ -11,7 +11,6 @@ import operator.OperationFailedException;
 import operator.annovar.Annotator;
 import operator.writer.VarViewerWriter;
 import pipeline.Pipeline;
-import util.Interval;
 import buffer.CSVFile;
 import buffer.variant.VariantPool;
 import buffer.variant.VariantRec;
@@ -138,20 +137,7 @@ public abstract class AbstractSerialAnnotator extends Annotator {
 	
 			for(String contig : workingPool.getContigs()) {
 				for(VariantRec rec : workingPool.getVariantsForContig(contig)) {
-					//TODO veryify that recEnd is not incorrect for two alt alleles
-					Integer recLength = rec.getRef().length() - rec.getAlt().length(); //if >0 Indicates a deletion
-					if (recLength < 0) { //Indicates that it is an insertion
-						recLength = 0; 
-					} else if (recLength == 0) { //Indicates that it is an snv or mnv
-						if (rec.getRef().length() == 1) { // Indicates that it is an snv
-							recLength = 1;
-						} else { // Indicates that it is an mnv
-							recLength = rec.getRef().length();
-						}
-					}
-					Integer recEnd = rec.getStart() - 1 + recLength;
-					Interval recInterval = new Interval(rec.getStart() - 1, recEnd);
-					if (bedFile == null || bedFile.intersects(rec.getContig(), recInterval)) {
+					if (isInTargets(rec)) {
 						annotateVariant(rec);
 					
 						varsAnnotated++;
@@ -175,4 +161,13 @@ public abstract class AbstractSerialAnnotator extends Annotator {
 		}
 	
 	}
+
+	/**
+	 * Not streamable, prepare() walks every contig of the whole pool
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
\ No newline at end of file
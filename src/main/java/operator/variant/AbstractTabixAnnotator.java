@@ -3,21 +3,21 @@ package operator.variant;
 import java.io.IOException;
 import java.util.logging.Logger;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;                  
                                         
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.Callable;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import operator.OperationFailedException;
 import operator.annovar.Annotator;
 
 import org.broad.tribble.readers.TabixReader;
 
-import util.Interval;
+import util.tribble.CachingTabixReader;
+import util.tribble.TabixCache;
 import pipeline.Pipeline;
 import util.vcfParser.VCFParser;
 import buffer.variant.VariantRec;
@@ -34,6 +34,27 @@ import buffer.variant.VariantRec;
  */
 public abstract class AbstractTabixAnnotator extends Annotator {
         public static final String THREAD_KEY = "threads";	
+	
+	//Number of variants in each unit of parallel work, contigs are split into chunks of about this size
+	public static final String CHUNK_SIZE = "tabix.chunk.size";
+	public static final int DEFAULT_CHUNK_SIZE = 2000;
+	
+	//How variants are looked up in the tabixed file: 'random' issues one query per variant, 'sweep' 
+	//reads each contig sequentially alongside the sorted variants, and 'auto' (the default) sweeps
+	//through clusters of nearby variants and uses random queries for isolated ones
+	public static final String TABIX_MODE = "tabix.mode";
+	public static final String MODE_AUTO = "auto";
+	public static final String MODE_SWEEP = "sweep";
+	public static final String MODE_RANDOM = "random";
+	
+	//In auto mode, variants closer than this many bases to the previous one are swept together.
+	//A random query costs at least one seek and one BGZF block (64Kb uncompressed) so if the 
+	//variants are further apart than that, reading the database between them is likely wasted
+	public static final String SWEEP_MAX_GAP = "sweep.max.gap";
+	public static final int DEFAULT_SWEEP_MAX_GAP = 5000;
+	
+	//Records within this distance of a variant are examined for a match, same as the random query window
+	protected static final int QUERY_PADDING = 10;
 
 
         protected abstract String getPathToTabixedFile();
@@ -166,106 +187,349 @@ public abstract class AbstractTabixAnnotator extends Annotator {
 		}
 	}
 
-        /**
-         * This inner class implements Callable and its call function will be used to 
-         * annotate variants in the list of VariantRec objects; This should only be 
-         * used by TabixAnnotators.
-         **/
-        public class TabixCallable implements Callable<Integer> {
-            int myVarsAnnotated = 0;
-            List<VariantRec> varList;
-            TabixReader reader;
-  
-            public TabixCallable(List<VariantRec> vList, TabixReader trr) {
-                this.varList = vList;
-                this.reader = trr;
-            }
-  
-            public Integer call() throws Exception {
-                for (VariantRec rec : varList) {
-                    Integer recLength = Integer.valueOf(rec.getRef().length() - rec.getAlt().length());
-                    if (recLength.intValue() < 0) {
-                        recLength = Integer.valueOf(0);
-                    } else if (recLength.intValue() == 0) {
-                        if (rec.getRef().length() == 1) {
-                            recLength = Integer.valueOf(1);
-                        } else {
-                                recLength = Integer.valueOf(rec.getRef().length());
-                        }
-                    }
-                    Integer recEnd = Integer.valueOf(rec.getStart() - 1 + recLength.intValue());
-                    Interval recInterval = new Interval(rec.getStart() - 1, recEnd.intValue());
-                    if ((bedFile == null) || (bedFile.intersects(rec.getContig(), recInterval))) {
-                        annotateVariant(rec, reader);
-                    }
-                    myVarsAnnotated += 1;
-                }
-
-                return new Integer(myVarsAnnotated);
+	/**
+	 * One position-ordered run of variants from a single contig, annotated as a unit by one thread
+	 */
+	static class Chunk {
+		final List<VariantRec> vars;
+		
+		Chunk(List<VariantRec> vars) {
+			this.vars = vars;
+		}
+	}
+	
+	/**
+	 * Annotates a range of chunks, splitting it in half until only a single chunk remains, so
+	 * that idle threads in the work pool can steal whatever's left. Each thread reuses one reader
+	 * for all of the chunks it processes.
+	 */
+	class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final List<Chunk> chunks;
+		final int lo;
+		final int hi;
+		final ConcurrentHashMap<Thread, TabixReader> readers;
+		final AtomicInteger annotated;
+		
+		ChunkTask(List<Chunk> chunks, int lo, int hi, ConcurrentHashMap<Thread, TabixReader> readers, AtomicInteger annotated) {
+			this.chunks = chunks;
+			this.lo = lo;
+			this.hi = hi;
+			this.readers = readers;
+			this.annotated = annotated;
+		}
+		
+		@Override
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new ChunkTask(chunks, lo, mid, readers, annotated), new ChunkTask(chunks, mid, hi, readers, annotated));
+				return;
+			}
+			
+			try {
+				TabixReader reader = readers.get(Thread.currentThread());
+				if (reader == null) {
+					reader = new CachingTabixReader(getPathToTabixedFile());
+					readers.put(Thread.currentThread(), reader);
+				}
+				List<VariantRec> toAnnotate = filterByBED(chunks.get(lo).vars);
+				annotateContig(toAnnotate, reader);
+				annotated.addAndGet(chunks.get(lo).vars.size());
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Error opening " + getPathToTabixedFile() + " errror : " + e.getMessage()); 
+			} catch (OperationFailedException e) {
+				throw new ChunkFailedException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Carries an OperationFailedException out of a ChunkTask
+	 */
+	static class ChunkFailedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		final OperationFailedException cause;
+		
+		ChunkFailedException(OperationFailedException cause) {
+			super(cause);
+			this.cause = cause;
+		}
+	}
+	
+	/**
+	 * Returns those variants that intersect the BED file, or all of them if there is no BED file 
+	 * @param vars
+	 * @return
+	 */
+	protected List<VariantRec> filterByBED(List<VariantRec> vars) {
+		if (bedFile == null) {
+			return vars;
+		}
+		List<VariantRec> toAnnotate = new ArrayList<VariantRec>(vars.size());
+		for (VariantRec rec : vars) {
+			if (isInTargets(rec)) {
+				toAnnotate.add(rec);
+			}
+		}
+		return toAnnotate;
+	}
 
-            }
-        }
+	/**
+	 * Annotate the given variants, which must all be on the same contig. Depending on the tabix.mode 
+	 * attribute, this either queries the reader once per variant or sweeps once through each cluster 
+	 * of nearby variants (see annotateBySweep). Both produce the same annotations.
+	 * @param contigVars
+	 * @param reader
+	 * @throws OperationFailedException
+	 */
+	protected void annotateContig(List<VariantRec> contigVars, TabixReader reader) throws OperationFailedException {
+		String mode = getAttribute(TABIX_MODE);
+		if (mode == null) {
+			mode = MODE_AUTO;
+		}
+		
+		if (mode.equals(MODE_RANDOM) || !supportsSweep() || contigVars.size() < 2) {
+			for(VariantRec rec : contigVars) {
+				annotateVariant(rec, reader);
+			}
+			return;
+		}
+		
+		int maxGap = Integer.MAX_VALUE;
+		if (! mode.equals(MODE_SWEEP)) {
+			maxGap = DEFAULT_SWEEP_MAX_GAP;
+			String gapStr = getAttribute(SWEEP_MAX_GAP);
+			if (gapStr != null) {
+				try {
+					maxGap = Integer.parseInt(gapStr);
+				} catch (NumberFormatException nfe) {
+					throw new OperationFailedException("Could not parse " + SWEEP_MAX_GAP + " from : " + gapStr, this);
+				}
+			}
+		}
+		
+		//Sweeping requires variants in position order, pools are normally sorted already 
+		List<VariantRec> sorted = contigVars;
+		for(int i=1; i<contigVars.size(); i++) {
+			if (contigVars.get(i).getStart() < contigVars.get(i-1).getStart()) {
+				sorted = new ArrayList<VariantRec>(contigVars);
+				Collections.sort(sorted, VariantRec.getPositionComparator());
+				break;
+			}
+		}
+		
+		//Split into clusters of nearby variants, isolated variants are cheaper to look up directly
+		int clusterStart = 0;
+		for(int i=1; i<=sorted.size(); i++) {
+			if (i == sorted.size() || sorted.get(i).getStart() - sorted.get(i-1).getStart() > maxGap) {
+				if (i - clusterStart == 1) {
+					annotateVariant(sorted.get(clusterStart), reader);
+				}
+				else {
+					annotateBySweep(sorted.subList(clusterStart, i), reader);
+				}
+				clusterStart = i;
+			}
+		}
+	}
+	
+	/**
+	 * True if the tabixed file is a VCF whose records can be swept through by annotateBySweep. Subclasses
+	 * that override annotateVariant(VariantRec, TabixReader) or read a file with a different column 
+	 * layout should return false, so that every variant is looked up with its own query
+	 * @return
+	 */
+	protected boolean supportsSweep() {
+		return true;
+	}
+	
+	/**
+	 * Annotate a position-sorted run of variants on one contig using a single sequential tabix iterator 
+	 * over the whole run, instead of one query per variant. Records are read once, in order, and kept in
+	 * a small window while they're within QUERY_PADDING bases of the current variant, so each variant sees 
+	 * exactly the records (and in the same order) that a query for pos-10 to pos+10 would return, and every
+	 * BGZF block spanning the run is decompressed only once.
+	 * @param sortedVars
+	 * @param reader
+	 * @throws OperationFailedException
+	 */
+	protected void annotateBySweep(List<VariantRec> sortedVars, TabixReader reader) throws OperationFailedException {
+		String contig = sortedVars.get(0).getContig();
+		int first = sortedVars.get(0).getStart();
+		int last = sortedVars.get(sortedVars.size()-1).getStart();
+		String queryStr = contig + ":" + Math.max(1, first-QUERY_PADDING) + "-" + (last+QUERY_PADDING);
+		
+		TabixReader.Iterator iter = null;
+		try {
+			iter = reader.query(queryStr);
+		} catch (RuntimeException ex) {
+			Logger.getLogger(Pipeline.primaryLoggerName).warning("Exception during tabix reading for query: " + queryStr + " : " + ex.getLocalizedMessage());
+		}
+		if (iter == null) {
+			return;
+		}
+		
+		List<SweepRecord> window = new ArrayList<SweepRecord>();
+		SweepRecord pending = null;
+		boolean exhausted = false;
+		try {
+			for(VariantRec var : sortedVars) {
+				int pos = var.getStart();
+				
+				//Drop records that end before the current window, variants only move forward
+				int kept = 0;
+				for(int i=0; i<window.size(); i++) {
+					SweepRecord rec = window.get(i);
+					if (rec.end >= pos - QUERY_PADDING) {
+						window.set(kept, rec);
+						kept++;
+					}
+				}
+				while (window.size() > kept) {
+					window.remove(window.size()-1);
+				}
+				
+				//Pull in all records starting at or before the end of the current window
+				while (! exhausted) {
+					if (pending == null) {
+						String line = iter.next();
+						if (line == null) {
+							exhausted = true;
+							break;
+						}
+						pending = SweepRecord.parse(line);
+						if (pending == null) {
+							continue; //Not enough tokens to be a variant
+						}
+					}
+					if (pending.start > pos + QUERY_PADDING) {
+						break;
+					}
+					if (pending.end >= pos - QUERY_PADDING) {
+						window.add(pending);
+					}
+					pending = null;
+				}
+				
+				for(SweepRecord rec : window) {
+					if (findMatchingVariant(var, rec.line) >= 0) {
+						break;
+					}
+				}
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(Pipeline.primaryLoggerName).warning("Tabix iterator exception: " + ex.getLocalizedMessage());
+		}
+	}
+	
+	/**
+	 * A line from the tabixed VCF along with the span of reference bases it covers
+	 */
+	static class SweepRecord {
+		final String line;
+		final int start;
+		final int end;
+		
+		SweepRecord(String line, int start, int end) {
+			this.line = line;
+			this.start = start;
+			this.end = end;
+		}
+		
+		/**
+		 * Parse the position and reference length from a VCF line without splitting the whole line. Returns
+		 * null for lines with too few columns, which are skipped by the random query path as well
+		 */
+		static SweepRecord parse(String line) {
+			int tab1 = line.indexOf('\t');
+			int tab2 = tab1 < 0 ? -1 : line.indexOf('\t', tab1+1);
+			int tab3 = tab2 < 0 ? -1 : line.indexOf('\t', tab2+1);
+			int tab4 = tab3 < 0 ? -1 : line.indexOf('\t', tab3+1);
+			if (tab4 < 0) {
+				return null;
+			}
+			int tabs = 4;
+			for(int i=tab4+1; i<line.length() && tabs < 6; i++) {
+				if (line.charAt(i) == '\t') {
+					tabs++;
+				}
+			}
+			if (tabs < 6) {
+				return null;
+			}
+			int start = Integer.parseInt(line.substring(tab1+1, tab2));
+			int refLength = tab4 - tab3 - 1;
+			return new SweepRecord(line, start, start + Math.max(refLength, 1) - 1);
+		}
+	}
 
         @Override	
         public void performOperation() throws OperationFailedException {
                 prepare();
 
-                int varsAnnotated = 0;
+                annotateBatch();
+        }
 
-                String str_threads = this.getPipelineProperty(THREAD_KEY);
-                int n_threads = 1;
-                try {
-                    n_threads = Integer.parseInt(str_threads);
-                } catch (NumberFormatException e) {
-                    n_threads = 1;
+        /**
+         * Annotate all variants currently in the pool. Each contig is split into chunks of tabix.chunk.size
+         * variants, which are annotated in parallel on the pipeline's shared work pool, or on the
+         * common ForkJoinPool if this annotator has no pipeline owner
+         */
+        @Override
+        public void annotateBatch() throws OperationFailedException {
+                Pipeline owner = getPipelineOwner();
+                String cacheMB = owner == null ? null : (String) owner.getProperty(TabixCache.CACHE_SIZE_MB);
+                if (cacheMB != null) {
+                    try {
+                        TabixCache.setMaxBytes(Long.parseLong(cacheMB) * 1024L * 1024L);
+                    } catch (NumberFormatException e) {
+                        throw new OperationFailedException("Could not parse " + TabixCache.CACHE_SIZE_MB + " from : " + cacheMB, this);
+                    }
                 }
-                if (n_threads > 24) { n_threads = 24; }
-                if (n_threads < 1) { n_threads = 1; } 
-
-                ExecutorService execPool = Executors.newFixedThreadPool(n_threads);
-                    
-                List<Future<Integer>> futs = new ArrayList();
+                
+                int chunkSize = DEFAULT_CHUNK_SIZE;
+                String chunkStr = this.getAttribute(CHUNK_SIZE);
+                if (chunkStr != null) {
+                    try {
+                        chunkSize = Integer.parseInt(chunkStr);
+                    } catch (NumberFormatException e) {
+                        throw new OperationFailedException("Could not parse " + CHUNK_SIZE + " from : " + chunkStr, this);
+                    }
+                    if (chunkSize < 1) { chunkSize = 1; }
+                }
+                
+                List<Chunk> chunks = new ArrayList<Chunk>();
                 for (String contig : variants.getContigs()) {
                         List<VariantRec> contigVars = variants.getVariantsForContig(contig);
-
-                        if (contigVars.size() <= 0) { continue; }
-
-                        TabixReader reader;
-                        try
-                        {
-                               reader = new TabixReader(getPathToTabixedFile());
-                        } catch (IOException e) {
-                                throw new IllegalArgumentException("Error opening " + getPathToTabixedFile() + " errror : " + e.getMessage()); 
+                        for(int i=0; i<contigVars.size(); i+=chunkSize) {
+                                chunks.add(new Chunk(contigVars.subList(i, Math.min(contigVars.size(), i+chunkSize))));
                         }
-                        TabixCallable callable = new TabixCallable(contigVars, reader);
-                      
-                        Future<Integer> fut = execPool.submit(callable);
-                        futs.add(fut);
                 }
-                    
-                for (Future<Integer> fut : futs) {
-                        try {
-                                varsAnnotated += ((Integer)fut.get()).intValue();
-                        } catch (InterruptedException ierr) {
-                                System.out.println("Interrupted exception:");
-                                ierr.printStackTrace();
-                                throw new OperationFailedException(ierr.toString(), this);
-                        } catch (ExecutionException err) {
-                                System.out.println("Exeuction exception:");
-                                err.printStackTrace();
-                                throw new OperationFailedException(err.toString(), this);
-                        }
+                if (chunks.isEmpty()) {
+                        return;
                 }
                     
-                execPool.shutdown();
+                ConcurrentHashMap<Thread, TabixReader> readers = new ConcurrentHashMap<Thread, TabixReader>();
+                AtomicInteger varsAnnotated = new AtomicInteger();
+                //Annotators driven outside of a pipeline have no shared work pool, so use the common one
+                ForkJoinPool workPool = owner == null ? ForkJoinPool.commonPool() : owner.getWorkPool();
                 try {
-                        if (!execPool.awaitTermination(1L, TimeUnit.SECONDS)) {
-                                execPool.shutdownNow();
+                        workPool.invoke(new ChunkTask(chunks, 0, chunks.size(), readers, varsAnnotated));
+                } catch (ChunkFailedException ex) {
+                        throw ex.cause;
+                } catch (RuntimeException ex) {
+                        ex.printStackTrace();
+                        throw new OperationFailedException(ex.toString(), this);
+                } finally {
+                        for(TabixReader reader : readers.values()) {
+                                reader.close();
                         }
-                } catch (InterruptedException ie) {
-                        execPool.shutdownNow();
                 }
-                    
+
+                Logger.getLogger(Pipeline.primaryLoggerName).info(getObjectLabel() + " annotated " + varsAnnotated.get() + " variants in " + chunks.size() + " chunks on " + readers.size() + " threads, tabix cache " + TabixCache.getStatsSummary());
         }
 
 }
@@ -697,6 +697,14 @@ public class DBNSFPAnnotator extends AbstractTabixAnnotator {
     }
 
 
+    /**
+     * Records aren't in VCF format, and are looked up with a custom query below
+     */
+    @Override
+    protected boolean supportsSweep() {
+        return false;
+    }
+
     /**
      * Overrides the abstractTabixAnnotator method because the database is not in standard VCF format.
      * 
@@ -254,5 +254,13 @@ public class SVMDamage extends Annotator {
 	public static final double MA_DEFAULT = 0.5; // Used when MT values are missing
 	public static final double LRT_DEFAULT = 0.5; // Used when MT values are missing
 	public static final double SLR_DEFAULT = 0.0; // Used when MT values are missing
-	
+
+	/**
+	 * Not streamable, performOperation() is overridden and reads the whole pool
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
@@ -96,6 +96,14 @@ public class ScSNVAnnotate extends AbstractTabixAnnotator {
 		return true;
 	}
 	
+	/**
+	 * Columns aren't laid out as in a VCF (ref and alt are the 3rd and 4th), so use one query per variant 
+	 */
+	@Override
+	protected boolean supportsSweep() {
+		return false;
+	}
+	
 	/**
 	 * Parses variants from the given VCF line (appropriately handling multiple alts) and compare each variant tot he
 	 * 'varToAnnotate'. If a perfect match (including both chr, pos, ref, and alt) 
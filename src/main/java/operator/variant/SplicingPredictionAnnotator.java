@@ -256,5 +256,14 @@ public class SplicingPredictionAnnotator extends Annotator {
 		if (! spliceBEDFile.exists()) {
 			throw new IllegalArgumentException("No BED file found on splicingPrediction path: " + SpliceScriptPath + "/spliceRegions.bed");
 		}
-	}		
+	}
+
+	/**
+	 * Not streamable, prepare() writes the whole pool to a file for the external predictor
+	 */
+	@Override
+	public boolean isStreamable() {
+		return false;
+	}
+
 }
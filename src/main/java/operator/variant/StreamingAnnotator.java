@@ -0,0 +1,245 @@
+package operator.variant;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import json.JSONException;
+import operator.OperationFailedException;
+import operator.Operator;
+import operator.annovar.Annotator;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import pipeline.Pipeline;
+import pipeline.PipelineObject;
+import buffer.variant.VariantLineReader;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+
+/**
+ * Runs a chain of annotators and a writer over a variant pool in fixed-size batches, so that memory
+ * use is bounded by the batch size instead of the size of the input. The children are a VariantPool
+ * (with an input VCF or CSV file), any number of Annotators and optionally a VariantPoolWriter, all of which
+ * must refer to the same pool. For instance:
+ *
+ *  <StreamingAnnotator class="operator.variant.StreamingAnnotator" batch.size="50000">
+ *  	<variantPool class="buffer.variant.VariantPool"> <inputVCF /> </variantPool>
+ *  	<popFreqAnnotator class="operator.variant.TGPTabixAnnotator"> <variantPool /> </popFreqAnnotator>
+ *  	<varWriter class="operator.variant.VariantPoolToFile"> <variantPool /> <outputCSV /> </varWriter>
+ *  </StreamingAnnotator>
+ *
+ * The pool, annotators and writer should be declared inside this element (as with ParallelOperator),
+ * not as top-level operators, otherwise the pipeline will run them again on its own.
+ * For each batch the pool is cleared, refilled with the next batch.size records from the input,
+ * and passed through each annotator and then the writer. Each annotator's prepare() and cleanup() are still only
+ * called once. If any annotator or the writer can't work a batch at a time (see Annotator.isStreamable()),
+ * this falls back to reading the whole pool and running every child in order, exactly as if they were
+ * top-level operators.
+ *
+ * @author brendan
+ *
+ */
+public class StreamingAnnotator extends Operator {
+
+	public static final String BATCH_SIZE = "batch.size";
+	public static final int DEFAULT_BATCH_SIZE = 50000;
+
+	private VariantPool pool = null;
+	private List<Annotator> annotators = new ArrayList<Annotator>();
+	private Operator writer = null;
+
+	@Override
+	public void performOperation() throws OperationFailedException {
+		Logger logger = Logger.getLogger(Pipeline.primaryLoggerName);
+
+		String nonStreamable = findNonStreamable();
+		if (nonStreamable != null) {
+			logger.warning("StreamingAnnotator " + getObjectLabel() + " cannot stream because " + nonStreamable + " is not streamable, reading all variants instead");
+			materializeAndRun();
+			return;
+		}
+
+		int batchSize = DEFAULT_BATCH_SIZE;
+		String batchStr = getAttribute(BATCH_SIZE);
+		if (batchStr != null) {
+			try {
+				batchSize = Integer.parseInt(batchStr);
+			}
+			catch (NumberFormatException nfe) {
+				throw new OperationFailedException("Could not parse batch size from : " + batchStr, this);
+			}
+			if (batchSize < 1) {
+				throw new OperationFailedException("Batch size must be at least 1, found " + batchSize, this);
+			}
+		}
+
+		VariantLineReader reader;
+		try {
+			reader = pool.openVariantReader();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new OperationFailedException("Could not open variant input for pool " + pool.getObjectLabel() + ": " + e.getLocalizedMessage(), this);
+		}
+		if (reader == null) {
+			throw new OperationFailedException("Variant pool " + pool.getObjectLabel() + " has no input variants to stream", this);
+		}
+
+		VariantPoolWriter varWriter = (VariantPoolWriter)writer;
+		long total = 0;
+		int batches = 0;
+		try {
+			for(Annotator annotator : annotators) {
+				annotator.startStreaming();
+			}
+			if (varWriter != null) {
+				varWriter.openStream();
+			}
+
+			//Same read pattern as VariantPool.importFromVariantReader, since some readers aren't
+			//positioned on the first record until advanceLine() has been called once
+			boolean more = true;
+			while (more) {
+				pool.clear();
+				int count = 0;
+				while (more && count < batchSize) {
+					VariantRec rec = reader.toVariantRec();
+					if (rec == null) {
+						if (reader.getCurrentLine() != null && reader.getCurrentLine().length()>0)
+							System.err.println("Warning, could not import variant from line: " + reader.getCurrentLine() );
+					}
+					else {
+						pool.addRecordNoSort(rec);
+						count++;
+					}
+					more = reader.advanceLine();
+				}
+
+				if (count == 0) {
+					break;
+				}
+				pool.sortAllContigs();
+
+				for(Annotator annotator : annotators) {
+					annotator.annotateBatch();
+				}
+				if (varWriter != null) {
+					varWriter.writeBatch();
+				}
+
+				total += count;
+				batches++;
+				logger.info("StreamingAnnotator " + getObjectLabel() + " has processed " + total + " variants in " + batches + " batches");
+			}
+
+			for(Annotator annotator : annotators) {
+				annotator.finishStreaming();
+			}
+			if (varWriter != null) {
+				varWriter.closeStream();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new OperationFailedException("IO error reading variants: " + e.getLocalizedMessage(), this);
+		}
+		finally {
+			//If anything failed part way through, close the output (without a footer) and the input
+			if (varWriter != null) {
+				varWriter.abortStream();
+			}
+			if (reader instanceof Closeable) {
+				try {
+					((Closeable)reader).close();
+				} catch (IOException e) {
+					logger.warning("Could not close variant input for pool " + pool.getObjectLabel() + ": " + e.getLocalizedMessage());
+				}
+			}
+			pool.clear();
+		}
+
+		logger.info("StreamingAnnotator " + getObjectLabel() + " annotated " + total + " variants in " + batches + " batches of at most " + batchSize);
+	}
+
+	/**
+	 * Returns the label of the first child that can't be run a batch at a time, or null if all
+	 * children are streamable
+	 * @return
+	 */
+	private String findNonStreamable() {
+		for(Annotator annotator : annotators) {
+			if (! annotator.isStreamable()) {
+				return annotator.getObjectLabel();
+			}
+		}
+		if (writer != null) {
+			if (! (writer instanceof VariantPoolWriter) || !((VariantPoolWriter)writer).isStreamable()) {
+				return writer.getObjectLabel();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Fallback for non-streamable children: read the whole pool then run each child in order
+	 * @throws OperationFailedException
+	 */
+	private void materializeAndRun() throws OperationFailedException {
+		List<Operator> ops = new ArrayList<Operator>();
+		ops.add(pool);
+		ops.addAll(annotators);
+		if (writer != null) {
+			ops.add(writer);
+		}
+		
+		for(Operator op : ops) {
+			try {
+				op.operate();
+			} catch (JSONException e) {
+				e.printStackTrace();
+				throw new OperationFailedException("JSON error in " + op.getObjectLabel() + ": " + e.getLocalizedMessage(), this);
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new OperationFailedException("IO error in " + op.getObjectLabel() + ": " + e.getLocalizedMessage(), this);
+			}
+		}
+	}
+
+	@Override
+	public void initialize(NodeList children) {
+		for(int i=0; i<children.getLength(); i++) {
+			Node node = children.item(i);
+			if (node.getNodeType() == Node.ELEMENT_NODE) {
+				PipelineObject obj = getObjectFromHandler(node.getNodeName());
+				if (obj instanceof VariantPool) {
+					pool = (VariantPool)obj;
+				}
+				else if (obj instanceof Annotator) {
+					annotators.add( (Annotator)obj );
+				}
+				else if (obj instanceof Operator) {
+					if (writer != null) {
+						throw new IllegalArgumentException("StreamingAnnotator " + getObjectLabel() + " found more than one writer");
+					}
+					writer = (Operator)obj;
+				}
+				else {
+					throw new IllegalArgumentException("Found non-Operator object " + node.getNodeName() + " in StreamingAnnotator " + getObjectLabel());
+				}
+			}
+		}
+
+		if (pool == null) {
+			throw new IllegalArgumentException("No variant pool specified for StreamingAnnotator " + getObjectLabel());
+		}
+
+		for(Annotator annotator : annotators) {
+			if (annotator.getVariants() != pool) {
+				throw new IllegalArgumentException("Annotator " + annotator.getObjectLabel() + " does not annotate the variant pool given to StreamingAnnotator " + getObjectLabel());
+			}
+		}
+	}
+
+}
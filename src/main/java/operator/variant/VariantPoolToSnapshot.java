@@ -0,0 +1,73 @@
+package operator.variant;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import operator.OperationFailedException;
+import operator.Operator;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import pipeline.Pipeline;
+import pipeline.PipelineObject;
+import buffer.VariantSnapshotFile;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantSnapshot;
+
+/**
+ * Writes a fully annotated variant pool to a binary VariantSnapshot, so that later runs can reload
+ * it (by giving the snapshot file to a VariantPool, or with a VariantSnapshotReader) without re-parsing
+ * and re-annotating. For instance:
+ * 
+ *  <SnapshotWriter class="operator.variant.VariantPoolToSnapshot">
+ *  	<variantPool />
+ *  	<snapshot class="buffer.VariantSnapshotFile" filename="annotated.vsnap" />
+ *  </SnapshotWriter>
+ *  
+ * @author brendan
+ *
+ */
+public class VariantPoolToSnapshot extends Operator {
+
+	protected VariantPool variants = null;
+	protected VariantSnapshotFile outputFile = null;
+	
+	@Override
+	public void performOperation() throws OperationFailedException {
+		Logger logger = Logger.getLogger(Pipeline.primaryLoggerName);
+		logger.info("Writing snapshot of " + variants.size() + " variants to " + outputFile.getAbsolutePath());
+		try {
+			VariantSnapshot.write(variants, outputFile.getFile());
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new OperationFailedException("Error writing variant snapshot to " + outputFile.getAbsolutePath() + ": " + e.getLocalizedMessage(), this);
+		}
+	}
+
+	@Override
+	public void initialize(NodeList children) {
+		for(int i=0; i<children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				Element el = (Element)child;
+				PipelineObject obj = getObjectFromHandler(el.getNodeName());
+				if (obj instanceof VariantPool) {
+					variants = (VariantPool)obj;
+				}
+				if (obj instanceof VariantSnapshotFile) {
+					outputFile = (VariantSnapshotFile)obj;
+				}
+			}
+		}
+		
+		if (variants == null) {
+			throw new IllegalArgumentException("Variant pool not specified");
+		}
+		if (outputFile == null) {
+			throw new IllegalArgumentException("Output snapshot file not specified");
+		}
+	}
+
+}
@@ -1,15 +1,17 @@
 package operator.variant;
 
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import operator.OperationFailedException;
@@ -21,6 +23,7 @@ import org.w3c.dom.NodeList;
 
 import pipeline.Pipeline;
 import pipeline.PipelineObject;
+import util.CompressGZIP;
 import buffer.CSVFile;
 import buffer.GeneList;
 import buffer.variant.VariantPool;
@@ -40,6 +43,9 @@ public abstract class VariantPoolWriter extends Operator {
 	protected CSVFile outputFile = null;
 	protected GeneList genes = null; //Optional parameter
 	private Comparator<VariantRec> recSorter = null;
+	private PrintStream streamOut = null; //Non-null only between openStream() and closeStream()
+	private int streamedCount = 0;
+	private final Map<String, Integer> streamedContigs = new HashMap<String, Integer>(); //Order in which contigs were first streamed
 	
 	/**
 	 * Write a suitable header for the output file
@@ -93,7 +99,7 @@ public abstract class VariantPoolWriter extends Operator {
 			PrintStream outStream = System.out;
 			if (outputFile != null) {
 				logger.info("VariantWriter is writing to file : " + outputFile.getAbsolutePath());
-				outStream = new PrintStream(new FileOutputStream( outputFile.getFile()));
+				outStream = new PrintStream(openOutput());
 				
 			}
 			
@@ -139,6 +145,126 @@ public abstract class VariantPoolWriter extends Operator {
 		
 	}
 
+	/**
+	 * Open the output file for writing, compressing it with the pipeline's threads if its name ends with .gz
+	 * @return
+	 * @throws IOException
+	 */
+	protected OutputStream openOutput() throws IOException {
+		int threads = getPipelineOwner() == null ? CompressGZIP.getDefaultThreads() : getPipelineOwner().getThreadCount();
+		return CompressGZIP.openOutput(outputFile.getFile(), threads);
+	}
+
+	/**
+	 * True if this writer can write its output one batch of variants at a time (see StreamingAnnotator).
+	 * Writers with a comparator need to see all variants before writing any, so they can't. 
+	 * @return
+	 */
+	public boolean isStreamable() {
+		return recSorter == null;
+	}
+	
+	/**
+	 * Open the output and write the header, prior to the first call to writeBatch()
+	 * @throws OperationFailedException
+	 */
+	public void openStream() throws OperationFailedException {
+		streamedCount = 0;
+		streamedContigs.clear();
+		streamOut = System.out;
+		try {
+			if (outputFile != null) {
+				Logger.getLogger(Pipeline.primaryLoggerName).info("VariantWriter is streaming to file : " + outputFile.getAbsolutePath());
+				streamOut = new PrintStream(openOutput());
+			}
+			writeHeader(streamOut);
+		} catch (FileNotFoundException e) {
+			throw new OperationFailedException("Could not write to file : " + outputFile.getFile().getAbsolutePath(), this);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new OperationFailedException("Error writing header: " +e.getLocalizedMessage(), this);
+		}
+	}
+	
+	/**
+	 * Write all variants currently in the pool. Contigs are written in the order they first appeared in the
+	 * stream, so if each contig's variants are contiguous in the input they are written in input order. Unlike
+	 * performOperation(), contigs can't be sorted by name without seeing all of the variants first
+	 * @throws OperationFailedException
+	 */
+	public void writeBatch() throws OperationFailedException {
+		if (streamOut == null) {
+			throw new OperationFailedException("Stream not opened, cannot write batch", this);
+		}
+		try {
+			String[] contigs = variants.getContigs().toArray(new String[]{});
+			for(String contig : contigs) {
+				if (! streamedContigs.containsKey(contig)) {
+					streamedContigs.put(contig, streamedContigs.size());
+				}
+			}
+			//Only matters if a contig seen in an earlier batch turns up again after others
+			Arrays.sort(contigs, new Comparator<String>() {
+				@Override
+				public int compare(String a, String b) {
+					return streamedContigs.get(a).compareTo(streamedContigs.get(b));
+				}
+			});
+			for(String contig : contigs) {
+				for(VariantRec rec : variants.getVariantsForContig(contig)) {
+					writeVariant(rec, streamOut);
+					streamedCount++;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new OperationFailedException("Error writing variant: " +e.getLocalizedMessage(), this);
+		}
+	}
+	
+	/**
+	 * Close the output stream without writing the footer, after streaming has failed. Does nothing
+	 * if the stream isn't open
+	 */
+	public void abortStream() {
+		if (streamOut == null) {
+			return;
+		}
+		if (streamOut != System.out) {
+			streamOut.close();
+		}
+		else {
+			streamOut.flush();
+		}
+		streamOut = null;
+	}
+	
+	/**
+	 * Write the footer and close the output stream
+	 * @throws OperationFailedException
+	 */
+	public void closeStream() throws OperationFailedException {
+		if (streamOut == null) {
+			return;
+		}
+		try {
+			writeFooter(streamOut);
+			Logger.getLogger(Pipeline.primaryLoggerName).info("VariantWriter streamed " + streamedCount + " variants to output.");
+			if (streamOut != System.out) {
+				streamOut.close();
+			}
+			else {
+				streamOut.flush();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new OperationFailedException("Error writing footer: " +e.getLocalizedMessage(), this);
+		}
+		finally {
+			streamOut = null;
+		}
+	}
+
 	@Override
 	public void initialize(NodeList children) {
 		for(int i=0; i<children.getLength(); i++) {
@@ -0,0 +1,418 @@
+package pipeline;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import json.JSONException;
+import operator.OperationFailedException;
+import operator.Operator;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import buffer.FileBuffer;
+
+/**
+ * Runs the top-level operators of a pipeline as a dependency graph instead of strictly in document order.
+ * Dependencies are inferred from the objects each operator's element refers to: objects listed in an
+ * <input> block are read, objects listed in an <output> block are written, and anything else an operator
+ * refers to (including itself) is assumed to be both read and written. An operator depends on every earlier
+ * operator it conflicts with (read-after-write, write-after-read or write-after-write), so operators that
+ * conflict always run in document order. File buffers that point at the same file are treated as the same object.
+ *
+ * Operators whose dependencies have all completed are run on a pool of pipeline.getThreadCount() threads,
+ * as long as their resource hints fit in what's left of the budget. The hints are given by the 'threads'
+ * attribute (number of threads the operator uses, default 1) and the 'memory.mb' attribute (default 0),
+ * the memory budget comes from the scheduler.memory.mb property and defaults to the JVM's max heap.
+ * Ready operators are started in document order, but a later operator that fits may start before an
+ * earlier one that doesn't. An operator whose hints exceed the budget runs by itself.
+ *
+ * Dependencies that can't be seen in the XML can be given explicitly with a 'depends.on' attribute listing
+ * the labels of earlier operators, or by marking an operator exclusive="true", which makes it wait for
+ * all earlier operators and all later operators wait for it.
+ *
+ * If any operator fails no new operators are started, those already running are allowed to finish, and
+ * the first failure is rethrown.
+ * @author brendan
+ *
+ */
+public class OperatorScheduler {
+
+	//Value of the scheduler property that selects this scheduler
+	public static final String DAG = "dag";
+
+	public static final String MEMORY_BUDGET = "scheduler.memory.mb";
+	public static final String MEMORY_ATTR = "memory.mb";
+	public static final String DEPENDS_ON = "depends.on";
+	public static final String EXCLUSIVE = "exclusive";
+
+	private static final int READ = 1;
+	private static final int WRITE = 2;
+	private static final int TOUCH = READ | WRITE;
+
+	private final Pipeline pipeline;
+	private final ObjectHandler handler;
+	private final List<Operator> operators;
+	private final Map<Operator, Integer> order = new HashMap<Operator, Integer>();
+	private final Map<Operator, Set<Operator>> dependencies = new HashMap<Operator, Set<Operator>>();
+	private final Map<Operator, List<Operator>> dependents = new HashMap<Operator, List<Operator>>();
+	private final int threadBudget;
+	private final long memoryBudget;
+
+	private Logger logger = Logger.getLogger(Pipeline.primaryLoggerName);
+
+	public OperatorScheduler(Pipeline pipeline) {
+		this.pipeline = pipeline;
+		this.handler = pipeline.getObjectHandler();
+		this.operators = handler.getOperatorList();
+		this.threadBudget = Math.max(1, pipeline.getThreadCount());
+
+		Object memProp = pipeline.getProperty(MEMORY_BUDGET);
+		if (memProp != null) {
+			memoryBudget = parseMemoryBudget(memProp.toString());
+		}
+		else {
+			memoryBudget = Runtime.getRuntime().maxMemory() / (1024*1024);
+		}
+
+		buildGraph();
+	}
+
+	/**
+	 * Parse the memory budget in megabytes
+	 * @param value
+	 * @return
+	 * @throws IllegalArgumentException If the value is not a positive integer
+	 */
+	static long parseMemoryBudget(String value) {
+		long mb = 0;
+		try {
+			mb = Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException nfe) {
+			//Reported below
+		}
+		if (mb < 1) {
+			throw new IllegalArgumentException("Invalid value for " + MEMORY_BUDGET + " : '" + value + "', expected a positive number of megabytes");
+		}
+		return mb;
+	}
+
+	/**
+	 * Returns the operators that must complete before the given operator can begin
+	 * @param op
+	 * @return
+	 */
+	public Set<Operator> getDependencies(Operator op) {
+		return dependencies.get(op);
+	}
+
+	/**
+	 * Run all operators, returning when they have all completed or throwing the first error encountered
+	 * @throws OperationFailedException
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	public void execute() throws OperationFailedException, JSONException, IOException {
+		final LinkedBlockingQueue<Finished> done = new LinkedBlockingQueue<Finished>();
+		ExecutorService executor = Executors.newFixedThreadPool(threadBudget, new ThreadFactory() {
+			int count = 0;
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "operator-" + count);
+				count++;
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		Map<Operator, Integer> waitingOn = new HashMap<Operator, Integer>();
+		TreeMap<Integer, Operator> ready = new TreeMap<Integer, Operator>();
+		for(Operator op : operators) {
+			waitingOn.put(op, dependencies.get(op).size());
+			if (dependencies.get(op).isEmpty()) {
+				ready.put(order.get(op), op);
+			}
+		}
+
+		int running = 0;
+		int threadsInUse = 0;
+		long memoryInUse = 0;
+		Throwable failure = null;
+		try {
+			while(true) {
+				if (failure == null) {
+					Iterator<Operator> it = ready.values().iterator();
+					while(it.hasNext()) {
+						final Operator op = it.next();
+						int threads = getThreadHint(op);
+						long memory = getMemoryHint(op);
+						if (running == 0 || (threadsInUse + threads <= threadBudget && memoryInUse + memory <= memoryBudget)) {
+							it.remove();
+							running++;
+							threadsInUse += threads;
+							memoryInUse += memory;
+							executor.execute(new Runnable() {
+								@Override
+								public void run() {
+									Throwable error = null;
+									try {
+										pipeline.runOperator(op);
+									}
+									catch (Throwable t) {
+										error = t;
+									}
+									done.add(new Finished(op, error));
+								}
+							});
+						}
+					}
+				}
+
+				if (running == 0) {
+					break;
+				}
+
+				Finished fin;
+				try {
+					fin = done.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for operators to complete");
+				}
+				running--;
+				threadsInUse -= getThreadHint(fin.op);
+				memoryInUse -= getMemoryHint(fin.op);
+
+				if (fin.error != null) {
+					if (failure == null) {
+						failure = fin.error;
+					}
+					continue;
+				}
+
+				for(Operator next : dependents.get(fin.op)) {
+					int remaining = waitingOn.get(next) - 1;
+					waitingOn.put(next, remaining);
+					if (remaining == 0) {
+						ready.put(order.get(next), next);
+					}
+				}
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+
+		if (failure != null) {
+			if (failure instanceof OperationFailedException) {
+				throw (OperationFailedException)failure;
+			}
+			if (failure instanceof JSONException) {
+				throw (JSONException)failure;
+			}
+			if (failure instanceof IOException) {
+				throw (IOException)failure;
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException)failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error)failure;
+			}
+			throw new IOException("Operator failed: " + failure.getMessage(), failure);
+		}
+
+		if (! ready.isEmpty() || waitingOnAny(waitingOn)) {
+			//Can't happen since edges only point forward in document order, but don't claim success if it does
+			throw new IllegalStateException("Not all operators were run by the scheduler");
+		}
+	}
+
+	private static boolean waitingOnAny(Map<Operator, Integer> waitingOn) {
+		for(Integer count : waitingOn.values()) {
+			if (count > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Number of threads the given operator is expected to use, clamped to the thread budget
+	 */
+	private int getThreadHint(Operator op) {
+		int threads = parseHint(op, PipelineXMLConstants.THREADS_ATTR, 1);
+		return Math.max(1, Math.min(threads, threadBudget));
+	}
+
+	/**
+	 * Memory in MB the given operator is expected to use, clamped to the memory budget
+	 */
+	private long getMemoryHint(Operator op) {
+		long mem = parseHint(op, MEMORY_ATTR, 0);
+		return Math.max(0, Math.min(mem, memoryBudget));
+	}
+
+	private static int parseHint(Operator op, String key, int defaultVal) {
+		String attr = op.getAttribute(key);
+		if (attr == null) {
+			return defaultVal;
+		}
+		try {
+			return Integer.parseInt(attr.trim());
+		}
+		catch (NumberFormatException nfe) {
+			return defaultVal;
+		}
+	}
+
+	/**
+	 * Compute the dependencies of each operator from the objects it reads and writes
+	 */
+	private void buildGraph() {
+		Map<String, Element> elements = new HashMap<String, Element>();
+		NodeList children = handler.doc.getDocumentElement().getChildNodes();
+		for(int i=0; i<children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				elements.put(child.getNodeName(), (Element)child);
+			}
+		}
+
+		List<Map<String, Integer>> accesses = new ArrayList<Map<String, Integer>>();
+		for(int i=0; i<operators.size(); i++) {
+			Operator op = operators.get(i);
+			order.put(op, i);
+			dependents.put(op, new ArrayList<Operator>());
+
+			Map<String, Integer> access = new HashMap<String, Integer>();
+			addAccess(access, op.getObjectLabel(), TOUCH);
+			Element el = elements.get(op.getObjectLabel());
+			if (el != null) {
+				collectReferences(el, TOUCH, access);
+			}
+			accesses.add(access);
+
+			Set<String> explicit = new HashSet<String>();
+			String dependsAttr = op.getAttribute(DEPENDS_ON);
+			if (dependsAttr != null) {
+				for(String label : dependsAttr.split(",")) {
+					if (label.trim().length() > 0) {
+						explicit.add(label.trim());
+					}
+				}
+			}
+
+			Set<Operator> deps = new LinkedHashSet<Operator>();
+			for(int j=0; j<i; j++) {
+				Operator prev = operators.get(j);
+				if (isExclusive(op)
+						|| isExclusive(prev)
+						|| explicit.remove(prev.getObjectLabel())
+						|| conflicts(accesses.get(j), access)) {
+					deps.add(prev);
+					dependents.get(prev).add(op);
+				}
+			}
+			for(String label : explicit) {
+				logger.warning("Operator " + op.getObjectLabel() + " depends on " + label + ", but that is not an earlier operator, ignoring it");
+			}
+			dependencies.put(op, deps);
+			logger.info("Operator " + op.getObjectLabel() + " depends on " + labels(deps));
+		}
+	}
+
+	private static String labels(Set<Operator> ops) {
+		if (ops.isEmpty()) {
+			return "nothing";
+		}
+		StringBuilder str = new StringBuilder();
+		for(Operator op : ops) {
+			if (str.length() > 0) {
+				str.append(", ");
+			}
+			str.append(op.getObjectLabel());
+		}
+		return str.toString();
+	}
+
+	private static boolean isExclusive(Operator op) {
+		String attr = op.getAttribute(EXCLUSIVE);
+		return attr != null && Boolean.parseBoolean(attr.trim());
+	}
+
+	/**
+	 * True if an operator with the second access set must wait for an earlier one with the first
+	 */
+	private static boolean conflicts(Map<String, Integer> earlier, Map<String, Integer> later) {
+		for(Map.Entry<String, Integer> entry : later.entrySet()) {
+			Integer prev = earlier.get(entry.getKey());
+			if (prev != null && ((prev | entry.getValue()) & WRITE) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Record all objects referred to by the descendants of the given element. Objects inside
+	 * an input block are read, inside an output block are written, anything else gets the mode of the parent
+	 */
+	private void collectReferences(Element el, int mode, Map<String, Integer> access) {
+		NodeList children = el.getChildNodes();
+		for(int i=0; i<children.getLength(); i++) {
+			Node child = children.item(i);
+			if (child.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			String name = child.getNodeName();
+			int childMode = mode;
+			if (name.equals("input")) {
+				childMode = READ;
+			}
+			if (name.equals("output")) {
+				childMode = WRITE;
+			}
+			addAccess(access, name, childMode);
+			collectReferences((Element)child, childMode, access);
+		}
+	}
+
+	private void addAccess(Map<String, Integer> access, String label, int mode) {
+		PipelineObject obj = handler.getObjectForLabel(label);
+		if (obj == null) {
+			return;
+		}
+		String key = label;
+		if (obj instanceof FileBuffer && ((FileBuffer)obj).getFile() != null) {
+			key = "file:" + ((FileBuffer)obj).getFile().getAbsolutePath();
+		}
+		Integer prev = access.get(key);
+		access.put(key, prev == null ? mode : (prev | mode));
+	}
+
+	private static class Finished {
+		final Operator op;
+		final Throwable error;
+
+		Finished(Operator op, Throwable error) {
+			this.op = op;
+			this.error = error;
+		}
+	}
+}
@@ -12,6 +12,7 @@ import java.util.Date;
 import java.util.InvalidPropertiesFormatException;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -35,6 +36,7 @@ import operator.hook.OperatorHook;
 import operator.hook.OperatorStartHook;
 import plugin.PluginLoader;
 import plugin.PluginLoaderException;
+import util.CompressGZIP;
 import util.OperatorTimeSummary;
 import util.text.ElapsedTimeFormatter;
 import util.text.LoggingOutputStream;
@@ -74,6 +76,16 @@ public class Pipeline {
 	//Default number of threads to use
 	protected int threadCount = 8;
 	
+	//Property giving the parallelism of the shared work pool, defaults to the thread count
+	public static final String WORK_POOL_THREADS = "work.pool.threads";
+	
+	//Property selecting how operators are run, "dag" runs independent operators concurrently (see OperatorScheduler),
+	//anything else runs them one at a time in document order
+	public static final String SCHEDULER = "scheduler";
+	
+	//Work-stealing pool shared by all operators, created when first requested
+	private ForkJoinPool workPool = null;
+	
 	
 	//Right now DEBUG just emits all log messages to std out
 	public static final boolean DEBUG = false;
@@ -155,6 +167,58 @@ public class Pipeline {
 		return threadCount;
 	}
 	
+	/**
+	 * Obtain the work-stealing pool shared by all operators in this pipeline, creating it if necessary. Operators
+	 * that split their work into many small tasks should submit them here rather than building their own
+	 * thread pools, so idle threads can pick up work from whichever operator has it. The parallelism is given
+	 * by the work.pool.threads property, or the thread count if that's not set. The pool is shut down when 
+	 * execute() finishes. 
+	 * @return
+	 */
+	public synchronized ForkJoinPool getWorkPool() {
+		if (workPool == null) {
+			int parallelism = threadCount;
+			String poolThreads = props == null ? null : props.getProperty(WORK_POOL_THREADS);
+			if (poolThreads != null) {
+				parallelism = parseThreadCount(WORK_POOL_THREADS, poolThreads);
+			}
+			primaryLogger.info("Creating shared work pool with parallelism " + parallelism);
+			workPool = new ForkJoinPool(parallelism);
+		}
+		return workPool;
+	}
+	
+	/**
+	 * Parse a thread count given by a property or command line option
+	 * @param key Name of the setting, used in the error message
+	 * @param value
+	 * @return
+	 * @throws IllegalArgumentException If the value is not a positive integer
+	 */
+	public static int parseThreadCount(String key, String value) {
+		int threads = 0;
+		try {
+			threads = Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException nfe) {
+			//Reported below
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid value for " + key + " : '" + value + "', expected a positive integer");
+		}
+		return threads;
+	}
+	
+	/**
+	 * Shut down the shared work pool, if it has been created. Tasks already submitted will still run.
+	 */
+	public synchronized void shutdownWorkPool() {
+		if (workPool != null) {
+			workPool.shutdown();
+			workPool = null;
+		}
+	}
+	
 	/**
 	 * A reference to the object handler, which marshals all of the PipelineObjects created
 	 * from the input file and provides references to them
@@ -271,7 +335,7 @@ public class Pipeline {
 		//Parse thread pool size from properties
 		String threadAttr = props.getProperty(PipelineXMLConstants.THREADS_ATTR);
 		if (threadAttr != null) {
-			int threads = Integer.parseInt( threadAttr );
+			int threads = parseThreadCount(PipelineXMLConstants.THREADS_ATTR, threadAttr);
 			this.threadCount = threads;
 			primaryLogger.info("Setting default thread count to : " + threadCount);
 		}
@@ -478,15 +542,55 @@ public class Pipeline {
 		
 		primaryLogger.info("Executing pipeline");
 		executeStarted = true;
+		CompressGZIP.setDefaultThreads(threadCount);
 		
-		for(Operator op : handler.getOperatorList()) {
+		if (OperatorScheduler.DAG.equalsIgnoreCase(props == null ? null : props.getProperty(SCHEDULER))) {
+			primaryLogger.info("Scheduling operators by dependency with up to " + threadCount + " threads");
 			try {
-				currentOperator = op;
-				Date opStart = new Date();
-				fireOperatorBeginning(op);
-				op.setAttribute(START_TIME, "" + opStart.getTime());
-				// Add the hooks to each operator
-				// NOTE: OperatorHook.initHook must be called
+				new OperatorScheduler(this).execute();
+			}
+			finally {
+				shutdownWorkPool();
+			}
+		}
+		else {
+			for(Operator op : handler.getOperatorList()) {
+				try {
+					runOperator(op);
+				} catch (OperationFailedException e) {
+					//We want to throw it again so other objects will be notified of this event besides
+					//through the weak 'fireMessage' avenue
+					shutdownWorkPool();
+					throw e;
+				}
+			}
+		}
+		
+		shutdownWorkPool();
+		executeCompleted = true;
+		firePipelineFinished();
+		long endTime = System.currentTimeMillis();
+		
+		primaryLogger.info("Finished executing all operators, pipeline is done. \n Total elapsed time " + ElapsedTimeFormatter.getElapsedTime(startTime.getTime(), endTime ));
+	}
+	
+	/**
+	 * Run a single operator, attaching hooks, recording start and end times and notifying listeners.
+	 * Listeners are also told about OperationFailedExceptions, which are then rethrown 
+	 * @param op
+	 * @throws OperationFailedException
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	void runOperator(Operator op) throws OperationFailedException, JSONException, IOException {
+		try {
+			currentOperator = op;
+			Date opStart = new Date();
+			fireOperatorBeginning(op);
+			op.setAttribute(START_TIME, "" + opStart.getTime());
+			// Add the hooks to each operator
+			// NOTE: OperatorHook.initHook must be called
+			synchronized(handler) {
 				for(OperatorHook osh : handler.getHookList()){
 					osh.initHook(op);
 					if(osh instanceof OperatorStartHook){
@@ -496,30 +600,21 @@ public class Pipeline {
 						op.addEndHook((OperatorEndHook)osh);
 					}
 				}
-				primaryLogger.info("Executing operator : " + op.getObjectLabel() + " class: " + op.getClass());
-				op.operate();
-				System.err.flush(); //Make sure info is written to logger if necessary
-				Date end = new Date();
-				primaryLogger.info("Operator : " + op.getObjectLabel() + " class: " + op.getClass() + " has completed, operator elapsed time: " + ElapsedTimeFormatter.getElapsedTime(opStart.getTime(), end.getTime()) + "\n Pipeline elapsed time: " + ElapsedTimeFormatter.getElapsedTime(startTime.getTime(), end.getTime()));
-				fireOperatorCompleted(op);
-				op.setAttribute(END_TIME, "" + end.getTime());
-			} catch (OperationFailedException e) {
-				fireOperatorError(e);
-				//fireMessage("Operator failed : " + e);
-				e.printStackTrace();
-				primaryLogger.severe("ERROR : Operator : " + op.getObjectLabel() + " (class " + op.getClass() + ") failed \n Cause : " + e.getMessage());
-				
-				//We want to throw it again so other objects will be notified of this event besides
-				//through the weak 'fireMessage' avenue
-				throw e;
 			}
+			primaryLogger.info("Executing operator : " + op.getObjectLabel() + " class: " + op.getClass());
+			op.operate();
+			System.err.flush(); //Make sure info is written to logger if necessary
+			Date end = new Date();
+			primaryLogger.info("Operator : " + op.getObjectLabel() + " class: " + op.getClass() + " has completed, operator elapsed time: " + ElapsedTimeFormatter.getElapsedTime(opStart.getTime(), end.getTime()) + "\n Pipeline elapsed time: " + ElapsedTimeFormatter.getElapsedTime(startTime.getTime(), end.getTime()));
+			fireOperatorCompleted(op);
+			op.setAttribute(END_TIME, "" + end.getTime());
+		} catch (OperationFailedException e) {
+			fireOperatorError(e);
+			//fireMessage("Operator failed : " + e);
+			e.printStackTrace();
+			primaryLogger.severe("ERROR : Operator : " + op.getObjectLabel() + " (class " + op.getClass() + ") failed \n Cause : " + e.getMessage());
+			throw e;
 		}
-		
-		executeCompleted = true;
-		firePipelineFinished();
-		long endTime = System.currentTimeMillis();
-		
-		primaryLogger.info("Finished executing all operators, pipeline is done. \n Total elapsed time " + ElapsedTimeFormatter.getElapsedTime(startTime.getTime(), endTime ));
 	}
 	
 	/**
@@ -576,8 +671,10 @@ public class Pipeline {
 	 * @param op
 	 */
 	public void fireOperatorCompleted(Operator op) {
-		for(PipelineListener listener : listeners) {
-			listener.operatorCompleted(op);
+		synchronized(listeners) {
+			for(PipelineListener listener : listeners) {
+				listener.operatorCompleted(op);
+			}
 		}
 	}
 	
@@ -586,8 +683,10 @@ public class Pipeline {
 	 * @param op
 	 */
 	public void fireOperatorBeginning(Operator op) {
-		for(PipelineListener listener : listeners) {
-			listener.operatorBeginning(op);
+		synchronized(listeners) {
+			for(PipelineListener listener : listeners) {
+				listener.operatorBeginning(op);
+			}
 		}
 	}
 	
@@ -596,8 +695,10 @@ public class Pipeline {
 	 * @param op
 	 */
 	public void fireOperatorError(OperationFailedException op) {
-		for(PipelineListener listener : listeners) {
-			listener.errorEncountered(op);
+		synchronized(listeners) {
+			for(PipelineListener listener : listeners) {
+				listener.errorEncountered(op);
+			}
 		}
 	}
 	
@@ -605,8 +706,10 @@ public class Pipeline {
 	 * Notify all listeners that all operators have completed and the pipeline has finished
 	 */
 	public void firePipelineFinished() {
-		for(PipelineListener listener : listeners) {
-			listener.pipelineFinished();
+		synchronized(listeners) {
+			for(PipelineListener listener : listeners) {
+				listener.pipelineFinished();
+			}
 		}
 	}
 	
@@ -615,8 +718,10 @@ public class Pipeline {
 	 * @param message
 	 */
 	public void fireMessage(String message) {
-		for(PipelineListener listener : listeners) {
-			listener.message(message);
+		synchronized(listeners) {
+			for(PipelineListener listener : listeners) {
+				listener.message(message);
+			}
 		}
 	}
 	
@@ -673,7 +778,13 @@ public class Pipeline {
 		String threadCountStr = argParser.getStringOp("threads");
 		int threads = -1; //Use value from properties file if possible
 		if (threadCountStr != null) {
-			threads = Integer.parseInt(threadCountStr);
+			try {
+				threads = parseThreadCount("-threads", threadCountStr);
+			}
+			catch (IllegalArgumentException e) {
+				System.out.println("ERROR: " + e.getMessage());
+				System.exit(1);
+			}
 		}
 		
 		
@@ -1,13 +1,40 @@
 package util;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.zip.GZIPOutputStream;
 
+/**
+ * Common place to obtain compressed output streams. Compressed output streams write BGZF using a
+ * ParallelBGZFOutputStream, which is ordinary gzip to anything reading it but is deflated on several threads
+ * and can be indexed by tabix. Output that NGS.Web serves over HTTP, such as that from compressGZIP(..) and
+ * JSONVarsGenerator.createJSONVariantsGZIP(..), must be a single gzip member, so it uses GZIPOutputStream instead.
+ * @author brendan
+ *
+ */
 public class CompressGZIP {
-	
-	/** 
-	 * GZIP compress the given string to a byte array
+
+	private static int defaultThreads = 1;
+
+	/**
+	 * Set the number of threads used to compress streams when no thread count is given. The Pipeline sets
+	 * this to its thread count when it starts executing
+	 * @param threads
+	 */
+	public static void setDefaultThreads(int threads) {
+		defaultThreads = threads;
+	}
+
+	public static int getDefaultThreads() {
+		return defaultThreads;
+	}
+
+	/**
+	 * GZIP compress the given string to a byte array, as a single gzip member
 	 * @param str
 	 * @return
 	 */
@@ -22,6 +49,42 @@ public class CompressGZIP {
 		}
 		return byteArrayOutputStream.toByteArray();
 	}
-	
+
+	/**
+	 * Obtain a stream that compresses everything written to it using the default number of threads, and
+	 * writes the compressed data to the given stream. Closing the returned stream closes the given one.
+	 * @param outputStream
+	 * @return
+	 */
+	public static OutputStream compress(OutputStream outputStream) {
+		return compress(outputStream, defaultThreads);
+	}
+
+	/**
+	 * Obtain a stream that compresses everything written to it using the given number of threads, and
+	 * writes the compressed data to the given stream. Closing the returned stream closes the given one.
+	 * @param outputStream
+	 * @param threads
+	 * @return
+	 */
+	public static OutputStream compress(OutputStream outputStream, int threads) {
+		return new ParallelBGZFOutputStream(outputStream, threads);
+	}
+
+	/**
+	 * Open a buffered stream writing to the given file, compressed with the given number of threads if the file
+	 * name ends with .gz
+	 * @param file
+	 * @param threads
+	 * @return
+	 * @throws IOException
+	 */
+	public static OutputStream openOutput(File file, int threads) throws IOException {
+		OutputStream fileStream = new FileOutputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			return compress(fileStream, threads);
+		}
+		return new BufferedOutputStream(fileStream);
+	}
 
 }
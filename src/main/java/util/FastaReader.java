@@ -19,10 +19,17 @@ public class FastaReader {
 	
 	private Map<String, Integer> contigSizes;
 	private String[] contigs;
+	private IndexedFastaReader index = null; //Used for random access, null if the file can't be indexed
 	
 	public FastaReader(File file) throws IOException {
 		this.sourceFile = file;
-		buildContigMap(); //Only necessary if you want a listing of all contigs and their sizes
+		try {
+			index = IndexedFastaReader.forFile(file);
+			buildContigMapFromIndex();
+		} catch (IOException e) {
+			index = null;
+			buildContigMap(); //Only necessary if you want a listing of all contigs and their sizes
+		}
 		initialize();
 	}
 	
@@ -103,6 +110,16 @@ public class FastaReader {
 	
 	
 	
+	/**
+	 * Build the map of contig names and lengths from the index, without scanning the file
+	 */
+	private void buildContigMapFromIndex() {
+		contigSizes = new HashMap<String, Integer>();
+		for(String contig : index.getContigs()) {
+			contigSizes.put(contig.replace("chr", ""), index.getContigLength(contig));
+		}
+	}
+	
 	private void initialize() throws IOException {
 		reader = new BufferedReader(new FileReader(sourceFile));
 		currentLine = reader.readLine();
@@ -119,10 +136,22 @@ public class FastaReader {
 		advanceLine();
 	}
 	
+	/**
+	 * Obtain the base at the given ONE-INDEXED position. If the file could be indexed (see IndexedFastaReader)
+	 * positions can be requested in any order and the current position isn't changed, otherwise they must
+	 * be requested in order and the current position moves to the base returned
+	 * @param track
+	 * @param pos
+	 * @return
+	 * @throws IOException
+	 */
 	public char getBaseAt(String track, int pos) throws IOException {
 		if (pos <= 0) {
 			throw new IllegalArgumentException("Remember, bases are ONE-INDEXED, so the first base is base #1, not 0, so please enter a pos > " + pos);
 		}
+		if (index != null) {
+			return index.getBase(track, pos);
+		}
 		pos--;
 		if (! track.equals(currentTrack))
 			advanceToTrack(track);
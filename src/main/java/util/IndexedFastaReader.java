@@ -0,0 +1,560 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Random access to the bases of a FASTA file, in any order and from any number of threads. Contig offsets and
+ * line lengths come from the samtools-style .fai index next to the file, or from a single scan of the file if
+ * there isn't one, in which case forFile() writes the index so later runs needn't scan again. Each contig is memory-mapped the first time it's used, so finding a base is just arithmetic
+ * on the line length and nothing is read that isn't asked for.
+ * Recently used stretches of sequence are kept, with line breaks removed, in a small LRU cache of fixed-size
+ * blocks, and each thread remembers the last block it used, so fetching nearby bases one at a time is cheap.
+ * Readers are usually obtained with forFile(), which shares one reader per file across the whole process. Only the
+ * MAX_SHARED_READERS most recently used files keep a shared reader; older ones, and readers for files that have
+ * changed since they were opened, are closed. Closing only releases the file handle: a closed reader still works,
+ * opening the file briefly whenever it needs to map another contig.
+ * Positions are ONE-INDEXED, like util.FastaReader. Contigs may be named with or without a 'chr' prefix.
+ * @author brendan
+ *
+ */
+public class IndexedFastaReader {
+
+	public static final String INDEX_SUFFIX = ".fai";
+
+	static final int BLOCK_SIZE = 4096; //Bases per cached block
+	static final int MAX_CACHED_BLOCKS = 256;
+	public static final int MAX_SHARED_READERS = 8;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	//Shared readers by canonical path, least recently used first, guarded by itself
+	private static final LinkedHashMap<String, IndexedFastaReader> shared = new LinkedHashMap<String, IndexedFastaReader>(16, 0.75f, true);
+
+	private final File file;
+	private final long modified;
+	private final boolean scanned; //True if there was no usable index, so the file was scanned
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final Object channelLock = new Object(); //Guards closed, so the channel isn't closed while mapping
+	private boolean closed = false;
+	private final List<Contig> contigs = new ArrayList<Contig>();
+	private final Map<String, Contig> contigsByName = new HashMap<String, Contig>();
+
+	private final LinkedHashMap<Long, Block> blocks = new LinkedHashMap<Long, Block>(MAX_CACHED_BLOCKS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+			return size() > MAX_CACHED_BLOCKS;
+		}
+	};
+
+	private final ThreadLocal<Block> lastBlock = new ThreadLocal<Block>();
+
+	/**
+	 * Obtain the reader shared by everyone reading the given file, creating it if there isn't one or if the file
+	 * has changed since it was created, in which case the old reader is closed. If this leaves more than
+	 * MAX_SHARED_READERS shared readers, the least recently used is closed and dropped. If the file had to be
+	 * scanned, its .fai index is written next to it when the directory is writable
+	 * @param fasta
+	 * @return
+	 * @throws IOException
+	 */
+	public static IndexedFastaReader forFile(File fasta) throws IOException {
+		String key = fasta.getCanonicalPath();
+		synchronized(shared) {
+			IndexedFastaReader reader = shared.get(key);
+			if (reader != null && reader.modified == fasta.lastModified()) {
+				return reader;
+			}
+
+			IndexedFastaReader replacement = new IndexedFastaReader(fasta);
+			if (replacement.scanned) {
+				try {
+					replacement.saveIndex();
+				} catch (IOException ex) {
+					//Probably a read-only directory, so the file will be scanned again next time
+				}
+			}
+			if (reader != null) {
+				reader.close();
+			}
+			shared.put(key, replacement);
+
+			Iterator<IndexedFastaReader> readers = shared.values().iterator();
+			while (shared.size() > MAX_SHARED_READERS) {
+				readers.next().close();
+				readers.remove();
+			}
+			return replacement;
+		}
+	}
+
+	/**
+	 * Open the given FASTA file, reading its .fai index if there's one at least as new as the file and scanning
+	 * the file to build the index otherwise
+	 * @param fasta
+	 * @throws IOException If the file can't be read, or if lines within a contig aren't all the same length
+	 */
+	public IndexedFastaReader(File fasta) throws IOException {
+		this.file = fasta;
+		this.modified = fasta.lastModified();
+		File index = new File(fasta.getPath() + INDEX_SUFFIX);
+		if (index.exists() && index.lastModified() >= modified) {
+			readIndex(index);
+			scanned = false;
+		}
+		else {
+			buildIndex();
+			scanned = true;
+		}
+		this.raf = new RandomAccessFile(fasta, "r");
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * Scan the given FASTA file and write its .fai index next to it
+	 * @param fasta
+	 * @return The index file
+	 * @throws IOException
+	 */
+	public static File writeIndex(File fasta) throws IOException {
+		IndexedFastaReader reader = new IndexedFastaReader(fasta);
+		reader.close();
+		return reader.saveIndex();
+	}
+
+	/**
+	 * Write this reader's index next to the file, via a uniquely named temporary file so that readers in other
+	 * processes never see a partly written index
+	 * @return The index file
+	 * @throws IOException
+	 */
+	private File saveIndex() throws IOException {
+		File index = new File(file.getPath() + INDEX_SUFFIX);
+		File tmp = File.createTempFile(file.getName(), INDEX_SUFFIX + ".tmp", index.getAbsoluteFile().getParentFile());
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+			try {
+				for(Contig contig : contigs) {
+					writer.write(contig.name + "\t" + contig.length + "\t" + contig.offset + "\t" + contig.lineBases + "\t" + contig.lineWidth + "\n");
+				}
+			}
+			finally {
+				writer.close();
+			}
+			index.delete();
+			if (! tmp.renameTo(index)) {
+				throw new IOException("Could not rename " + tmp.getPath() + " to " + index.getPath());
+			}
+		}
+		finally {
+			tmp.delete();
+		}
+		return index;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Names of all contigs, in the order they appear in the file
+	 * @return
+	 */
+	public List<String> getContigs() {
+		List<String> names = new ArrayList<String>(contigs.size());
+		for(Contig contig : contigs) {
+			names.add(contig.name);
+		}
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * True if there's a contig with the given name, with or without a 'chr' prefix
+	 * @param contig
+	 * @return
+	 */
+	public boolean hasContig(String contig) {
+		return findContig(contig) != null;
+	}
+
+	/**
+	 * Number of bases in the given contig, or -1 if there's no such contig
+	 * @param contig
+	 * @return
+	 */
+	public int getContigLength(String contig) {
+		Contig entry = findContig(contig);
+		return entry == null ? -1 : entry.length;
+	}
+
+	/**
+	 * Obtain the base at the given ONE-INDEXED position on the given contig
+	 * @param contig
+	 * @param pos
+	 * @return
+	 * @throws IOException
+	 */
+	public char getBase(String contig, int pos) throws IOException {
+		Contig entry = getContig(contig);
+		checkRange(entry, pos, pos);
+		Block block = getBlock(entry, (pos-1) / BLOCK_SIZE);
+		return (char)block.bases[(pos-1) % BLOCK_SIZE];
+	}
+
+	/**
+	 * Obtain the bases from start to end, inclusive and ONE-INDEXED, on the given contig. Returns the
+	 * empty string if end is less than start
+	 * @param contig
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	public String getSequence(String contig, int start, int end) throws IOException {
+		Contig entry = getContig(contig);
+		if (end < start) {
+			return "";
+		}
+		checkRange(entry, start, end);
+		byte[] seq = new byte[end - start + 1];
+		int pos = start - 1;
+		int copied = 0;
+		while(copied < seq.length) {
+			Block block = getBlock(entry, pos / BLOCK_SIZE);
+			int offset = pos % BLOCK_SIZE;
+			int count = Math.min(seq.length - copied, block.bases.length - offset);
+			System.arraycopy(block.bases, offset, seq, copied, count);
+			copied += count;
+			pos += count;
+		}
+		return new String(seq, ASCII);
+	}
+
+	/**
+	 * Close the underlying file. Contigs already mapped remain readable
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized(channelLock) {
+			closed = true;
+			raf.close();
+		}
+	}
+
+	private Contig findContig(String name) {
+		Contig entry = contigsByName.get(name);
+		if (entry == null) {
+			if (name.startsWith("chr")) {
+				entry = contigsByName.get(name.substring(3));
+			}
+			else {
+				entry = contigsByName.get("chr" + name);
+			}
+		}
+		return entry;
+	}
+
+	private Contig getContig(String name) {
+		Contig entry = findContig(name);
+		if (entry == null) {
+			throw new IllegalArgumentException("No contig named " + name + " in " + file.getName());
+		}
+		return entry;
+	}
+
+	private static void checkRange(Contig entry, int start, int end) {
+		if (start <= 0) {
+			throw new IllegalArgumentException("Remember, bases are ONE-INDEXED, so the first base is base #1, not 0, so please enter a pos > " + start);
+		}
+		if (end > entry.length) {
+			throw new IllegalArgumentException("Position " + end + " is past the end of contig " + entry.name + ", which has " + entry.length + " bases");
+		}
+	}
+
+	/**
+	 * Obtain the given block of the contig with line breaks removed, from this thread's last block, the shared
+	 * cache, or by copying it from the mapped file
+	 */
+	private Block getBlock(Contig entry, int blockNumber) throws IOException {
+		Block block = lastBlock.get();
+		if (block != null && block.contig == entry && block.number == blockNumber) {
+			return block;
+		}
+
+		Long key = ((long)entry.index << 32) | blockNumber;
+		synchronized(blocks) {
+			block = blocks.get(key);
+		}
+		if (block == null) {
+			block = readBlock(entry, blockNumber);
+			synchronized(blocks) {
+				blocks.put(key, block);
+			}
+		}
+		lastBlock.set(block);
+		return block;
+	}
+
+	private Block readBlock(Contig entry, int blockNumber) throws IOException {
+		MappedByteBuffer buf = map(entry);
+		int start = blockNumber * BLOCK_SIZE;
+		byte[] bases = new byte[Math.min(BLOCK_SIZE, entry.length - start)];
+		int pos = start;
+		int copied = 0;
+		while(copied < bases.length) {
+			int lineOffset = pos % entry.lineBases;
+			int count = Math.min(bases.length - copied, entry.lineBases - lineOffset);
+			int at = (pos / entry.lineBases) * entry.lineWidth + lineOffset;
+			for(int i=0; i<count; i++) {
+				bases[copied + i] = buf.get(at + i);
+			}
+			copied += count;
+			pos += count;
+		}
+		return new Block(entry, blockNumber, bases);
+	}
+
+	private MappedByteBuffer map(Contig entry) throws IOException {
+		MappedByteBuffer buf = entry.buffer;
+		if (buf == null) {
+			synchronized(entry) {
+				buf = entry.buffer;
+				if (buf == null) {
+					long bytes = entry.byteLength();
+					if (bytes > Integer.MAX_VALUE) {
+						throw new IOException("Contig " + entry.name + " is too long to map");
+					}
+					synchronized(channelLock) {
+						if (! closed) {
+							buf = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, bytes);
+						}
+					}
+					if (buf == null) {
+						//Mappings stay valid after the file is closed again
+						RandomAccessFile reopened = new RandomAccessFile(file, "r");
+						try {
+							buf = reopened.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.offset, bytes);
+						}
+						finally {
+							reopened.close();
+						}
+					}
+					entry.buffer = buf;
+				}
+			}
+		}
+		return buf;
+	}
+
+	private void addContig(String name, int length, long offset, int lineBases, int lineWidth) {
+		Contig contig = new Contig(contigs.size(), name, length, offset, lineBases, lineWidth);
+		contigs.add(contig);
+		contigsByName.put(name, contig);
+	}
+
+	private void readIndex(File index) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(index));
+		try {
+			String line = reader.readLine();
+			while(line != null) {
+				if (line.length() > 0) {
+					String[] toks = line.split("\t");
+					if (toks.length < 5) {
+						throw new IOException("Could not parse line in index " + index.getName() + " : " + line);
+					}
+					addContig(toks[0], Integer.parseInt(toks[1]), Long.parseLong(toks[2]), Integer.parseInt(toks[3]), Integer.parseInt(toks[4]));
+				}
+				line = reader.readLine();
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Scan the file once, recording where each contig's sequence starts, its length and its line lengths
+	 * @throws IOException
+	 */
+	private void buildIndex() throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		try {
+			IndexBuilder builder = new IndexBuilder();
+			StringBuilder header = null;
+			int lineLength = 0; //Bytes in the current line, including any '\r'
+			int lineBases = 0;
+			long pos = 0;
+			int c = in.read();
+			while(c >= 0) {
+				pos++;
+				if (c == '\n') {
+					if (header != null) {
+						builder.startContig(header.toString(), pos);
+						header = null;
+					}
+					else {
+						builder.addLine(lineBases, lineLength + 1);
+					}
+					lineLength = 0;
+					lineBases = 0;
+				}
+				else if (lineLength == 0 && c == '>') {
+					builder.finishContig();
+					header = new StringBuilder();
+					lineLength++;
+				}
+				else {
+					if (header != null) {
+						header.append((char)c);
+					}
+					else if (c != '\r') {
+						lineBases++;
+					}
+					lineLength++;
+				}
+				c = in.read();
+			}
+			if (header != null) {
+				builder.startContig(header.toString(), pos);
+			}
+			else if (lineLength > 0) {
+				builder.addLine(lineBases, lineLength);
+			}
+			builder.finishContig();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Accumulates the index entry for each contig as the file is scanned
+	 */
+	private class IndexBuilder {
+		String name = null;
+		long offset;
+		long length;
+		int lineBases;
+		int lineWidth;
+		boolean lastLineSeen; //True once a line shorter than the first has been seen
+
+		void startContig(String header, long sequenceOffset) {
+			String trimmed = header.trim();
+			int space = 0;
+			while(space < trimmed.length() && ! Character.isWhitespace(trimmed.charAt(space))) {
+				space++;
+			}
+			name = trimmed.substring(0, space);
+			offset = sequenceOffset;
+			length = 0;
+			lineBases = -1;
+			lineWidth = -1;
+			lastLineSeen = false;
+		}
+
+		void addLine(int bases, int width) throws IOException {
+			if (name == null) {
+				throw new IOException("Sequence found before the first header in " + file.getName());
+			}
+			if (bases == 0) {
+				lastLineSeen = true; //Blank lines are only allowed at the end of a contig
+				return;
+			}
+			if (lineBases < 0) {
+				lineBases = bases;
+				lineWidth = width;
+			}
+			else if (lastLineSeen || bases > lineBases || (bases == lineBases && width != lineWidth)) {
+				throw new IOException("Lines in contig " + name + " of " + file.getName() + " are not all the same length, can't index it");
+			}
+			else if (bases < lineBases) {
+				lastLineSeen = true;
+			}
+			length += bases;
+		}
+
+		void finishContig() throws IOException {
+			if (name == null) {
+				return;
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Contig " + name + " is too long to index");
+			}
+			if (lineBases < 0) {
+				lineBases = 1;
+				lineWidth = 1;
+			}
+			addContig(name, (int)length, offset, lineBases, lineWidth);
+			name = null;
+		}
+	}
+
+	/**
+	 * Index entry for a single contig, along with its mapped bytes once it's been used
+	 */
+	static class Contig {
+		final int index;
+		final String name;
+		final int length;
+		final long offset;
+		final int lineBases;
+		final int lineWidth;
+		volatile MappedByteBuffer buffer = null;
+
+		Contig(int index, String name, int length, long offset, int lineBases, int lineWidth) {
+			this.index = index;
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+		}
+
+		/**
+		 * Number of bytes from the first base to the last one, including line breaks in between
+		 */
+		long byteLength() {
+			if (length == 0) {
+				return 0;
+			}
+			long fullLines = (length - 1) / lineBases;
+			return fullLines * lineWidth + (length - fullLines * lineBases);
+		}
+	}
+
+	/**
+	 * A stretch of up to BLOCK_SIZE bases from one contig
+	 */
+	static class Block {
+		final Contig contig;
+		final int number;
+		final byte[] bases;
+
+		Block(Contig contig, int number, byte[] bases) {
+			this.contig = contig;
+			this.number = number;
+			this.bases = bases;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A static index for finding all of the intervals in a list (typically all those on one contig) that overlap
+ * a query range. The intervals are sorted by begin and stored in primitive arrays, which are treated as an implicit
+ * balanced binary tree: the element at index i is a node at level k, where k is the number of trailing one bits in i,
+ * and each node also stores the largest end of any interval in its subtree. A query descends the tree skipping any
+ * subtree whose largest end is at or before the query start, or whose first begin is at or after the query end,
+ * so it takes O(log n + k) for k hits, doesn't allocate anything, and returns hits in order of begin.
+ *
+ * For a stream of queries with non-decreasing starts, such as the variants in a sorted VCF, a Cursor
+ * sweeps through the intervals once instead of searching the tree for each query.
+ *
+ * Overlap has the same meaning as in Interval.intersects(start, end). The index is immutable once built and
+ * may be queried by many threads, but a Cursor should only be used by one.
+ * @author brendan
+ *
+ */
+public class IntervalIndex {
+
+	//Subtrees at this level or below are scanned linearly, which is faster than descending any further
+	private static final int SCAN_LEVEL = 3;
+
+	private final Interval[] intervals;
+	private final int[] begins;
+	private final int[] ends;
+	private final int[] maxEnds;
+	private final int rootLevel;
+
+	/**
+	 * Build a new index of the given intervals, which need not be sorted. The list itself is not modified.
+	 * Intervals with the same begin are kept in the order in which they appear in the list.
+	 * @param source
+	 */
+	public IntervalIndex(List<Interval> source) {
+		List<Interval> sorted = new ArrayList<Interval>(source);
+		Collections.sort(sorted);
+		int n = sorted.size();
+		intervals = sorted.toArray(new Interval[n]);
+		begins = new int[n];
+		ends = new int[n];
+		maxEnds = new int[n];
+		for(int i=0; i<n; i++) {
+			begins[i] = intervals[i].begin;
+			ends[i] = intervals[i].end;
+		}
+		rootLevel = buildTree();
+	}
+
+	/**
+	 * Compute the largest end in each subtree, working up from the leaves. Nodes at level k are at indices
+	 * 2^k-1, 2^k-1 + 2^(k+1), ... and their children are 2^(k-1) on either side. When n isn't one less than a power
+	 * of two, some right children are past the end of the array, in which case they stand in for the subtree containing
+	 * the last elements, whose largest end is tracked in 'last'.
+	 * @return The level of the root
+	 */
+	private int buildTree() {
+		int n = begins.length;
+		if (n == 0) {
+			return -1;
+		}
+		int lastIndex = 0;
+		int last = 0;
+		for(int i=0; i<n; i+=2) {
+			lastIndex = i;
+			last = ends[i];
+			maxEnds[i] = ends[i];
+		}
+		int k = 1;
+		for(; (1L << k) <= n; k++) {
+			int x = 1 << (k-1);
+			int step = x << 2;
+			for(int i=(x<<1)-1; i<n; i+=step) {
+				int leftMax = maxEnds[i-x];
+				int rightMax = i+x < n ? maxEnds[i+x] : last;
+				maxEnds[i] = Math.max(ends[i], Math.max(leftMax, rightMax));
+			}
+			lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+			if (lastIndex < n && maxEnds[lastIndex] > last) {
+				last = maxEnds[lastIndex];
+			}
+		}
+		return k-1;
+	}
+
+	/**
+	 * Total number of intervals in the index
+	 * @return
+	 */
+	public int size() {
+		return intervals.length;
+	}
+
+	/**
+	 * The i-th interval, in order of begin
+	 * @param i
+	 * @return
+	 */
+	public Interval get(int i) {
+		return intervals[i];
+	}
+
+	/**
+	 * Add all intervals overlapping the range [start, end) to the given collection, in order of begin,
+	 * and return the number added.
+	 * @param start
+	 * @param end
+	 * @param hits
+	 * @return
+	 */
+	public int query(int start, int end, Collection<? super Interval> hits) {
+		if (rootLevel < 0) {
+			return 0;
+		}
+		return query((1 << rootLevel) - 1, rootLevel, start, end, hits);
+	}
+
+	/**
+	 * Number of intervals overlapping the range [start, end)
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public int countOverlaps(int start, int end) {
+		return query(start, end, null);
+	}
+
+	/**
+	 * Search the subtree rooted at index x, which is at the given level, adding hits to the collection if it isn't null
+	 */
+	private int query(int x, int level, int start, int end, Collection<? super Interval> hits) {
+		int n = begins.length;
+		int found = 0;
+		if (level <= SCAN_LEVEL) {
+			int first = (x >> level) << level;
+			int stop = Math.min(n, first + (1 << (level+1)) - 1);
+			for(int i=first; i<stop && begins[i] < end; i++) {
+				if (start < ends[i]) {
+					if (hits != null) {
+						hits.add(intervals[i]);
+					}
+					found++;
+				}
+			}
+			return found;
+		}
+
+		int half = 1 << (level-1);
+		int left = x - half;
+		if (left >= n || maxEnds[left] > start) {
+			found += query(left, level-1, start, end, hits);
+		}
+		if (x < n && begins[x] < end) {
+			if (start < ends[x]) {
+				if (hits != null) {
+					hits.add(intervals[x]);
+				}
+				found++;
+			}
+			found += query(x + half, level-1, start, end, hits);
+		}
+		return found;
+	}
+
+	/**
+	 * Create a new Cursor for a stream of queries with non-decreasing starts
+	 * @return
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Answers queries in order of start by sweeping through the intervals: every interval that begins before a
+	 * query's end is added to a set of active intervals, from which intervals ending at or before the query's start
+	 * are removed, since they can't overlap any later query. The total cost for m queries is O(n + m) plus the size
+	 * of the active set at each query, which for typical annotation intervals is just a few.
+	 * @author brendan
+	 *
+	 */
+	public class Cursor {
+
+		private int next = 0; //Index of the first interval not yet added to the active set
+		private int[] active = new int[16]; //Indices of active intervals, in order of begin
+		private int activeCount = 0;
+		private int lastStart = Integer.MIN_VALUE;
+
+		/**
+		 * Add all intervals overlapping the range [start, end) to the given collection, in order of begin,
+		 * and return the number added. Starts must not decrease from one query to the next.
+		 * @param start
+		 * @param end
+		 * @param hits
+		 * @return
+		 */
+		public int query(int start, int end, Collection<? super Interval> hits) {
+			if (start < lastStart) {
+				throw new IllegalArgumentException("Cursor queries must be in order of start, but got " + start + " after " + lastStart);
+			}
+			lastStart = start;
+
+			while(next < begins.length && begins[next] < end) {
+				if (activeCount == active.length) {
+					int[] bigger = new int[2*active.length];
+					System.arraycopy(active, 0, bigger, 0, activeCount);
+					active = bigger;
+				}
+				active[activeCount] = next;
+				activeCount++;
+				next++;
+			}
+
+			int found = 0;
+			int kept = 0;
+			for(int i=0; i<activeCount; i++) {
+				int index = active[i];
+				if (ends[index] <= start) {
+					continue; //Can't overlap this or any later query
+				}
+				active[kept] = index;
+				kept++;
+				if (begins[index] < end) {
+					if (hits != null) {
+						hits.add(intervals[index]);
+					}
+					found++;
+				}
+			}
+			activeCount = kept;
+			return found;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -16,12 +17,11 @@ import java.util.Set;
 import java.util.zip.GZIPOutputStream;
 
 import json.AnnotatedVarsJsonConverter;
+import json.AnnotatedVarsJsonWriter;
 import json.JSONArray;
 import json.JSONException;
 import json.JSONObject;
-import json.JSONWriter;
 import operator.variant.VariantPoolWriter;
-import util.text.StreamWriter;
 import buffer.CSVFile;
 import buffer.variant.CSVLineReader;
 import buffer.variant.VariantLineReader;
@@ -43,7 +43,11 @@ public class JSONVarsGenerator extends VariantPoolWriter {
 	public static final String VARIANT_LIST = "variant.list";
 	public static final AnnotatedVarsJsonConverter DEFAULT_CONVERTER = new AnnotatedVarsJsonConverter(); 
 	protected AnnotatedVarsJsonConverter varConverter = DEFAULT_CONVERTER;
-	protected JSONWriter writer = null;
+	protected AnnotatedVarsJsonWriter writer = null;
+	private boolean firstVariant = true;
+	
+	//Size of the buffer used when writing to a stream
+	private static final int BUFFER_SIZE = 1 << 16;
 	
 	//Keys that will be included in the output, no matter what. If the key
 	//doesn't exist as an annotation in a variant, the json will include the annotation but
@@ -105,24 +109,20 @@ public class JSONVarsGenerator extends VariantPoolWriter {
 		}
 		this.varConverter.setExcludeKeys(allExKeys);
 		
-		//Nothing to write, but we use this to initialize the JSONWriter
-		writer = new JSONWriter(new StreamWriter(outputStream));
-		try {
-			writer
-				.object()
-				.key(VARIANT_LIST)
-				.array();
-		} catch (JSONException e) {
-			e.printStackTrace();
-			throw new IOException(e.getLocalizedMessage());
-		}
+		//Variants are written straight to the stream as they arrive, without building a JSONObject for each
+		writer = new AnnotatedVarsJsonWriter(this.varConverter);
+		firstVariant = true;
+		outputStream.write(("{" + JSONObject.quote(VARIANT_LIST) + ":[").getBytes(StandardCharsets.UTF_8));
 	}
 
 	@Override
 	public void writeVariant(VariantRec rec, PrintStream outputStream) throws IOException {
 		try {
-			JSONObject objVar = varConverter.toJSON(rec);
-			writer.value(objVar);
+			if (! firstVariant) {
+				outputStream.write(',');
+			}
+			firstVariant = false;
+			writer.write(rec, outputStream);
 		} catch (JSONException e) {
 			e.printStackTrace();
 			throw new IOException(e.getLocalizedMessage());
@@ -131,13 +131,8 @@ public class JSONVarsGenerator extends VariantPoolWriter {
 	
 	@Override
 	public void writeFooter(PrintStream outputStream) throws IOException {
-		try {
-			writer.endArray();
-			writer.endObject();
-		} catch (JSONException e) {
-			e.printStackTrace();
-			throw new IOException(e.getLocalizedMessage());
-		}
+		outputStream.write(']');
+		outputStream.write('}');
 	}
 	
 	/**
@@ -258,7 +253,7 @@ public class JSONVarsGenerator extends VariantPoolWriter {
 	public static void createJSONVariants(VariantPool variants, OutputStream outputStream) throws JSONException, IOException {
 		JSONVarsGenerator jsonGenerator = new JSONVarsGenerator();
 		
-		BufferedOutputStream writer = new BufferedOutputStream(outputStream);
+		BufferedOutputStream writer = new BufferedOutputStream(outputStream, BUFFER_SIZE);
 		PrintStream ps = new PrintStream(writer);
 		
 		//Collect all the keys we want to include
@@ -292,6 +287,9 @@ public class JSONVarsGenerator extends VariantPoolWriter {
 		
 		jsonGenerator.writeFooter(ps);
 		ps.close();
+		if (ps.checkError()) {
+			throw new IOException("Error writing json variants");
+		}
 	}
 	
 	/**
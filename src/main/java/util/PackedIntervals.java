@@ -0,0 +1,179 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The intervals on one contig, merged wherever they overlap and packed into two sorted int arrays, for
+ * answering 'is this position (or range) in any interval' without creating any objects.
+ * Lookups are a binary search over the begins, and a Cursor answers a stream of lookups in order of position
+ * by stepping forward from where the previous lookup left off.
+ * Like IntervalsFile.mergeIntervals(), intervals that are merely adjacent are not merged.
+ * Instances are immutable and may be shared by threads, but each thread should use its own Cursor.
+ * @author brendan
+ *
+ */
+public class PackedIntervals {
+
+	private final int[] begins;
+	private final int[] ends;
+
+	/**
+	 * Create a new packed set of intervals from the given list, which need not be sorted or
+	 * non-overlapping, and is not modified
+	 * @param intervals
+	 */
+	public PackedIntervals(List<Interval> intervals) {
+		List<Interval> sorted = new ArrayList<Interval>(intervals);
+		Collections.sort(sorted);
+		int[] b = new int[sorted.size()];
+		int[] e = new int[sorted.size()];
+		int count = 0;
+		for(Interval interval : sorted) {
+			if (count > 0 && interval.begin < e[count-1]) {
+				e[count-1] = Math.max(e[count-1], interval.end);
+			}
+			else {
+				b[count] = interval.begin;
+				e[count] = interval.end;
+				count++;
+			}
+		}
+		if (count < b.length) {
+			int[] shortB = new int[count];
+			int[] shortE = new int[count];
+			System.arraycopy(b, 0, shortB, 0, count);
+			System.arraycopy(e, 0, shortE, 0, count);
+			b = shortB;
+			e = shortE;
+		}
+		begins = b;
+		ends = e;
+	}
+
+	/**
+	 * Number of intervals after merging
+	 * @return
+	 */
+	public int size() {
+		return begins.length;
+	}
+
+	public int getBegin(int i) {
+		return begins[i];
+	}
+
+	public int getEnd(int i) {
+		return ends[i];
+	}
+
+	/**
+	 * Index of the last interval that begins at or before pos, or -1 if there isn't one
+	 * @param pos
+	 * @return
+	 */
+	public int floorIndex(int pos) {
+		int lo = 0;
+		int hi = begins.length-1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (begins[mid] <= pos) {
+				lo = mid+1;
+			}
+			else {
+				hi = mid-1;
+			}
+		}
+		return hi;
+	}
+
+	/**
+	 * True if pos is in any interval
+	 * @param pos
+	 * @return
+	 */
+	public boolean contains(int pos) {
+		int i = floorIndex(pos);
+		return i >= 0 && pos < ends[i];
+	}
+
+	/**
+	 * True if any interval shares a site with the range [start, end). An empty range (end <= start), such as
+	 * the location of an insertion, intersects if start is in an interval or an interval begins at start-1,
+	 * which is how IntervalsFile has always treated them.
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public boolean intersects(int start, int end) {
+		return intersects(floorIndex(start), start, end);
+	}
+
+	/**
+	 * Intersection test given the floor index of start
+	 */
+	private boolean intersects(int i, int start, int end) {
+		if (i >= 0 && start < ends[i]) {
+			return true;
+		}
+		if (end <= start) {
+			return (i >= 0 && begins[i] == start-1) || (i > 0 && begins[i-1] == start-1);
+		}
+		return i+1 < begins.length && begins[i+1] < end;
+	}
+
+	/**
+	 * Create a new cursor for looking up positions in increasing order
+	 * @return
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Answers lookups for positions (or range starts) that never decrease, as when walking through
+	 * the variants of a sorted VCF, in amortized constant time. Looking up a position less than the previous one
+	 * falls back to a binary search, so out of order queries are still correct, just slower.
+	 * @author brendan
+	 *
+	 */
+	public class Cursor {
+
+		private int index = -1; //Floor index of the last position looked up
+		private int lastPos = Integer.MIN_VALUE;
+
+		private int seek(int pos) {
+			if (pos < lastPos) {
+				index = floorIndex(pos);
+			}
+			else {
+				while(index+1 < begins.length && begins[index+1] <= pos) {
+					index++;
+				}
+			}
+			lastPos = pos;
+			return index;
+		}
+
+		/**
+		 * True if pos is in any interval
+		 * @param pos
+		 * @return
+		 */
+		public boolean contains(int pos) {
+			int i = seek(pos);
+			return i >= 0 && pos < ends[i];
+		}
+
+		/**
+		 * True if any interval shares a site with the range [start, end), see PackedIntervals.intersects
+		 * @param start
+		 * @param end
+		 * @return
+		 */
+		public boolean intersects(int start, int end) {
+			return PackedIntervals.this.intersects(seek(start), start, end);
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * An OutputStream that writes BGZF, the blocked gzip format used for BAM files and read by tabix, and
+ * deflates the blocks on a pool of threads. Data is cut into blocks of just under 64KB, each block is
+ * compressed independently and blocks are written to the underlying stream in the order they were filled.
+ * Blocks are deflated on a single pool of daemon threads shared by all streams, with one thread per processor,
+ * so opening many streams doesn't start more threads. The thread count given to a stream limits how many of
+ * its blocks are in flight at any time, so memory use stays bounded however much is written.
+ * The output is an ordinary multi-member gzip file, so GZIPInputStream and gunzip read it as usual.
+ * Calling flush() ends the current block early, so don't flush more often than needed.
+ * Like other streams, this should only be written to by one thread at a time.
+ * @author brendan
+ *
+ */
+public class ParallelBGZFOutputStream extends OutputStream {
+
+	private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+	private static final int HEADER_LENGTH = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+	private static final int FOOTER_LENGTH = BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+	private static final int MAX_BLOCK_LENGTH = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE;
+	private static final int BLOCKS_PER_THREAD = 4;
+
+	private static ExecutorService sharedWorkers = null; //Created on first use, guarded by the class
+
+	private final OutputStream out;
+	private final int level;
+	private final ExecutorService pool; //Null if blocks are compressed on the calling thread
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<byte[]>();
+	private byte[] buffer = new byte[BLOCK_SIZE];
+	private int count = 0;
+	private boolean closed = false;
+
+	/**
+	 * Create a new stream writing to out, compressing with the given number of threads at the default BGZF
+	 * compression level
+	 * @param out
+	 * @param threads
+	 */
+	public ParallelBGZFOutputStream(OutputStream out, int threads) {
+		this(out, threads, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+	}
+
+	/**
+	 * Create a new stream writing to out, compressing with the given number of threads and deflate level.
+	 * If threads is one or less blocks are compressed on the writing thread
+	 * @param out
+	 * @param threads
+	 * @param level
+	 */
+	public ParallelBGZFOutputStream(OutputStream out, int threads, int level) {
+		this.out = out;
+		this.level = level;
+		if (threads > 1) {
+			this.pool = getSharedWorkers();
+			this.maxPending = threads * BLOCKS_PER_THREAD;
+		}
+		else {
+			this.pool = null;
+			this.maxPending = 0;
+		}
+	}
+
+	private static synchronized ExecutorService getSharedWorkers() {
+		if (sharedWorkers == null) {
+			sharedWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "bgzf-compressor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedWorkers;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == BLOCK_SIZE) {
+			endBlock();
+		}
+		buffer[count] = (byte)b;
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == BLOCK_SIZE) {
+				endBlock();
+			}
+			int n = Math.min(len, BLOCK_SIZE - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Ends the current block and writes all blocks to the underlying stream, which is then flushed
+	 */
+	@Override
+	public void flush() throws IOException {
+		endBlock();
+		while (! pending.isEmpty()) {
+			writeNext();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes any remaining data followed by the BGZF end-of-file marker block, then closes the
+	 * underlying stream. The underlying stream is closed even if writing fails
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		boolean written = false;
+		try {
+			flush();
+			out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+			written = true;
+		}
+		finally {
+			closed = true;
+			for(Future<byte[]> block : pending) {
+				block.cancel(true);
+			}
+			pending.clear();
+			Deflater deflater = deflaters.poll();
+			while (deflater != null) {
+				deflater.end();
+				deflater = deflaters.poll();
+			}
+			if (written) {
+				out.close();
+			}
+			else {
+				try {
+					out.close();
+				} catch (IOException e) {
+					//Report the error that stopped the write, not this one
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hand off the current block for compression and start a new one. If too many blocks are waiting,
+	 * write the oldest ones
+	 * @throws IOException
+	 */
+	private void endBlock() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		final byte[] data = buffer;
+		final int length = count;
+		buffer = freeBuffers.poll();
+		if (buffer == null) {
+			buffer = new byte[BLOCK_SIZE];
+		}
+		count = 0;
+
+		if (pool == null) {
+			out.write(compressBlock(data, length));
+			freeBuffers.add(data);
+			return;
+		}
+
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				byte[] block = compressBlock(data, length);
+				freeBuffers.add(data);
+				return block;
+			}
+		}));
+		while (pending.size() > maxPending) {
+			writeNext();
+		}
+	}
+
+	/**
+	 * Wait for the oldest pending block to be compressed and write it
+	 * @throws IOException
+	 */
+	private void writeNext() throws IOException {
+		Future<byte[]> block = pending.poll();
+		try {
+			out.write(block.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			throw new IOException("Error compressing block: " + e.getCause().getLocalizedMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Compress the given data into a single complete BGZF block. Data that doesn't fit in a block after
+	 * compression (because it's random, say) is stored uncompressed instead
+	 * @param data
+	 * @param length
+	 * @return
+	 */
+	private byte[] compressBlock(byte[] data, int length) {
+		byte[] block = new byte[MAX_BLOCK_LENGTH];
+		int maxCompressed = MAX_BLOCK_LENGTH - HEADER_LENGTH - FOOTER_LENGTH;
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level, true);
+		}
+		int compressed;
+		try {
+			deflater.reset();
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			compressed = deflater.deflate(block, HEADER_LENGTH, maxCompressed);
+			if (! deflater.finished()) {
+				Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+				store.setInput(data, 0, length);
+				store.finish();
+				compressed = store.deflate(block, HEADER_LENGTH, maxCompressed);
+				boolean finished = store.finished();
+				store.end();
+				if (! finished) {
+					throw new IllegalStateException("Block of " + length + " bytes does not fit in a BGZF block");
+				}
+			}
+		}
+		finally {
+			deflaters.add(deflater);
+		}
+
+		int blockLength = HEADER_LENGTH + compressed + FOOTER_LENGTH;
+		System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0, block, 0, BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE.length);
+		putShort(block, BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET, blockLength - 1);
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		putInt(block, HEADER_LENGTH + compressed, (int)crc.getValue());
+		putInt(block, HEADER_LENGTH + compressed + 4, length);
+		return Arrays.copyOf(block, blockLength);
+	}
+
+	private static void putShort(byte[] buf, int offset, int val) {
+		buf[offset] = (byte)val;
+		buf[offset+1] = (byte)(val >> 8);
+	}
+
+	private static void putInt(byte[] buf, int offset, int val) {
+		putShort(buf, offset, val);
+		putShort(buf, offset+2, val >> 16);
+	}
+}
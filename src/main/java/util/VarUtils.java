@@ -2,6 +2,7 @@ package util;
 
 import gene.Gene;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -1326,31 +1327,71 @@ public class VarUtils {
 
 	private static void buildVCFDB(String[] args)  {
 
-		VariantPool hugePool = new VariantPool();
 		Set<String> analysisTypes = new HashSet<String>();
+		String[] fileTypes = new String[args.length];
 		
-		for(int i=1; i<args.length; i++) {
-			VariantPool tmpPool = new VariantPool(); //Temp storage for variants we will add to huge pool
-			
-			//Trim analysis string from filename
-			int endPos = args[i].indexOf("_");
-			if (endPos == -1) {
-				endPos = args[i].indexOf(".");
+		//Variants from all files are sorted together, spilling to disk if there are too many to hold in memory,
+		//so that all variants at a position come out together and in the order they were read. Each is stored
+		//as contig, pos, file index, ref, alt
+		VariantLineSorter sorter = new VariantLineSorter();
+		try {
+			for(int i=1; i<args.length; i++) {
+				//Trim analysis string from filename
+				int endPos = args[i].indexOf("_");
+				if (endPos == -1) {
+					endPos = args[i].indexOf(".");
+				}
+				String analysisTypeStr = args[i].substring(0, endPos);
+				analysisTypes.add(analysisTypeStr);
+				fileTypes[i] = analysisTypeStr;
+				try {
+					VariantLineReader reader = getReader(args[i]);
+					System.err.println("Adding variants from " + args[i]);
+					do {
+						VariantRec var = reader.toVariantRec();
+						if (var != null) {
+							sorter.add(var.getContig() + "\t" + var.getStart() + "\t" + i + "\t" + var.getRef() + "\t" + var.getAlt());
+						}
+					} while(reader.advanceLine());
+				}
+				catch(IOException ex) {
+					System.err.println("Warning, could not import variants from file " + args[i] + ":" + ex.getMessage());
+				}
 			}
-			String analysisTypeStr = args[i].substring(0, endPos);
-			analysisTypes.add(analysisTypeStr);
-			try {
-				VariantLineReader reader = getReader(args[i]);
-				System.err.println("Adding variants from " + args[i] + " current pool size is: " + hugePool.size());
-				do {
-					VariantRec var = reader.toVariantRec();
-					VariantRec tableVar = hugePool.findRecordNoWarn(var.getContig(), var.getStart());
-					if (tableVar == null) {
+
+			//Emit pool to system.out
+			PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
+			out.print("#contig\tpos\tref\talt\ttot.samples");
+			for(String analysisType : analysisTypes) {
+				out.print("\t" + analysisType);
+			}
+			out.println();
+
+			//A variant is counted toward the first variant at its position from an earlier file, if there is one,
+			//otherwise it becomes a new entry in the table
+			List<VariantRec> table = new ArrayList<VariantRec>();
+			List<VariantRec> fromThisFile = new ArrayList<VariantRec>();
+			String[] next = nextFields(sorter, 5);
+			while(next != null) {
+				String[] first = next;
+				String file = null;
+				table.clear();
+				fromThisFile.clear();
+				while(next != null && next[1].equals(first[1]) && next[0].equals(first[0])) {
+					if (! next[2].equals(file)) {
+						table.addAll(fromThisFile);
+						fromThisFile.clear();
+						file = next[2];
+					}
+					String analysisTypeStr = fileTypes[Integer.parseInt(file)];
+					if (table.isEmpty()) {
+						VariantRec var = new VariantRec(next[0], Integer.parseInt(next[1]), Integer.parseInt(next[1])+1, next[3], next[4]);
 						var.addProperty(VariantRec.SAMPLE_COUNT, 1.0);
 						var.addProperty(analysisTypeStr, 1.0);
-						tmpPool.addRecordNoSort(var);
+						fromThisFile.add(var);
 					}
 					else {
+						VariantRec tableVar = table.get(0);
 						Double count = tableVar.getProperty(VariantRec.SAMPLE_COUNT);
 						tableVar.addProperty(VariantRec.SAMPLE_COUNT, count+1);
 						
@@ -1362,40 +1403,31 @@ public class VarUtils {
 							tableVar.addProperty(analysisTypeStr, analTypeCount+1);
 						}
 						
-						if (! var.getAlt().equals(tableVar.getAlt())) {
-							tableVar.setAlt(tableVar.getAlt() + "," + var.getAlt());
+						if (! next[4].equals(tableVar.getAlt())) {
+							tableVar.setAlt(tableVar.getAlt() + "," + next[4]);
 						}
 					}
-
-
-				} while(reader.advanceLine());
+					next = nextFields(sorter, 5);
+				}
+				table.addAll(fromThisFile);
 				
-				tmpPool.sortAllContigs();
-				hugePool.addAll(tmpPool);
-			}
-			catch(IOException ex) {
-				System.err.println("Warning, could not import variants from file " + args[i] + ":" + ex.getMessage());
-			}
-		}
-		
-		//Emit pool to system.out
-		System.out.print("#contig\tpos\tref\talt\ttot.samples");
-		for(String analysisType : analysisTypes) {
-			System.out.print("\t" + analysisType);
-		}
-		System.out.println();
-		
-		for(String contig : hugePool.getContigs()) {
-			for(VariantRec var : hugePool.getVariantsForContig(contig)) {
-				System.out.print(contig + "\t" + var.getStart() + "\t" + var.getRef() + "\t" + var.getAlt() + "\t" + var.getProperty(VariantRec.SAMPLE_COUNT));
-				for(String analysisType : analysisTypes) {
-					Double ac = var.getProperty(analysisType);
-					if (ac == null)
-						ac = 0.0;
-					System.out.print("\t" + ac);
+				for(VariantRec var : table) {
+					out.print(var.getContig() + "\t" + var.getStart() + "\t" + var.getRef() + "\t" + var.getAlt() + "\t" + var.getProperty(VariantRec.SAMPLE_COUNT));
+					for(String analysisType : analysisTypes) {
+						Double ac = var.getProperty(analysisType);
+						if (ac == null)
+							ac = 0.0;
+						out.print("\t" + ac);
+					}
+					out.println();
 				}
-				System.out.println();
 			}
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			closeQuietly(sorter);
 		}
 	}
 	
@@ -2551,54 +2583,31 @@ public class VarUtils {
 			return;
 		}
 		
-		
+		//Lines are sorted in runs that are written to disk if there are too many to hold in memory, then merged
+		VariantLineSorter sorter = new VariantLineSorter();
 		try {
 			BufferedReader reader = new BufferedReader(new FileReader(args[1]));
-			List<String> lines = new ArrayList<String>(1024);
+			PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
 			
 			String line = reader.readLine();
 			while(line != null) {
 				if (line.startsWith("#")) {
-					System.out.println(line);
+					out.println(line);
 				}
-				else {
-					lines.add(line);
+				else if (line.length() > 0) {
+					sorter.add(line);
 				}
 				line = reader.readLine();
 			}
 			
 			reader.close();
 			
-			final List<String> refList = Arrays.asList(refOrder);
-			
-			Collections.sort(lines, new Comparator<String>() {
-
-				@Override
-				public int compare(String v0, String v1) {
-					String[] toks0 = v0.split("\t");
-					String[] toks1 = v1.split("\t");
-					
-					String chr0 = toks0[0];
-					String chr1 = toks1[0];
-					if (! chr0.equals(chr1)) {
-						Integer val0 = refList.indexOf(chr0);
-						Integer val1 = refList.indexOf(chr1);
-						
-						return val0.compareTo(val1);
-					}
-					else {
-						Integer pos0 = Integer.parseInt(toks0[1]);
-						Integer pos1 = Integer.parseInt(toks1[1]);
-						return pos0.compareTo(pos1);
-					}
-				}
-				
-			});
-			
-			
-			for(String output : lines) {
-				System.out.println(output);
+			line = sorter.next();
+			while(line != null) {
+				out.println(line);
+				line = sorter.next();
 			}
+			out.flush();
 			
 		} catch (FileNotFoundException e) {
 			// TODO Auto-generated catch block
@@ -2607,6 +2616,34 @@ public class VarUtils {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			closeQuietly(sorter);
+		}
+	}
+	
+	/**
+	 * Close the sorter, removing any temporary files, ignoring errors
+	 * @param sorter
+	 */
+	private static void closeQuietly(VariantLineSorter sorter) {
+		try {
+			sorter.close();
+		} catch (IOException e) {
+			System.err.println("Warning, could not remove temporary files: " + e.getLocalizedMessage());
+		}
+	}
+	
+	/**
+	 * Obtain the next line from the sorter split into at most the given number of fields, or null if
+	 * there are no more lines
+	 * @param sorter
+	 * @param fields
+	 * @return
+	 * @throws IOException
+	 */
+	private static String[] nextFields(VariantLineSorter sorter, int fields) throws IOException {
+		String line = sorter.next();
+		return line == null ? null : line.split("\t", fields);
 	}
 	
 	private static void performCombine(String[] args) {
@@ -2615,47 +2652,74 @@ public class VarUtils {
 			return;
 		}
 		
+		List<String> annoKeys = new ArrayList<String>();
+		annoKeys.add(VariantRec.RSNUM);
+		annoKeys.add(VariantRec.POP_FREQUENCY);
+		annoKeys.add(VariantRec.GENE_NAME);
+		annoKeys.add(VariantRec.VARIANT_TYPE);
+		annoKeys.add(VariantRec.EXON_FUNCTION);
+		annoKeys.add(VariantRec.CDOT);
+		annoKeys.add(VariantRec.PDOT);
+		annoKeys.add(VariantRec.VQSR);
+		annoKeys.add(VariantRec.DEPTH);
+		annoKeys.add(VariantRec.VAR_DEPTH);
+		annoKeys.add(VariantRec.FALSEPOS_PROB);
+		annoKeys.add(VariantRec.FS_SCORE);
+		annoKeys.add(VariantRec.POP_FREQUENCY);
+		annoKeys.add(VariantRec.EFFECT_PREDICTION2);
+		
+		//Variants from all files are sorted together, spilling to disk if there are too many to hold in memory, 
+		//so all variants at a position come out together and in the order they were read. Each variant is
+		//stored as contig, pos, file index, ref, alt and then the line we will emit for it
+		VariantLineSorter sorter = new VariantLineSorter();
 		try {
-			VariantPool pool = getPool(new File(args[1]));
-			for(int i=2; i<args.length; i++) {
+			for(int i=1; i<args.length; i++) {
 				System.err.println("Adding file : " + args[i]);
 				VariantLineReader reader = getReader(args[i]);
+				if (reader == null) {
+					throw new IllegalArgumentException("Unrecognized file suffix for input file: " + args[i]);
+				}
 				do {
 					VariantRec var = reader.toVariantRec();
-					VariantRec existing = pool.findRecord(var.getContig(), var.getStart(), var.getRef(), var.getAlt());
-					if (existing == null) {
-						pool.addRecord(var);
-						pool.sortAllContigs();
+					if (var != null) {
+						sorter.add(var.getContig() + "\t" + var.getStart() + "\t" + (i-1) + "\t" + var.getRef() + "\t" + var.getAlt() + "\t" + var.toSimpleString() + var.getPropertyString(annoKeys));
 					}
 				} while(reader.advanceLine());
-				pool.sortAllContigs();
 			}
 			
+			PrintStream outputStream = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
+			StringBuilder header = new StringBuilder( VariantRec.getSimpleHeader() );
+			for(String key : annoKeys) 
+				header.append("\t" + key);
+			outputStream.println( header );
 			
-			PrintStream outputStream = System.out;
+			//All variants from the first file are kept, variants from later files are kept only if
+			//there isn't already a variant with the same ref and alt at the same position
+			int count = 0;
+			Set<String> alleles = new HashSet<String>();
+			String[] next = nextFields(sorter, 6);
+			while(next != null) {
+				String[] first = next;
+				alleles.clear();
+				while(next != null && next[1].equals(first[1]) && next[0].equals(first[0])) {
+					boolean isNew = alleles.add(next[3] + "\t" + next[4]);
+					if (isNew || next[2].equals("0")) {
+						outputStream.println(next[5]);
+						count++;
+					}
+					next = nextFields(sorter, 6);
+				}
+			}
 			
-			List<String> annoKeys = new ArrayList<String>();
-			annoKeys.add(VariantRec.RSNUM);
-			annoKeys.add(VariantRec.POP_FREQUENCY);
-			annoKeys.add(VariantRec.GENE_NAME);
-			annoKeys.add(VariantRec.VARIANT_TYPE);
-			annoKeys.add(VariantRec.EXON_FUNCTION);
-			annoKeys.add(VariantRec.CDOT);
-			annoKeys.add(VariantRec.PDOT);
-			annoKeys.add(VariantRec.VQSR);
-			annoKeys.add(VariantRec.DEPTH);
-			annoKeys.add(VariantRec.VAR_DEPTH);
-			annoKeys.add(VariantRec.FALSEPOS_PROB);
-			annoKeys.add(VariantRec.FS_SCORE);
-			annoKeys.add(VariantRec.POP_FREQUENCY);
-			annoKeys.add(VariantRec.EFFECT_PREDICTION2);
-			pool.listAll(outputStream, annoKeys);
-			outputStream.close();
-			System.err.println("Final pool has " + pool.size() + " variants");
+			outputStream.flush();
+			System.err.println("Final pool has " + count + " variants");
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			closeQuietly(sorter);
+		}
 		
 		return;
 	}
@@ -0,0 +1,293 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts tab-separated variant lines, with the contig in the first column and the position in the second,
+ * without needing to hold them all in memory. Lines are collected until their total length reaches a limit,
+ * then sorted and written to a temporary file as a 'run'. Once all lines have been added, next() returns
+ * them in order by merging the runs, reading one line at a time from each.
+ * Contigs are ordered as in VarUtils.refOrder, ignoring any 'chr' prefix. Contigs not in that list come first,
+ * ordered by name. Lines with the same contig and position are returned in the order they were added, so
+ * callers can attach a file index or other information to a line and rely on the order of ties.
+ * Temporary files are removed when all lines have been read or the sorter is closed.
+ * @author brendan
+ *
+ */
+public class VariantLineSorter implements Closeable {
+
+	public static final long DEFAULT_MAX_CHARS = 1L << 25;
+
+	static final int UNKNOWN_CONTIG = -1;
+	private static final Map<String, Integer> contigRanks = new HashMap<String, Integer>();
+	static {
+		for(int i=0; i<VarUtils.refOrder.length; i++) {
+			contigRanks.put(VarUtils.refOrder[i], i);
+		}
+		contigRanks.put("M", contigRanks.get("MT"));
+	}
+
+	private final long maxChars;
+	private final File tmpDir;
+	private List<Line> buffer = new ArrayList<Line>();
+	private long bufferedChars = 0;
+	private final List<File> runs = new ArrayList<File>();
+	private final List<RunReader> readers = new ArrayList<RunReader>();
+	private PriorityQueue<Source> queue = null;
+
+	/**
+	 * Create a sorter that keeps up to DEFAULT_MAX_CHARS characters in memory and writes runs to the default
+	 * temporary directory
+	 */
+	public VariantLineSorter() {
+		this(DEFAULT_MAX_CHARS, null);
+	}
+
+	/**
+	 * Create a sorter that keeps up to maxChars characters of lines in memory and writes runs to tmpDir, or
+	 * the default temporary directory if tmpDir is null
+	 * @param maxChars
+	 * @param tmpDir
+	 */
+	public VariantLineSorter(long maxChars, File tmpDir) {
+		this.maxChars = maxChars;
+		this.tmpDir = tmpDir;
+	}
+
+	/**
+	 * Position of the contig in the sort order, or UNKNOWN_CONTIG if it is not in VarUtils.refOrder
+	 * @param contig
+	 * @return
+	 */
+	public static int contigRank(String contig) {
+		Integer rank = contigRanks.get(contig);
+		if (rank == null && contig.startsWith("chr")) {
+			rank = contigRanks.get(contig.substring(3));
+		}
+		return rank == null ? UNKNOWN_CONTIG : rank;
+	}
+
+	/**
+	 * Compare two (contig, position) pairs in sort order. Different names for the same contig (1 and chr1, say)
+	 * are ordered by name
+	 * @return
+	 */
+	public static int compare(int rankA, String contigA, int posA, int rankB, String contigB, int posB) {
+		if (rankA != rankB) {
+			return rankA < rankB ? -1 : 1;
+		}
+		if (contigA != contigB && !contigA.equals(contigB)) {
+			return contigA.compareTo(contigB);
+		}
+		return posA < posB ? -1 : (posA == posB ? 0 : 1);
+	}
+
+	/**
+	 * Add a line to be sorted. Lines can't be added after next() has been called
+	 * @param line
+	 * @throws IOException
+	 */
+	public void add(String line) throws IOException {
+		if (queue != null) {
+			throw new IllegalStateException("Cannot add lines after reading has started");
+		}
+		buffer.add(new Line(line));
+		bufferedChars += line.length();
+		if (bufferedChars >= maxChars) {
+			writeRun();
+		}
+	}
+
+	/**
+	 * Obtain the next line in sorted order, or null if there are no more lines
+	 * @return
+	 * @throws IOException
+	 */
+	public String next() throws IOException {
+		if (queue == null) {
+			startMerge();
+		}
+		Source source = queue.poll();
+		if (source == null) {
+			close();
+			return null;
+		}
+		String line = source.current.text;
+		if (source.advance()) {
+			queue.add(source);
+		}
+		return line;
+	}
+
+	/**
+	 * Number of runs written to disk so far
+	 * @return
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Removes all temporary files
+	 */
+	@Override
+	public void close() throws IOException {
+		for(RunReader reader : readers) {
+			reader.reader.close();
+		}
+		readers.clear();
+		for(File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+		buffer = new ArrayList<Line>();
+		if (queue != null) {
+			queue.clear();
+		}
+	}
+
+	private void writeRun() throws IOException {
+		Collections.sort(buffer, LINE_ORDER);
+		File run = File.createTempFile("varsort", ".txt", tmpDir);
+		run.deleteOnExit();
+		runs.add(run);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(run), 1 << 16);
+		for(Line line : buffer) {
+			writer.write(line.text);
+			writer.write('\n');
+		}
+		writer.close();
+		buffer = new ArrayList<Line>();
+		bufferedChars = 0;
+	}
+
+	private void startMerge() throws IOException {
+		Collections.sort(buffer, LINE_ORDER);
+		queue = new PriorityQueue<Source>(runs.size() + 1, new Comparator<Source>() {
+			@Override
+			public int compare(Source a, Source b) {
+				int comp = LINE_ORDER.compare(a.current, b.current);
+				if (comp == 0) {
+					comp = a.index - b.index;
+				}
+				return comp;
+			}
+		});
+
+		//Runs hold earlier lines than the buffer, and earlier runs hold earlier lines than later ones
+		for(int i=0; i<runs.size(); i++) {
+			RunReader reader = new RunReader(runs.get(i), i);
+			readers.add(reader);
+			if (reader.advance()) {
+				queue.add(reader);
+			}
+		}
+		Source remaining = new BufferSource(buffer, runs.size());
+		if (remaining.advance()) {
+			queue.add(remaining);
+		}
+	}
+
+	/**
+	 * A line and its parsed contig and position
+	 */
+	static class Line {
+		final String text;
+		final String contig;
+		final int rank;
+		final int pos;
+
+		Line(String text) {
+			this.text = text;
+			int tab = text.indexOf('\t');
+			if (tab < 0) {
+				throw new IllegalArgumentException("Could not find contig and position in line: " + text);
+			}
+			this.contig = text.substring(0, tab);
+			this.rank = contigRank(contig);
+			int end = text.indexOf('\t', tab+1);
+			if (end < 0) {
+				end = text.length();
+			}
+			this.pos = Integer.parseInt(text.substring(tab+1, end).trim());
+		}
+	}
+
+	private static final Comparator<Line> LINE_ORDER = new Comparator<Line>() {
+		@Override
+		public int compare(Line a, Line b) {
+			return VariantLineSorter.compare(a.rank, a.contig, a.pos, b.rank, b.contig, b.pos);
+		}
+	};
+
+	/**
+	 * A sorted sequence of lines taking part in the merge
+	 */
+	abstract static class Source {
+		final int index;
+		Line current = null;
+
+		Source(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Move to the next line, returning false if there are no more
+		 */
+		abstract boolean advance() throws IOException;
+	}
+
+	static class RunReader extends Source {
+		final BufferedReader reader;
+
+		RunReader(File run, int index) throws IOException {
+			super(index);
+			this.reader = new BufferedReader(new FileReader(run), 1 << 16);
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			String text = reader.readLine();
+			if (text == null) {
+				current = null;
+				return false;
+			}
+			current = new Line(text);
+			return true;
+		}
+	}
+
+	static class BufferSource extends Source {
+		final List<Line> lines;
+		int next = 0;
+
+		BufferSource(List<Line> lines, int index) {
+			super(index);
+			this.lines = lines;
+		}
+
+		@Override
+		boolean advance() {
+			if (next == lines.size()) {
+				current = null;
+				return false;
+			}
+			current = lines.get(next);
+			next++;
+			return true;
+		}
+	}
+}
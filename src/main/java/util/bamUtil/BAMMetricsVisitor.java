@@ -0,0 +1,134 @@
+package util.bamUtil;
+
+import math.Histogram;
+import net.sf.samtools.SAMRecord;
+import buffer.BAMMetrics;
+
+/**
+ * Collects the summary metrics in a BAMMetrics object: read counts, unmapped and duplicate reads, and
+ * mapping quality, insert size and base quality distributions. Base qualities are only examined for
+ * one in every ten reads. The results are written to the BAMMetrics given in the constructor when
+ * finish() is called.
+ * @author brendan
+ *
+ */
+public class BAMMetricsVisitor implements BAMRecordVisitor {
+
+	final static int baseSubSample = 1; //Only count 1 of every this many bases
+	final static int readSubSample = 10; //Only look at 1 out of this many reads for getting base quality info
+	
+	private final BAMMetrics metrics;
+	private final String path;
+	
+	int readCount = 0;
+	int unmappedCount = 0;
+	int unmappedMate = 0;
+	Histogram mqHisto = new Histogram(0, 80, 80);
+	Histogram insertSizeHisto = new Histogram(0, 1000, 100);
+	Histogram baseQHisto = new Histogram(0, 51, 51);
+	int dupCount = 0;
+	int failsVendorQuality = 0;
+	int hugeInsertSize = 0;
+	long basesAbove30 = 0;
+	long basesAbove20 = 0;
+	long basesAbove10 = 0;
+	long totalBaseCount = 0;
+	Histogram[] posHisto = null; 
+	
+	/**
+	 * Create a new visitor that will store its results in the given metrics object
+	 * @param metrics
+	 * @param path Path of the BAM file, stored in the metrics
+	 */
+	public BAMMetricsVisitor(BAMMetrics metrics, String path) {
+		this.metrics = metrics;
+		this.path = path;
+	}
+	
+	@Override
+	public void visit(SAMRecord samRecord) {
+		readCount++;
+		
+		mqHisto.addValue( samRecord.getMappingQuality() );
+		
+		boolean paired = samRecord.getReadPairedFlag();
+		
+		if (paired && samRecord.getMateUnmappedFlag())
+			unmappedMate++;
+		if (samRecord.getReadUnmappedFlag())
+			unmappedCount++;
+		if (samRecord.getReadFailsVendorQualityCheckFlag())
+			failsVendorQuality++;
+		if (samRecord.getDuplicateReadFlag())
+			dupCount++;
+		
+		//For a subset of reads we look at each base in the read to compute the
+		//distribution of base qualities, etc. 
+		boolean countEachBase = readCount % readSubSample == 0;
+		if (countEachBase) {
+			byte[] baseQuals = samRecord.getBaseQualities();
+			
+			if (posHisto == null) {
+				posHisto = new Histogram[ Math.max(100, baseQuals.length) ];
+				for(int i=0; i<posHisto.length; i++)
+					posHisto[i] = new Histogram(0, 40, 40);
+			}
+			
+			//Records may be shared with other visitors, so read second-of-pair qualities backwards
+			//instead of reversing them in place
+			boolean reversed = samRecord.getSecondOfPairFlag();
+			for(int i=0; i<baseQuals.length; i+=baseSubSample) {
+				final int bq = (int) baseQuals[reversed ? baseQuals.length-i-1 : i];
+				if (bq > 30)
+					basesAbove30+=readSubSample*baseSubSample;
+				if (bq > 20)
+					basesAbove20+=readSubSample*baseSubSample;
+				if (bq > 10)
+					basesAbove10+=readSubSample*baseSubSample;
+				baseQHisto.addValue( bq );
+
+				if (i < posHisto.length) {
+					int index = i;
+					if (paired && reversed) //invert for reverse orientation
+						index = posHisto.length - i -1;
+					posHisto[index].addValue( bq );
+				}
+			}
+			
+			totalBaseCount += readSubSample*baseQuals.length;
+		}//if we count examine each base in this read
+		
+		if(paired){
+			int insertSize = Math.abs( samRecord.getInferredInsertSize() );
+			if (insertSize > 10000) {
+				hugeInsertSize++;
+			}
+			else {
+				insertSizeHisto.addValue(insertSize);
+			}				
+		}
+	}
+
+	@Override
+	public void finish() {
+		metrics.path = path;
+		metrics.totalReads = readCount;
+		metrics.unmappedReads = unmappedCount;
+		metrics.duplicateReads = dupCount;
+		metrics.unmappedMates = unmappedMate;
+		metrics.lowVendorQualityReads = failsVendorQuality;
+		metrics.insertSizeHistogram = insertSizeHisto;
+		metrics.baseQualityHistogram = baseQHisto;
+		metrics.hugeInsertSize = hugeInsertSize;
+		metrics.basesQAbove10 = basesAbove10;
+		metrics.basesQAbove20 = basesAbove20;
+		metrics.basesQAbove30 = basesAbove30;
+		metrics.setMqHistogram(mqHisto);
+		metrics.basesRead = totalBaseCount;
+		metrics.readPosQualHistos = posHisto;
+	}
+	
+	public BAMMetrics getMetrics() {
+		return metrics;
+	}
+}
@@ -0,0 +1,26 @@
+package util.bamUtil;
+
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Something that looks at every record in a BAM file, typically to collect some metrics. Visitors are
+ * registered with a BAMVisitorPass, which reads the BAM once and hands each record to all of them, 
+ * in file order. A visitor may be called from a thread other than the one that created it, but it is
+ * only ever called from one thread at a time. Records are shared between visitors so they must not be modified. 
+ * @author brendan
+ *
+ */
+public interface BAMRecordVisitor {
+
+	/**
+	 * Called once for every record in the BAM, in file order
+	 * @param record
+	 */
+	public void visit(SAMRecord record);
+	
+	/**
+	 * Called after the last record has been visited. This is where results should be published.
+	 */
+	public void finish();
+	
+}
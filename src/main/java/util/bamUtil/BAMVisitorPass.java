@@ -0,0 +1,235 @@
+package util.bamUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Reads a BAM file once and hands every record to each of a number of BAMRecordVisitors, so several
+ * metrics can be collected for the cost of a single decode pass. 
+ * With one thread the visitors are called in turn as each record is read. With more, the visitors are
+ * spread over that many worker threads (at most one per visitor), each with its own bounded queue.
+ * The reading thread fully decodes records and puts them into batches, and each batch is shared by all of
+ * the queues, so the slowest group of visitors sets the pace and memory use stays bounded.  
+ * If a visitor throws an exception no further records are read and the exception is rethrown from run().
+ * @author brendan
+ *
+ */
+public class BAMVisitorPass {
+
+	public static final int BATCH_SIZE = 2048;
+	public static final int QUEUE_BATCHES = 8;
+	
+	//Placed on each queue after the last batch
+	private static final SAMRecord[] END = new SAMRecord[0];
+	
+	private final File bamFile;
+	private final List<BAMRecordVisitor> visitors = new ArrayList<BAMRecordVisitor>();
+	private int threads = 1;
+	private long recordsRead = 0;
+	
+	public BAMVisitorPass(File bamFile) {
+		this.bamFile = bamFile;
+	}
+	
+	public void addVisitor(BAMRecordVisitor visitor) {
+		visitors.add(visitor);
+	}
+	
+	/**
+	 * Set the number of threads used to run visitors. The thread that calls run() reads the BAM. 
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Total number of records read by the last call to run()
+	 * @return
+	 */
+	public long getRecordsRead() {
+		return recordsRead;
+	}
+	
+	/**
+	 * Read every record in the BAM, give it to all visitors, then call finish() on each visitor
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		recordsRead = 0;
+		SAMFileReader.setDefaultValidationStringency(ValidationStringency.LENIENT);
+		final SAMFileReader inputSam = new SAMFileReader(bamFile);
+		inputSam.setValidationStringency(ValidationStringency.LENIENT);
+		try {
+			int workers = Math.min(threads, visitors.size());
+			if (workers <= 1) {
+				runSerial(inputSam);
+			}
+			else {
+				runParallel(inputSam, workers);
+			}
+		}
+		finally {
+			inputSam.close();
+		}
+	}
+	
+	private void runSerial(SAMFileReader inputSam) {
+		for(final SAMRecord samRecord : inputSam) {
+			recordsRead++;
+			for(BAMRecordVisitor visitor : visitors) {
+				visitor.visit(samRecord);
+			}
+		}
+		for(BAMRecordVisitor visitor : visitors) {
+			visitor.finish();
+		}
+	}
+	
+	private void runParallel(SAMFileReader inputSam, int workerCount) throws InterruptedException {
+		List<VisitorWorker> workers = new ArrayList<VisitorWorker>();
+		for(int i=0; i<workerCount; i++) {
+			workers.add(new VisitorWorker());
+		}
+		for(int i=0; i<visitors.size(); i++) {
+			workers.get(i % workerCount).visitors.add(visitors.get(i));
+		}
+		
+		List<Thread> threadList = new ArrayList<Thread>();
+		for(VisitorWorker worker : workers) {
+			Thread t = new Thread(worker, "bam-visitor-" + threadList.size());
+			t.setDaemon(true);
+			t.start();
+			threadList.add(t);
+		}
+		
+		try {
+			SAMRecord[] batch = new SAMRecord[BATCH_SIZE];
+			int count = 0;
+			for(final SAMRecord samRecord : inputSam) {
+				recordsRead++;
+				decode(samRecord);
+				batch[count] = samRecord;
+				count++;
+				if (count == BATCH_SIZE) {
+					if (! publish(workers, batch)) {
+						break;
+					}
+					batch = new SAMRecord[BATCH_SIZE];
+					count = 0;
+				}
+			}
+			if (count > 0) {
+				SAMRecord[] partial = new SAMRecord[count];
+				System.arraycopy(batch, 0, partial, 0, count);
+				publish(workers, partial);
+			}
+		}
+		finally {
+			for(VisitorWorker worker : workers) {
+				worker.queue.put(END);
+			}
+			for(Thread t : threadList) {
+				t.join();
+			}
+		}
+		
+		for(VisitorWorker worker : workers) {
+			if (worker.error != null) {
+				if (worker.error instanceof RuntimeException) {
+					throw (RuntimeException)worker.error;
+				}
+				if (worker.error instanceof Error) {
+					throw (Error)worker.error;
+				}
+				throw new IllegalStateException("Error visiting BAM records: " + worker.error.getMessage(), worker.error);
+			}
+		}
+	}
+	
+	/**
+	 * Add the batch to every worker's queue, returns false if any worker has failed
+	 */
+	private static boolean publish(List<VisitorWorker> workers, SAMRecord[] batch) throws InterruptedException {
+		for(VisitorWorker worker : workers) {
+			if (worker.error != null) {
+				return false;
+			}
+		}
+		for(VisitorWorker worker : workers) {
+			worker.queue.put(batch);
+		}
+		return true;
+	}
+	
+	/**
+	 * BAM records decode most of their fields lazily, which isn't safe if several threads look at the same record,
+	 * so make sure everything has been decoded before handing the record off
+	 * @param rec
+	 */
+	private static void decode(SAMRecord rec) {
+		rec.getReadName();
+		rec.getCigar();
+		rec.getAlignmentEnd();
+		rec.getReadBases();
+		rec.getBaseQualities();
+		rec.getAttributes();
+	}
+	
+	/**
+	 * Runs a group of visitors on one thread, taking batches of records from a queue 
+	 */
+	static class VisitorWorker implements Runnable {
+		
+		final List<BAMRecordVisitor> visitors = new ArrayList<BAMRecordVisitor>();
+		final BlockingQueue<SAMRecord[]> queue = new ArrayBlockingQueue<SAMRecord[]>(QUEUE_BATCHES);
+		volatile Throwable error = null;
+		
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					SAMRecord[] batch = queue.take();
+					if (batch == END) {
+						break;
+					}
+					if (error != null) {
+						continue; //Keep draining the queue so the reader never blocks on us
+					}
+					try {
+						for(int i=0; i<batch.length; i++) {
+							for(BAMRecordVisitor visitor : visitors) {
+								visitor.visit(batch[i]);
+							}
+						}
+					}
+					catch (Throwable t) {
+						error = t;
+					}
+				}
+				if (error == null) {
+					for(BAMRecordVisitor visitor : visitors) {
+						visitor.finish();
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				error = e;
+			}
+			catch (Throwable t) {
+				error = t;
+			}
+		}
+	}
+}
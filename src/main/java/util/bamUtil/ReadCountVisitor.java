@@ -0,0 +1,60 @@
+package util.bamUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Counts the number of reads mapping to each contig with mapping quality at least some minimum
+ * @author brendan
+ *
+ */
+public class ReadCountVisitor implements BAMRecordVisitor {
+
+	private final int minMQScore;
+	private final Map<String, Long> readCounts = new HashMap<String, Long>();
+	
+	//Reads are sorted by contig in most BAMs, so count runs of the same contig before touching the map 
+	private String currentChr = null;
+	private long currentCount = 0;
+	
+	public ReadCountVisitor(int minMQScore) {
+		this.minMQScore = minMQScore;
+	}
+	
+	@Override
+	public void visit(SAMRecord samRecord) {
+		if (samRecord.getMappingQuality() < minMQScore) {
+			return;
+		}
+		String chr = samRecord.getReferenceName();
+		if (! chr.equals(currentChr)) {
+			flush();
+			currentChr = chr;
+		}
+		currentCount++;
+	}
+
+	private void flush() {
+		if (currentChr != null && currentCount > 0) {
+			Long count = readCounts.get(currentChr);
+			readCounts.put(currentChr, (count == null ? 0L : count) + currentCount);
+		}
+		currentCount = 0;
+	}
+	
+	@Override
+	public void finish() {
+		flush();
+		currentChr = null;
+	}
+	
+	/**
+	 * Map of contig name to number of reads mapping to it, available after finish() has been called
+	 * @return
+	 */
+	public Map<String, Long> getReadCounts() {
+		return readCounts;
+	}
+}
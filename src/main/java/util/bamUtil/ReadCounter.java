@@ -56,25 +56,17 @@ public class ReadCounter {
 	 */
 	public static Map<String, Long> countReadsByChromosome(BAMFile inputBAM, int minMQScore) {
 		
-		final SAMFileReader inputSam = new SAMFileReader(inputBAM.getFile());
-		inputSam.setValidationStringency(ValidationStringency.LENIENT);
-		
-		Map<String, Long> readCounts = new HashMap<String, Long>();
-		
-		for (final SAMRecord samRecord : inputSam) {
-			
-			String chr = samRecord.getReferenceName();
-			int mq = samRecord.getMappingQuality();
-			if (mq >= minMQScore) {
-				Long count = readCounts.get(chr);
-				if (count == null) {
-					count = 0L;
-				}
-				readCounts.put(chr, count+1);
-			}
+		ReadCountVisitor counter = new ReadCountVisitor(minMQScore);
+		BAMVisitorPass pass = new BAMVisitorPass(inputBAM.getFile());
+		pass.addVisitor(counter);
+		try {
+			pass.run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while counting reads in " + inputBAM.getAbsolutePath(), e);
 		}
 		
-		inputSam.close();
+		Map<String, Long> readCounts = counter.getReadCounts();
 		
 		for(String chr : readCounts.keySet()) {
 			System.out.println(chr + " : " + readCounts.get(chr));
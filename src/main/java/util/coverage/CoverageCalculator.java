@@ -20,7 +20,8 @@ import util.bamWindow.BamWindow;
 /**
  * A CoverageCalculator can quickly compute a histogram describing read depth
  * in the given BAM file in regions defined by the intervals list. It does this using multiple threads
- * and a BAMWindow object (one for each thread).   
+ * and a DepthHistogramEngine (one for each thread), which computes exact depths at every base. The older
+ * BamWindow-based approach, which only looks at every fourth base, can still be used by calling setExact(false)
  * @author brendan
  *
  */
@@ -33,6 +34,7 @@ public class CoverageCalculator {
 	private int minMQ = 0;
 	private final boolean countTemplates;
 	private boolean ignoreDups = true;
+	private boolean exact = true;
 	
 	/**
 	 * Creates a new CoverageCalculator object that will examine the given BAM file over
@@ -148,6 +150,19 @@ public class CoverageCalculator {
 	public int getMinMQ() {
 		return minMQ;
 	}
+	
+	/**
+	 * True if depths are computed exactly at every base with a DepthHistogramEngine, false if they
+	 * are sampled with a BamWindow
+	 * @return
+	 */
+	public boolean isExact() {
+		return exact;
+	}
+
+	public void setExact(boolean exact) {
+		this.exact = exact;
+	}
 
 	public void setMinMQ(int minMQ) {
 		this.minMQ = minMQ;
@@ -339,16 +354,17 @@ public class CoverageCalculator {
 		public void run() {
 			intervalResults = new ArrayList<IntervalCovSummary>();
 			try {
-				BamWindow window = new BamWindow(inputBam, minMQ);
-				
-				for(Interval interval : subIntervals) {
-					CovResult result = CoverageCalculator.calculateDepthHistogram(window, chr, interval.begin, interval.end, depths, countTemplates);
-					double mean = (double)result.covSum / (double)result.sitesAssessed;
-					IntervalCovSummary intervalCov = new IntervalCovSummary(chr, interval, mean);
-					intervalResults.add(intervalCov);
+				//Tally into our own histogram so jobs sharing the depths array don't step on each other
+				int[] localDepths = new int[depths.length];
+				if (exact) {
+					computeExact(localDepths);
+				}
+				else {
+					computeSampled(localDepths);
+				}
+				synchronized(depths) {
+					addFirstToSecond(localDepths, depths);
 				}
-				
-				window.close();
 				done = true;
 			}
 			catch (Exception ex) {
@@ -358,6 +374,41 @@ public class CoverageCalculator {
 			}
 		}
 		
+		private void computeExact(int[] localDepths) {
+			DepthHistogramEngine engine = new DepthHistogramEngine(inputBam, minMapQ, countTemplates);
+			engine.setIgnoreDups(ignoreDups);
+			long[] depthSums = new long[subIntervals.size()];
+			try {
+				covSum = engine.computeDepths(chr, subIntervals, localDepths, depthSums);
+			}
+			finally {
+				engine.close();
+			}
+			
+			for(int i=0; i<subIntervals.size(); i++) {
+				Interval interval = subIntervals.get(i);
+				int size = interval.end - interval.begin;
+				double mean = (double)depthSums[i] / (double)size;
+				intervalResults.add(new IntervalCovSummary(chr, interval, mean));
+				sitesAssessed += Math.max(0, size);
+			}
+		}
+		
+		private void computeSampled(int[] localDepths) {
+			BamWindow window = new BamWindow(inputBam, minMQ);
+			
+			for(Interval interval : subIntervals) {
+				CovResult result = CoverageCalculator.calculateDepthHistogram(window, chr, interval.begin, interval.end, localDepths, countTemplates);
+				double mean = (double)result.covSum / (double)result.sitesAssessed;
+				IntervalCovSummary intervalCov = new IntervalCovSummary(chr, interval, mean);
+				intervalResults.add(intervalCov);
+				sitesAssessed += result.sitesAssessed;
+				covSum += result.covSum;
+			}
+			
+			window.close();
+		}
+		
 		public boolean isDone() {
 			return done;
 		}
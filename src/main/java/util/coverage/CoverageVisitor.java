@@ -0,0 +1,112 @@
+package util.coverage;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.samtools.SAMRecord;
+import util.Interval;
+import util.bamUtil.BAMRecordVisitor;
+import buffer.DOCMetrics;
+
+/**
+ * Computes the exact read depth histogram over a set of intervals from the records of a coordinate-sorted
+ * BAM, as part of a BAMVisitorPass. This gives the same results as a CoverageCalculator, but shares the
+ * read of the BAM with other visitors instead of querying it separately. If a DOCMetrics object is given, 
+ * the mean coverage and coverage proportions are stored in it when finish() is called. 
+ * @author brendan
+ *
+ */
+public class CoverageVisitor implements BAMRecordVisitor {
+
+	private final HasIntervals intervals;
+	private final DOCMetrics metrics;
+	private final int minMQ;
+	private final boolean countTemplates;
+	private boolean ignoreDups = true;
+	
+	private final int[] depths = new int[32768];
+	private final Set<String> contigsDone = new HashSet<String>();
+	private final int[] span = new int[2];
+	private String currentContig = null;
+	private DepthSweep sweep = null;
+	private int prevStart = 0;
+	
+	public CoverageVisitor(HasIntervals intervals, DOCMetrics metrics, int minMQ, boolean countTemplates) {
+		this.intervals = intervals;
+		this.metrics = metrics;
+		this.minMQ = minMQ;
+		this.countTemplates = countTemplates;
+	}
+	
+	public void setIgnoreDups(boolean ignoreDups) {
+		this.ignoreDups = ignoreDups;
+	}
+	
+	@Override
+	public void visit(SAMRecord record) {
+		if (record.getReadUnmappedFlag()) {
+			return;
+		}
+		String contig = record.getReferenceName();
+		if (! contig.equals(currentContig)) {
+			finishContig();
+			if (contigsDone.contains(contig)) {
+				throw new IllegalStateException("BAM file is not sorted by coordinate, found reads from contig " + contig + " again after other contigs");
+			}
+			currentContig = contig;
+			prevStart = 0;
+			List<Interval> contigIntervals = intervals.getIntervalsForContig(contig);
+			if (contigIntervals != null && contigIntervals.size() > 0) {
+				sweep = new DepthSweep(contigIntervals, depths, null);
+			}
+		}
+		
+		int start = record.getAlignmentStart();
+		if (start < prevStart) {
+			throw new IllegalStateException("BAM file is not sorted by coordinate, read " + record.getReadName() + " at " + contig + ":" + start + " comes after position " + prevStart);
+		}
+		prevStart = start;
+		
+		if (sweep != null && DepthHistogramEngine.getDepthSpan(record, minMQ, ignoreDups, countTemplates, span)) {
+			sweep.add(span[0], span[1]);
+		}
+	}
+
+	private void finishContig() {
+		if (currentContig != null) {
+			if (sweep != null) {
+				sweep.finish();
+			}
+			contigsDone.add(currentContig);
+		}
+		currentContig = null;
+		sweep = null;
+	}
+	
+	@Override
+	public void finish() {
+		finishContig();
+		
+		//Intervals on contigs without any reads still count, at zero depth
+		for(String contig : intervals.getContigs()) {
+			if (! contigsDone.contains(contig)) {
+				new DepthSweep(intervals.getIntervalsForContig(contig), depths, null).finish();
+				contigsDone.add(contig);
+			}
+		}
+		
+		if (metrics != null) {
+			metrics.setDepthHistogram(depths);
+		}
+	}
+	
+	/**
+	 * The depth histogram, where the i-th element is the number of bases in the intervals with depth i. 
+	 * Only complete after finish() has been called. 
+	 * @return
+	 */
+	public int[] getDepthHistogram() {
+		return depths;
+	}
+}
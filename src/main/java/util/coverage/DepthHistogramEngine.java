@@ -0,0 +1,126 @@
+package util.coverage;
+
+import java.io.File;
+import java.util.List;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import util.Interval;
+
+/**
+ * Computes exact per-base read (or template) depths over a list of intervals on a single contig.
+ * Unlike the BamWindow approach this looks at every base, and doesn't create any objects per read:
+ * the reads overlapping the intervals are streamed once, in order, into a DepthSweep, which accumulates
+ * them in a primitive difference array.
+ *
+ * Depth at a position is the number of reads, passing the mapping quality and duplicate filters, whose
+ * alignment start is at or before the position and whose alignment end is at or after it, which is
+ * what BamWindow reports. When counting templates, each properly paired read that is the leftmost of
+ * its pair contributes a template spanning from its start to the end of its mate, and reads that aren't
+ * properly paired are their own template.
+ *
+ * An engine holds its own reader, so it should only be used by one thread at a time.
+ * @author brendan
+ *
+ */
+public class DepthHistogramEngine {
+
+	//When counting templates, also look at reads this far before the first interval, since their mates may overlap it
+	public static final int TEMPLATE_PADDING = 1000;
+
+	private final SAMFileReader samReader;
+	private final int minMQ;
+	private final boolean countTemplates;
+	private boolean ignoreDups = true;
+
+	public DepthHistogramEngine(File bamFile, int minMQ, boolean countTemplates) {
+		SAMFileReader.setDefaultValidationStringency(ValidationStringency.SILENT);
+		samReader = new SAMFileReader(bamFile);
+		samReader.setValidationStringency(ValidationStringency.SILENT);
+		this.minMQ = minMQ;
+		this.countTemplates = countTemplates;
+	}
+
+	public boolean isIgnoreDups() {
+		return ignoreDups;
+	}
+
+	public void setIgnoreDups(boolean ignoreDups) {
+		this.ignoreDups = ignoreDups;
+	}
+
+	/**
+	 * Compute depths over all of the given intervals on the given contig. The i-th element of depths is incremented
+	 * once for every base with a depth of i (depths greater than the length of the array go in the last element),
+	 * and depthSums[i] is incremented by the total depth over all bases in intervals[i] (the same length as intervals),
+	 * if it's not null. Overlapping intervals are computed independently, so bases in both count twice.
+	 * @param chr
+	 * @param intervals
+	 * @param depths
+	 * @param depthSums May be null
+	 * @return Sum of depths across all bases
+	 */
+	public long computeDepths(String chr, List<Interval> intervals, int[] depths, long[] depthSums) {
+		if (intervals.isEmpty()) {
+			return 0L;
+		}
+
+		DepthSweep sweep = new DepthSweep(intervals, depths, depthSums);
+		int queryStart = Math.max(1, sweep.getFirstPosition() - (countTemplates ? TEMPLATE_PADDING : 0));
+		int queryEnd = Math.max(queryStart, sweep.getLastPosition());
+
+		int[] span = new int[2];
+		SAMRecordIterator it = samReader.queryOverlapping(chr, queryStart, queryEnd);
+		try {
+			while(it.hasNext()) {
+				if (getDepthSpan(it.next(), minMQ, ignoreDups, countTemplates, span)) {
+					sweep.add(span[0], span[1]);
+				}
+			}
+		}
+		finally {
+			it.close();
+		}
+		return sweep.finish();
+	}
+
+	/**
+	 * Figure out the span of bases the given read adds depth to. Returns false if the read doesn't count towards
+	 * depth at all, otherwise stores the first and last (inclusive) positions in span[0] and span[1]
+	 * @param read
+	 * @param minMQ
+	 * @param ignoreDups
+	 * @param countTemplates If true, the span is that of the template the read came from
+	 * @param span
+	 * @return
+	 */
+	public static boolean getDepthSpan(SAMRecord read, int minMQ, boolean ignoreDups, boolean countTemplates, int[] span) {
+		if (read.getReadUnmappedFlag()
+				|| read.getMappingQuality() < minMQ
+				|| (ignoreDups && read.getDuplicateReadFlag())) {
+			return false;
+		}
+		int start = read.getAlignmentStart();
+		int end = read.getAlignmentEnd();
+		if (countTemplates) {
+			if (read.getProperPairFlag()
+					&& (!read.getMateUnmappedFlag())
+					&& read.getReferenceIndex().equals(read.getMateReferenceIndex())) {
+				int mateStart = read.getMateAlignmentStart();
+				if (mateStart < start) {
+					return false; //The template is counted with the mate
+				}
+				end = Math.max(end, mateStart + read.getReadLength());
+			}
+		}
+		span[0] = start;
+		span[1] = end;
+		return true;
+	}
+
+	public void close() {
+		samReader.close();
+	}
+}
@@ -0,0 +1,230 @@
+package util.coverage;
+
+import java.util.Arrays;
+import java.util.List;
+
+import util.Interval;
+
+/**
+ * Tallies exact per-base depths over a list of intervals on one contig from a stream of spans
+ * (typically read alignments) that arrive in order of increasing start. Each span adds a +1 at its
+ * start and a -1 just past its end into a primitive difference array covering a batch of nearby intervals.
+ * When a span starts past the end of the current batch, a prefix sum over the array gives the depth at
+ * every base in the batch, which is used to update the depth histogram and the per-interval depth sums,
+ * and the next batch begins. Spans that reach the start of the next batch are carried over into it
+ * as a pair of ints, so no objects are created per span. Batches can overlap, since a long interval
+ * overlapping the current batch may still start a new one.
+ *
+ * Call add(..) for each span and then finish() once all have been added.
+ * @author brendan
+ *
+ */
+public class DepthSweep {
+
+	//Max number of bases covered by one difference array, intervals longer than this are split up
+	public static final int MAX_BATCH_SPAN = 1 << 20;
+
+	//Intervals further apart than this go in separate batches
+	public static final int MAX_BATCH_GAP = 1 << 14;
+
+	private final int[] depths;
+	private final long[] depthSums;
+
+	//Intervals split into pieces no longer than MAX_BATCH_SPAN, sorted by start. Each holds the start in the upper bits
+	//and the index of the interval it came from in the lower bits
+	private final long[] pieces;
+	private final int[] pieceEnds;
+
+	//Pieces [first, last) are in the current batch
+	private int first = 0;
+	private int last = 0;
+	private int batchStart;
+	private int batchEnd;
+	private int carryFrom; //Spans ending at or after this reach the next batch
+	private int[] diff = new int[1024];
+
+	//Start and end of spans that extend past the end of the current batch
+	private int[] carryStarts = new int[256];
+	private int[] carryEnds = new int[256];
+	private int carryCount = 0;
+
+	private long total = 0L;
+
+	/**
+	 * Create a new sweep over the given intervals. The i-th element of depths is incremented
+	 * once for every base with a depth of i (depths greater than the length of the array go in the last element),
+	 * and depthSums[i] is incremented by the total depth over all bases in intervals[i] (the same length as intervals),
+	 * if it's not null. Overlapping intervals are computed independently, so bases in both count twice.
+	 * @param intervals
+	 * @param depths
+	 * @param depthSums May be null
+	 */
+	public DepthSweep(List<Interval> intervals, int[] depths, long[] depthSums) {
+		this.depths = depths;
+		this.depthSums = depthSums;
+
+		int pieceCount = 0;
+		for(Interval interval : intervals) {
+			pieceCount += Math.max(1, (interval.end - interval.begin + MAX_BATCH_SPAN - 1) / MAX_BATCH_SPAN);
+		}
+		pieces = new long[pieceCount];
+		pieceEnds = new int[pieceCount];
+		int p = 0;
+		for(int i=0; i<intervals.size(); i++) {
+			Interval interval = intervals.get(i);
+			int begin = interval.begin;
+			do {
+				pieces[p] = ((long)begin << 32) | i;
+				p++;
+				begin += MAX_BATCH_SPAN;
+			} while (begin < interval.end);
+		}
+		Arrays.sort(pieces);
+		for(int i=0; i<pieces.length; i++) {
+			int begin = pieceStart(i);
+			int end = intervals.get((int)pieces[i]).end;
+			pieceEnds[i] = Math.max(begin, Math.min(end, begin + MAX_BATCH_SPAN));
+		}
+
+		startBatch();
+	}
+
+	/**
+	 * First base covered by any interval, or -1 if there are no intervals
+	 * @return
+	 */
+	public int getFirstPosition() {
+		return pieces.length == 0 ? -1 : pieceStart(0);
+	}
+
+	/**
+	 * One past the last base covered by any interval, or -1 if there are no intervals
+	 * @return
+	 */
+	public int getLastPosition() {
+		if (pieces.length == 0) {
+			return -1;
+		}
+		int end = 0;
+		for(int i=0; i<pieceEnds.length; i++) {
+			end = Math.max(end, pieceEnds[i]);
+		}
+		return end;
+	}
+
+	private int pieceStart(int i) {
+		return (int)(pieces[i] >>> 32);
+	}
+
+	/**
+	 * Add a span covering the bases from start to end, inclusive. Spans must be added in order of start
+	 * @param start
+	 * @param end
+	 */
+	public void add(int start, int end) {
+		while(first < pieces.length && start >= batchEnd) {
+			finishBatch();
+			startBatch();
+		}
+		if (first < pieces.length) {
+			addSpan(start, end);
+		}
+	}
+
+	/**
+	 * Tally the depths for all remaining intervals, and return the sum of depths across all bases
+	 * @return
+	 */
+	public long finish() {
+		while(first < pieces.length) {
+			finishBatch();
+			startBatch();
+		}
+		return total;
+	}
+
+	/**
+	 * Collect the next pieces into a batch, clear the difference array and add the spans carried over
+	 * from the previous batch
+	 */
+	private void startBatch() {
+		if (first >= pieces.length) {
+			return;
+		}
+		batchStart = pieceStart(first);
+		batchEnd = pieceEnds[first];
+		last = first+1;
+		while(last < pieces.length) {
+			int begin = pieceStart(last);
+			int end = Math.max(batchEnd, pieceEnds[last]);
+			if (begin > batchEnd + MAX_BATCH_GAP || end - batchStart > MAX_BATCH_SPAN) {
+				break;
+			}
+			batchEnd = end;
+			last++;
+		}
+
+		//The next batch can start before this one ends, if its first piece overlaps this batch
+		carryFrom = last < pieces.length ? Math.min(batchEnd, pieceStart(last)) : batchEnd;
+
+		int span = batchEnd - batchStart;
+		if (diff.length < span+1) {
+			diff = new int[Math.max(span+1, 2*diff.length)];
+		}
+		Arrays.fill(diff, 0, span+1, 0);
+
+		int carried = carryCount;
+		carryCount = 0;
+		for(int i=0; i<carried; i++) {
+			addSpan(carryStarts[i], carryEnds[i]);
+		}
+	}
+
+	/**
+	 * Prefix sum the difference array to get the depth at every base, and tally them up for each piece
+	 */
+	private void finishBatch() {
+		int span = batchEnd - batchStart;
+		for(int i=1; i<span; i++) {
+			diff[i] += diff[i-1];
+		}
+		int maxDepth = depths.length-1;
+		for(int i=first; i<last; i++) {
+			int from = pieceStart(i) - batchStart;
+			int to = pieceEnds[i] - batchStart;
+			long sum = 0L;
+			for(int j=from; j<to; j++) {
+				int depth = diff[j];
+				sum += depth;
+				depths[depth < maxDepth ? depth : maxDepth]++;
+			}
+			if (depthSums != null) {
+				depthSums[(int)pieces[i]] += sum;
+			}
+			total += sum;
+		}
+		first = last;
+	}
+
+	/**
+	 * Add the (inclusive) span [start, end] to the difference array for the batch, and carry it to
+	 * the next batch if it reaches the start of that one
+	 */
+	private void addSpan(int start, int end) {
+		int from = Math.max(start, batchStart);
+		int to = Math.min(end+1, batchEnd);
+		if (from < to) {
+			diff[from-batchStart]++;
+			diff[to-batchStart]--;
+		}
+		if (end >= carryFrom) {
+			if (carryCount == carryStarts.length) {
+				carryStarts = Arrays.copyOf(carryStarts, 2*carryCount);
+				carryEnds = Arrays.copyOf(carryEnds, 2*carryCount);
+			}
+			carryStarts[carryCount] = start;
+			carryEnds[carryCount] = end;
+			carryCount++;
+		}
+	}
+}
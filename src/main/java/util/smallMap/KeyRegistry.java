@@ -0,0 +1,80 @@
+package util.smallMap;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process-wide registry that assigns each distinct String key a small, permanent int id.
+ * Property and annotation keys are drawn from a small set (a few hundred at most) but are
+ * stored on millions of variants, so keeping them as ids lets SlotMaps store values in compact
+ * arrays instead of a HashMap per record.
+ * Ids are assigned in order of first registration and are never reused.
+ * @author brendan
+ *
+ */
+public class KeyRegistry {
+
+	private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>(512);
+	private static volatile String[] keys = new String[512];
+	private static int count = 0;
+
+	/**
+	 * Return the id associated with the given key, assigning a new id if the key has not been seen before
+	 * @param key
+	 * @return
+	 */
+	public static int register(String key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Keys may not be null");
+		}
+		Integer id = ids.get(key);
+		if (id != null) {
+			return id;
+		}
+
+		synchronized(KeyRegistry.class) {
+			id = ids.get(key);
+			if (id == null) {
+				if (count == keys.length) {
+					keys = Arrays.copyOf(keys, keys.length*2);
+				}
+				id = count;
+				keys[id] = key;
+				count++;
+				ids.put(key, id); //Only published after the key array has been updated
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * Return the id of the given key, or -1 if the key has never been registered. This never assigns
+	 * a new id, so lookups of absent keys don't grow the registry
+	 * @param key
+	 * @return
+	 */
+	public static int lookup(Object key) {
+		if (key == null) {
+			return -1;
+		}
+		Integer id = ids.get(key);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Return the key associated with the given id
+	 * @param id
+	 * @return
+	 */
+	public static String getKey(int id) {
+		return keys[id];
+	}
+
+	/**
+	 * The total number of keys registered so far
+	 * @return
+	 */
+	public static int size() {
+		return ids.size();
+	}
+}
@@ -0,0 +1,260 @@
+package util.smallMap;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact String-keyed map for the small, shared vocabulary of property and annotation keys
+ * stored on VariantRecs. Keys are interned to int ids via the KeyRegistry and values are kept in a
+ * pair of parallel arrays sorted by id, so each map costs two small arrays instead of a HashMap
+ * table plus an entry object per key. Lookups are a registry hash plus a binary search over a
+ * handful of ints.
+ * Like SmallMap, no storage is allocated until the first put. Iteration order is the order
+ * in which keys were first registered, process-wide.
+ * This class is not thread safe.
+ * @author brendan
+ *
+ * @param <V>
+ */
+public class SlotMap<V> extends AbstractMap<String, V> {
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	private int[] ids = null;
+	private Object[] vals = null;
+	private int size = 0;
+
+	/**
+	 * Returns the slot holding the given key id, or -(insertion point)-1 if there is no such slot
+	 */
+	private int slotOf(int id) {
+		if (size == 0) {
+			return -1;
+		}
+		return Arrays.binarySearch(ids, 0, size, id);
+	}
+
+	/**
+	 * Obtain the value associated with the key with the given registry id
+	 * @param id
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V getById(int id) {
+		int slot = slotOf(id);
+		if (slot < 0) {
+			return null;
+		}
+		return (V)vals[slot];
+	}
+
+	/**
+	 * Associate the given value with the key with the given registry id
+	 * @param id
+	 * @param val
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V putById(int id, V val) {
+		int slot = slotOf(id);
+		if (slot >= 0) {
+			V prev = (V)vals[slot];
+			vals[slot] = val;
+			return prev;
+		}
+
+		int insertAt = -slot - 1;
+		if (ids == null) {
+			ids = new int[INITIAL_CAPACITY];
+			vals = new Object[INITIAL_CAPACITY];
+		}
+		else if (size == ids.length) {
+			int newCapacity = ids.length + (ids.length >> 1) + 1;
+			ids = Arrays.copyOf(ids, newCapacity);
+			vals = Arrays.copyOf(vals, newCapacity);
+		}
+		System.arraycopy(ids, insertAt, ids, insertAt+1, size - insertAt);
+		System.arraycopy(vals, insertAt, vals, insertAt+1, size - insertAt);
+		ids[insertAt] = id;
+		vals[insertAt] = val;
+		size++;
+		return null;
+	}
+
+	private void removeSlot(int slot) {
+		System.arraycopy(ids, slot+1, ids, slot, size - slot - 1);
+		System.arraycopy(vals, slot+1, vals, slot, size - slot - 1);
+		size--;
+		vals[size] = null;
+	}
+
+	@Override
+	public V get(Object key) {
+		int id = KeyRegistry.lookup(key);
+		if (id < 0) {
+			return null;
+		}
+		return getById(id);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		int id = KeyRegistry.lookup(key);
+		return id >= 0 && slotOf(id) >= 0;
+	}
+
+	@Override
+	public V put(String key, V val) {
+		return putById(KeyRegistry.register(key), val);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V remove(Object key) {
+		int id = KeyRegistry.lookup(key);
+		if (id < 0) {
+			return null;
+		}
+		int slot = slotOf(id);
+		if (slot < 0) {
+			return null;
+		}
+		V prev = (V)vals[slot];
+		removeSlot(slot);
+		return prev;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public void clear() {
+		ids = null;
+		vals = null;
+		size = 0;
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new SlotIterator<String>() {
+					@Override
+					String current(int slot) {
+						return KeyRegistry.getKey(ids[slot]);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public boolean contains(Object key) {
+				return containsKey(key);
+			}
+		};
+	}
+
+	@Override
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new SlotIterator<V>() {
+					@SuppressWarnings("unchecked")
+					@Override
+					V current(int slot) {
+						return (V)vals[slot];
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		return new AbstractSet<Map.Entry<String, V>>() {
+			@Override
+			public Iterator<Map.Entry<String, V>> iterator() {
+				return new SlotIterator<Map.Entry<String, V>>() {
+					@SuppressWarnings("unchecked")
+					@Override
+					Map.Entry<String, V> current(final int slot) {
+						return new AbstractMap.SimpleEntry<String, V>(KeyRegistry.getKey(ids[slot]), (V)vals[slot]) {
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							public V setValue(V value) {
+								vals[slot] = value;
+								return super.setValue(value);
+							}
+						};
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Base iterator over occupied slots, supports removal
+	 */
+	private abstract class SlotIterator<T> implements Iterator<T> {
+		int next = 0;
+		int last = -1;
+
+		abstract T current(int slot);
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public T next() {
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			next++;
+			return current(last);
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			removeSlot(last);
+			next = last;
+			last = -1;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package util.tribble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import org.broad.tribble.readers.TabixReader;
+import org.broad.tribble.util.SeekableStream;
+
+/**
+ * A drop-in replacement for tribble's TabixReader that reads blocks and indexes through the process-wide
+ * TabixCache, so that many readers (one per contig, per annotator, per thread...) over the same file share
+ * one parsed index and each decompressed block. Queries return exactly the same lines as TabixReader.
+ * As with TabixReader, a single instance should not be used from multiple threads, but any number of
+ * instances may be open on the same file. Unlike TabixReader, an instance holds an open file handle, so
+ * call close() when done.
+ * @author brendan
+ *
+ */
+public class CachingTabixReader extends TabixReader {
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final String fileKey;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final TabixIndex index;
+	private Cursor lineCursor = null; //Used only by readLine()
+
+	public CachingTabixReader(String path) throws IOException {
+		super(path, (SeekableStream)null); //Doesn't read anything, readIndex() is overridden below
+		File file = new File(path);
+		this.fileKey = TabixCache.fileKey(file);
+		this.index = TabixCache.getIndex(file);
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.mChr2tid = index.chr2tid;
+	}
+
+	/**
+	 * The index is obtained from the TabixCache instead
+	 */
+	@Override
+	public void readIndex() throws IOException {
+		//Blank on purpose
+	}
+
+	/**
+	 * Read the next line from the data file, starting from the beginning of the file
+	 */
+	@Override
+	public String readLine() throws IOException {
+		if (lineCursor == null) {
+			lineCursor = new Cursor();
+			lineCursor.seek(0);
+		}
+		return lineCursor.readLine();
+	}
+
+	@Override
+	public TabixReader.Iterator query(int tid, int beg, int end) {
+		long[] chunks = index.getChunks(tid, beg, end);
+		if (chunks == null) {
+			return null;
+		}
+		return new CachedIterator(tid, beg, end, chunks);
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			//Nothing to do
+		}
+		super.close();
+	}
+
+	/**
+	 * A position in the decompressed data, reading lines through the cache
+	 */
+	private class Cursor {
+		private long blockAddress = 0;
+		private TabixCache.Block block = null;
+		private int offset = 0;
+
+		void seek(long virtualOffset) throws IOException {
+			long address = virtualOffset >>> 16;
+			if (block == null || address != blockAddress) {
+				blockAddress = address;
+				block = TabixCache.getBlock(fileKey, channel, address);
+			}
+			offset = (int)(virtualOffset & 0xFFFF);
+			if (block != null && offset > block.data.length) {
+				throw new IOException("Invalid file pointer: " + virtualOffset);
+			}
+		}
+
+		/**
+		 * The virtual offset of the next byte to be read, pointing at the start of the next block if
+		 * we're at the end of this one (as BlockCompressedInputStream does)
+		 */
+		long getFilePointer() {
+			if (block != null && offset == block.data.length) {
+				return (blockAddress + block.compressedLength) << 16;
+			}
+			return (blockAddress << 16) | offset;
+		}
+
+		/**
+		 * Advance to the next block if this one's used up, returns false at the end of the file
+		 */
+		private boolean ensureAvailable() throws IOException {
+			while (block != null && offset == block.data.length) {
+				if (block.data.length == 0) {
+					return false; //Empty terminator block
+				}
+				blockAddress += block.compressedLength;
+				block = TabixCache.getBlock(fileKey, channel, blockAddress);
+				offset = 0;
+			}
+			return block != null && block.data.length > 0;
+		}
+
+		/**
+		 * Read bytes up to the next newline. As with TabixReader, returns null at the end of the file even if
+		 * the last line wasn't terminated
+		 */
+		String readLine() throws IOException {
+			if (! ensureAvailable()) {
+				return null;
+			}
+
+			//Common case, the whole line is inside this block
+			byte[] data = block.data;
+			for(int i=offset; i<data.length; i++) {
+				if (data[i] == '\n') {
+					String line = new String(data, offset, i-offset, LATIN1);
+					offset = i+1;
+					return line;
+				}
+			}
+
+			StringBuilder buf = new StringBuilder();
+			while (ensureAvailable()) {
+				data = block.data;
+				int i = offset;
+				while (i < data.length && data[i] != '\n') {
+					i++;
+				}
+				buf.append(new String(data, offset, i-offset, LATIN1));
+				if (i < data.length) {
+					offset = i+1;
+					return buf.toString();
+				}
+				offset = i;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Same chunk-walking logic as TabixReader.Iterator, but reading through a Cursor
+	 */
+	private class CachedIterator extends TabixReader.Iterator {
+		private final int tid;
+		private final int beg;
+		private final int end;
+		private final long[] chunks;
+		private final Cursor cursor = new Cursor();
+		private final int[] intv = new int[3];
+		private int i = -1;
+		private long currOff = 0;
+		private boolean isEOF = false;
+
+		CachedIterator(int tid, int beg, int end, long[] chunks) {
+			super(tid, beg, end, null);
+			this.tid = tid;
+			this.beg = beg;
+			this.end = end;
+			this.chunks = chunks;
+		}
+
+		@Override
+		public String next() throws IOException {
+			if (isEOF) return null;
+			int nChunks = chunks.length / 2;
+			for (;;) {
+				if (currOff == 0 || !TabixIndex.less64(currOff, chunks[2*i+1])) { // then jump to the next chunk
+					if (i == nChunks - 1) break; // no more chunks
+					if (i < 0 || chunks[2*i+1] != chunks[2*(i+1)]) { // not adjacent chunks; then seek
+						cursor.seek(chunks[2*(i+1)]);
+						currOff = cursor.getFilePointer();
+					}
+					++i;
+				}
+				String s = cursor.readLine();
+				if (s != null) {
+					currOff = cursor.getFilePointer();
+					if (s.length() == 0 || s.charAt(0) == index.meta) continue;
+					index.getInterval(s, intv);
+					if (intv[0] != tid || intv[1] >= end) break; // no need to proceed
+					else if (intv[2] > beg && intv[1] < end) return s; // overlap; return
+				} else break; // end of file
+			}
+			isEOF = true;
+			return null;
+		}
+	}
+}
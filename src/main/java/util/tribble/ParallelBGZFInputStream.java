@@ -0,0 +1,264 @@
+package util.tribble;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An InputStream that decompresses a BGZF (block gzip, as written by bgzip) file, inflating a number
+ * of blocks ahead of the reader on a pool of worker threads. Compressed blocks are read sequentially
+ * from the underlying stream and their inflated contents are returned strictly in file order, so the
+ * output is exactly what GZIPInputStream would produce.
+ * Blocks are inflated on a single pool of daemon threads shared by all streams, with one thread per
+ * processor, so opening many streams doesn't start more threads. The thread count given to a stream only
+ * limits how many of its blocks are inflated ahead of the reader.
+ * Closing this stream cancels any blocks still being inflated and closes the underlying stream.
+ * @author brendan
+ *
+ */
+public class ParallelBGZFInputStream extends InputStream {
+
+	private static ExecutorService sharedWorkers = null; //Created on first use, guarded by the class
+
+	private final InputStream in;
+	private final ExecutorService workers;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final int maxPending;
+
+	private long compressedOffset = 0; //Offset in the file of the next block to read, for error messages
+	private boolean sourceDone = false;
+	private byte[] current = null;
+	private int pos = 0;
+	private boolean closed = false;
+
+	/**
+	 * Decompress the given stream using the given number of threads. With one thread blocks are inflated
+	 * on the calling thread as they're needed
+	 * @param in
+	 * @param threads
+	 */
+	public ParallelBGZFInputStream(InputStream in, int threads) {
+		this.in = in;
+		if (threads > 1) {
+			workers = getSharedWorkers();
+			maxPending = 4*threads;
+		}
+		else {
+			workers = null;
+			maxPending = 1;
+		}
+	}
+
+	private static synchronized ExecutorService getSharedWorkers() {
+		if (sharedWorkers == null) {
+			sharedWorkers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bgzf-inflater");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sharedWorkers;
+	}
+
+	public ParallelBGZFInputStream(File file, int threads) throws IOException {
+		this(new BufferedInputStream(new FileInputStream(file), 65536), threads);
+	}
+
+	/**
+	 * True if the file starts with a BGZF block header
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBGZF(File file) throws IOException {
+		byte[] header = new byte[TabixCache.BLOCK_HEADER_LENGTH];
+		InputStream str = new FileInputStream(file);
+		try {
+			if (readFully(str, header, 0, header.length) != header.length) {
+				return false;
+			}
+			TabixCache.checkHeader(header, 0);
+			return true;
+		}
+		catch (IOException ex) {
+			return false;
+		}
+		finally {
+			str.close();
+		}
+	}
+
+	private static int readFully(InputStream str, byte[] dest, int offset, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int n = str.read(dest, offset + total, length - total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Read the next compressed block from the source, or return null at the end of the source
+	 */
+	private byte[] readCompressedBlock() throws IOException {
+		byte[] header = new byte[TabixCache.BLOCK_HEADER_LENGTH];
+		int read = readFully(in, header, 0, header.length);
+		if (read == 0) {
+			return null;
+		}
+		if (read != header.length) {
+			throw new IOException("Premature end of file reading block header at offset " + compressedOffset);
+		}
+		int blockLength = TabixCache.checkHeader(header, compressedOffset);
+		byte[] compressed = new byte[blockLength];
+		System.arraycopy(header, 0, compressed, 0, header.length);
+		read = readFully(in, compressed, header.length, blockLength - header.length);
+		if (read != blockLength - header.length) {
+			throw new IOException("Premature end of file reading block at offset " + compressedOffset);
+		}
+		return compressed;
+	}
+
+	/**
+	 * Read compressed blocks and queue them for inflation until enough are in flight
+	 */
+	private void fillPending() throws IOException {
+		while (!sourceDone && pending.size() < maxPending) {
+			final byte[] compressed = readCompressedBlock();
+			if (compressed == null) {
+				sourceDone = true;
+				break;
+			}
+			final long offset = compressedOffset;
+			compressedOffset += compressed.length;
+			if (workers == null) {
+				pending.add(new InflatedBlock(TabixCache.inflate(compressed, compressed.length, offset)));
+			}
+			else {
+				pending.add(workers.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						return TabixCache.inflate(compressed, compressed.length, offset);
+					}
+				}));
+			}
+		}
+	}
+
+	/**
+	 * Make sure there's at least one unread byte in the current block, returns false at the end of the data
+	 */
+	private boolean ensureAvailable() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		while (current == null || pos == current.length) {
+			fillPending();
+			Future<byte[]> next = pending.poll();
+			if (next == null) {
+				return false;
+			}
+			try {
+				current = next.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for block to inflate");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new IOException("Error inflating block: " + e.getCause(), e.getCause());
+			}
+			pos = 0;
+			fillPending(); //Keep the workers busy while the caller consumes this block
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (! ensureAvailable()) {
+			return -1;
+		}
+		return current[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (! ensureAvailable()) {
+			return -1;
+		}
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null ? 0 : current.length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for(Future<byte[]> f : pending) {
+			f.cancel(true);
+		}
+		pending.clear();
+		in.close();
+	}
+
+	/**
+	 * An already-inflated block, used when there are no worker threads
+	 */
+	private static class InflatedBlock implements Future<byte[]> {
+		private final byte[] data;
+
+		InflatedBlock(byte[] data) {
+			this.data = data;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return true;
+		}
+
+		public byte[] get() {
+			return data;
+		}
+
+		public byte[] get(long timeout, TimeUnit unit) {
+			return data;
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package util.tribble;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A process-wide, size-bounded LRU cache of decompressed BGZF blocks and parsed tabix indexes, shared
+ * by all CachingTabixReaders. Blocks are keyed by file and compressed block offset (the upper 48 bits
+ * of a virtual file offset), so several annotators reading the same database, or several threads reading
+ * nearby regions, only inflate each block once.
+ * The block cache is split into a number of independently locked stripes, each with its own LRU list and
+ * share of the total byte budget, so concurrent readers rarely contend for the same lock. Blocks are inflated
+ * outside of any lock; if two threads miss on the same block at once both inflate it and the second put wins.
+ * @author brendan
+ *
+ */
+public class TabixCache {
+
+	//Pipeline property used to set the size of the block cache, in megabytes
+	public static final String CACHE_SIZE_MB = "tabix.cache.mb";
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024L * 1024L;
+
+	private static final int STRIPES = 16;
+	private static final int MAX_INDEXES = 64;
+
+	static final int BLOCK_HEADER_LENGTH = 18;
+	private static final int MAX_BLOCK_LENGTH = 64 * 1024;
+
+	private static volatile long maxBytes = DEFAULT_MAX_BYTES;
+	private static final Stripe[] stripes = new Stripe[STRIPES];
+	static {
+		for(int i=0; i<STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	private static final LinkedHashMap<String, TabixIndex> indexes = new LinkedHashMap<String, TabixIndex>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TabixIndex> eldest) {
+			return size() > MAX_INDEXES;
+		}
+	};
+
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong evictions = new AtomicLong();
+	private static final AtomicLong indexHits = new AtomicLong();
+	private static final AtomicLong indexMisses = new AtomicLong();
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/**
+	 * A single decompressed block, along with the length of the compressed block so we can find the next one
+	 */
+	static final class Block {
+		final byte[] data;
+		final int compressedLength;
+
+		Block(byte[] data, int compressedLength) {
+			this.data = data;
+			this.compressedLength = compressedLength;
+		}
+	}
+
+	private static final class BlockKey {
+		final String file;
+		final long offset;
+		final int hash;
+
+		BlockKey(String file, long offset) {
+			this.file = file;
+			this.offset = offset;
+			this.hash = 31*file.hashCode() + (int)(offset ^ (offset >>> 32));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (! (obj instanceof BlockKey)) {
+				return false;
+			}
+			BlockKey other = (BlockKey)obj;
+			return offset == other.offset && file.equals(other.file);
+		}
+	}
+
+	/**
+	 * One independently locked slice of the block cache
+	 */
+	private static final class Stripe {
+		final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<BlockKey, Block>(64, 0.75f, true);
+		long bytes = 0;
+
+		synchronized Block get(BlockKey key) {
+			return blocks.get(key);
+		}
+
+		synchronized void put(BlockKey key, Block block, long budget) {
+			Block prev = blocks.put(key, block);
+			if (prev != null) {
+				bytes -= prev.data.length;
+			}
+			bytes += block.data.length;
+
+			Iterator<Block> it = blocks.values().iterator();
+			while (bytes > budget && it.hasNext()) {
+				Block eldest = it.next();
+				if (eldest == block) {
+					break; //Never evict what we just added
+				}
+				bytes -= eldest.data.length;
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void clear() {
+			blocks.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * A string that identifies the given file's current contents, so that blocks cached from a file that
+	 * has since been replaced are never returned
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static String fileKey(File file) throws IOException {
+		return file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+	}
+
+	/**
+	 * Obtain the decompressed BGZF block starting at the given compressed offset in the file, reading and
+	 * inflating it if it's not in the cache. Returns null if the offset is at or past the end of the file.
+	 * @param fileKey Key for the file, from fileKey()
+	 * @param channel Open channel for the file, only positional reads are used so this may be shared across threads
+	 * @param offset Compressed offset of the start of the block
+	 * @return
+	 * @throws IOException
+	 */
+	static Block getBlock(String fileKey, FileChannel channel, long offset) throws IOException {
+		BlockKey key = new BlockKey(fileKey, offset);
+		Stripe stripe = stripes[(key.hash & 0x7fffffff) % STRIPES];
+		Block block = stripe.get(key);
+		if (block != null) {
+			hits.incrementAndGet();
+			return block;
+		}
+
+		misses.incrementAndGet();
+		block = readBlock(channel, offset);
+		if (block != null) {
+			stripe.put(key, block, maxBytes / STRIPES);
+		}
+		return block;
+	}
+
+	/**
+	 * Read and inflate a single BGZF block from the channel
+	 */
+	private static Block readBlock(FileChannel channel, long offset) throws IOException {
+		byte[] header = new byte[BLOCK_HEADER_LENGTH];
+		int read = readFully(channel, offset, header, 0, BLOCK_HEADER_LENGTH);
+		if (read == 0) {
+			return null;
+		}
+		if (read != BLOCK_HEADER_LENGTH) {
+			throw new IOException("Premature end of file reading block header at offset " + offset);
+		}
+		int blockLength = checkHeader(header, offset);
+
+		byte[] compressed = new byte[blockLength];
+		System.arraycopy(header, 0, compressed, 0, BLOCK_HEADER_LENGTH);
+		read = readFully(channel, offset + BLOCK_HEADER_LENGTH, compressed, BLOCK_HEADER_LENGTH, blockLength - BLOCK_HEADER_LENGTH);
+		if (read != blockLength - BLOCK_HEADER_LENGTH) {
+			throw new IOException("Premature end of file reading block at offset " + offset);
+		}
+
+		return new Block(inflate(compressed, blockLength, offset), blockLength);
+	}
+
+	/**
+	 * Verify that the given bytes are a BGZF block header and return the total length of the compressed
+	 * block, including the header
+	 * @param header At least BLOCK_HEADER_LENGTH bytes from the start of the block
+	 * @param offset Offset of the block, used only for error messages
+	 * @return
+	 * @throws IOException
+	 */
+	static int checkHeader(byte[] header, long offset) throws IOException {
+		if (header[0] != 31 || (header[1] & 0xFF) != 139 || (header[3] & 4) == 0 || header[12] != 66 || header[13] != 67) {
+			throw new IOException("Invalid BGZF block header at offset " + offset);
+		}
+
+		int blockLength = ((header[16] & 0xFF) | ((header[17] & 0xFF) << 8)) + 1;
+		if (blockLength < BLOCK_HEADER_LENGTH || blockLength > MAX_BLOCK_LENGTH) {
+			throw new IOException("Unexpected compressed block length: " + blockLength + " at offset " + offset);
+		}
+		return blockLength;
+	}
+
+	/**
+	 * Inflate a complete compressed BGZF block (header, deflated data and footer). This may be called from any thread.
+	 * @param compressed
+	 * @param blockLength
+	 * @param offset Offset of the block, used only for error messages
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] inflate(byte[] compressed, int blockLength, long offset) throws IOException {
+		int uncompressedLength = (compressed[blockLength-4] & 0xFF)
+							| ((compressed[blockLength-3] & 0xFF) << 8)
+							| ((compressed[blockLength-2] & 0xFF) << 16)
+							| ((compressed[blockLength-1] & 0xFF) << 24);
+		byte[] data = new byte[uncompressedLength];
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(compressed, BLOCK_HEADER_LENGTH, blockLength - BLOCK_HEADER_LENGTH - 8);
+		try {
+			int inflated = 0;
+			while (inflated < uncompressedLength) {
+				int n = inflater.inflate(data, inflated, uncompressedLength - inflated);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					break;
+				}
+				inflated += n;
+			}
+			if (inflated != uncompressedLength) {
+				throw new IOException("Expected " + uncompressedLength + " bytes from block at offset " + offset + " but inflated " + inflated);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Could not inflate block at offset " + offset + ": " + e.getLocalizedMessage());
+		}
+		return data;
+	}
+
+	private static int readFully(FileChannel channel, long position, byte[] dest, int destOffset, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(dest, destOffset, length);
+		int total = 0;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position + total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Obtain the parsed tabix index for the given data file, reading it from the .tbi file alongside
+	 * the data if it hasn't been read already
+	 * @param dataFile
+	 * @return
+	 * @throws IOException
+	 */
+	static TabixIndex getIndex(File dataFile) throws IOException {
+		File indexFile = new File(dataFile.getPath() + ".tbi");
+		String key = fileKey(indexFile);
+
+		synchronized(indexes) {
+			TabixIndex index = indexes.get(key);
+			if (index != null) {
+				indexHits.incrementAndGet();
+				return index;
+			}
+		}
+
+		indexMisses.incrementAndGet();
+		TabixIndex index = TabixIndex.read(indexFile);
+		synchronized(indexes) {
+			indexes.put(key, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Set the maximum total size of decompressed blocks to retain. This takes effect as new blocks are added
+	 * @param bytes
+	 */
+	public static void setMaxBytes(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Cache size cannot be negative");
+		}
+		maxBytes = bytes;
+	}
+
+	public static long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Total size of all decompressed blocks currently cached
+	 * @return
+	 */
+	public static long getCachedBytes() {
+		long total = 0;
+		for(Stripe stripe : stripes) {
+			synchronized(stripe) {
+				total += stripe.bytes;
+			}
+		}
+		return total;
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	public static long getEvictions() {
+		return evictions.get();
+	}
+
+	public static long getIndexHits() {
+		return indexHits.get();
+	}
+
+	public static long getIndexMisses() {
+		return indexMisses.get();
+	}
+
+	/**
+	 * Fraction of block requests served from the cache, or 0 if there haven't been any
+	 * @return
+	 */
+	public static double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : (double)h / (double)total;
+	}
+
+	/**
+	 * Human-readable summary of the cache metrics, suitable for logging
+	 * @return
+	 */
+	public static String getStatsSummary() {
+		return "blocks hits: " + hits.get() + " misses: " + misses.get()
+				+ " evictions: " + evictions.get()
+				+ " hit rate: " + String.format("%.3f", getHitRate())
+				+ " cached: " + (getCachedBytes() / 1024) + "Kb of " + (maxBytes / 1024) + "Kb"
+				+ ", indexes hits: " + indexHits.get() + " misses: " + indexMisses.get();
+	}
+
+	/**
+	 * Remove all cached blocks and indexes and reset all metrics
+	 */
+	public static void clear() {
+		for(Stripe stripe : stripes) {
+			stripe.clear();
+		}
+		synchronized(indexes) {
+			indexes.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+		indexHits.set(0);
+		indexMisses.set(0);
+	}
+}
@@ -0,0 +1,292 @@
+package util.tribble;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An immutable, parsed tabix (.tbi) index. Instances are shared across threads and readers
+ * via the TabixCache. Chunk selection and interval parsing follow tribble's TabixReader exactly, so
+ * queries return the same records.
+ * @author brendan
+ *
+ */
+public class TabixIndex {
+
+	private static final int MAX_BIN = 37450;
+	private static final int TAD_LIDX_SHIFT = 14;
+
+	final int preset;
+	final int seqCol;
+	final int begCol;
+	final int endCol;
+	final int meta;
+	final int skip;
+	final String[] seqs;
+	final HashMap<String, Integer> chr2tid;
+
+	//Per sequence, map from bin to (start, end) pairs of virtual offsets stored flat
+	private final List<Map<Integer, long[]>> bins;
+	private final long[][] linear;
+
+	@SuppressWarnings("unchecked")
+	private TabixIndex(ByteBuffer buf) throws IOException {
+		byte[] magic = new byte[4];
+		buf.get(magic);
+		if (magic[0] != 'T' || magic[1] != 'B' || magic[2] != 'I' || magic[3] != 1) {
+			throw new IOException("Not a tabix index (bad magic number)");
+		}
+		int nSeqs = buf.getInt();
+		preset = buf.getInt();
+		seqCol = buf.getInt();
+		begCol = buf.getInt();
+		endCol = buf.getInt();
+		meta = buf.getInt();
+		skip = buf.getInt();
+
+		byte[] names = new byte[buf.getInt()];
+		buf.get(names);
+		seqs = new String[nSeqs];
+		chr2tid = new HashMap<String, Integer>();
+		int k = 0;
+		for(int i=0, j=0; i<names.length; i++) {
+			if (names[i] == 0) {
+				String s = new String(names, j, i-j);
+				chr2tid.put(s, k);
+				seqs[k++] = s;
+				j = i+1;
+			}
+		}
+
+		bins = new ArrayList<Map<Integer, long[]>>(nSeqs);
+		linear = new long[nSeqs][];
+		for(int i=0; i<nSeqs; i++) {
+			int nBins = buf.getInt();
+			Map<Integer, long[]> seqBins = new HashMap<Integer, long[]>(nBins*2);
+			bins.add(seqBins);
+			for(int j=0; j<nBins; j++) {
+				int bin = buf.getInt();
+				long[] chunks = new long[2*buf.getInt()];
+				for(int c=0; c<chunks.length; c++) {
+					chunks[c] = buf.getLong();
+				}
+				seqBins.put(bin, chunks);
+			}
+			linear[i] = new long[buf.getInt()];
+			for(int j=0; j<linear[i].length; j++) {
+				linear[i][j] = buf.getLong();
+			}
+		}
+	}
+
+	/**
+	 * Read and parse the given .tbi file
+	 * @param indexFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static TabixIndex read(File indexFile) throws IOException {
+		//BGZF is valid multi-member gzip, which GZIPInputStream reads straight through
+		InputStream in = new GZIPInputStream(new FileInputStream(indexFile), 65536);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE, 4*indexFile.length()));
+		try {
+			byte[] buf = new byte[65536];
+			int n = in.read(buf);
+			while (n >= 0) {
+				bytes.write(buf, 0, n);
+				n = in.read(buf);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return new TabixIndex(ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+	/**
+	 * Return the id of the sequence with the given name, or -1 if there's no such sequence
+	 * @param chr
+	 * @return
+	 */
+	public int getTid(String chr) {
+		Integer tid = chr2tid.get(chr);
+		return tid == null ? -1 : tid;
+	}
+
+	private static int reg2bins(int beg, int end, int[] list) {
+		int i = 0, k;
+		if (beg >= end) return 0;
+		if (end >= 1 << 29) end = 1 << 29;
+		--end;
+		list[i++] = 0;
+		for (k = 1 + (beg >> 26); k <= 1 + (end >> 26); ++k) list[i++] = k;
+		for (k = 9 + (beg >> 23); k <= 9 + (end >> 23); ++k) list[i++] = k;
+		for (k = 73 + (beg >> 20); k <= 73 + (end >> 20); ++k) list[i++] = k;
+		for (k = 585 + (beg >> 17); k <= 585 + (end >> 17); ++k) list[i++] = k;
+		for (k = 4681 + (beg >> 14); k <= 4681 + (end >> 14); ++k) list[i++] = k;
+		return i;
+	}
+
+	static boolean less64(long u, long v) { // unsigned 64-bit comparison
+		return (u < v) ^ (u < 0) ^ (v < 0);
+	}
+
+	/**
+	 * Compute the merged list of virtual offset chunks that may contain records overlapping [beg, end)
+	 * on the given sequence, as (start, end) pairs stored flat. Returns null if there are none.
+	 * @param tid
+	 * @param beg Zero-based start
+	 * @param end Zero-based, exclusive end
+	 * @return
+	 */
+	public long[] getChunks(int tid, int beg, int end) {
+		if (tid < 0 || tid >= bins.size()) {
+			return null;
+		}
+		long[] lidx = linear[tid];
+		long minOff;
+		if (lidx.length > 0)
+			minOff = (beg >> TAD_LIDX_SHIFT >= lidx.length) ? lidx[lidx.length - 1] : lidx[beg >> TAD_LIDX_SHIFT];
+		else
+			minOff = 0;
+
+		int[] binList = new int[MAX_BIN];
+		int nBins = reg2bins(beg, end, binList);
+		int nOff = 0;
+		for(int i=0; i<nBins; i++) {
+			long[] chunks = bins.get(tid).get(binList[i]);
+			if (chunks != null)
+				nOff += chunks.length/2;
+		}
+		if (nOff == 0) {
+			return null;
+		}
+
+		long[][] off = new long[nOff][];
+		nOff = 0;
+		for(int i=0; i<nBins; i++) {
+			long[] chunks = bins.get(tid).get(binList[i]);
+			if (chunks != null) {
+				for(int j=0; j<chunks.length; j+=2) {
+					if (less64(minOff, chunks[j+1]))
+						off[nOff++] = new long[]{chunks[j], chunks[j+1]};
+				}
+			}
+		}
+		if (nOff == 0) {
+			return null;
+		}
+		Arrays.sort(off, 0, nOff, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[0] == b[0] ? 0 : (less64(a[0], b[0]) ? -1 : 1);
+			}
+		});
+
+		// resolve completely contained adjacent blocks
+		int l = 0;
+		for(int i=1; i<nOff; i++) {
+			if (less64(off[l][1], off[i][1])) {
+				++l;
+				off[l][0] = off[i][0];
+				off[l][1] = off[i][1];
+			}
+		}
+		nOff = l + 1;
+		// resolve overlaps between adjacent blocks; this may happen due to the merge in indexing
+		for(int i=1; i<nOff; i++) {
+			if (!less64(off[i - 1][1], off[i][0])) off[i - 1][1] = off[i][0];
+		}
+		// merge adjacent blocks
+		l = 0;
+		for(int i=1; i<nOff; i++) {
+			if (off[l][1] >> 16 == off[i][0] >> 16) off[l][1] = off[i][1];
+			else {
+				++l;
+				off[l][0] = off[i][0];
+				off[l][1] = off[i][1];
+			}
+		}
+		nOff = l + 1;
+
+		long[] result = new long[2*nOff];
+		for(int i=0; i<nOff; i++) {
+			result[2*i] = off[i][0];
+			result[2*i+1] = off[i][1];
+		}
+		return result;
+	}
+
+	/**
+	 * Parse the sequence id and zero-based, half-open interval covered by the given data line
+	 * into the given array as {tid, beg, end}
+	 * @param s
+	 * @param intv
+	 */
+	public void getInterval(String s, int[] intv) {
+		intv[0] = 0;
+		intv[1] = 0;
+		intv[2] = 0;
+		int col = 0, end = 0, beg = 0;
+		while ((end = s.indexOf('\t', beg)) >= 0 || end == -1) {
+			++col;
+			if (col == seqCol) {
+				intv[0] = getTid(end != -1 ? s.substring(beg, end) : s.substring(beg));
+			} else if (col == begCol) {
+				intv[1] = intv[2] = Integer.parseInt(end != -1 ? s.substring(beg, end) : s.substring(beg));
+				if ((preset & 0x10000) != 0) ++intv[2];
+				else --intv[1];
+				if (intv[1] < 0) intv[1] = 0;
+				if (intv[2] < 1) intv[2] = 1;
+			} else {
+				if ((preset & 0xffff) == 0) { // generic
+					if (col == endCol)
+						intv[2] = Integer.parseInt(end != -1 ? s.substring(beg, end) : s.substring(beg));
+				} else if ((preset & 0xffff) == 1) { // SAM
+					if (col == 6) { // CIGAR
+						int len = 0, i, j;
+						String cigar = s.substring(beg, end);
+						for (i = j = 0; i < cigar.length(); ++i) {
+							if (cigar.charAt(i) > '9') {
+								int op = cigar.charAt(i);
+								if (op == 'M' || op == 'D' || op == 'N')
+									len += Integer.parseInt(cigar.substring(j, i));
+								j = i + 1;
+							}
+						}
+						intv[2] = intv[1] + len;
+					}
+				} else if ((preset & 0xffff) == 2) { // VCF
+					String field = end >= 0 ? s.substring(beg, end) : s.substring(beg);
+					if (col == 4) { // REF
+						if (field.length() > 0) intv[2] = intv[1] + field.length();
+					} else if (col == 8) { // INFO
+						int eOff = -1, i = field.indexOf("END=");
+						if (i == 0) eOff = 4;
+						else if (i > 0) {
+							i = field.indexOf(";END=");
+							if (i >= 0) eOff = i + 5;
+						}
+						if (eOff > 0) {
+							i = field.indexOf(";", eOff);
+							intv[2] = Integer.parseInt(i > eOff ? field.substring(eOff, i) : field.substring(eOff));
+						}
+					}
+				}
+			}
+			if (end == -1) break;
+			beg = end + 1;
+		}
+	}
+}
@@ -4,13 +4,19 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -165,7 +171,7 @@ public class ComputeVarFreqs {
 		}
 		
 		for(SampleInfo err : errors) {
-			allSamples.remove(err);
+			allSamples.remove(err.key());
 		}
 		
 		System.err.println("Found " + everything.size() + " variants in " + allSamples.size() + " samples.");
@@ -173,14 +179,24 @@ public class ComputeVarFreqs {
 		
 		
 		//Step 2: Iterate across all samples, then across all variants, see how many
-		// samples targeted each variant 
+		// samples targeted each variant. Counts for each variant and test type go into a 
+		//shared array of atomic counters, so samples can be counted in parallel without locking
+		List<VariantRec> variants = new ArrayList<VariantRec>();
+		if (everything.getVariantsForContig(contig) != null) {
+			variants.addAll(everything.getVariantsForContig(contig));
+		}
+		for(SampleInfo info : allSamples.values()) {
+			if (! analysisTypes.contains(info.analysisType)) {
+				analysisTypes.add(info.analysisType);
+			}
+		}
+		VarCounts counts = new VarCounts(variants.size(), analysisTypes.size());
 		
 		final ThreadPoolExecutor threadPool2 = (ThreadPoolExecutor) Executors.newFixedThreadPool( threadCount );
 
 		
 		for(SampleInfo info : allSamples.values()) {
-			info.bed.buildIntervalsMap();
-			threadPool2.submit(new VarCountCalculator(info, everything));							
+			threadPool2.submit(new VarCountCalculator(info, analysisTypes.indexOf(info.analysisType), contig, variants, counts));							
 		}
 		
 		threadPool2.shutdown();
@@ -194,45 +210,22 @@ public class ComputeVarFreqs {
 		System.err.println("Done adding all variants, now just emitting output...");
 
 
-		for(VariantRec var : everything.getVariantsForContig(contig)) {
-			Double totSamples = var.getProperty(SAMPLES);
-			Double compTotSamples = 0.0; 
-			if (totSamples != null && totSamples > 0) {
-				Double hets = var.getProperty(HETS);
-				Double homs = var.getProperty(HOMS);
-				if (hets == null) {
-					hets = 0.0;
-				}
-				if (homs == null) {
-					homs = 0.0;
-				}
+		for(int i=0; i<variants.size(); i++) {
+			VariantRec var = variants.get(i);
+			int totSamples = counts.getTotal(i, VarCounts.SAMPLES);
+			if (totSamples > 0) {
+				int hets = counts.getTotal(i, VarCounts.HETS);
+				int homs = counts.getTotal(i, VarCounts.HOMS);
 
-				System.out.println(contig + "\t" + var.getStart() + "\t" + var.getRef() + "\t" + var.getAlt() + "\toverall\t" + (int)Math.round(totSamples) + "\t" + (int)Math.round(hets) + "\t" + (int)Math.round(homs));
+				System.out.println(contig + "\t" + var.getStart() + "\t" + var.getRef() + "\t" + var.getAlt() + "\toverall\t" + totSamples + "\t" + hets + "\t" + homs);
 				
-				for(String type : analysisTypes) {
-					Double totSamplesType = var.getProperty(type+SAMPLES);
-					if (totSamplesType == null) {
-						totSamplesType = 0.0;
-					}
-					compTotSamples += totSamplesType;
-					hets = var.getProperty(type+HETS);
-					homs = var.getProperty(type+HOMS);
-					if (hets == null) {
-						hets = 0.0;
-					}
-					if (homs == null) {
-						homs = 0.0;
-					}
-
+				for(int type=0; type<analysisTypes.size(); type++) {
+					int totSamplesType = counts.get(i, type, VarCounts.SAMPLES);
 					if (totSamplesType>0) {
-						System.out.print(contig + "\t" + var.getStart() + "\t" + var.getRef() + "\t" + var.getAlt() + "\t" + type);
-						System.out.println("\t" + (int)Math.round(totSamplesType) + "\t" + (int)Math.round(hets) + "\t" + (int)Math.round(homs));
+						System.out.print(contig + "\t" + var.getStart() + "\t" + var.getRef() + "\t" + var.getAlt() + "\t" + analysisTypes.get(type));
+						System.out.println("\t" + totSamplesType + "\t" + counts.get(i, type, VarCounts.HETS) + "\t" + counts.get(i, type, VarCounts.HOMS));
 					}
 				}
-			
-			if (! compTotSamples.equals(totSamples)) {
-				throw new IllegalStateException("Sanity check failed: sum of samples did not match total! tot=" + totSamples + " comp: " + compTotSamples);
-			}
 			}
 
 		}	
@@ -240,6 +233,93 @@ public class ComputeVarFreqs {
 	
 	
 	
+	/**
+	 * Bring the given store up to date with the samples added via addSample(..): samples that aren't in the store, or
+	 * that are newer than the version in the store, are read (on threadCount threads) and added. If prune is true, 
+	 * samples in the store that weren't added here are removed from it. Then the store is saved. 
+	 * @param store
+	 * @param threadCount
+	 * @param prune
+	 * @throws IOException
+	 */
+	public void updateStore(FrequencyStore store, int threadCount, boolean prune) throws IOException {
+		if (prune) {
+			List<String> toRemove = new ArrayList<String>();
+			for(String key : store.getSampleKeys()) {
+				if (! allSamples.containsKey(key)) {
+					toRemove.add(key);
+				}
+			}
+			for(String key : toRemove) {
+				System.err.println("Removing sample " + key + " from frequency store");
+				store.removeSample(key);
+			}
+		}
+		
+		List<SampleInfo> toAdd = new ArrayList<SampleInfo>();
+		for(SampleInfo info : allSamples.values()) {
+			Long existing = store.getCompletionTime(info.key());
+			if (existing == null || existing < info.completionDate.getTime()) {
+				toAdd.add(info);
+			}
+		}
+		System.err.println("Adding " + toAdd.size() + " new samples to frequency store with " + store.getSampleCount() + " samples");
+		
+		//Only a few reads are in flight at once, since each finished read holds all of the variants for a sample 
+		//until it's added. Samples are still added in order so the store comes out the same every time. 
+		ExecutorService threadPool = Executors.newFixedThreadPool(threadCount);
+		int window = 2*threadCount;
+		ArrayDeque<Future<FrequencyStore.NewSample>> reads = new ArrayDeque<Future<FrequencyStore.NewSample>>();
+		int submitted = 0;
+		int errors = 0;
+		try {
+			for(int i=0; i<toAdd.size(); i++) {
+				while(submitted < toAdd.size() && submitted < i + window) {
+					final SampleInfo info = toAdd.get(submitted);
+					reads.add(threadPool.submit(new Callable<FrequencyStore.NewSample>() {
+						@Override
+						public FrequencyStore.NewSample call() throws Exception {
+							return FrequencyStore.readSample(info.key(), info.sampleName, info.analysisType, info.completionDate.getTime(), info.source, info.bed.getFile());
+						}
+					}));
+					submitted++;
+				}
+				
+				SampleInfo info = toAdd.get(i);
+				try {
+					store.addSample(reads.poll().get());
+					System.err.println("Added " + info.source.getName() + " to frequency store");
+				} catch (ExecutionException ex) {
+					errors++;
+					System.err.println("Error reading variants in " + info.source.getAbsolutePath() + ": " + ex.getCause().getLocalizedMessage() + ", skipping it.");
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while reading samples");
+				}
+			}
+		}
+		finally {
+			threadPool.shutdownNow();
+		}
+		
+		store.save();
+		System.err.println("Frequency store now has " + store.getSampleCount() + " samples and " + store.getVariantCount() + " variants, " + errors + " new samples had errors and could not be read.");
+	}
+	
+	/**
+	 * Returns the key used to identify the sample, either from the manifest in the given directory or
+	 * the string itself if it's not a directory
+	 * @param sample
+	 * @return
+	 * @throws ManifestParseException 
+	 */
+	private static String sampleKey(String sample) throws ManifestParseException {
+		if (new File(sample).isDirectory()) {
+			SampleManifest info = SampleManifest.create(sample);
+			return parseAccession(info.getSampleName()) + info.getAnalysisType();
+		}
+		return sample;
+	}
+	
 	public static String[] readSamplesFromFile(String filename) throws IOException {
 		BufferedReader reader = new BufferedReader(new FileReader(filename));
 		String line = reader.readLine();
@@ -260,30 +340,48 @@ public class ComputeVarFreqs {
 		ComputeVarFreqs cFreqs = new ComputeVarFreqs();
 		
 		//By default, just use the argument list as the list of sample review dirs
-		//But if first arg is -f, then assume second arg is the name of a file to read review dirs from
-		String[] samples = args;
-		if (args[0].equals("-f")) {
-			try {
-				samples = readSamplesFromFile(args[1]);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return;
+		//But if an arg is -f, then assume the next arg is the name of a file to read review dirs from
+		//If -s [dir] is given, update the frequency store in dir and emit the table from it, instead
+		//of computing everything from scratch
+		List<String> samples = new ArrayList<String>();
+		String storePath = null;
+		String removePath = null;
+		boolean prune = false;
+		int threads = 8;
+		try {
+			for(int i=0; i<args.length; i++) {
+				if (args[i].equals("-f")) {
+					samples.addAll(Arrays.asList(readSamplesFromFile(args[++i])));
+				} else if (args[i].equals("-s")) {
+					storePath = args[++i];
+				} else if (args[i].equals("-r")) {
+					removePath = args[++i];
+				} else if (args[i].equals("-t")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-prune")) {
+					prune = true;
+				} else {
+					samples.add(args[i]);
+				}
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
 		}
 		
 		int added = 0;
-		for(int i=0; i<samples.length; i++) {
+		for(String sample : samples) {
 			
 			try {
-				boolean ok = cFreqs.addSample( SampleManifest.create(samples[i]));
+				boolean ok = cFreqs.addSample( SampleManifest.create(sample));
 				if (ok) {
 					added++;
 				}
 			} catch (ManifestParseException e) {
-				System.err.println("Warning: Skipping file : " + samples[i]  + " : " + e.getLocalizedMessage());
+				System.err.println("Warning: Skipping file : " + sample  + " : " + e.getLocalizedMessage());
 			} catch (Exception e) {
 				// TODO Auto-generated catch block
-				System.err.println("Error in file : " + samples[i]  + " : " + e.getLocalizedMessage() + " skipping it.");
+				System.err.println("Error in file : " + sample  + " : " + e.getLocalizedMessage() + " skipping it.");
 				e.printStackTrace();
 			}	
 		}
@@ -291,8 +389,27 @@ public class ComputeVarFreqs {
 
 		System.err.println("Found " + added + " valid samples");
 		
-		int threads = 8;
-		
+		if (storePath != null) {
+			try {
+				FrequencyStore store = new FrequencyStore(new File(storePath), CONTIGS);
+				if (removePath != null) {
+					for(String sample : readSamplesFromFile(removePath)) {
+						String key = sampleKey(sample);
+						if (store.removeSample(key)) {
+							System.err.println("Removed sample " + key + " from frequency store");
+						} else {
+							System.err.println("Sample " + key + " is not in the frequency store, can't remove it");
+						}
+					}
+				}
+				cFreqs.updateStore(store, threads, prune);
+				store.writeTable(System.out);
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			return;
+		}
 		
 		try {
 			for(String contig : CONTIGS) {
@@ -0,0 +1,822 @@
+package util.varFreqDB;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import buffer.BEDFile;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+import buffer.variant.VariantStore;
+import util.Interval;
+import util.PackedIntervals;
+import util.vcfParser.VCFParser;
+import util.vcfParser.VCFParser.GTType;
+
+/**
+ * A persistent, incrementally updated version of the table computed by ComputeVarFreqs. For every variant seen in any
+ * sample the store keeps, for each test type, the number of samples whose BED file contains the variant and the
+ * number of those in which it was found as a het or hom, which are exactly the quantities ComputeVarFreqs computes.
+ * Adding a sample reads its VCF and BED once and updates the counts, and samples can be removed again, so keeping
+ * the table up to date takes time proportional to the number of new samples, not the number of all samples ever seen.
+ *
+ * Since adding a sample can add new variants to the table, and every existing sample whose BED contains a new variant
+ * counts towards it, the store keeps the intervals of every BED file it has seen. Most samples share a handful of
+ * capture BEDs, so identical BEDs are stored once, along with the number of samples of each test type that use them.
+ *
+ * The store is a directory containing two files:
+ *   samples.log : Append-only, one entry per sample added with the ids and zygosities of its variants, used only when
+ *                 removing samples.
+ *   freqs.dat   : The variant table and counts, BEDs, and sample info, including the length of samples.log when it was
+ *                 written. It's rewritten (to a temporary file that's synced and then atomically moved over it) by
+ *                 save(), and an empty one is written when the store is created, so a sample log without a table means
+ *                 the table was lost and the store can't be opened. Log entries past the recorded length were written by
+ *                 an update that didn't finish and are discarded when the store is opened for updating.
+ *                 openReadOnly(..) opens a store without writing anything.
+ * @author brendan
+ *
+ */
+public class FrequencyStore {
+
+	public static final String TABLE_FILENAME = "freqs.dat";
+	public static final String LOG_FILENAME = "samples.log";
+
+	private static final int MAGIC = 0x41465131; //'AFQ1'
+	private static final int VERSION = 1;
+
+	//Counts for each type are stored as three ints: samples, hets, homs
+	private static final int FIELDS = 3;
+	private static final int SAMPLES = 0;
+	private static final int HETS = 1;
+	private static final int HOMS = 2;
+
+	private final File dir;
+	private final File tableFile;
+	private final File logFile;
+	private final boolean readOnly;
+	private long logLength = 0;
+
+	private final List<String> contigs;
+	private final List<String> types = new ArrayList<String>();
+	private final List<StoredBED> beds = new ArrayList<StoredBED>();
+	private final Map<String, StoredSample> samples = new HashMap<String, StoredSample>();
+	private final List<StoredVariant> variants = new ArrayList<StoredVariant>();
+	private final Map<String, StoredVariant> variantIndex = new HashMap<String, StoredVariant>();
+
+	//Variants on each contig sorted by position, and those added since the sorted arrays were last updated
+	private final Map<String, StoredVariant[]> sortedByContig = new HashMap<String, StoredVariant[]>();
+	private final Map<String, List<StoredVariant>> unsortedByContig = new HashMap<String, List<StoredVariant>>();
+
+	/**
+	 * Open the store in the given directory for updating, creating it if it doesn't exist. Only variants on the given
+	 * contigs are stored.
+	 * @param dir
+	 * @param contigs
+	 * @throws IOException
+	 */
+	public FrequencyStore(File dir, String[] contigs) throws IOException {
+		this(dir, contigs, false);
+	}
+
+	/**
+	 * Open an existing store for reading only. Nothing in the directory is modified, so this is safe while
+	 * another process is updating the store, and the store can't be changed or saved.
+	 * @param dir
+	 * @param contigs
+	 * @return
+	 * @throws IOException If there is no store in the directory
+	 */
+	public static FrequencyStore openReadOnly(File dir, String[] contigs) throws IOException {
+		return new FrequencyStore(dir, contigs, true);
+	}
+
+	private FrequencyStore(File dir, String[] contigs, boolean readOnly) throws IOException {
+		this.dir = dir;
+		this.contigs = Arrays.asList(contigs);
+		this.readOnly = readOnly;
+		tableFile = new File(dir, TABLE_FILENAME);
+		logFile = new File(dir, LOG_FILENAME);
+		if (readOnly) {
+			if (! tableFile.exists()) {
+				throw new IOException("No frequency store found in " + dir.getAbsolutePath());
+			}
+		}
+		else if (! dir.exists() && ! dir.mkdirs()) {
+			throw new IOException("Could not create frequency store directory " + dir.getAbsolutePath());
+		}
+		if (tableFile.exists()) {
+			readTable();
+		}
+		else if (logFile.exists() && logFile.length() > 0) {
+			//The table is written as soon as the store is created, so the samples in the log can't be recovered
+			//without it. Leave the log alone rather than truncating it to match an empty table
+			throw new IOException("Frequency store in " + dir.getAbsolutePath() + " has a sample log but no " + TABLE_FILENAME + ", refusing to open it");
+		}
+		else if (! readOnly) {
+			save();
+		}
+
+		long actualLength = logFile.exists() ? logFile.length() : 0L;
+		if (actualLength < logLength) {
+			throw new IOException("Sample log " + logFile.getAbsolutePath() + " is shorter than expected, store may be corrupt");
+		}
+
+		//Discard anything written to the log by an update that didn't finish. When reading only, entries past
+		//the saved length are simply never read
+		if (! readOnly && actualLength > logLength) {
+			RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+			raf.setLength(logLength);
+			raf.close();
+		}
+	}
+
+	private void checkWritable() throws IOException {
+		if (readOnly) {
+			throw new IOException("Frequency store in " + dir.getAbsolutePath() + " was opened read-only");
+		}
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Return the completion date of the sample with the given key, or null if no sample with the key is in the store
+	 * @param key
+	 * @return
+	 */
+	public Long getCompletionTime(String key) {
+		StoredSample sample = samples.get(key);
+		return sample == null ? null : sample.completionTime;
+	}
+
+	public boolean containsSample(String key) {
+		return samples.containsKey(key);
+	}
+
+	public Collection<String> getSampleKeys() {
+		return Collections.unmodifiableCollection(samples.keySet());
+	}
+
+	public int getSampleCount() {
+		return samples.size();
+	}
+
+	/**
+	 * Number of distinct variants in the table, including those no longer found in any sample
+	 * @return
+	 */
+	public int getVariantCount() {
+		return variants.size();
+	}
+
+	/**
+	 * Read the variants and BED of a sample from disk, in preparation for adding it to the store. This
+	 * doesn't modify the store, so samples can be read on many threads and then added one at a time.
+	 * @param key Unique key for sample, typically accession + test type
+	 * @param sampleName
+	 * @param analysisType Test type
+	 * @param completionTime
+	 * @param vcf
+	 * @param bed
+	 * @return
+	 * @throws IOException
+	 */
+	public static NewSample readSample(String key, String sampleName, String analysisType, long completionTime, File vcf, File bed) throws IOException {
+		NewSample sample = new NewSample(key, sampleName, analysisType, completionTime);
+		sample.pool = new VariantPool(new VCFParser(vcf));
+		BEDFile bedFile = new BEDFile(bed);
+		bedFile.buildIntervalsMap();
+		for(String contig : bedFile.getContigs()) {
+			sample.intervals.put(contig, bedFile.getIntervalsForContig(contig));
+		}
+		return sample;
+	}
+
+	/**
+	 * Add the given sample to the store, replacing any existing sample with the same key.
+	 * Changes aren't persisted until save() is called.
+	 * @param sample
+	 * @throws IOException
+	 */
+	public void addSample(NewSample sample) throws IOException {
+		checkWritable();
+		if (samples.containsKey(sample.key)) {
+			removeSample(sample.key);
+		}
+
+		int type = internType(sample.analysisType);
+		StoredBED bed = internBED(sample.intervals);
+
+		//Find or create an entry for every variant in the sample. New variants start with the counts
+		//from all the samples already in the store whose BEDs contain them
+		List<StoredVariant> sampleVars = new ArrayList<StoredVariant>();
+		List<Boolean> sampleHoms = new ArrayList<Boolean>();
+		for(String contig : contigs) {
+			Collection<VariantRec> vars = sample.pool.getVariantsForContig(contig);
+			if (vars == null) {
+				continue;
+			}
+			for(VariantRec var : vars) {
+				String vkey = variantKey(contig, var.getStart(), var.getRef(), var.getAlt());
+				StoredVariant sv = variantIndex.get(vkey);
+				if (sv == null) {
+					sv = new StoredVariant(variants.size(), contig, var.getStart(), var.getRef(), var.getAlt(), types.size());
+					for(StoredBED other : beds) {
+						if (other.contains(contig, sv.pos)) {
+							for(int t=0; t<other.usage.length; t++) {
+								sv.add(t, SAMPLES, other.usage[t]);
+							}
+						}
+					}
+					addVariant(sv);
+				}
+				else if (sv.mark == sample) {
+					continue; //Same variant appears twice in the sample, count it once
+				}
+				sv.mark = sample;
+				sampleVars.add(sv);
+				sampleHoms.add(var.getZygosity() != GTType.HET);
+			}
+		}
+
+		//The sample counts towards every variant in its BED, and the variants it carries
+		addBEDUsage(bed, type, 1);
+		int[] ids = new int[sampleVars.size()];
+		for(int i=0; i<ids.length; i++) {
+			StoredVariant sv = sampleVars.get(i);
+			boolean hom = sampleHoms.get(i);
+			sv.mark = null;
+			sv.carriers++;
+			if (bed.contains(sv.contig, sv.pos)) {
+				sv.add(type, hom ? HOMS : HETS, 1);
+			}
+			ids[i] = (sv.id << 1) | (hom ? 1 : 0);
+		}
+
+		StoredSample stored = new StoredSample(sample.key, sample.sampleName, type, sample.completionTime, bed.id);
+		stored.logOffset = appendToLog(sample.key, ids);
+		samples.put(sample.key, stored);
+	}
+
+	/**
+	 * Remove the sample with the given key from the store, returns false if there is no such sample.
+	 * Changes aren't persisted until save() is called.
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean removeSample(String key) throws IOException {
+		checkWritable();
+		StoredSample sample = samples.get(key);
+		if (sample == null) {
+			return false;
+		}
+		StoredBED bed = beds.get(sample.bedId);
+		int[] ids = readFromLog(sample);
+		for(int i=0; i<ids.length; i++) {
+			StoredVariant sv = variants.get(ids[i] >>> 1);
+			boolean hom = (ids[i] & 1) != 0;
+			sv.carriers--;
+			if (bed.contains(sv.contig, sv.pos)) {
+				sv.add(sample.type, hom ? HOMS : HETS, -1);
+			}
+		}
+		addBEDUsage(bed, sample.type, -1);
+		samples.remove(key);
+		return true;
+	}
+
+	/**
+	 * Add delta to the number of samples of the given type using the BED, and to the sample count of every
+	 * variant the BED contains
+	 */
+	private void addBEDUsage(StoredBED bed, int type, int delta) {
+		bed.addUsage(type, delta, types.size());
+		for(String contig : bed.intervals.keySet()) {
+			PackedIntervals packed = bed.intervals.get(contig);
+			StoredVariant[] sorted = getSortedVariants(contig);
+			if (sorted == null || packed.size() == 0) {
+				continue;
+			}
+			//Walk both sorted lists together
+			int v = 0;
+			for(int i=0; i<packed.size() && v < sorted.length; i++) {
+				int begin = packed.getBegin(i);
+				int end = packed.getEnd(i);
+				while(v < sorted.length && sorted[v].pos < begin) {
+					v++;
+				}
+				while(v < sorted.length && sorted[v].pos < end) {
+					sorted[v].add(type, SAMPLES, delta);
+					v++;
+				}
+			}
+		}
+	}
+
+	private void addVariant(StoredVariant sv) {
+		variants.add(sv);
+		variantIndex.put(variantKey(sv.contig, sv.pos, sv.ref, sv.alt), sv);
+		List<StoredVariant> unsorted = unsortedByContig.get(sv.contig);
+		if (unsorted == null) {
+			unsorted = new ArrayList<StoredVariant>();
+			unsortedByContig.put(sv.contig, unsorted);
+		}
+		unsorted.add(sv);
+	}
+	
+	/**
+	 * All variants on the contig sorted by position, or null if there are none. Variants added since the last call
+	 * are sorted and appended to the previous array, and then the whole thing is sorted again, which is linear 
+	 * since it's just two sorted runs. 
+	 */
+	private StoredVariant[] getSortedVariants(String contig) {
+		StoredVariant[] sorted = sortedByContig.get(contig);
+		List<StoredVariant> unsorted = unsortedByContig.remove(contig);
+		if (unsorted != null) {
+			Comparator<StoredVariant> comp = new VariantComparator();
+			Collections.sort(unsorted, comp);
+			int previous = sorted == null ? 0 : sorted.length;
+			StoredVariant[] merged = new StoredVariant[previous + unsorted.size()];
+			if (sorted != null) {
+				System.arraycopy(sorted, 0, merged, 0, previous);
+			}
+			for(int i=0; i<unsorted.size(); i++) {
+				merged[previous+i] = unsorted.get(i);
+			}
+			Arrays.sort(merged, comp);
+			sorted = merged;
+			sortedByContig.put(contig, sorted);
+		}
+		return sorted;
+	}
+
+	private int internType(String type) {
+		int index = types.indexOf(type);
+		if (index < 0) {
+			types.add(type);
+			index = types.size()-1;
+		}
+		return index;
+	}
+
+	/**
+	 * Return the stored BED with exactly the given intervals, adding a new one if there isn't one
+	 */
+	private StoredBED internBED(Map<String, List<Interval>> intervals) {
+		Map<String, PackedIntervals> packed = new HashMap<String, PackedIntervals>();
+		for(String contig : intervals.keySet()) {
+			if (contigs.contains(contig)) {
+				packed.put(contig, new PackedIntervals(intervals.get(contig)));
+			}
+		}
+		StoredBED candidate = new StoredBED(beds.size(), packed);
+		for(StoredBED bed : beds) {
+			if (bed.sameIntervals(candidate)) {
+				return bed;
+			}
+		}
+		beds.add(candidate);
+		return candidate;
+	}
+
+	/**
+	 * Append the variant ids (and zygosities) for a sample to the log, returning the offset of the entry
+	 */
+	private long appendToLog(String key, int[] ids) throws IOException {
+		long offset = logFile.exists() ? logFile.length() : 0L;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true), 1 << 16));
+		try {
+			out.writeUTF(key);
+			out.writeInt(ids.length);
+			for(int id : ids) {
+				out.writeInt(id);
+			}
+		}
+		finally {
+			out.close();
+		}
+		return offset;
+	}
+
+	private int[] readFromLog(StoredSample sample) throws IOException {
+		FileInputStream fileIn = new FileInputStream(logFile);
+		try {
+			long skipped = 0;
+			while(skipped < sample.logOffset) {
+				long n = fileIn.skip(sample.logOffset - skipped);
+				if (n <= 0) {
+					throw new IOException("Could not find log entry for sample " + sample.key);
+				}
+				skipped += n;
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, 1 << 16));
+			String key = in.readUTF();
+			if (! key.equals(sample.key)) {
+				throw new IOException("Expected log entry for sample " + sample.key + " but found " + key);
+			}
+			int[] ids = new int[in.readInt()];
+			for(int i=0; i<ids.length; i++) {
+				ids[i] = in.readInt();
+			}
+			return ids;
+		}
+		finally {
+			fileIn.close();
+		}
+	}
+
+	/**
+	 * Write the table to disk, replacing the previous version
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		checkWritable();
+		File tmp = new File(dir, TABLE_FILENAME + ".tmp");
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(logFile.exists() ? logFile.length() : 0L);
+
+			out.writeInt(types.size());
+			for(String type : types) {
+				out.writeUTF(type);
+			}
+
+			out.writeInt(beds.size());
+			for(StoredBED bed : beds) {
+				out.writeInt(bed.intervals.size());
+				for(String contig : bed.intervals.keySet()) {
+					PackedIntervals packed = bed.intervals.get(contig);
+					out.writeUTF(contig);
+					out.writeInt(packed.size());
+					for(int i=0; i<packed.size(); i++) {
+						out.writeInt(packed.getBegin(i));
+						out.writeInt(packed.getEnd(i));
+					}
+				}
+				for(int t=0; t<types.size(); t++) {
+					out.writeInt(t < bed.usage.length ? bed.usage[t] : 0);
+				}
+			}
+
+			out.writeInt(samples.size());
+			for(StoredSample sample : samples.values()) {
+				out.writeUTF(sample.key);
+				out.writeUTF(sample.sampleName == null ? "" : sample.sampleName);
+				out.writeInt(sample.type);
+				out.writeLong(sample.completionTime);
+				out.writeInt(sample.bedId);
+				out.writeLong(sample.logOffset);
+			}
+
+			out.writeInt(variants.size());
+			for(StoredVariant sv : variants) {
+				out.writeUTF(sv.contig);
+				out.writeInt(sv.pos);
+				out.writeUTF(sv.ref);
+				out.writeUTF(sv.alt);
+				out.writeInt(sv.carriers);
+				for(int t=0; t<types.size(); t++) {
+					for(int f=0; f<FIELDS; f++) {
+						out.writeInt(sv.get(t, f));
+					}
+				}
+			}
+
+			//Make sure the new table is on disk before it replaces the old one, so there's always a complete table
+			out.flush();
+			fileOut.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), tableFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logLength = logFile.exists() ? logFile.length() : 0L;
+	}
+
+	private void readTable() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tableFile), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(tableFile.getAbsolutePath() + " is not a frequency store");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported frequency store version " + version + " in " + tableFile.getAbsolutePath());
+			}
+			logLength = in.readLong();
+
+			int typeCount = in.readInt();
+			for(int i=0; i<typeCount; i++) {
+				types.add(in.readUTF());
+			}
+
+			int bedCount = in.readInt();
+			for(int b=0; b<bedCount; b++) {
+				Map<String, PackedIntervals> packed = new HashMap<String, PackedIntervals>();
+				int contigCount = in.readInt();
+				for(int c=0; c<contigCount; c++) {
+					String contig = in.readUTF();
+					int count = in.readInt();
+					List<Interval> intervals = new ArrayList<Interval>(count);
+					for(int i=0; i<count; i++) {
+						int begin = in.readInt();
+						intervals.add(new Interval(begin, in.readInt()));
+					}
+					packed.put(contig, new PackedIntervals(intervals));
+				}
+				StoredBED bed = new StoredBED(b, packed);
+				bed.usage = new int[typeCount];
+				for(int t=0; t<typeCount; t++) {
+					bed.usage[t] = in.readInt();
+				}
+				beds.add(bed);
+			}
+
+			int sampleCount = in.readInt();
+			for(int i=0; i<sampleCount; i++) {
+				String key = in.readUTF();
+				String name = in.readUTF();
+				int type = in.readInt();
+				long time = in.readLong();
+				int bedId = in.readInt();
+				StoredSample sample = new StoredSample(key, name, type, time, bedId);
+				sample.logOffset = in.readLong();
+				samples.put(key, sample);
+			}
+
+			int variantCount = in.readInt();
+			for(int i=0; i<variantCount; i++) {
+				String contig = in.readUTF();
+				int pos = in.readInt();
+				String ref = in.readUTF();
+				String alt = in.readUTF();
+				StoredVariant sv = new StoredVariant(i, contig, pos, ref, alt, typeCount);
+				sv.carriers = in.readInt();
+				for(int j=0; j<typeCount*FIELDS; j++) {
+					sv.counts[j] = in.readInt();
+				}
+				addVariant(sv);
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the frequency table to the given stream in the same format as ComputeVarFreqs,
+	 * sorted by contig (in the order given to the constructor) and position
+	 * @param out
+	 */
+	public void writeTable(PrintStream out) {
+		Iterator<String> lines = tableLines();
+		while(lines.hasNext()) {
+			out.println(lines.next());
+		}
+		out.flush();
+	}
+
+	/**
+	 * Iterate over the lines of the frequency table, in the same format as ComputeVarFreqs emits and
+	 * MongoFreqUploader reads. For each variant that's in at least one sample and targeted by at least one,
+	 * there's an 'overall' line followed by a line for each test type with at least one targeting sample.
+	 * @return
+	 */
+	public Iterator<String> tableLines() {
+		return new Iterator<String>() {
+			int contigIndex = -1;
+			StoredVariant[] current = new StoredVariant[0];
+			int varIndex = 0;
+			List<String> pending = new ArrayList<String>();
+			int pendingIndex = 0;
+
+			private void advance() {
+				while(pendingIndex >= pending.size()) {
+					pending.clear();
+					pendingIndex = 0;
+					if (varIndex < current.length) {
+						linesForVariant(current[varIndex], pending);
+						varIndex++;
+					}
+					else if (contigIndex+1 < contigs.size()) {
+						contigIndex++;
+						StoredVariant[] sorted = getSortedVariants(contigs.get(contigIndex));
+						current = sorted == null ? new StoredVariant[0] : sorted;
+						varIndex = 0;
+					}
+					else {
+						return;
+					}
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				advance();
+				return pendingIndex < pending.size();
+			}
+
+			@Override
+			public String next() {
+				if (! hasNext()) {
+					throw new NoSuchElementException();
+				}
+				String line = pending.get(pendingIndex);
+				pendingIndex++;
+				return line;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private void linesForVariant(StoredVariant sv, List<String> lines) {
+		if (sv.carriers <= 0) {
+			return;
+		}
+		int totSamples = 0;
+		int hets = 0;
+		int homs = 0;
+		for(int t=0; t<types.size(); t++) {
+			totSamples += sv.get(t, SAMPLES);
+			hets += sv.get(t, HETS);
+			homs += sv.get(t, HOMS);
+		}
+		if (totSamples <= 0) {
+			return;
+		}
+		String prefix = sv.contig + "\t" + sv.pos + "\t" + sv.ref + "\t" + sv.alt + "\t";
+		lines.add(prefix + "overall\t" + totSamples + "\t" + hets + "\t" + homs);
+		for(int t=0; t<types.size(); t++) {
+			if (sv.get(t, SAMPLES) > 0) {
+				lines.add(prefix + types.get(t) + "\t" + sv.get(t, SAMPLES) + "\t" + sv.get(t, HETS) + "\t" + sv.get(t, HOMS));
+			}
+		}
+	}
+
+	private static String variantKey(String contig, int pos, String ref, String alt) {
+		return contig + ":" + pos + ":" + ref + ":" + alt;
+	}
+
+	/**
+	 * A sample read from disk, ready to be added to the store
+	 */
+	public static class NewSample {
+		final String key;
+		final String sampleName;
+		final String analysisType;
+		final long completionTime;
+		VariantStore pool = null;
+		final Map<String, List<Interval>> intervals = new HashMap<String, List<Interval>>();
+
+		NewSample(String key, String sampleName, String analysisType, long completionTime) {
+			this.key = key;
+			this.sampleName = sampleName;
+			this.analysisType = analysisType;
+			this.completionTime = completionTime;
+		}
+
+		public String getKey() {
+			return key;
+		}
+	}
+
+	static class StoredSample {
+		final String key;
+		final String sampleName;
+		final int type;
+		final long completionTime;
+		final int bedId;
+		long logOffset;
+
+		StoredSample(String key, String sampleName, int type, long completionTime, int bedId) {
+			this.key = key;
+			this.sampleName = sampleName;
+			this.type = type;
+			this.completionTime = completionTime;
+			this.bedId = bedId;
+		}
+	}
+
+	/**
+	 * A distinct set of BED intervals, and the number of samples of each type that use it
+	 */
+	static class StoredBED {
+		final int id;
+		final Map<String, PackedIntervals> intervals;
+		int[] usage = new int[0];
+
+		StoredBED(int id, Map<String, PackedIntervals> intervals) {
+			this.id = id;
+			this.intervals = intervals;
+		}
+
+		boolean contains(String contig, int pos) {
+			PackedIntervals packed = intervals.get(contig);
+			return packed != null && packed.contains(pos);
+		}
+
+		void addUsage(int type, int delta, int typeCount) {
+			if (usage.length < typeCount) {
+				usage = Arrays.copyOf(usage, typeCount);
+			}
+			usage[type] += delta;
+		}
+
+		boolean sameIntervals(StoredBED other) {
+			if (! intervals.keySet().equals(other.intervals.keySet())) {
+				return false;
+			}
+			for(String contig : intervals.keySet()) {
+				PackedIntervals a = intervals.get(contig);
+				PackedIntervals b = other.intervals.get(contig);
+				if (a.size() != b.size()) {
+					return false;
+				}
+				for(int i=0; i<a.size(); i++) {
+					if (a.getBegin(i) != b.getBegin(i) || a.getEnd(i) != b.getEnd(i)) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+	}
+
+	static class StoredVariant {
+		final int id;
+		final String contig;
+		final int pos;
+		final String ref;
+		final String alt;
+		int carriers = 0; //Number of samples in the store containing this variant, whether or not it's targeted
+		int[] counts;
+		Object mark = null; //Used to find repeated variants within a sample
+
+		StoredVariant(int id, String contig, int pos, String ref, String alt, int typeCount) {
+			this.id = id;
+			this.contig = contig;
+			this.pos = pos;
+			this.ref = ref;
+			this.alt = alt;
+			this.counts = new int[FIELDS*typeCount];
+		}
+
+		int get(int type, int field) {
+			int index = type*FIELDS + field;
+			return index < counts.length ? counts[index] : 0;
+		}
+
+		void add(int type, int field, int delta) {
+			int index = type*FIELDS + field;
+			if (index >= counts.length) {
+				counts = Arrays.copyOf(counts, (type+1)*FIELDS);
+			}
+			counts[index] += delta;
+		}
+	}
+
+	/**
+	 * Sorts by position, then ref and alt, so the table is the same no matter what order samples were added in
+	 */
+	static class VariantComparator implements Comparator<StoredVariant> {
+		@Override
+		public int compare(StoredVariant a, StoredVariant b) {
+			if (a.pos != b.pos) {
+				return a.pos < b.pos ? -1 : 1;
+			}
+			int c = a.ref.compareTo(b.ref);
+			if (c != 0) {
+				return c;
+			}
+			return a.alt.compareTo(b.alt);
+		}
+	}
+}
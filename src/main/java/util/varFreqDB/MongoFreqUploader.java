@@ -1,11 +1,13 @@
 package util.varFreqDB;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
 
@@ -44,19 +46,23 @@ public class MongoFreqUploader {
 	@Parameter(names = {"-h", "--host"}, description = "Mongo URL")
 	String mongoURL = "localhost:27017";
 	
-	@Parameter(names = {"-f", "--file"}, description = "Path to file to upload", required=true)
+	@Parameter(names = {"-f", "--file"}, description = "Path to file (or frequency store directory) to upload", required=true)
 	String inputFilepath;
 	
 	public void uploadFrequencies() throws IOException {
-		BufferedReader reader;
-		if (inputFilepath.endsWith(".gz")) {
+		//The input is either a table emitted by computeVarFreqs, or a frequency store directory the table is read from directly
+		BufferedReader reader = null;
+		Iterator<String> storeLines = null;
+		if (new File(inputFilepath).isDirectory()) {
+			storeLines = FrequencyStore.openReadOnly(new File(inputFilepath), ComputeVarFreqs.CONTIGS).tableLines();
+		} else if (inputFilepath.endsWith(".gz")) {
 			reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(inputFilepath))));
 		} else {
 			reader = new BufferedReader(new InputStreamReader(new FileInputStream(inputFilepath)));
 		}
 		
 		
-		String line = reader.readLine();
+		String line = nextLine(reader, storeLines);
 		
 		if (! mongoURL.startsWith("mongodb://")) {
 			mongoURL = "mongodb://" + mongoURL;
@@ -97,7 +103,10 @@ public class MongoFreqUploader {
 				System.err.println("Uploaded " + entriesUploaded + " to " + mongoURL + " " + databaseName + ":" + collectionName);
 			}
 			
-			line = reader.readLine();
+			line = nextLine(reader, storeLines);
+		}
+		if (reader != null) {
+			reader.close();
 		}
 		
 		collection.insertMany(docs);
@@ -125,6 +134,16 @@ public class MongoFreqUploader {
 	}
 	
 	
+	/**
+	 * Next line of input from either the reader or the store, or null if there are no more
+	 */
+	private static String nextLine(BufferedReader reader, Iterator<String> storeLines) throws IOException {
+		if (storeLines != null) {
+			return storeLines.hasNext() ? storeLines.next() : null;
+		}
+		return reader.readLine();
+	}
+	
 	/**
 	 * Create a new mongo Document by parsing information from the given line  
 	 * @param line
@@ -1,71 +1,81 @@
 package util.varFreqDB;
 
 import java.io.IOException;
+import java.util.List;
 
 import util.varFreqDB.ComputeVarFreqs.SampleInfo;
 import util.vcfParser.VCFParser.GTType;
+import buffer.IntervalsFile;
 import buffer.variant.VariantRec;
 import buffer.variant.VariantStore;
 
+/**
+ * Counts, for one sample, whether each of a list of variants (all on one contig and sorted by position) is
+ * targeted by the sample's BED file and if so whether the sample has it as a het or hom. Counts go into a shared
+ * VarCounts, which is safe to update from many calculators at once.
+ * @author brendan
+ *
+ */
 public class VarCountCalculator implements Runnable {
-	
+
 	final SampleInfo info;
-	final VariantStore everything;
-	
-	public VarCountCalculator(SampleInfo info, VariantStore everything) {
+	final int type;
+	final String contig;
+	final List<VariantRec> variants;
+	final VarCounts counts;
+
+	/**
+	 *
+	 * @param info Sample to count
+	 * @param type Index of the sample's test type in counts
+	 * @param contig
+	 * @param variants All variants on the contig, sorted by position
+	 * @param counts
+	 */
+	public VarCountCalculator(SampleInfo info, int type, String contig, List<VariantRec> variants, VarCounts counts) {
 		this.info = info;
-		this.everything = everything;
+		this.type = type;
+		this.contig = contig;
+		this.variants = variants;
+		this.counts = counts;
 	}
-	
+
 	@Override
 	public void run() {
-		String typeKey = info.analysisType;
 		VariantStore pool;
 		System.err.println("Running " + info.source.getName());
 		try {
+			if (! info.bed.isMapCreated()) {
+				info.bed.buildIntervalsMap();
+			}
 			pool = info.getPool();
 		} catch (IOException e) {
 			System.err.println("Could not load pool");
 			return;
-			
+
 		}
-		for(String contig: everything.getContigs()) {
-			for(VariantRec var : everything.getVariantsForContig(contig)) {
 
-				//Is this variant targeted for this sample?
-				boolean targeted = info.bed.contains(var.getContig(), var.getStart(), false);
+		IntervalsFile.Cursor targets = info.bed.cursor();
+		for(int i=0; i<variants.size(); i++) {
+			VariantRec var = variants.get(i);
 
-				if (targeted) {
-					incrementProperty(var, typeKey+ComputeVarFreqs.SAMPLES);
-					incrementProperty(var, ComputeVarFreqs.SAMPLES);
+			//Is this variant targeted for this sample?
+			if (targets.contains(contig, var.getStart())) {
+				counts.increment(i, type, VarCounts.SAMPLES);
 
-					VariantRec queryVar = pool.findRecord(contig, var.getStart(), var.getRef(), var.getAlt());
+				VariantRec queryVar = pool.findRecord(contig, var.getStart(), var.getRef(), var.getAlt());
 
-					if (queryVar != null) {
-						if (queryVar.getZygosity() == GTType.HET) {
-							incrementProperty(var, typeKey+ComputeVarFreqs.HETS);
-							incrementProperty(var, ComputeVarFreqs.HETS);
-						}
-						else {
-							incrementProperty(var, typeKey+ComputeVarFreqs.HOMS);
-							incrementProperty(var, ComputeVarFreqs.HOMS);
-						}
+				if (queryVar != null) {
+					if (queryVar.getZygosity() == GTType.HET) {
+						counts.increment(i, type, VarCounts.HETS);
+					}
+					else {
+						counts.increment(i, type, VarCounts.HOMS);
 					}
 				}
-
-
 			}
 		}
 		info.disposePool();
 		System.err.println(info.source.getName() + " is done");
 	}
-	
-	static synchronized void incrementProperty(VariantRec var, String key) {
-		Double current = var.getProperty(key);
-		if (current == null) {
-			current = 0.0;
-		}
-		current++;
-		var.addProperty(key, current);
-	}
 }
@@ -0,0 +1,63 @@
+package util.varFreqDB;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Sample, het and hom counts for each of a list of variants and each test type, stored in a single array of
+ * atomic ints so that many VarCountCalculators can count at once without locking. Two threads only contend if
+ * they happen to update the same count for the same variant at the same moment.
+ * @author brendan
+ *
+ */
+public class VarCounts {
+
+	public static final int SAMPLES = 0;
+	public static final int HETS = 1;
+	public static final int HOMS = 2;
+	private static final int FIELDS = 3;
+
+	private final int typeCount;
+	private final AtomicIntegerArray counts;
+
+	/**
+	 * Create new, zeroed counts for the given number of variants and test types
+	 * @param variantCount
+	 * @param typeCount
+	 */
+	public VarCounts(int variantCount, int typeCount) {
+		this.typeCount = typeCount;
+		this.counts = new AtomicIntegerArray(variantCount * typeCount * FIELDS);
+	}
+
+	public int getTypeCount() {
+		return typeCount;
+	}
+
+	/**
+	 * Increment the given count (SAMPLES, HETS or HOMS) for a variant and test type
+	 * @param variant Index of variant
+	 * @param type Index of test type
+	 * @param field
+	 */
+	public void increment(int variant, int type, int field) {
+		counts.incrementAndGet((variant*typeCount + type)*FIELDS + field);
+	}
+
+	public int get(int variant, int type, int field) {
+		return counts.get((variant*typeCount + type)*FIELDS + field);
+	}
+
+	/**
+	 * Sum of the given count over all test types
+	 * @param variant
+	 * @param field
+	 * @return
+	 */
+	public int getTotal(int variant, int field) {
+		int total = 0;
+		for(int type=0; type<typeCount; type++) {
+			total += get(variant, type, field);
+		}
+		return total;
+	}
+}
@@ -0,0 +1,602 @@
+package util.vcfParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Reads VCF data lines into a reusable character buffer and locates the tab-separated columns, the
+ * INFO entries and the FORMAT / sample entries by offset only, so that reading and inspecting a line
+ * doesn't allocate anything. Strings are only created for the columns and values that are actually
+ * asked for, and each is created at most once per line.
+ *
+ * Columns are split exactly as String.split("\t") would, including dropping trailing empty columns.
+ * Metric lookups (see getMetric(...)) return exactly what VCFParser's old INFO + FORMAT HashMap would have held:
+ * INFO entries take precedence over FORMAT entries, a later entry with the same key replaces an earlier one,
+ * and INFO flags without a value map to themselves.
+ *
+ * This is not thread safe, each VCFParser has its own.
+ * @author brendan
+ *
+ */
+public class VCFLineTokenizer {
+
+	public static final int CHROM = 0;
+	public static final int POS = 1;
+	public static final int REF = 3;
+	public static final int ALT = 4;
+	public static final int QUAL = 5;
+	public static final int FILTER = 6;
+	public static final int INFO = 7;
+	public static final int FORMAT = 8;
+	public static final int FIRST_SAMPLE = 9;
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	//Input buffering, we read blocks of chars ourselves rather than going through BufferedReader.readLine()
+	private Reader in = null;
+	private final char[] readBuf = new char[READ_BUFFER_SIZE];
+	private int readPos = 0;
+	private int readLimit = 0;
+	private boolean skipLF = false;
+
+	//The current line
+	private char[] line = new char[1024];
+	private int length = 0;
+	private String lineStr = null;
+
+	//Columns of the current line, as [start, end) offsets into line
+	private int columns = 0;
+	private int[] colStart = new int[16];
+	private int[] colEnd = new int[16];
+	private String[] colStr = new String[16];
+
+	//INFO and FORMAT entries, indexed lazily the first time they're needed for a line
+	private final EntryIndex info = new EntryIndex();
+	private final EntryIndex format = new EntryIndex();
+	private boolean infoIndexed = false;
+	private boolean formatIndexed = false;
+
+	//Contig names usually repeat for long runs of lines, so keep the last one around
+	private char[] lastContig = new char[32];
+	private int lastContigLength = -1;
+	private String lastContigStr = null;
+
+	/**
+	 * Offsets of key=value entries within a single column
+	 */
+	private static final class EntryIndex {
+		int count = 0;
+		int[] keyStart = new int[32];
+		int[] keyEnd = new int[32];
+		int[] valStart = new int[32];
+		int[] valEnd = new int[32];
+		String[] valStr = new String[32];
+
+		void add(int ks, int ke, int vs, int ve) {
+			if (count == keyStart.length) {
+				int newSize = 2*count;
+				keyStart = Arrays.copyOf(keyStart, newSize);
+				keyEnd = Arrays.copyOf(keyEnd, newSize);
+				valStart = Arrays.copyOf(valStart, newSize);
+				valEnd = Arrays.copyOf(valEnd, newSize);
+				valStr = Arrays.copyOf(valStr, newSize);
+			}
+			keyStart[count] = ks;
+			keyEnd[count] = ke;
+			valStart[count] = vs;
+			valEnd[count] = ve;
+			valStr[count] = null;
+			count++;
+		}
+
+		void reset() {
+			for(int i=0; i<count; i++) {
+				valStr[i] = null;
+			}
+			count = 0;
+		}
+	}
+
+	/**
+	 * Set the source of lines. Any buffered but unread input from a previous source is discarded.
+	 * @param in
+	 */
+	public void setReader(Reader in) {
+		this.in = in;
+		readPos = 0;
+		readLimit = 0;
+		skipLF = false;
+		clearLine();
+	}
+
+	private void clearLine() {
+		for(int i=0; i<columns; i++) {
+			colStr[i] = null;
+		}
+		columns = 0;
+		length = 0;
+		lineStr = null;
+		info.reset();
+		format.reset();
+		infoIndexed = false;
+		formatIndexed = false;
+	}
+
+	/**
+	 * Read the next line that isn't blank (consisting only of whitespace) and split it into columns.
+	 * Line terminators are handled as in BufferedReader.readLine().
+	 * @return False if there are no more lines
+	 * @throws IOException
+	 */
+	public boolean nextLine() throws IOException {
+		while (readRawLine()) {
+			if (! isBlank()) {
+				splitColumns();
+				return true;
+			}
+		}
+		clearLine();
+		return false;
+	}
+
+	/**
+	 * Use the given string as the current line, for instance one obtained from some other reader
+	 * @param str
+	 */
+	public void setLine(String str) {
+		clearLine();
+		ensureLineCapacity(str.length());
+		str.getChars(0, str.length(), line, 0);
+		length = str.length();
+		lineStr = str;
+		splitColumns();
+	}
+
+	private boolean readRawLine() throws IOException {
+		clearLine();
+		boolean any = false;
+		for(;;) {
+			if (readPos == readLimit) {
+				int n = in.read(readBuf, 0, readBuf.length);
+				if (n <= 0) {
+					return any;
+				}
+				readPos = 0;
+				readLimit = n;
+			}
+			if (skipLF) {
+				skipLF = false;
+				if (readBuf[readPos] == '\n') {
+					readPos++;
+					continue;
+				}
+			}
+			any = true;
+			int start = readPos;
+			while (readPos < readLimit) {
+				char c = readBuf[readPos];
+				if (c == '\n' || c == '\r') {
+					appendToLine(start, readPos);
+					readPos++;
+					skipLF = (c == '\r');
+					return true;
+				}
+				readPos++;
+			}
+			appendToLine(start, readPos);
+		}
+	}
+
+	private void appendToLine(int from, int to) {
+		int n = to - from;
+		ensureLineCapacity(length + n);
+		System.arraycopy(readBuf, from, line, length, n);
+		length += n;
+	}
+
+	private void ensureLineCapacity(int size) {
+		if (line.length < size) {
+			line = Arrays.copyOf(line, Math.max(size, 2*line.length));
+		}
+	}
+
+	/**
+	 * True if the line is empty or all whitespace, as in String.trim().length()==0
+	 */
+	private boolean isBlank() {
+		for(int i=0; i<length; i++) {
+			if (line[i] > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void splitColumns() {
+		columns = 0;
+		int start = 0;
+		for(int i=0; i<length; i++) {
+			if (line[i] == '\t') {
+				addColumn(start, i);
+				start = i+1;
+			}
+		}
+		addColumn(start, length);
+
+		//As with String.split, trailing empty columns are removed, unless there's no separator at all
+		if (columns > 1) {
+			while (columns > 0 && colStart[columns-1] == colEnd[columns-1]) {
+				columns--;
+			}
+		}
+	}
+
+	private void addColumn(int start, int end) {
+		if (columns == colStart.length) {
+			int newSize = 2*columns;
+			colStart = Arrays.copyOf(colStart, newSize);
+			colEnd = Arrays.copyOf(colEnd, newSize);
+			colStr = Arrays.copyOf(colStr, newSize);
+		}
+		colStart[columns] = start;
+		colEnd[columns] = end;
+		colStr[columns] = null;
+		columns++;
+	}
+
+	/**
+	 * True if there's a current line
+	 */
+	public boolean hasLine() {
+		return columns > 0;
+	}
+
+	/**
+	 * The current line as a String, or null if there isn't one
+	 */
+	public String getLine() {
+		if (! hasLine()) {
+			return null;
+		}
+		if (lineStr == null) {
+			lineStr = new String(line, 0, length);
+		}
+		return lineStr;
+	}
+
+	/**
+	 * Number of columns on the current line
+	 */
+	public int getColumnCount() {
+		return columns;
+	}
+
+	/**
+	 * The given column of the current line as a String
+	 * @param col
+	 * @return
+	 */
+	public String getColumn(int col) {
+		checkColumn(col);
+		if (colStr[col] == null) {
+			colStr[col] = new String(line, colStart[col], colEnd[col] - colStart[col]);
+		}
+		return colStr[col];
+	}
+
+	private void checkColumn(int col) {
+		if (col < 0 || col >= columns) {
+			throw new ArrayIndexOutOfBoundsException(col);
+		}
+	}
+
+	/**
+	 * Parse the given column as an int, throwing a NumberFormatException just as Integer.parseInt would
+	 * @param col
+	 * @return
+	 */
+	public int getIntColumn(int col) {
+		checkColumn(col);
+		int i = colStart[col];
+		int end = colEnd[col];
+		//Fast path for plain non-negative numbers short enough not to overflow, otherwise defer to Integer.parseInt
+		if (end > i && end - i < 10) {
+			int val = 0;
+			for(; i<end; i++) {
+				int d = line[i] - '0';
+				if (d < 0 || d > 9) {
+					return Integer.parseInt(getColumn(col));
+				}
+				val = 10*val + d;
+			}
+			return val;
+		}
+		return Integer.parseInt(getColumn(col));
+	}
+
+	/**
+	 * The contig from the first column, upper-cased and with any CHR removed. The same String instance is
+	 * returned for consecutive lines on the same contig
+	 * @return
+	 */
+	public String getNormalizedContig() {
+		checkColumn(CHROM);
+		int start = colStart[CHROM];
+		int n = colEnd[CHROM] - start;
+		if (n == lastContigLength) {
+			boolean same = true;
+			for(int i=0; i<n; i++) {
+				if (line[start+i] != lastContig[i]) {
+					same = false;
+					break;
+				}
+			}
+			if (same) {
+				return lastContigStr;
+			}
+		}
+		if (lastContig.length < n) {
+			lastContig = new char[n];
+		}
+		System.arraycopy(line, start, lastContig, 0, n);
+		lastContigLength = n;
+		lastContigStr = getColumn(CHROM).toUpperCase().replace("CHR", "");
+		return lastContigStr;
+	}
+
+	/**
+	 * Number of pieces the column would split into with String.split(delim) on a single character, which
+	 * removes trailing empty pieces
+	 * @param col
+	 * @param delim
+	 * @return
+	 */
+	public int countSubfields(int col, char delim) {
+		checkColumn(col);
+		int start = colStart[col];
+		int end = colEnd[col];
+		int count = 0; //Number of pieces up to the last non-empty one
+		int pieces = 0;
+		boolean sawDelim = false;
+		int pieceStart = start;
+		for(int i=start; i<=end; i++) {
+			if (i == end || line[i] == delim) {
+				pieces++;
+				if (i > pieceStart) {
+					count = pieces;
+				}
+				if (i < end) {
+					sawDelim = true;
+				}
+				pieceStart = i+1;
+			}
+		}
+		if (! sawDelim) {
+			return 1;
+		}
+		return count;
+	}
+
+	/**
+	 * The piece with the given index of the column, as String.split(delim)[which] would return it
+	 * @param col
+	 * @param delim
+	 * @param which
+	 * @return
+	 */
+	public String getSubfield(int col, char delim, int which) {
+		int count = countSubfields(col, delim);
+		if (which < 0 || which >= count) {
+			throw new ArrayIndexOutOfBoundsException(which);
+		}
+		if (count == 1) {
+			return getColumn(col);
+		}
+		int pieceStart = colStart[col];
+		int end = colEnd[col];
+		int piece = 0;
+		for(int i=pieceStart; i<=end; i++) {
+			if (i == end || line[i] == delim) {
+				if (piece == which) {
+					return new String(line, pieceStart, i - pieceStart);
+				}
+				piece++;
+				pieceStart = i+1;
+			}
+		}
+		throw new ArrayIndexOutOfBoundsException(which); //Not reachable
+	}
+
+	/**
+	 * All pieces of the column, as String.split(delim) would return them
+	 * @param col
+	 * @param delim
+	 * @return
+	 */
+	public String[] getSubfields(int col, char delim) {
+		int count = countSubfields(col, delim);
+		String[] pieces = new String[count];
+		if (count == 1) {
+			pieces[0] = getColumn(col);
+			return pieces;
+		}
+		int pieceStart = colStart[col];
+		int end = colEnd[col];
+		int piece = 0;
+		for(int i=pieceStart; i<=end && piece < count; i++) {
+			if (i == end || line[i] == delim) {
+				pieces[piece++] = new String(line, pieceStart, i - pieceStart);
+				pieceStart = i+1;
+			}
+		}
+		return pieces;
+	}
+
+	/**
+	 * Locate the ;-separated key=value entries of the INFO column. Empty entries are skipped.
+	 */
+	private void indexInfo() {
+		infoIndexed = true;
+		info.reset();
+		if (columns <= INFO) {
+			return;
+		}
+		int end = colEnd[INFO];
+		int entryStart = colStart[INFO];
+		for(int i=entryStart; i<=end; i++) {
+			if (i == end || line[i] == ';') {
+				if (i > entryStart) {
+					int eq = -1;
+					for(int j=entryStart; j<i; j++) {
+						if (line[j] == '=') {
+							eq = j;
+							break;
+						}
+					}
+					if (eq < 0) {
+						info.add(entryStart, i, entryStart, i); //Flags map to themselves
+					}
+					else {
+						info.add(entryStart, eq, eq+1, i);
+					}
+				}
+				entryStart = i+1;
+			}
+		}
+	}
+
+	/**
+	 * Pair up the :-separated keys of the FORMAT column with the values of the first sample column. As in
+	 * VCF 4.1, trailing sample values may be omitted, in which case the keys are not included.
+	 */
+	private void indexFormat() {
+		formatIndexed = true;
+		format.reset();
+		if (columns <= FIRST_SAMPLE) {
+			return;
+		}
+
+		//Number of sample values, dropping trailing empty ones just like split(":")
+		int values = countSubfields(FIRST_SAMPLE, ':');
+		int keyPos = colStart[FORMAT];
+		int keyEnd = colEnd[FORMAT];
+		int valPos = colStart[FIRST_SAMPLE];
+		int valEnd = colEnd[FIRST_SAMPLE];
+		for(int v=0; v<values && keyPos <= keyEnd; v++) {
+			int ke = keyPos;
+			while (ke < keyEnd && line[ke] != ':') {
+				ke++;
+			}
+			int ve = valPos;
+			while (ve < valEnd && line[ve] != ':') {
+				ve++;
+			}
+			format.add(keyPos, ke, valPos, ve);
+			keyPos = ke+1;
+			valPos = ve+1;
+		}
+	}
+
+	private int find(EntryIndex index, String key) {
+		int n = key.length();
+		//Search backwards, since later entries replace earlier ones
+		for(int e=index.count-1; e>=0; e--) {
+			int ks = index.keyStart[e];
+			if (index.keyEnd[e] - ks != n) {
+				continue;
+			}
+			boolean match = true;
+			for(int i=0; i<n; i++) {
+				if (line[ks+i] != key.charAt(i)) {
+					match = false;
+					break;
+				}
+			}
+			if (match) {
+				return e;
+			}
+		}
+		return -1;
+	}
+
+	private static String value(char[] line, EntryIndex index, int e) {
+		if (index.valStr[e] == null) {
+			index.valStr[e] = new String(line, index.valStart[e], index.valEnd[e] - index.valStart[e]);
+		}
+		return index.valStr[e];
+	}
+
+	/**
+	 * Look up the given key among the INFO entries and, failing that, among the FORMAT entries for
+	 * the first sample. Returns null if the key is in neither.
+	 * @param key
+	 * @return
+	 */
+	public String getMetric(String key) {
+		if (! hasLine()) {
+			return null;
+		}
+		if (! infoIndexed) {
+			indexInfo();
+		}
+		int e = find(info, key);
+		if (e >= 0) {
+			return value(line, info, e);
+		}
+		if (! formatIndexed) {
+			indexFormat();
+		}
+		e = find(format, key);
+		if (e >= 0) {
+			return value(line, format, e);
+		}
+		return null;
+	}
+
+	/**
+	 * True if getMetric(key) would return a value
+	 * @param key
+	 * @return
+	 */
+	public boolean hasMetric(String key) {
+		if (! hasLine()) {
+			return false;
+		}
+		if (! infoIndexed) {
+			indexInfo();
+		}
+		if (find(info, key) >= 0) {
+			return true;
+		}
+		if (! formatIndexed) {
+			indexFormat();
+		}
+		return find(format, key) >= 0;
+	}
+
+	/**
+	 * Build a map containing all INFO and FORMAT metrics for the current line, for callers that need them all
+	 * @param dest
+	 * @return
+	 */
+	public Map<String, String> collectMetrics(Map<String, String> dest) {
+		if (! hasLine()) {
+			return dest;
+		}
+		if (! formatIndexed) {
+			indexFormat();
+		}
+		if (! infoIndexed) {
+			indexInfo();
+		}
+		for(int e=0; e<format.count; e++) {
+			dest.put(new String(line, format.keyStart[e], format.keyEnd[e] - format.keyStart[e]), value(line, format, e));
+		}
+		for(int e=0; e<info.count; e++) {
+			dest.put(new String(line, info.keyStart[e], info.keyEnd[e] - info.keyStart[e]), value(line, info, e));
+		}
+		return dest;
+	}
+}
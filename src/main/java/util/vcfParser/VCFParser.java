@@ -1,20 +1,33 @@
 package util.vcfParser;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
 
 import buffer.VCFFile;
 import buffer.variant.VariantLineReader;
 import buffer.variant.VariantRec;
+import util.tribble.ParallelBGZFInputStream;
 
 /**
  * A replacement for the venerable VCFLineParser, this thing is in early dev but will ideally
@@ -27,13 +40,13 @@ import buffer.variant.VariantRec;
  * @author brendan + elainegee
  *
  */
-public class VCFParser implements VariantLineReader {
+public class VCFParser implements VariantLineReader, Closeable {
 	
 	public static final String NO_SOURCE_WARNING_MESSAGE = "Cannot determine variant caller that generated VCF. No '##source' header property found, and header does not contain '##GATKCommandLine'."; 
 	
 	protected Map<String, HeaderEntry> headerItems = null; //Stores info about FORMAT and INFO fields from header
 	protected Map<String, String> headerProperties = null; //Stores generic key=value pairs from header, not FORMAT or INFO
-	protected Map<String, String> sampleMetrics = null; //Stores generic key=value pairs FORMAT or INFO, not header 
+	protected Map<String, String> sampleMetrics = null; //Generic key=value pairs from FORMAT or INFO, only built if annotators need them
 	
 	
 	protected File source = null;
@@ -43,8 +56,7 @@ public class VCFParser implements VariantLineReader {
 	private String creator = null; //Tool that created this vcf, usually GATK / UG, FreeBayes, etc. 
 	
 	private int altIndex = 0; //Index of alt allele for the current line
-	private String currentLine = null;
-	private String[] currentLineToks = null; //current line split on tabs
+	private final VCFLineTokenizer tokenizer = new VCFLineTokenizer(); //Current line, split into columns and metrics without allocation
 	private int altsInCurrentLine = 1; //Total number of alts found on current line
 	private int sampleIndex = 0; //Designates the index of the sample we want, defaulting to the first sample listed 
 	private Map<String, Integer> sampleIndexes = null;
@@ -59,6 +71,20 @@ public class VCFParser implements VariantLineReader {
 	//If true, will die if source cannot be identified from header
 	private boolean failIfNoSource = true;
 	
+	//Number of threads used to inflate bgzipped input and, in readAllVariants(..), to parse lines
+	public static final int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private int threads = DEFAULT_THREADS;
+	
+	//Number of lines handed to a parsing thread at once by readAllVariants(..)
+	private static final int PARSE_BATCH_LINES = 2048;
+	
+	/**
+	 * Receives variants from readAllVariants(..), in file order
+	 */
+	public interface VariantHandler {
+		public void handleVariant(VariantRec var);
+	}
+	
 	public VCFParser(File source) throws IOException {
 		setFile(source); //Initializes reader and parses the header information
 	}
@@ -67,6 +93,24 @@ public class VCFParser implements VariantLineReader {
 		this(file.getFile());
 	}
 	
+	/**
+	 * Create a parser with the same header information and settings as the given one, but no
+	 * input. Lines are supplied with setCurrentLine(..). Used for parsing on multiple threads. 
+	 * @param template
+	 */
+	private VCFParser(VCFParser template) {
+		this.headerItems = template.headerItems;
+		this.headerProperties = template.headerProperties;
+		this.source = template.source;
+		this.creator = template.creator;
+		this.sampleIndex = template.sampleIndex;
+		this.sampleIndexes = template.sampleIndexes;
+		this.stripInitialMatchingBases = template.stripInitialMatchingBases;
+		this.stripTrailingMatchingBases = template.stripTrailingMatchingBases;
+		this.annotators = template.annotators;
+		this.failIfNoSource = template.failIfNoSource;
+	}
+	
 	/**
 	 * Create a new vcf parser that only returns variants for the sample name provided
 	 * @param source
@@ -77,6 +121,7 @@ public class VCFParser implements VariantLineReader {
 		setFile(source);//Initializes reader and parses the header information
 		
 		if (! sampleIndexes.containsKey(sampleName)) {
+			close();
 			throw new IllegalArgumentException("Sample " + sampleName + " not found in this vcf.");
 		}
 		sampleIndex = sampleIndexes.get(sampleName);
@@ -235,17 +280,80 @@ public class VCFParser implements VariantLineReader {
 		return entry;
 	}
 	
+	/**
+	 * Set the number of threads used to inflate bgzipped input (taking effect at the next setFile(..)) and
+	 * to parse lines in readAllVariants(..)
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Open a reader for the given file. Files ending in .gz are decompressed, and if they're block-gzipped
+	 * (as by bgzip) blocks are inflated in parallel 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private Reader openReader(File file) throws IOException {
+		if (file.getName().endsWith(".gz")) {
+			InputStream in;
+			if (ParallelBGZFInputStream.isBGZF(file)) {
+				in = new ParallelBGZFInputStream(file, threads);
+			}
+			else {
+				in = new GZIPInputStream(new FileInputStream(file), 65536);
+			}
+			return new InputStreamReader(in);
+		}
+		return new FileReader(file);
+	}
+	
 	@Override
 	public void setFile(File file) throws IOException {
 		headerItems = null;
+		if (reader != null) {
+			reader.close();
+		}
 		this.source = file;
-		reader = new BufferedReader(new FileReader(source));
-		parseHeader();
+		reader = new BufferedReader(openReader(source));
+		try {
+			parseHeader();
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		tokenizer.setReader(reader);
+		altIndex = 0;
+		altsInCurrentLine = 1;
+	}
+	
+	/**
+	 * Close the input file. This happens automatically when the end of the file is reached
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
 	}
 	
 	/**
 	 * This actually advances to the next variant to be read, which doesn't involve advancing to
-	 * the next line if there are more alts to read on the current line
+	 * the next line if there are more alts to read on the current line. The input is closed when
+	 * the end of the file is reached
 	 */
 	@Override
 	public boolean advanceLine() throws IOException {
@@ -253,28 +361,165 @@ public class VCFParser implements VariantLineReader {
 		altIndex++;
 		if (altIndex == altsInCurrentLine) {
 			
-			currentLine = reader.readLine();
-			while(currentLine != null && currentLine.trim().length()==0) {
-				currentLine = reader.readLine();	
-			}
-			if (currentLine != null) {
-				currentLineToks = currentLine.split("\t");
-				if (currentLineToks.length < 7) {
-					throw new IOException("Invalid number of tokens on line: " + currentLine);
+			if (reader != null && tokenizer.nextLine()) {
+				if (tokenizer.getColumnCount() < 7) {
+					throw new IOException("Invalid number of tokens on line: " + tokenizer.getLine());
 				}
 				
 				altIndex = 0;
-				altsInCurrentLine = currentLineToks[4].split(",").length;
+				altsInCurrentLine = tokenizer.countSubfields(VCFLineTokenizer.ALT, ',');
+			}
+			else {
+				close();
 			}
 		}
-		return currentLine != null;
+		return tokenizer.hasLine();
 	}
 
 	
 	
 	@Override
 	public String getCurrentLine() throws IOException {
-		return currentLine;
+		return tokenizer.getLine();
+	}
+	
+	/**
+	 * Make the given line the current line, starting with its first alt 
+	 * @param line
+	 * @throws IOException
+	 */
+	private void setCurrentLine(String line) throws IOException {
+		sampleMetrics = null;
+		tokenizer.setLine(line);
+		if (tokenizer.getColumnCount() < 7) {
+			throw new IOException("Invalid number of tokens on line: " + line);
+		}
+		altIndex = 0;
+		altsInCurrentLine = tokenizer.countSubfields(VCFLineTokenizer.ALT, ',');
+	}
+	
+	/**
+	 * Convert all alts on the current line to variants, adding them to the given list. Lines that can't
+	 * be converted produce a warning, as in VariantPool
+	 */
+	private void convertCurrentLine(List<VariantRec> dest) throws IOException {
+		do {
+			VariantRec rec = toVariantRec();
+			if (rec == null) {
+				System.err.println("Warning, could not import variant from line: " + getCurrentLine());
+			}
+			else {
+				dest.add(rec);
+			}
+		} while(altIndex + 1 < altsInCurrentLine && advanceLine());
+	}
+	
+	/**
+	 * Parse all remaining variants, starting with the current line if there is one, and pass them to the handler
+	 * in the order they appear in the file. Lines are read on the calling thread and handed, in batches, to
+	 * getThreads() worker threads which convert them to VariantRecs, so this is much faster than
+	 * calling toVariantRec() / advanceLine() for large inputs. When this returns the parser is at the end of
+	 * the file, just as if advanceLine() had returned false.
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void readAllVariants(VariantHandler handler) throws IOException {
+		if (headerItems == null || headerProperties == null) {
+			throw new IllegalStateException("No header information, header probably not parsed correctly.");
+		}
+		
+		//Finish off any alts remaining on the current line
+		List<VariantRec> recs = new ArrayList<VariantRec>();
+		if (tokenizer.hasLine()) {
+			convertCurrentLine(recs);
+			for(VariantRec rec : recs) {
+				handler.handleVariant(rec);
+			}
+		}
+		
+		if (threads < 2) {
+			while(advanceLine()) {
+				recs.clear();
+				convertCurrentLine(recs);
+				for(VariantRec rec : recs) {
+					handler.handleVariant(rec);
+				}
+			}
+			return;
+		}
+		
+		ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "vcf-parser");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		final ThreadLocal<VCFParser> workerParsers = new ThreadLocal<VCFParser>() {
+			@Override
+			protected VCFParser initialValue() {
+				return new VCFParser(VCFParser.this);
+			}
+		};
+		
+		ArrayDeque<Future<List<VariantRec>>> pending = new ArrayDeque<Future<List<VariantRec>>>();
+		int maxPending = 4*threads;
+		try {
+			boolean more = true;
+			while (more || !pending.isEmpty()) {
+				//Read batches of lines until enough are in flight
+				while (more && pending.size() < maxPending) {
+					final List<String> lines = new ArrayList<String>(PARSE_BATCH_LINES);
+					while (lines.size() < PARSE_BATCH_LINES && (more = tokenizer.nextLine())) {
+						lines.add(tokenizer.getLine());
+					}
+					if (lines.isEmpty()) {
+						break;
+					}
+					pending.add(workers.submit(new Callable<List<VariantRec>>() {
+						@Override
+						public List<VariantRec> call() throws IOException {
+							VCFParser parser = workerParsers.get();
+							List<VariantRec> batch = new ArrayList<VariantRec>(2*lines.size());
+							for(String line : lines) {
+								parser.setCurrentLine(line);
+								parser.convertCurrentLine(batch);
+							}
+							return batch;
+						}
+					}));
+				}
+				
+				Future<List<VariantRec>> next = pending.poll();
+				if (next == null) {
+					break;
+				}
+				for(VariantRec rec : next.get()) {
+					handler.handleVariant(rec);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while parsing variants");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException("Error parsing variants: " + cause, cause);
+		} finally {
+			workers.shutdownNow();
+		}
+		
+		//Leave the parser at the end of the input
+		close();
+		altIndex = 0;
+		altsInCurrentLine = 1;
+		sampleMetrics = null;
 	}
 
 	@Override
@@ -283,12 +528,13 @@ public class VCFParser implements VariantLineReader {
 			return "No source file set";
 		}
 		StringBuilder strb = new StringBuilder();
-		BufferedReader headerReader = new BufferedReader(new FileReader(source));
+		BufferedReader headerReader = new BufferedReader(openReader(source));
 		String line = headerReader.readLine();
 		while(line != null && line.startsWith("#")) {
 			strb.append(line + "\n");
 			line = headerReader.readLine();
 		}
+		headerReader.close();
 		return strb.toString();
 	}
 	
@@ -453,7 +699,7 @@ public class VCFParser implements VariantLineReader {
 	
 	@Override
 	public VariantRec toVariantRec() {
-		if (currentLineToks == null) {
+		if (! tokenizer.hasLine()) {
 			return null;
 		}
 		if (headerItems == null || headerProperties == null) {
@@ -465,7 +711,7 @@ public class VCFParser implements VariantLineReader {
 		String ref = getRef();
 		String alt = getAlt(); //pulls out current alt
 			
-		String qualStr = currentLineToks[5];
+		String qualStr = tokenizer.getColumn(VCFLineTokenizer.QUAL);
 		double quality = -1;
 		try {
 			quality = Double.parseDouble(qualStr);
@@ -477,7 +723,9 @@ public class VCFParser implements VariantLineReader {
 
 		//@author elxainegee start
 
-		sampleMetrics = createSampleMetricsDict(); //Stores sample-specific key=value pairs from VCF entry from FORMAT & INFO, not header	
+		//Sample-specific key=value pairs from FORMAT & INFO are looked up directly from the line, a map
+		//of them is only built if there are annotators that want one
+		sampleMetrics = annotators.isEmpty() ? null : createSampleMetricsDict();
 	
 		//Create new variant record
 		String genotype = getGT();
@@ -509,8 +757,8 @@ public class VCFParser implements VariantLineReader {
 		// If we have a somatic caller OR it's an MNP in a germline VCF try and grab the AF info field.
 		if ((creator.equals("lofreq_scalpel_manta") 
 				|| (creator.equals("GATK / HaplotypeCaller") && getSampleMetricsStr("set").equals("MNPoster"))) 
-				&& sampleMetrics.containsKey("AF")) {
-			double alleleFrequency = convertStr2Double(sampleMetrics.get("AF"));
+				&& hasSampleMetric("AF")) {
+			double alleleFrequency = convertStr2Double(getSampleMetricsStr("AF"));
 			var.addProperty("var.freq", alleleFrequency);
 		}
 
@@ -745,72 +993,27 @@ public class VCFParser implements VariantLineReader {
 	 *  @author elainegee
 	 */
 	public Map<String, String> createSampleMetricsDict(){
-		// Create dictionaries from key-value pairs from INFO & FORMAT fields
-		
-		Map<String, String>  finalDict = createFORMATDict();
-		finalDict = createINFODict(finalDict);
-		return finalDict;
+		// Create dictionaries from key-value pairs from INFO & FORMAT fields, INFO values take precedence
+		return tokenizer.collectMetrics(new HashMap<String, String>(100, 0.5f));
 	}
 
-	
-	/**
-	 *  Creates a dictionary of INFO key-value pairs by storing info from column 8 in VCF format 4.1
-	 *  @author elainegee
-	 */
-	private Map<String, String> createINFODict(Map<String, String> existing){
-		
-		//Tokenize INFO keys & values
-		//String[] infoToks = currentLineToks[7].split(";"); //INFO key-value pairs
-		StringTokenizer tokener = new StringTokenizer(currentLineToks[7], ";");
-		while(tokener.hasMoreElements()) {
-			String tok = tokener.nextToken();
-			int index = tok.indexOf("=");
-			if (index < 0) {
-				existing.put(tok, tok);
-			} else {
-				existing.put(tok.substring(0, index), tok.substring(index+1, tok.length()));
-			}	
-		}
-		return existing;
-	}
-	
 	/**
-	 *  Creates a dictionary of FORMAT key-value pairs by storing FORMAT strings (column 10 in VCF format 4.1, sample-specific values) 
-	 *  according to FORMAT key (column 9 in VCF format 4.1)
-	 *  @author elainegee
+	 * Looks up annotation specified by annoStr in the INFO & FORMAT fields of the current line, returning
+	 * null if it's not present
+	 * @author elainegee
+	 * @return
 	 */
-	private Map<String, String> createFORMATDict(){
-		HashMap<String, String> dict = new HashMap<String, String>(100, 0.5f);
-		
-		//Tokenize FORMAT keys & values
-		
-		//Abort if there's no format data
-		if (currentLineToks.length < 9) {
-			return dict;
-		}
-		
-		String[] formatKeys = currentLineToks[8].split(":"); //FORMAT keys
-		String[] formatData = currentLineToks[9].split(":"); //sample-specific FORMAT values
-		
-		
-		//Add data to dictionary	
-		//It's actually OK (according to vcf 4.1 spec) to drop non-specified trailing fields from the formatData
-		//so we try to read in only as many fields as there are formatData tokens
-		for (int i=0; i < formatData.length; i++)  {
-			dict.put(formatKeys[i], formatData[i]);
-		} 
-		//Return FORMAT-only dictionary
-		return dict;
+	private String getSampleMetricsStr(String annoStr){
+		return tokenizer.getMetric(annoStr);
 	}
 	
 	/**
-	 * Looks up annotation specified by annoStr in sampleMetrics dictionary.
-	 * @author elainegee
+	 * True if the annotation specified by annoStr is present in the INFO or FORMAT fields of the current line
+	 * @param annoStr
 	 * @return
 	 */
-	private String getSampleMetricsStr(String annoStr){
-		String outStr = sampleMetrics.get(annoStr);
-		return outStr;
+	private boolean hasSampleMetric(String annoStr) {
+		return tokenizer.hasMetric(annoStr);
 	}
 	
 	/** 
@@ -870,8 +1073,8 @@ public class VCFParser implements VariantLineReader {
 	 * @return
 	 */
 	public String getContig() {
-		if (currentLineToks != null) {
-			return currentLineToks[0].toUpperCase().replace("CHR","");
+		if (tokenizer.hasLine()) {
+			return tokenizer.getNormalizedContig();
 		} else {
 			return "?";
 		}		
@@ -883,8 +1086,8 @@ public class VCFParser implements VariantLineReader {
 	 * @return
 	 */
 	public Integer getPos() {
-		if (currentLineToks != null) {
-			return Integer.parseInt(currentLineToks[1]);
+		if (tokenizer.hasLine()) {
+			return tokenizer.getIntColumn(VCFLineTokenizer.POS);
 		} else {
 			return -1;
 		}		
@@ -896,8 +1099,8 @@ public class VCFParser implements VariantLineReader {
 	 * @return
 	 */
 	public String getRef() {
-		if (currentLineToks != null) {
-			return currentLineToks[3];
+		if (tokenizer.hasLine()) {
+			return tokenizer.getColumn(VCFLineTokenizer.REF);
 		} else {
 			return "?";
 		}
@@ -909,8 +1112,8 @@ public class VCFParser implements VariantLineReader {
 	 * @return
 	 */
 	public String getAlt() {
-		if (currentLineToks != null) {
-			return currentLineToks[4].split(",")[altIndex];
+		if (tokenizer.hasLine()) {
+			return tokenizer.getSubfield(VCFLineTokenizer.ALT, ',', altIndex);
 		} else {
 			return "?";
 		}
@@ -922,8 +1125,8 @@ public class VCFParser implements VariantLineReader {
 	 * @return
 	 */
 	public String getFilter() {
-		if (currentLineToks != null) {
-			return currentLineToks[6];
+		if (tokenizer.hasLine()) {
+			return tokenizer.getColumn(VCFLineTokenizer.FILTER);
 		} else {
 			return "";
 		}		
@@ -935,11 +1138,11 @@ public class VCFParser implements VariantLineReader {
 	 * @return
 	 */
 	public String[] getRawSeqArray() {
-		if (currentLineToks != null) {
-			String[] alts = currentLineToks[4].split(",");
+		if (tokenizer.hasLine()) {
+			String[] alts = tokenizer.getSubfields(VCFLineTokenizer.ALT, ',');
 			String[] allseq = new String[alts.length + 1];
 			//add ref
-			allseq[0] = currentLineToks[3]; 
+			allseq[0] = tokenizer.getColumn(VCFLineTokenizer.REF); 
 		
 			//add alts
 			for (int i=0; i< alts.length; i++) {
@@ -1040,9 +1243,9 @@ public class VCFParser implements VariantLineReader {
 					annoStr = "AD";
 					annoIdx = new int[]{altIndex + 1};
 				} else if (getSampleMetricsStr("set").equals("MNPoster")) {
-					if (sampleMetrics.containsKey("DP") && sampleMetrics.containsKey("AF")) {
-						int dp = convertStr2Int(sampleMetrics.get("DP"));
-						double af = convertStr2Double(sampleMetrics.get("AF"));
+					if (hasSampleMetric("DP") && hasSampleMetric("AF")) {
+						int dp = convertStr2Int(getSampleMetricsStr("DP"));
+						double af = convertStr2Double(getSampleMetricsStr("AF"));
 						return new Integer( (int)Math.round(dp * af));
 					} else {
 						throw new IllegalStateException("Could not parse DP and AF fields for reconstructed MNP variant");
@@ -1122,7 +1325,7 @@ public class VCFParser implements VariantLineReader {
 	 */
 	public String getSVImpreciseFlag() {
 		if (creator.equals("lofreq_scalpel_manta")) {
-			if (sampleMetrics.containsKey("IMPRECISE")) {
+			if (hasSampleMetric("IMPRECISE")) {
 				return "true";
 			} else {
 				return "false";
@@ -1137,8 +1340,8 @@ public class VCFParser implements VariantLineReader {
 	 * @return String containing component alleles, or null if no ALLELES entry is found in the INFO dict
 	 */
 	public String getMNPAlleleComponents() {
-		if (sampleMetrics.containsKey("ALLELES")) {
-			return sampleMetrics.get("ALLELES");
+		if (hasSampleMetric("ALLELES")) {
+			return getSampleMetricsStr("ALLELES");
 		} else {
 			return null;
 		}
@@ -1148,8 +1351,8 @@ public class VCFParser implements VariantLineReader {
 	 * Return the bases associated with the 'pindel.orig.ref' field, or null if that key doesn't exist
 	 */
 	public String getPindelRef() {
-		if (sampleMetrics.containsKey("orig_ref")) {
-			return sampleMetrics.get("orig_ref");
+		if (hasSampleMetric("orig_ref")) {
+			return getSampleMetricsStr("orig_ref");
 		} else {
 			return null;
 		}
@@ -1159,8 +1362,8 @@ public class VCFParser implements VariantLineReader {
 	 * Return the bases associated with the 'pindel.orig.alt' field, or null if that key doesn't exist
 	 */
 	public String getPindelAlt() {
-		if (sampleMetrics.containsKey("orig_alt")) {
-			return sampleMetrics.get("orig_alt");
+		if (hasSampleMetric("orig_alt")) {
+			return getSampleMetricsStr("orig_alt");
 		} else {
 			return null;
 		}
@@ -1218,7 +1421,7 @@ public class VCFParser implements VariantLineReader {
 	 * @author ashinib 
 	 */
 	public Integer getNETLEN(){
-		if (sampleMetrics.containsKey("NETLEN")) {
+		if (hasSampleMetric("NETLEN")) {
 			String netlen = getSampleMetricsStr("NETLEN");
 			return convertStr2Int(netlen);
 		} else {
@@ -1233,8 +1436,8 @@ public class VCFParser implements VariantLineReader {
 	* @author ashinib            
 	*/
 	public String getINSSEQ() {
-		if (sampleMetrics.containsKey("INSSEQ")) {
-			return sampleMetrics.get("INSSEQ");
+		if (hasSampleMetric("INSSEQ")) {
+			return getSampleMetricsStr("INSSEQ");
 		} else {
 			return null;
 		}
@@ -1283,7 +1486,7 @@ public class VCFParser implements VariantLineReader {
          * Score generated by Lithium for SNVs, identified by "MLSNV"
          **/
         public Double getLithiumSNVScore() {
-                if (sampleMetrics.containsKey("MLSNV")) {
+                if (hasSampleMetric("MLSNV")) {
                         String lithiumSnvStr = getSampleMetricsStr("MLSNV");
                         return stringToDouble(lithiumSnvStr);
                 } else {
@@ -1295,7 +1498,7 @@ public class VCFParser implements VariantLineReader {
          * Score generated by Lithium for insertion variants, identified by "MLINS"
          **/
         public Double getLithiumInsertionScore() {
-                if (sampleMetrics.containsKey("MLINS")) {
+                if (hasSampleMetric("MLINS")) {
                         String lithiumInsStr = getSampleMetricsStr("MLINS");
                         return stringToDouble(lithiumInsStr);
                 } else {
@@ -1307,7 +1510,7 @@ public class VCFParser implements VariantLineReader {
          * Score generated by Lithium for deletion variants, identified by "MLDEL"
          */
         public Double getLithiumDeletionScore() {
-                if(sampleMetrics.containsKey("MLDEL")) {
+                if(hasSampleMetric("MLDEL")) {
                         String lithiumDelStr = getSampleMetricsStr("MLDEL");
                         return stringToDouble(lithiumDelStr);
                 } else {
@@ -1328,7 +1531,7 @@ public class VCFParser implements VariantLineReader {
          * Parse the MNVAF field from the variant and return it as a Double
          */
         public Double getMeanValAF() {
-                if(sampleMetrics.containsKey("MNVAF")) {
+                if(hasSampleMetric("MNVAF")) {
                         String meanValAF = getSampleMetricsStr("MNVAF");
                         return convertStr2Double(meanValAF);
                 } else {
@@ -1340,7 +1543,7 @@ public class VCFParser implements VariantLineReader {
          * Parse the MXVAF field from the variant and return it as a Double
          */
         public Double getMaxValAF() {
-                if(sampleMetrics.containsKey("MXVAF")) {
+                if(hasSampleMetric("MXVAF")) {
                         String maxValAF = getSampleMetricsStr("MXVAF");
                         return convertStr2Double(maxValAF);
                 } else {
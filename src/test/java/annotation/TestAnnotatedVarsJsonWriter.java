@@ -0,0 +1,164 @@
+package annotation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import json.JSONArray;
+import json.JSONObject;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.JSONVarsGenerator;
+import util.vcfParser.VCFParser.GTType;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+
+/**
+ * Makes sure the streaming json writer produces exactly the same bytes as converting each variant to
+ * a JSONObject
+ * @author brendan
+ *
+ */
+public class TestAnnotatedVarsJsonWriter {
+
+	static final String[] STRINGS = new String[]{"", "abc", "a\"quoted\" value", "back\\slash", "</script>", "line\nbreak\ttab",
+		"ctrl\u0001\u001f", "\u0085\u2028", "caf\u00e9", "snow\u2603man", "face\ud83d\ude00", "1234567", "."};
+	static final double[] DOUBLES = new double[]{0.0, -0.0, 1.0, 0.25, 1.0/3.0, 123456789.0, 1.5e-7, 2.0e21, -17.5,
+		Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+	/**
+	 * Output of the original implementation, which builds a JSONObject for each variant
+	 */
+	private static byte[] expected(VariantPool pool) {
+		StringBuilder str = new StringBuilder("{\"variant.list\":[");
+		boolean first = true;
+		for(String contig : pool.getContigs()) {
+			for(VariantRec var : pool.getVariantsForContig(contig)) {
+				if (! first) {
+					str.append(",");
+				}
+				first = false;
+				try {
+					str.append(JSONVarsGenerator.DEFAULT_CONVERTER.toJSON(var).toString());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		str.append("]}");
+		return str.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] actual(VariantPool pool) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JSONVarsGenerator.createJSONVariants(pool, bytes);
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void TestMatchesJSONObject() throws Exception {
+		Random rng = new Random(7);
+		List<String> annoKeys = new ArrayList<String>(Arrays.asList(VariantRec.GENE_NAME, VariantRec.GENOTYPE_QUALITY, VariantRec.HGMD_HIT, "chr", "weird \"key\""));
+		for(int i=0; i<40; i++) {
+			annoKeys.add("anno.key." + i);
+		}
+		List<String> propKeys = new ArrayList<String>(Arrays.asList(VariantRec.DEPTH, VariantRec.VAR_DEPTH, VariantRec.POP_FREQUENCY, "var.freq"));
+		for(int i=0; i<25; i++) {
+			propKeys.add("prop.key." + i);
+		}
+
+		VariantPool pool = new VariantPool();
+		for(int i=0; i<500; i++) {
+			String contig = "" + (1 + rng.nextInt(3));
+			GTType zyg = GTType.values()[rng.nextInt(GTType.values().length)];
+			Double quality = rng.nextInt(10)==0 ? null : 10.0*rng.nextInt(100);
+			VariantRec var = new VariantRec(contig, rng.nextInt(100000), 0, "A", STRINGS[rng.nextInt(STRINGS.length)], quality, zyg);
+			for(String key : annoKeys) {
+				if (rng.nextInt(3)==0) {
+					var.addAnnotation(key, STRINGS[rng.nextInt(STRINGS.length)]);
+				}
+			}
+			for(String key : propKeys) {
+				if (rng.nextInt(3)==0) {
+					//Depths must be finite or var.freq can't be computed
+					boolean depth = key.equals(VariantRec.DEPTH) || key.equals(VariantRec.VAR_DEPTH);
+					var.addProperty(key, DOUBLES[rng.nextInt(depth ? 9 : DOUBLES.length)]);
+				}
+			}
+			if (rng.nextInt(4)==0) {
+				var.addPropertyInt("int.key." + rng.nextInt(5), rng.nextInt() - Integer.MAX_VALUE/2);
+			}
+			if (rng.nextInt(4)==0) {
+				var.addAnnotationJSON("json.key", new JSONArray(Arrays.asList("x", "y\"z")));
+			}
+			if (i==100) {
+				//Enough keys that the hash table grows several times
+				for(int j=0; j<300; j++) {
+					var.addPropertyInt("many.key." + j, j);
+				}
+			}
+			pool.addRecord(var);
+		}
+
+		byte[] actual = actual(pool);
+		Assert.assertArrayEquals(expected(pool), actual);
+	}
+
+	@Test
+	public void TestCollidingKeys() throws Exception {
+		//"Aa" and "BB" have the same hash code, so all of these keys land in the same bucket
+		VariantPool pool = new VariantPool();
+		VariantRec var = new VariantRec("1", 10, 11, "A", "T", 50.0, GTType.HET);
+		String[] parts = new String[]{"Aa", "BB"};
+		for(int i=0; i<16; i++) {
+			var.addAnnotation(parts[i & 1] + parts[(i>>1) & 1] + parts[(i>>2) & 1] + parts[(i>>3) & 1], "" + i);
+		}
+		pool.addRecord(var);
+		pool.addRecord(new VariantRec("1", 20, 21, "A", "T", 50.0, GTType.HOM));
+		byte[] actual = actual(pool);
+		Assert.assertArrayEquals(expected(pool), actual);
+
+		JSONObject obj = new JSONObject(new String(actual, StandardCharsets.UTF_8));
+		Assert.assertEquals(2, obj.getJSONArray("variant.list").length());
+	}
+
+	@Test
+	public void TestEmptyPool() throws Exception {
+		byte[] actual = actual(new VariantPool());
+		Assert.assertArrayEquals(expected(new VariantPool()), actual);
+	}
+
+	@Test
+	public void TestGZIPIsSingleMember() throws Exception {
+		VariantPool pool = new VariantPool();
+		for(int i=0; i<5000; i++) {
+			VariantRec var = new VariantRec("" + (1 + i%3), 10 + i, 11 + i, "A", "T", 50.0, GTType.HET);
+			var.addAnnotation("gene", STRINGS[i % STRINGS.length] + i);
+			pool.addRecord(var);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		JSONVarsGenerator.createJSONVariantsGZIP(pool, bytes);
+		byte[] gz = bytes.toByteArray();
+
+		//A BGZF block sets FEXTRA, which NGS.Web does not expect
+		Assert.assertEquals(0, gz[3] & 0x04);
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gz));
+		ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while((read = in.read(buf)) > 0) {
+			inflated.write(buf, 0, read);
+		}
+		in.close();
+		Assert.assertArrayEquals(actual(pool), inflated.toByteArray());
+	}
+}
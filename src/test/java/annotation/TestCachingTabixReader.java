@@ -0,0 +1,104 @@
+package annotation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.broad.tribble.readers.TabixReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.tribble.CachingTabixReader;
+import util.tribble.TabixCache;
+
+/**
+ * Make sure the CachingTabixReader returns exactly what tribble's TabixReader does, and that 
+ * repeated reads are served from the cache
+ * @author brendan
+ *
+ */
+public class TestCachingTabixReader {
+
+	File tgpFile = new File("src/test/java/annotation/testTKG.vcf.gz");
+	File mitoFile = new File("src/test/java/testcsvs/MitoMap_coding.csv.gz");
+	
+	@Test
+	public void testQueriesMatchTabixReader() throws Exception {
+		compareQueries(tgpFile, "1", 774000, 775000);
+		compareQueries(mitoFile, "MT", 1, 17000);
+	}
+	
+	@Test
+	public void testReadLineMatchesTabixReader() throws Exception {
+		TabixReader plain = new TabixReader(tgpFile.getAbsolutePath());
+		CachingTabixReader cached = new CachingTabixReader(tgpFile.getAbsolutePath());
+		
+		String expected = plain.readLine();
+		int lines = 0;
+		while(expected != null) {
+			Assert.assertEquals(expected, cached.readLine());
+			expected = plain.readLine();
+			lines++;
+		}
+		Assert.assertNull(cached.readLine());
+		Assert.assertTrue(lines > 0);
+		plain.close();
+		cached.close();
+	}
+	
+	@Test
+	public void testRepeatedQueriesHitCache() throws Exception {
+		TabixCache.clear();
+		CachingTabixReader first = new CachingTabixReader(tgpFile.getAbsolutePath());
+		List<String> firstLines = collect(first.query("1:774300-774600"));
+		first.close();
+		long misses = TabixCache.getMisses();
+		Assert.assertTrue(misses > 0);
+		Assert.assertEquals(1, TabixCache.getIndexMisses());
+		
+		//A second reader on the same file should not inflate anything or re-read the index
+		CachingTabixReader second = new CachingTabixReader(tgpFile.getAbsolutePath());
+		List<String> secondLines = collect(second.query("1:774300-774600"));
+		second.close();
+		Assert.assertEquals(firstLines, secondLines);
+		Assert.assertEquals(misses, TabixCache.getMisses());
+		Assert.assertTrue(TabixCache.getHits() > 0);
+		Assert.assertEquals(1, TabixCache.getIndexHits());
+		
+		//Unknown contigs give no results
+		CachingTabixReader third = new CachingTabixReader(tgpFile.getAbsolutePath());
+		Assert.assertNull(third.query("NotAContig:1-100"));
+		third.close();
+	}
+	
+	private void compareQueries(File file, String contig, int start, int end) throws Exception {
+		TabixReader plain = new TabixReader(file.getAbsolutePath());
+		CachingTabixReader cached = new CachingTabixReader(file.getAbsolutePath());
+		int nonEmpty = 0;
+		for(int pos=start; pos<end; pos += 37) {
+			String query = contig + ":" + pos + "-" + (pos+20);
+			List<String> expected = collect(plain.query(query));
+			List<String> actual = collect(cached.query(query));
+			Assert.assertEquals("Query " + query, expected, actual);
+			if (expected.size() > 0) {
+				nonEmpty++;
+			}
+		}
+		Assert.assertTrue(nonEmpty > 0);
+		plain.close();
+		cached.close();
+	}
+	
+	private static List<String> collect(TabixReader.Iterator iter) throws Exception {
+		List<String> lines = new ArrayList<String>();
+		if (iter == null) {
+			return lines;
+		}
+		String line = iter.next();
+		while(line != null) {
+			lines.add(line);
+			line = iter.next();
+		}
+		return lines;
+	}
+}
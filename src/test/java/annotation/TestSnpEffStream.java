@@ -0,0 +1,203 @@
+package annotation;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import operator.OperationFailedException;
+import operator.annovar.Annotator;
+import operator.snpeff.SerialSnpEffGeneAnnotate;
+import operator.snpeff.SnpEffGeneAnnotate;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import pipeline.Pipeline;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+
+/**
+ * Runs SnpEffGeneAnnotate and SerialSnpEffGeneAnnotate against a shell script standing in for SnpEff, which
+ * echoes its input with an ANN or EFF field made up from the variant, so we can check streaming mode without
+ * a SnpEff installation
+ */
+public class TestSnpEffStream {
+
+	File propertiesFile = new File("src/test/java/core/inputFiles/testProperties.xml");
+	File dir = null;
+	
+	//awk expressions for the annotation added to each record, in the formats the two annotators read
+	static final String ANN = "\"ANN=\" $5 \"|missense_variant|MODERATE|GENE\" $1 \"|ID|transcript|NM_\" $2 \".1|protein_coding|1/2|c.\" $2 $4 \">\" $5 \"|p.X|||||\"";
+	static final String EFF = "\"EFF=missense_variant(MODERATE|MISSENSE|c.\" $2 \"|p.X/c.\" $2 $4 \">\" $5 \"|100|GENE\" $1 \"|protein_coding|CODING|NM_\" $2 \".1|1|1)\"";
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("snpeffstream", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		for(File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Write a stand-in for SnpEff that reads the input file given as its last argument, or stdin if there is none,
+	 * applies the awk rules given before the annotating one, appends the given annotation to the INFO field,
+	 * then exits with the given value
+	 */
+	private File writeStandIn(String annotation, String extraRules, int exitValue) throws IOException {
+		File script = new File(dir, "snpEff.sh");
+		FileWriter writer = new FileWriter(script);
+		writer.write("#!/bin/sh\n");
+		writer.write("for last in \"$@\"; do :; done\n");
+		writer.write("if [ -f \"$last\" ]; then exec < \"$last\"; fi\n");
+		writer.write("echo \"stand-in SnpEff\" >&2\n");
+		writer.write("awk -F'\\t' 'BEGIN { OFS=\"\\t\" } /^#/ { print; next } " + extraRules
+				+ " { ann = " + annotation + ";"
+				+ " if ($8 == \".\") $8 = ann; else $8 = $8 \";\" ann; print }'\n");
+		writer.write("exit " + exitValue + "\n");
+		writer.close();
+		script.setExecutable(true);
+		return script;
+	}
+
+	private VariantPool runPipeline(File standIn, boolean stream, int workers) throws Exception {
+		return runPipeline(SnpEffGeneAnnotate.class.getName(), null, standIn, stream, workers);
+	}
+
+	/**
+	 * Run the given annotator over the myeloid variants, restricted to the BED file if it's not null
+	 */
+	private VariantPool runPipeline(String annotatorClass, File bed, File standIn, boolean stream, int workers) throws Exception {
+		File xml = new File(dir, "pipeline_" + stream + "_" + workers + ".xml");
+		FileWriter writer = new FileWriter(xml);
+		writer.write("<Pipeline>\n");
+		writer.write("<InputVCF class=\"buffer.VCFFile\" filename=\"" + new File("src/test/java/testvcfs/myeloid.vcf").getAbsolutePath() + "\" />\n");
+		writer.write("<VariantPool class=\"buffer.variant.VariantPool\">\n\t<InputVCF />\n</VariantPool>\n");
+		if (bed != null) {
+			writer.write("<Targets class=\"buffer.BEDFile\" filename=\"" + bed.getAbsolutePath() + "\" />\n");
+		}
+		writer.write("<GeneAnnotate class=\"" + annotatorClass + "\" snpeff.genome=\"stand-in\" alt.java.home=\"" + standIn.getAbsolutePath() + "\" "
+				+ SnpEffGeneAnnotate.STREAM + "=\"" + stream + "\" " + SnpEffGeneAnnotate.WORKERS + "=\"" + workers + "\">\n");
+		writer.write("\t<VariantPool />\n" + (bed == null ? "" : "\t<Targets />\n") + "</GeneAnnotate>\n");
+		writer.write("</Pipeline>\n");
+		writer.close();
+
+		Pipeline ppl = new Pipeline(xml, propertiesFile.getAbsolutePath());
+		ppl.setProperty("snpeff.dir", dir.getAbsolutePath());
+		ppl.setProperty(Pipeline.PROJECT_HOME, dir.getAbsolutePath() + "/");
+		ppl.initializePipeline();
+		ppl.stopAllLogging();
+		ppl.execute();
+		Annotator annotator = (Annotator)ppl.getObjectHandler().getObjectForLabel("GeneAnnotate");
+		return annotator.getVariants();
+	}
+
+	@Test
+	public void testStreamMatchesFiles() throws Exception {
+		File standIn = writeStandIn(ANN, "", 0);
+		VariantPool fromFiles = runPipeline(standIn, false, 1);
+		VariantPool streamed = runPipeline(standIn, true, 3);
+
+		Assert.assertEquals(90, streamed.size());
+		Assert.assertEquals(fromFiles.size(), streamed.size());
+		for(String contig : fromFiles.getContigs()) {
+			List<VariantRec> expected = fromFiles.getVariantsForContig(contig);
+			List<VariantRec> actual = streamed.getVariantsForContig(contig);
+			Assert.assertEquals(expected.size(), actual.size());
+			for(int i=0; i<expected.size(); i++) {
+				VariantRec var = actual.get(i);
+				Assert.assertEquals("GENE" + contig, var.getAnnotation(VariantRec.GENE_NAME));
+				Assert.assertEquals(expected.get(i).getAnnotation(VariantRec.GENE_NAME), var.getAnnotation(VariantRec.GENE_NAME));
+				Assert.assertNotNull(var.getjsonProperty(VariantRec.SNPEFF_ALL));
+				Assert.assertEquals(expected.get(i).getjsonProperty(VariantRec.SNPEFF_ALL).toString(), var.getjsonProperty(VariantRec.SNPEFF_ALL).toString());
+			}
+		}
+	}
+
+	@Test
+	public void testMissingOutputFails() throws Exception {
+		File standIn = writeStandIn(ANN, "NR % 10 == 0 { next }", 0);
+		try {
+			runPipeline(standIn, true, 2);
+			Assert.fail("Expected missing SnpEff output to fail");
+		} catch (OperationFailedException expected) {
+			Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("SnpEff"));
+		}
+	}
+
+	@Test
+	public void testNonzeroExitFails() throws Exception {
+		File standIn = writeStandIn(ANN, "", 3);
+		try {
+			runPipeline(standIn, true, 4);
+			Assert.fail("Expected SnpEff exit value to fail");
+		} catch (OperationFailedException expected) {
+			Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("exit value 3"));
+		}
+	}
+
+	/**
+	 * A malformed output line makes the handler throw a RuntimeException, which must fail the run rather than
+	 * silently ending the worker with some variants unannotated
+	 */
+	@Test(timeout=60000)
+	public void testMalformedOutputFails() throws Exception {
+		File standIn = writeStandIn(ANN, "NR == 20 { $2 = \"notanumber\" }", 0);
+		try {
+			runPipeline(standIn, true, 2);
+			Assert.fail("Expected malformed SnpEff output to fail");
+		} catch (OperationFailedException expected) {
+			Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("notanumber"));
+		}
+	}
+
+	@Test
+	public void testSerialStreamMatchesFiles() throws Exception {
+		//All of X but one stretch and none of 19
+		File bed = new File(dir, "targets.bed");
+		FileWriter writer = new FileWriter(bed);
+		for(String contig : new String[]{"1", "2", "3", "4", "5", "7", "8", "9", "10", "11", "12", "13", "17", "20", "22"}) {
+			writer.write(contig + "\t0\t250000000\n");
+		}
+		writer.write("X\t44929000\t44936000\n");
+		writer.close();
+
+		File standIn = writeStandIn(EFF, "", 0);
+		String annotator = SerialSnpEffGeneAnnotate.class.getName();
+		VariantPool fromFiles = runPipeline(annotator, bed, standIn, false, 1);
+		VariantPool streamed = runPipeline(annotator, bed, standIn, true, 3);
+
+		int annotated = 0;
+		Assert.assertEquals(fromFiles.size(), streamed.size());
+		for(String contig : fromFiles.getContigs()) {
+			List<VariantRec> expected = fromFiles.getVariantsForContig(contig);
+			List<VariantRec> actual = streamed.getVariantsForContig(contig);
+			Assert.assertEquals(expected.size(), actual.size());
+			for(int i=0; i<expected.size(); i++) {
+				VariantRec var = actual.get(i);
+				boolean inTargets = !contig.equals("19") && (!contig.equals("X") || (var.getStart() > 44929000 && var.getStart() <= 44936000));
+				if (inTargets) {
+					Assert.assertEquals("GENE" + contig, var.getAnnotation(VariantRec.GENE_NAME));
+					annotated++;
+				}
+				else {
+					Assert.assertNull(var.getAnnotation(VariantRec.GENE_NAME));
+				}
+				Assert.assertEquals(expected.get(i).getAnnotation(VariantRec.GENE_NAME), var.getAnnotation(VariantRec.GENE_NAME));
+				Assert.assertEquals(expected.get(i).getAnnotation(VariantRec.CDOT), var.getAnnotation(VariantRec.CDOT));
+				Assert.assertEquals(expected.get(i).getAnnotation(VariantRec.NM_NUMBER), var.getAnnotation(VariantRec.NM_NUMBER));
+			}
+		}
+		//12 variants on 19, and 15 of the 20 on X are outside the targets
+		Assert.assertEquals(90 - 12 - 15, annotated);
+	}
+}
@@ -0,0 +1,253 @@
+package annotation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import operator.OperationFailedException;
+import operator.annovar.Annotator;
+import operator.variant.TGPTabixAnnotator;
+
+import org.junit.Assert;
+
+import pipeline.Pipeline;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+
+/**
+ * Run the TGP annotator in streaming mode with a tiny batch size and make sure
+ * all variants make it to the output with the same annotations as in TestTKGAnnotator
+ * @author brendan
+ *
+ */
+public class TestStreamingAnnotator extends TestCase {
+
+	File inputFile = new File("src/test/java/annotation/testStreamingAnnotator.xml");
+	File testTKGFile = new File("src/test/java/annotation/testTKG.vcf.gz");
+	File propertiesFile = new File("src/test/java/core/inputFiles/testProperties.xml");
+	File outputFile = new File("streamingAnnotator.test.csv");
+	
+	public void testStreamingTKG() {
+		try {
+			Pipeline ppl = new Pipeline(inputFile, propertiesFile.getAbsolutePath());
+			ppl.setProperty("tgp.sites.path", testTKGFile.getAbsolutePath());
+			ppl.initializePipeline();
+			ppl.stopAllLogging();
+			
+			ppl.execute();
+			
+			//Pool only ever holds the current batch, and is emptied at the end
+			TGPTabixAnnotator annotator = (TGPTabixAnnotator)ppl.getObjectHandler().getObjectForLabel("Annotate");
+			VariantPool vars = annotator.getVariants();
+			Assert.assertEquals(0, vars.size());
+			
+			List<String[]> rows = new ArrayList<String[]>();
+			BufferedReader reader = new BufferedReader(new FileReader(outputFile));
+			String line = reader.readLine();
+			while(line != null) {
+				if (! line.startsWith("#")) {
+					rows.add(line.split("\t"));
+				}
+				line = reader.readLine();
+			}
+			reader.close();
+			
+			Assert.assertEquals(4, rows.size());
+			
+			//Pop. frequency is the 4th annotation column, after 9 fixed columns
+			Assert.assertEquals("774374", rows.get(0)[1]);
+			Assert.assertEquals(0.0027, Double.parseDouble(rows.get(0)[12]), 1e-9);
+			Assert.assertEquals("774391", rows.get(1)[1]);
+			Assert.assertEquals(0.01, Double.parseDouble(rows.get(1)[12]), 1e-9);
+			Assert.assertEquals("774547", rows.get(2)[1]);
+			Assert.assertEquals(0.02, Double.parseDouble(rows.get(2)[12]), 1e-9);
+			Assert.assertEquals("774582", rows.get(3)[1]);
+			Assert.assertEquals(0.01, Double.parseDouble(rows.get(3)[12]), 1e-9);
+			
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+		finally {
+			outputFile.delete();
+		}
+	}
+	
+	/**
+	 * Annotator that fails on its second batch
+	 */
+	public static class FailingAnnotator extends Annotator {
+		int batches = 0;
+		
+		@Override
+		public void annotateBatch() throws OperationFailedException {
+			batches++;
+			if (batches == 2) {
+				throw new OperationFailedException("Failing on purpose", this);
+			}
+			super.annotateBatch();
+		}
+		
+		@Override
+		public void annotateVariant(VariantRec var) {
+			var.addAnnotation(VariantRec.GENE_NAME, "GENE");
+		}
+	}
+	
+	/**
+	 * If an annotator fails part way through, the output is still closed, so everything written before the
+	 * failure is in the file
+	 */
+	public void testFailureClosesOutput() throws Exception {
+		File dir = File.createTempFile("streamingfailure", "");
+		dir.delete();
+		dir.mkdirs();
+		File xml = new File(dir, "pipeline.xml");
+		File output = new File(dir, "output.csv");
+		try {
+			FileWriter writer = new FileWriter(xml);
+			writer.write("<Pipeline>\n");
+			writer.write("<InputVCF class=\"buffer.VCFFile\" filename=\"" + new File("src/test/java/testvcfs/testTGKinput.vcf").getAbsolutePath() + "\" />\n");
+			writer.write("<OutputCSV class=\"buffer.CSVFile\" filename=\"" + output.getAbsolutePath() + "\" />\n");
+			writer.write("<Stream class=\"operator.variant.StreamingAnnotator\" batch.size=\"2\">\n");
+			writer.write("\t<VariantPool class=\"buffer.variant.VariantPool\"> <InputVCF /> </VariantPool>\n");
+			writer.write("\t<Annotate class=\"" + FailingAnnotator.class.getName() + "\"> <VariantPool /> </Annotate>\n");
+			writer.write("\t<Writer class=\"operator.variant.VariantPoolToFile\"> <VariantPool /> <OutputCSV /> </Writer>\n");
+			writer.write("</Stream>\n");
+			writer.write("</Pipeline>\n");
+			writer.close();
+			
+			Pipeline ppl = new Pipeline(xml, propertiesFile.getAbsolutePath());
+			ppl.setProperty(Pipeline.PROJECT_HOME, dir.getAbsolutePath() + "/");
+			ppl.initializePipeline();
+			ppl.stopAllLogging();
+			try {
+				ppl.execute();
+				Assert.fail("Expected the failing annotator to stop the pipeline");
+			} catch (Exception expected) {
+				//good
+			}
+			
+			int rows = 0;
+			BufferedReader reader = new BufferedReader(new FileReader(output));
+			String line = reader.readLine();
+			while(line != null) {
+				if (! line.startsWith("#")) {
+					Assert.assertTrue(line, line.contains("GENE"));
+					rows++;
+				}
+				line = reader.readLine();
+			}
+			reader.close();
+			Assert.assertEquals(2, rows);
+		}
+		finally {
+			for(File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+	
+	/**
+	 * Annotator that adds the same gene name to every variant
+	 */
+	public static class GeneAnnotator extends Annotator {
+		@Override
+		public void annotateVariant(VariantRec var) {
+			var.addAnnotation(VariantRec.GENE_NAME, "GENE");
+		}
+	}
+	
+	private static List<String> readRows(File file) throws Exception {
+		List<String> rows = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		String line = reader.readLine();
+		while(line != null) {
+			if (! line.startsWith("#")) {
+				rows.add(line);
+			}
+			line = reader.readLine();
+		}
+		reader.close();
+		return rows;
+	}
+	
+	private void runPipeline(File dir, File vcf, File output, boolean streaming) throws Exception {
+		File xml = new File(dir, streaming ? "streaming.xml" : "pipeline.xml");
+		FileWriter writer = new FileWriter(xml);
+		writer.write("<Pipeline>\n");
+		writer.write("<InputVCF class=\"buffer.VCFFile\" filename=\"" + vcf.getAbsolutePath() + "\" />\n");
+		writer.write("<OutputCSV class=\"buffer.CSVFile\" filename=\"" + output.getAbsolutePath() + "\" />\n");
+		if (streaming) {
+			writer.write("<Stream class=\"operator.variant.StreamingAnnotator\" batch.size=\"3\">\n");
+		}
+		writer.write("\t<VariantPool class=\"buffer.variant.VariantPool\"> <InputVCF /> </VariantPool>\n");
+		writer.write("\t<Annotate class=\"" + GeneAnnotator.class.getName() + "\"> <VariantPool /> </Annotate>\n");
+		writer.write("\t<Writer class=\"operator.variant.VariantPoolToFile\"> <VariantPool /> <OutputCSV /> </Writer>\n");
+		if (streaming) {
+			writer.write("</Stream>\n");
+		}
+		writer.write("</Pipeline>\n");
+		writer.close();
+		
+		Pipeline ppl = new Pipeline(xml, propertiesFile.getAbsolutePath());
+		ppl.setProperty(Pipeline.PROJECT_HOME, dir.getAbsolutePath() + "/");
+		ppl.initializePipeline();
+		ppl.stopAllLogging();
+		ppl.execute();
+	}
+	
+	/**
+	 * With input sorted in karyotype order, batches spanning two contigs (9 -> 10 here) must not be written
+	 * with the contigs in lexicographic order. The streamed output is in input order and has the same rows as the
+	 * non-streamed output, which sorts contigs by name
+	 */
+	public void testStreamedContigOrder() throws Exception {
+		File dir = File.createTempFile("streamingorder", "");
+		dir.delete();
+		dir.mkdirs();
+		File vcf = new File(dir, "input.vcf");
+		File streamed = new File(dir, "streamed.csv");
+		File unstreamed = new File(dir, "unstreamed.csv");
+		try {
+			String[] contigs = new String[]{"1", "2", "9", "9", "9", "10", "10", "X"};
+			FileWriter writer = new FileWriter(vcf);
+			writer.write("##fileformat=VCFv4.1\n");
+			writer.write("##UnifiedGenotyper=\"analysis_type=UnifiedGenotyper\"\n");
+			writer.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tsample\n");
+			for(int i=0; i<contigs.length; i++) {
+				writer.write(contigs[i] + "\t" + (1000 + 100*i) + "\t.\tG\tA\t100\tPASS\t.\tGT\t0/1\n");
+			}
+			writer.close();
+			
+			runPipeline(dir, vcf, streamed, true);
+			runPipeline(dir, vcf, unstreamed, false);
+			
+			List<String> rows = readRows(streamed);
+			Assert.assertEquals(contigs.length, rows.size());
+			for(int i=0; i<contigs.length; i++) {
+				String[] toks = rows.get(i).split("\t");
+				Assert.assertEquals(contigs[i], toks[0]);
+				Assert.assertEquals(String.valueOf(1000 + 100*i), toks[1]);
+			}
+			List<String> unstreamedRows = readRows(unstreamed);
+			Assert.assertEquals("10", unstreamedRows.get(2).split("\t")[0]);
+			List<String> sortedRows = new ArrayList<String>(rows);
+			Collections.sort(sortedRows);
+			Collections.sort(unstreamedRows);
+			Assert.assertEquals(unstreamedRows, sortedRows);
+		}
+		finally {
+			for(File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+}
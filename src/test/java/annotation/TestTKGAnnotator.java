@@ -3,11 +3,14 @@ package annotation;
 import java.io.File;
 
 import junit.framework.TestCase;
+import operator.variant.AbstractTabixAnnotator;
 import operator.variant.TGPTabixAnnotator;
 
 import org.junit.Assert;
 
+import pipeline.ObjectHandler;
 import pipeline.Pipeline;
+import buffer.VCFFile;
 import buffer.variant.VariantPool;
 import buffer.variant.VariantRec;
 
@@ -59,4 +62,100 @@ public class TestTKGAnnotator extends TestCase {
 			Assert.assertTrue(false);
 		}
 	}
+	
+	/**
+	 * Sweeping through the tabix file should give exactly the same annotations as querying it once per variant
+	 */
+	public void testTKGSweepMatchesRandom() {
+		try {
+			VariantPool sweepVars = runWithMode(AbstractTabixAnnotator.MODE_SWEEP);
+			VariantPool randomVars = runWithMode(AbstractTabixAnnotator.MODE_RANDOM);
+			
+			Assert.assertEquals(randomVars.size(), sweepVars.size());
+			int annotated = 0;
+			for(VariantRec rec : randomVars.toList()) {
+				VariantRec other = sweepVars.findRecord(rec.getContig(), rec.getStart(), rec.getRef(), rec.getAlt());
+				Assert.assertNotNull(other);
+				Assert.assertEquals(rec.getProperty(VariantRec.POP_FREQUENCY), other.getProperty(VariantRec.POP_FREQUENCY));
+				if (rec.getProperty(VariantRec.POP_FREQUENCY) != null) {
+					annotated++;
+				}
+			}
+			Assert.assertEquals(4, annotated);
+			
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+	
+	/**
+	 * Splitting the variants into many tiny chunks spread across threads shouldn't change anything
+	 */
+	public void testTKGSingleVariantChunks() {
+		try {
+			VariantPool chunkedVars = runWithMode(AbstractTabixAnnotator.MODE_AUTO, "1");
+			VariantPool randomVars = runWithMode(AbstractTabixAnnotator.MODE_RANDOM);
+			
+			Assert.assertEquals(randomVars.size(), chunkedVars.size());
+			for(VariantRec rec : randomVars.toList()) {
+				VariantRec other = chunkedVars.findRecord(rec.getContig(), rec.getStart(), rec.getRef(), rec.getAlt());
+				Assert.assertNotNull(other);
+				Assert.assertEquals(rec.getProperty(VariantRec.POP_FREQUENCY), other.getProperty(VariantRec.POP_FREQUENCY));
+			}
+			
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+	
+	/**
+	 * An annotator with no pipeline owner should annotate on the common pool instead of failing
+	 */
+	public void testTKGWithoutPipeline() {
+		try {
+			final VariantPool pool = new VariantPool(new VCFFile(new File("src/test/java/testvcfs/testTGKinput.vcf")));
+			
+			TGPTabixAnnotator annotator = new TGPTabixAnnotator() {
+				{
+					variants = pool;
+				}
+			};
+			annotator.setObjectHandler(new ObjectHandler(null, null));
+			annotator.setAttribute(TGPTabixAnnotator.TGP_SITES_PATH, testTKGFile.getAbsolutePath());
+			annotator.performOperation();
+			
+			VariantPool randomVars = runWithMode(AbstractTabixAnnotator.MODE_RANDOM);
+			Assert.assertEquals(randomVars.size(), pool.size());
+			for(VariantRec rec : randomVars.toList()) {
+				VariantRec other = pool.findRecord(rec.getContig(), rec.getStart(), rec.getRef(), rec.getAlt());
+				Assert.assertNotNull(other);
+				Assert.assertEquals(rec.getProperty(VariantRec.POP_FREQUENCY), other.getProperty(VariantRec.POP_FREQUENCY));
+			}
+			
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+	
+	private VariantPool runWithMode(String mode) throws Exception {
+		return runWithMode(mode, null);
+	}
+	
+	private VariantPool runWithMode(String mode, String chunkSize) throws Exception {
+		Pipeline ppl = new Pipeline(inputFile, propertiesFile.getAbsolutePath());
+		ppl.setProperty("tgp.sites.path", testTKGFile.getAbsolutePath());
+		ppl.initializePipeline();
+		ppl.stopAllLogging();
+		
+		TGPTabixAnnotator annotator = (TGPTabixAnnotator)ppl.getObjectHandler().getObjectForLabel("Annotate");
+		annotator.setAttribute(AbstractTabixAnnotator.TABIX_MODE, mode);
+		if (chunkSize != null) {
+			annotator.setAttribute(AbstractTabixAnnotator.CHUNK_SIZE, chunkSize);
+		}
+		ppl.execute();
+		return annotator.getVariants();
+	}
 }
@@ -0,0 +1,149 @@
+package concurrent;
+
+import java.io.File;
+
+import operator.OperationFailedException;
+import operator.Operator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import pipeline.OperatorScheduler;
+import pipeline.Pipeline;
+import pipeline.PipelineListener;
+
+/**
+ * Tests for running pipeline operators as a dependency graph
+ * @author brendan
+ *
+ */
+public class TestOperatorScheduler {
+
+	File propertiesFile = new File("src/test/java/core/inputFiles/testProperties.xml");
+
+	private Pipeline createPipeline(String inputPath) throws Exception {
+		Pipeline ppl = new Pipeline(new File(inputPath), propertiesFile.getAbsolutePath());
+		ppl.setProperty(Pipeline.SCHEDULER, OperatorScheduler.DAG);
+		ppl.initializePipeline();
+		ppl.stopAllLogging();
+		return ppl;
+	}
+
+	private static Operator getOperator(Pipeline ppl, String label) {
+		return (Operator) ppl.getObjectHandler().getObjectForLabel(label);
+	}
+
+	@Test
+	public void testDependencies() throws Exception {
+		Pipeline ppl = createPipeline("src/test/java/concurrent/schedulerInput1.xml");
+		OperatorScheduler scheduler = new OperatorScheduler(ppl);
+
+		Operator waitA = getOperator(ppl, "WaitA");
+		Operator waitB = getOperator(ppl, "WaitB");
+		Operator combine = getOperator(ppl, "Combine");
+		Operator report = getOperator(ppl, "Report");
+		Operator heavy = getOperator(ppl, "Heavy");
+
+		//Readers of the same buffer don't depend on each other
+		Assert.assertTrue(scheduler.getDependencies(waitA).isEmpty());
+		Assert.assertTrue(scheduler.getDependencies(waitB).isEmpty());
+		Assert.assertTrue(scheduler.getDependencies(combine).isEmpty());
+		Assert.assertEquals(1, scheduler.getDependencies(report).size());
+		Assert.assertTrue(scheduler.getDependencies(report).contains(waitA));
+		Assert.assertTrue(scheduler.getDependencies(heavy).isEmpty());
+	}
+
+	@Test
+	public void testConcurrentExecution() throws Exception {
+		Pipeline ppl = createPipeline("src/test/java/concurrent/schedulerInput1.xml");
+		CounterListener listener = new CounterListener();
+		ppl.addListener(listener);
+
+		ppl.execute();
+
+		Assert.assertEquals(5, listener.started);
+		Assert.assertEquals(5, listener.completed);
+		Assert.assertTrue(listener.finished);
+		Assert.assertTrue(ppl.isExecuteCompleted());
+		//The two one-second waits overlap, each starts before the other ends
+		long waitAStart = Long.parseLong(getOperator(ppl, "WaitA").getAttribute(Pipeline.START_TIME));
+		long waitAEnd = Long.parseLong(getOperator(ppl, "WaitA").getAttribute(Pipeline.END_TIME));
+		long waitBStart = Long.parseLong(getOperator(ppl, "WaitB").getAttribute(Pipeline.START_TIME));
+		long waitBEnd = Long.parseLong(getOperator(ppl, "WaitB").getAttribute(Pipeline.END_TIME));
+		Assert.assertTrue(waitAStart < waitBEnd);
+		Assert.assertTrue(waitBStart < waitAEnd);
+
+		//Report must not start before WaitA is done
+		long reportStart = Long.parseLong(getOperator(ppl, "Report").getAttribute(Pipeline.START_TIME));
+		Assert.assertTrue(reportStart >= waitAEnd);
+	}
+
+	@Test
+	public void testInvalidMemoryBudget() throws Exception {
+		for(String value : new String[]{"lots", "0", "-100"}) {
+			Pipeline ppl = createPipeline("src/test/java/concurrent/schedulerInput1.xml");
+			ppl.setProperty(OperatorScheduler.MEMORY_BUDGET, value);
+			try {
+				new OperatorScheduler(ppl);
+				Assert.fail("Expected memory budget of " + value + " to be rejected");
+			}
+			catch (IllegalArgumentException ex) {
+				Assert.assertTrue(ex.getMessage(), ex.getMessage().contains(OperatorScheduler.MEMORY_BUDGET));
+			}
+		}
+	}
+
+	@Test
+	public void testFailFast() throws Exception {
+		Pipeline ppl = createPipeline("src/test/java/concurrent/schedulerInput2.xml");
+		CounterListener listener = new CounterListener();
+		ppl.addListener(listener);
+
+		try {
+			ppl.execute();
+			Assert.fail("Expected the failing operator to stop the pipeline");
+		}
+		catch (OperationFailedException ex) {
+			Assert.assertEquals("Fail", ex.getSourceOperator().getObjectLabel());
+		}
+
+		Assert.assertEquals(1, listener.started);
+		Assert.assertEquals(0, listener.completed);
+		Assert.assertEquals(1, listener.errors);
+		Assert.assertFalse(listener.finished);
+		Assert.assertFalse(ppl.isExecuteCompleted());
+	}
+
+	class CounterListener implements PipelineListener {
+
+		int completed = 0;
+		int started = 0;
+		int errors = 0;
+		boolean finished = false;
+
+		@Override
+		public void operatorCompleted(Operator op) {
+			completed++;
+		}
+
+		@Override
+		public void operatorBeginning(Operator op) {
+			started++;
+		}
+
+		@Override
+		public void errorEncountered(OperationFailedException opEx) {
+			errors++;
+		}
+
+		@Override
+		public void pipelineFinished() {
+			finished = true;
+		}
+
+		@Override
+		public void message(String messageText) {
+			//nothing to do
+		}
+	}
+}
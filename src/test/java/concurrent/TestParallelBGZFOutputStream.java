@@ -0,0 +1,146 @@
+package concurrent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import net.sf.samtools.util.BlockCompressedInputStream;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.CompressGZIP;
+import util.ParallelBGZFOutputStream;
+
+public class TestParallelBGZFOutputStream {
+
+	/**
+	 * Some text-like, compressible data with a stretch of random bytes that won't compress in the middle
+	 */
+	private static byte[] makeData(int length) {
+		Random rng = new Random(5);
+		byte[] data = new byte[length];
+		for(int i=0; i<length; i++) {
+			data[i] = (byte)('A' + rng.nextInt(4));
+		}
+		byte[] noise = new byte[200000];
+		rng.nextBytes(noise);
+		System.arraycopy(noise, 0, data, length/3, noise.length);
+		return data;
+	}
+
+	private static byte[] compress(byte[] data, int threads, Random rng) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = new ParallelBGZFOutputStream(bytes, threads);
+		int pos = 0;
+		while (pos < data.length) {
+			int len = Math.min(data.length - pos, rng.nextInt(100000));
+			if (len == 1) {
+				out.write(data[pos]);
+			}
+			else {
+				out.write(data, pos, len);
+			}
+			pos += len;
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n = in.read(buf);
+		while (n >= 0) {
+			bytes.write(buf, 0, n);
+			n = in.read(buf);
+		}
+		in.close();
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void TestRoundTrip() throws IOException {
+		byte[] data = makeData(2000000);
+		byte[] single = compress(data, 1, new Random(1));
+		byte[] parallel = compress(data, 4, new Random(2));
+
+		//Blocks are the same no matter how many threads compress them or how the data is written
+		Assert.assertArrayEquals(single, parallel);
+		Assert.assertTrue(parallel.length < data.length);
+		byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+		Assert.assertArrayEquals(eof, Arrays.copyOfRange(parallel, parallel.length - eof.length, parallel.length));
+
+		Assert.assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(parallel))));
+		Assert.assertArrayEquals(data, readAll(new BlockCompressedInputStream(new ByteArrayInputStream(parallel))));
+	}
+
+	@Test
+	public void TestFlushAndSmallOutput() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		OutputStream out = CompressGZIP.compress(bytes, 3);
+		out.write("first".getBytes());
+		out.flush();
+		int flushed = bytes.size();
+		Assert.assertTrue(flushed > 0);
+		out.write("second".getBytes());
+		out.close();
+		out.close();
+		Assert.assertEquals("firstsecond", new String(readAll(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray())))));
+
+	}
+
+	/**
+	 * compressGZIP(..) output is served over HTTP, so it's a single plain gzip member rather than BGZF
+	 */
+	@Test
+	public void TestCompressGZIPSingleMember() throws IOException {
+		byte[] hello = CompressGZIP.compressGZIP("hello");
+		Assert.assertEquals("hello", new String(readAll(new GZIPInputStream(new ByteArrayInputStream(hello)))));
+		//No FEXTRA field, which BGZF uses for the block size
+		Assert.assertEquals(0x1f, hello[0] & 0xff);
+		Assert.assertEquals(0x8b, hello[1] & 0xff);
+		Assert.assertEquals(0, hello[3] & 0x04);
+		byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+		Assert.assertFalse(Arrays.equals(eof, Arrays.copyOfRange(hello, Math.max(0, hello.length - eof.length), hello.length)));
+	}
+
+	/**
+	 * Stream that fails every write and remembers whether it was closed
+	 */
+	static class FailingStream extends OutputStream {
+		boolean closed = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			throw new IOException("Disk full");
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	@Test
+	public void TestCloseAfterWriteFails() throws IOException {
+		for(int threads : new int[]{1, 3}) {
+			FailingStream failing = new FailingStream();
+			OutputStream out = CompressGZIP.compress(failing, threads);
+			out.write("some data".getBytes());
+			try {
+				out.close();
+				Assert.fail("Expected the failed write to be reported");
+			} catch (IOException expected) {
+				Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("Disk full"));
+			}
+			Assert.assertTrue(failing.closed);
+		}
+	}
+}
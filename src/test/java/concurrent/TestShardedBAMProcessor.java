@@ -0,0 +1,106 @@
+package concurrent;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+import net.sf.samtools.SAMRecord;
+import operator.OperationFailedException;
+import operator.bamutils.BAMProcessor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import buffer.BAMFile;
+
+public class TestShardedBAMProcessor {
+
+	/**
+	 * Drops low mapping quality reads and changes the rest, and isn't thread safe
+	 */
+	static class TestProcessor extends BAMProcessor {
+
+		int count = 0;
+
+		@Override
+		public SAMRecord processRecord(SAMRecord samRecord) {
+			count++;
+			if (samRecord.getMappingQuality() < 20) {
+				return null;
+			}
+			samRecord.setAttribute("XC", samRecord.getReadName().length());
+			return samRecord;
+		}
+	}
+
+	private static List<String> readRecords(File bam) {
+		SAMFileReader reader = new SAMFileReader(bam);
+		reader.setValidationStringency(ValidationStringency.LENIENT);
+		List<String> records = new ArrayList<String>();
+		for(SAMRecord rec : reader) {
+			records.add(rec.getSAMString());
+		}
+		reader.close();
+		return records;
+	}
+
+	@Test
+	public void TestShardedMatchesSerial() throws Exception {
+		File input = new File("src/test/java/testbams/tinybam.bam");
+		Assert.assertTrue(BAMProcessor.canShard(new BAMFile(input)));
+
+		File serialOut = File.createTempFile("testserial", ".bam");
+		File shardedOut = File.createTempFile("testsharded", ".bam");
+		try {
+			TestProcessor serial = new TestProcessor();
+			serial.processBAMFile(new BAMFile(input), new BAMFile(serialOut));
+			List<String> expected = readRecords(serialOut);
+			Assert.assertTrue(expected.size() > 0);
+
+			//The reads start at 52305854 on chr12, so the first shard size puts a boundary among them
+			int[] shardSizes = new int[]{52306000, 1000000, 1000000000};
+			for(int shardSize : shardSizes) {
+				TestProcessor sharded = new TestProcessor();
+				sharded.processBAMFileInShards(new BAMFile(input), new BAMFile(shardedOut), 4, shardSize);
+				Assert.assertEquals(serial.count, sharded.count);
+				Assert.assertEquals(expected, readRecords(shardedOut));
+				Assert.assertFalse(new File(shardedOut.getAbsolutePath() + ".part0").exists());
+			}
+		}
+		finally {
+			serialOut.delete();
+			shardedOut.delete();
+		}
+	}
+
+	/**
+	 * A shard size less than one would never finish splitting the contigs, so it's a configuration error
+	 */
+	@Test
+	public void TestInvalidShardSize() throws Exception {
+		for(String value : new String[]{"0", "-5", "big"}) {
+			TestProcessor processor = new TestProcessor();
+			processor.setAttribute(BAMProcessor.SHARD_SIZE, value);
+			try {
+				processor.performOperation();
+				Assert.fail("Expected shard.size of " + value + " to be rejected");
+			} catch (OperationFailedException expected) {
+				Assert.assertTrue(expected.getMessage(), expected.getMessage().contains(BAMProcessor.SHARD_SIZE));
+			}
+		}
+
+		File input = new File("src/test/java/testbams/tinybam.bam");
+		File output = File.createTempFile("testsharded", ".bam");
+		try {
+			new TestProcessor().processBAMFileInShards(new BAMFile(input), new BAMFile(output), 4, 0);
+			Assert.fail("Expected a shard size of 0 to be rejected");
+		} catch (IllegalArgumentException expected) {
+			//good
+		}
+		finally {
+			output.delete();
+		}
+	}
+}
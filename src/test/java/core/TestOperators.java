@@ -1,6 +1,7 @@
 package core;
 
 import java.io.File;
+import java.io.FileWriter;
 
 import junit.framework.TestCase;
 import operator.OperationFailedException;
@@ -13,6 +14,7 @@ import pipeline.ObjectHandler;
 import pipeline.Pipeline;
 import pipeline.PipelineListener;
 import pipeline.PipelineObject;
+import buffer.variant.VariantPool;
 
 /**
  * This class contains some tests for the functionality of operators. 
@@ -195,4 +197,63 @@ public class TestOperators extends TestCase  {
 		}
 		
 	}
+	
+	/**
+	 * Thread counts that aren't positive integers are reported with the name of the setting
+	 */
+	@Test
+	public void testBadThreadCounts() {
+		Assert.assertEquals(4, Pipeline.parseThreadCount(Pipeline.WORK_POOL_THREADS, " 4"));
+		for(String bad : new String[]{"four", "", "0", "-2", "2.5"}) {
+			try {
+				Pipeline.parseThreadCount(Pipeline.WORK_POOL_THREADS, bad);
+				Assert.fail("Expected thread count '" + bad + "' to be rejected");
+			}
+			catch (IllegalArgumentException expected) {
+				Assert.assertTrue(expected.getMessage(), expected.getMessage().contains(Pipeline.WORK_POOL_THREADS));
+				Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("'" + bad + "'"));
+			}
+		}
+		
+		File testInputFile = new File("src/test/java/core/inputFiles/simpleInput.xml");
+		File propertiesFile = new File("src/test/java/core/inputFiles/testProperties.xml");
+		Pipeline ppl = new Pipeline(testInputFile, propertiesFile.getAbsolutePath());
+		ppl.setProperty(Pipeline.WORK_POOL_THREADS, "lots");
+		try {
+			ppl.getWorkPool();
+			Assert.fail("Expected bad work.pool.threads to be rejected");
+		}
+		catch (IllegalArgumentException expected) {
+			Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("lots"));
+		}
+		
+		//import.threads on a variant pool is checked the same way
+		try {
+			File xml = File.createTempFile("testimportthreads", ".xml");
+			try {
+				FileWriter writer = new FileWriter(xml);
+				writer.write("<Pipeline>\n");
+				writer.write("<InputVCF class=\"buffer.VCFFile\" filename=\"" + new File("src/test/java/testvcfs/myeloid.vcf").getAbsolutePath() + "\" />\n");
+				writer.write("<VariantPool class=\"buffer.variant.VariantPool\" " + VariantPool.IMPORT_THREADS + "=\"0\"> <InputVCF /> </VariantPool>\n");
+				writer.write("</Pipeline>\n");
+				writer.close();
+				ppl = new Pipeline(xml, propertiesFile.getAbsolutePath());
+				ppl.initializePipeline();
+				ppl.stopAllLogging();
+				ppl.execute();
+				Assert.fail("Expected import.threads of 0 to be rejected");
+			}
+			finally {
+				xml.delete();
+			}
+		}
+		catch (IllegalArgumentException expected) {
+			Assert.assertTrue(expected.getMessage(), expected.getMessage().contains(VariantPool.IMPORT_THREADS));
+		}
+		catch (Exception ex) {
+			ex.printStackTrace();
+			Assert.fail("Expected an IllegalArgumentException for import.threads, got " + ex);
+		}
+	}
+	
 }
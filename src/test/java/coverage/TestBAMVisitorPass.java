@@ -0,0 +1,127 @@
+package coverage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.samtools.SAMRecord;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.Interval;
+import util.bamUtil.BAMMetricsVisitor;
+import util.bamUtil.BAMRecordVisitor;
+import util.bamUtil.BAMVisitorPass;
+import util.bamUtil.ReadCountVisitor;
+import util.coverage.CoverageCalculator;
+import util.coverage.CoverageVisitor;
+import buffer.BAMMetrics;
+import buffer.BEDFile;
+import buffer.DOCMetrics;
+import buffer.IntervalsFile;
+
+public class TestBAMVisitorPass {
+
+	File bam = new File("src/test/java/testbams/tinybam.bam");
+	
+	private IntervalsFile getIntervals() {
+		IntervalsFile intervals = new BEDFile();
+		List<Interval> intervalList = new ArrayList<Interval>();
+		intervalList.add(new Interval(52305000, 52306500));
+		intervalList.add(new Interval(52306400, 52308000));
+		intervalList.add(new Interval(52308800, 52311000));
+		intervals.addIntervals("12", intervalList);
+		List<Interval> noReads = new ArrayList<Interval>();
+		noReads.add(new Interval(100, 200));
+		intervals.addIntervals("1", noReads);
+		return intervals;
+	}
+	
+	private BAMVisitorPass runPass(int threads, BAMMetrics bamMetrics, ReadCountVisitor counter, CoverageVisitor cov) throws InterruptedException {
+		BAMVisitorPass pass = new BAMVisitorPass(bam);
+		pass.setThreads(threads);
+		pass.addVisitor(new BAMMetricsVisitor(bamMetrics, bam.getAbsolutePath()));
+		pass.addVisitor(counter);
+		pass.addVisitor(cov);
+		pass.run();
+		return pass;
+	}
+	
+	@Test
+	public void testSingleAndMultiThreadedAgree() throws Exception {
+		BAMMetrics serialMetrics = new BAMMetrics();
+		ReadCountVisitor serialCounter = new ReadCountVisitor(0);
+		DOCMetrics serialDOC = new DOCMetrics();
+		CoverageVisitor serialCov = new CoverageVisitor(getIntervals(), serialDOC, 0, false);
+		BAMVisitorPass serialPass = runPass(1, serialMetrics, serialCounter, serialCov);
+		
+		BAMMetrics parMetrics = new BAMMetrics();
+		ReadCountVisitor parCounter = new ReadCountVisitor(0);
+		DOCMetrics parDOC = new DOCMetrics();
+		CoverageVisitor parCov = new CoverageVisitor(getIntervals(), parDOC, 0, false);
+		BAMVisitorPass parPass = runPass(3, parMetrics, parCounter, parCov);
+		
+		Assert.assertTrue(serialPass.getRecordsRead() > 0);
+		Assert.assertEquals(serialPass.getRecordsRead(), parPass.getRecordsRead());
+		Assert.assertEquals(serialPass.getRecordsRead(), serialMetrics.totalReads);
+		Assert.assertEquals(serialMetrics.totalReads, parMetrics.totalReads);
+		Assert.assertEquals(serialMetrics.duplicateReads, parMetrics.duplicateReads);
+		Assert.assertEquals(serialMetrics.unmappedReads, parMetrics.unmappedReads);
+		Assert.assertEquals(serialMetrics.basesQAbove30, parMetrics.basesQAbove30);
+		Assert.assertEquals(serialMetrics.basesRead, parMetrics.basesRead);
+		Assert.assertArrayEquals(serialMetrics.getMqHistogram().getRawCounts(), parMetrics.getMqHistogram().getRawCounts(), 0.0);
+		Assert.assertArrayEquals(serialMetrics.insertSizeHistogram.getRawCounts(), parMetrics.insertSizeHistogram.getRawCounts(), 0.0);
+		
+		Map<String, Long> counts = serialCounter.getReadCounts();
+		Assert.assertEquals(counts, parCounter.getReadCounts());
+		long total = 0;
+		for(Long count : counts.values()) {
+			total += count;
+		}
+		Assert.assertEquals(serialPass.getRecordsRead(), total);
+		
+		Assert.assertArrayEquals(serialCov.getDepthHistogram(), parCov.getDepthHistogram());
+		Assert.assertEquals(serialDOC.getMeanCoverage(), parDOC.getMeanCoverage(), 0.0);
+	}
+	
+	@Test
+	public void testCoverageMatchesCalculator() throws Exception {
+		IntervalsFile intervals = getIntervals();
+		CoverageCalculator calc = new CoverageCalculator(bam, intervals, false);
+		int[] expected = calc.computeOverallCoverage();
+		
+		DOCMetrics doc = new DOCMetrics();
+		CoverageVisitor cov = new CoverageVisitor(intervals, doc, 0, false);
+		BAMVisitorPass pass = new BAMVisitorPass(bam);
+		pass.addVisitor(cov);
+		pass.run();
+		
+		Assert.assertArrayEquals(expected, cov.getDepthHistogram());
+		Assert.assertEquals(CoverageCalculator.getMean(expected), doc.getMeanCoverage(), 1e-9);
+		Assert.assertNotNull(doc.getFractionAboveCutoff());
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testVisitorErrorsAreRethrown() throws Exception {
+		BAMVisitorPass pass = new BAMVisitorPass(bam);
+		pass.setThreads(2);
+		pass.addVisitor(new ReadCountVisitor(0));
+		pass.addVisitor(new BAMRecordVisitor() {
+			int count = 0;
+			@Override
+			public void visit(SAMRecord record) {
+				count++;
+				if (count == 10) {
+					throw new IllegalStateException("Failing on purpose");
+				}
+			}
+
+			@Override
+			public void finish() {
+			}
+		});
+		pass.run();
+	}
+}
@@ -3,14 +3,22 @@ package coverage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+import net.sf.samtools.SAMRecord;
 import util.Interval;
 import util.coverage.CoverageCalculator;
 import util.coverage.CoverageCalculator.IntervalCovSummary;
+import util.coverage.DepthHistogramEngine;
+import util.coverage.DepthSweep;
 import buffer.BAMFile;
 import buffer.BEDFile;
 import buffer.IntervalsFile;
@@ -38,8 +46,8 @@ public class TestFastDOC {
 		try {
 			int[] depths = computeCovForRegion(testBam.getFile(), "12", 52305960, 52306005, true);
 			Assert.assertEquals(0, depths[0]);
-			Assert.assertEquals(8, depths[1]);
-			Assert.assertEquals(40, depths[2]);
+			Assert.assertEquals(7, depths[1]);
+			Assert.assertEquals(38, depths[2]);
 		} catch (IOException e) {
 			e.printStackTrace();
 			Assert.fail();
@@ -271,12 +279,126 @@ public class TestFastDOC {
 		}
 		double grandMeanDepth60 = totalDepth / totalExtent;
 		
-		// Tests that the original value matches.
-		Assert.assertTrue(Math.round(grandMeanDepth0) == 977);
+		// Tests that the original value matches. (Exact depths, these were 977 and 970 when every 4th base was sampled)
+		Assert.assertTrue(Math.round(grandMeanDepth0) == 982);
 		// Test that no reads in this set are above 60 MQ. (BWA)
 		Assert.assertTrue(Math.round(grandMeanDepth61) == 0);
 		// Test that the result is roughly what samtools view -L with minMQ looks like.
-		Assert.assertTrue(Math.round(grandMeanDepth60) == 970);
+		Assert.assertTrue(Math.round(grandMeanDepth60) == 975);
+	}
+	
+	/**
+	 * Depths from the DepthHistogramEngine should exactly match those computed by looking at every read
+	 * at every base
+	 */
+	@Test
+	public void TestExactDepths() {
+		File bam = new File("src/test/java/testbams/tinybam.bam");
+		int start = 52305000;
+		int end = 52311000;
+		for(boolean countTemplates : new boolean[]{false, true}) {
+			int[] expected = new int[end-start];
+			SAMFileReader reader = new SAMFileReader(bam);
+			reader.setValidationStringency(ValidationStringency.SILENT);
+			for(SAMRecord read : reader) {
+				if (read.getReadUnmappedFlag() || read.getDuplicateReadFlag() || (! read.getReferenceName().equals("12"))) {
+					continue;
+				}
+				int readEnd = read.getAlignmentEnd();
+				if (countTemplates && read.getProperPairFlag() && (! read.getMateUnmappedFlag())) {
+					if (read.getMateAlignmentStart() < read.getAlignmentStart()) {
+						continue;
+					}
+					readEnd = Math.max(readEnd, read.getMateAlignmentStart() + read.getReadLength());
+				}
+				for(int pos=Math.max(start, read.getAlignmentStart()); pos<=Math.min(end-1, readEnd); pos++) {
+					expected[pos-start]++;
+				}
+			}
+			reader.close();
+			
+			//Split the region into a few intervals, one of them overlapping the others
+			List<Interval> intervals = new ArrayList<Interval>();
+			intervals.add(new Interval(start, start+1000));
+			intervals.add(new Interval(start+1000, start+4000));
+			intervals.add(new Interval(start+4000, end));
+			intervals.add(new Interval(start+900, start+1100));
+			
+			DepthHistogramEngine engine = new DepthHistogramEngine(bam, 0, countTemplates);
+			int[] depths = new int[1000];
+			long[] sums = new long[intervals.size()];
+			engine.computeDepths("12", intervals, depths, sums);
+			engine.close();
+			
+			int[] expectedDepths = new int[1000];
+			for(Interval interval : intervals) {
+				long sum = 0;
+				for(int pos=interval.begin; pos<interval.end; pos++) {
+					expectedDepths[expected[pos-start]]++;
+					sum += expected[pos-start];
+				}
+				Assert.assertEquals(sum, sums[intervals.indexOf(interval)]);
+			}
+			Assert.assertArrayEquals(expectedDepths, depths);
+		}
+	}
+	
+	/**
+	 * Overlapping intervals whose union is longer than a batch go in overlapping batches, and spans that start
+	 * and end inside the overlap must count towards both
+	 */
+	@Test
+	public void TestSweepAcrossOverlappingBatches() {
+		int max = DepthSweep.MAX_BATCH_SPAN;
+		List<Interval> intervals = new ArrayList<Interval>();
+		intervals.add(new Interval(100, max - 1000));
+		intervals.add(new Interval(max - 3000, max + 5000));
+		intervals.add(new Interval(max + 2000, max + 2500));
+		int regionEnd = max + 6000;
+
+		Random rng = new Random(11);
+		List<int[]> spans = new ArrayList<int[]>();
+		for(int start=0; start<regionEnd; start += rng.nextInt(40)) {
+			spans.add(new int[]{start, start + rng.nextInt(300)});
+		}
+		//Some short spans entirely within the overlap of the first two intervals
+		for(int start=max-2900; start<max-1100; start += 7) {
+			spans.add(new int[]{start, start + 50});
+		}
+		Collections.sort(spans, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return a[0] - b[0];
+			}
+		});
+
+		int[] expected = new int[regionEnd + 400];
+		for(int[] span : spans) {
+			for(int pos=span[0]; pos<=span[1]; pos++) {
+				expected[pos]++;
+			}
+		}
+
+		int[] depths = new int[1000];
+		long[] sums = new long[intervals.size()];
+		DepthSweep sweep = new DepthSweep(intervals, depths, sums);
+		for(int[] span : spans) {
+			sweep.add(span[0], span[1]);
+		}
+		long total = sweep.finish();
+
+		int[] expectedDepths = new int[1000];
+		long expectedTotal = 0;
+		for(int i=0; i<intervals.size(); i++) {
+			long sum = 0;
+			for(int pos=intervals.get(i).begin; pos<intervals.get(i).end; pos++) {
+				expectedDepths[Math.min(expected[pos], 999)]++;
+				sum += expected[pos];
+			}
+			Assert.assertEquals(sum, sums[i]);
+			expectedTotal += sum;
+		}
+		Assert.assertEquals(expectedTotal, total);
+		Assert.assertArrayEquals(expectedDepths, depths);
 	}
 	
 	public static int[] computeCovForRegion(File bamFile, String contig, int start, int end, boolean countTemplates) throws IOException, InterruptedException {
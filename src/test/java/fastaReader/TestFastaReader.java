@@ -4,10 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
 import util.FastaReader;
+import util.IndexedFastaReader;
 
 /**
  * Tests FastaReader: 
@@ -19,6 +21,12 @@ import util.FastaReader;
 public class TestFastaReader{
 	File smallFasta = new File("src/test/java/testfasta/small.fasta");
 	
+	@After
+	public void tearDown() {
+		//Reading small.fasta writes its index next to it
+		new File(smallFasta.getPath() + IndexedFastaReader.INDEX_SUFFIX).delete();
+	}
+	
 	@Test
 	public void TestChrMap() {
 		FastaReader smallRef = null;
@@ -0,0 +1,263 @@
+package fastaReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import util.FastaReader;
+import util.IndexedFastaReader;
+
+/**
+ * Tests IndexedFastaReader against sequences held in memory, reading bases and subsequences out of order
+ * and from several threads
+ */
+public class TestIndexedFastaReader {
+
+	File smallFasta = new File("src/test/java/testfasta/small.fasta");
+	File fasta = null;
+	String[] names = new String[]{"chr1", "chr2", "chrM", "tiny"};
+	String[] seqs = null;
+
+	@Before
+	public void setUp() throws IOException {
+		Random rng = new Random(11);
+		int[] lengths = new int[]{30000, 12345, 16569, 7};
+		seqs = new String[lengths.length];
+		fasta = File.createTempFile("indexedfasta", ".fa");
+		FileWriter writer = new FileWriter(fasta);
+		for(int i=0; i<lengths.length; i++) {
+			StringBuilder seq = new StringBuilder();
+			for(int j=0; j<lengths[i]; j++) {
+				seq.append("ACGTNacgt".charAt(rng.nextInt(9)));
+			}
+			seqs[i] = seq.toString();
+			writer.write(">" + names[i] + " some description\n");
+			int lineLength = i == 1 ? 70 : 60;
+			String eol = i == 2 ? "\r\n" : "\n";
+			for(int j=0; j<seqs[i].length(); j+=lineLength) {
+				writer.write(seqs[i].substring(j, Math.min(seqs[i].length(), j + lineLength)) + eol);
+			}
+		}
+		writer.close();
+	}
+
+	@After
+	public void tearDown() {
+		new File(fasta.getPath() + IndexedFastaReader.INDEX_SUFFIX).delete();
+		new File(smallFasta.getPath() + IndexedFastaReader.INDEX_SUFFIX).delete();
+		fasta.delete();
+	}
+
+	private void checkRandomAccess(IndexedFastaReader reader, Random rng) throws IOException {
+		for(int i=0; i<2000; i++) {
+			int c = rng.nextInt(names.length);
+			String seq = seqs[c];
+			int start = 1 + rng.nextInt(seq.length());
+			int end = Math.min(seq.length(), start + rng.nextInt(10000));
+			Assert.assertEquals(seq.charAt(start-1), reader.getBase(names[c], start));
+			Assert.assertEquals(seq.substring(start-1, end), reader.getSequence(names[c], start, end));
+		}
+	}
+
+	@Test
+	public void TestRandomAccess() throws IOException {
+		IndexedFastaReader reader = new IndexedFastaReader(fasta);
+		Assert.assertEquals(names.length, reader.getContigs().size());
+		for(int i=0; i<names.length; i++) {
+			Assert.assertEquals(names[i], reader.getContigs().get(i));
+			Assert.assertEquals(seqs[i].length(), reader.getContigLength(names[i]));
+		}
+		checkRandomAccess(reader, new Random(1));
+
+		//Same contigs with or without the chr prefix
+		Assert.assertEquals(seqs[0].substring(99, 200), reader.getSequence("1", 100, 200));
+		Assert.assertEquals(seqs[3].charAt(0), reader.getBase("chrtiny", 1));
+		Assert.assertFalse(reader.hasContig("3"));
+		Assert.assertEquals("", reader.getSequence("2", 10, 9));
+		try {
+			reader.getBase("2", seqs[1].length() + 1);
+			Assert.fail("Expected position past end of contig to throw");
+		} catch (IllegalArgumentException expected) {
+			//good
+		}
+		reader.close();
+	}
+
+	@Test
+	public void TestWrittenIndex() throws IOException {
+		File index = IndexedFastaReader.writeIndex(fasta);
+		BufferedReader lines = new BufferedReader(new FileReader(index));
+		Assert.assertEquals("chr1\t30000\t23\t60\t61", lines.readLine());
+		lines.readLine();
+		Assert.assertEquals("chrM\t16569\t43091\t60\t62", lines.readLine());
+		lines.close();
+
+		IndexedFastaReader reader = IndexedFastaReader.forFile(fasta);
+		Assert.assertSame(reader, IndexedFastaReader.forFile(fasta));
+		checkRandomAccess(reader, new Random(2));
+	}
+
+	@Test
+	public void TestSharedReaderWritesIndex() throws IOException {
+		File index = new File(fasta.getPath() + IndexedFastaReader.INDEX_SUFFIX);
+		Assert.assertFalse(index.exists());
+		IndexedFastaReader reader = IndexedFastaReader.forFile(fasta);
+		Assert.assertTrue(index.exists());
+		BufferedReader lines = new BufferedReader(new FileReader(index));
+		Assert.assertEquals("chr1\t30000\t23\t60\t61", lines.readLine());
+		lines.close();
+
+		//A new reader uses the index instead of scanning the file
+		Assert.assertTrue(index.setLastModified(fasta.lastModified() + 5000L));
+		checkRandomAccess(new IndexedFastaReader(fasta), new Random(3));
+		checkRandomAccess(reader, new Random(4));
+	}
+
+	@Test
+	public void TestCloseWhileMapping() throws Exception {
+		for(int round=0; round<20; round++) {
+			final IndexedFastaReader reader = new IndexedFastaReader(fasta);
+			final AtomicInteger failures = new AtomicInteger();
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int i=0; i<names.length; i++) {
+				final int contig = i;
+				Thread thread = new Thread() {
+					public void run() {
+						try {
+							Assert.assertEquals(seqs[contig], reader.getSequence(names[contig], 1, seqs[contig].length()));
+						} catch (Throwable t) {
+							t.printStackTrace();
+							failures.incrementAndGet();
+						}
+					}
+				};
+				threads.add(thread);
+				thread.start();
+			}
+			reader.close();
+			for(Thread thread : threads) {
+				thread.join();
+			}
+			Assert.assertEquals(0, failures.get());
+		}
+	}
+
+	@Test
+	public void TestThreads() throws Exception {
+		final IndexedFastaReader reader = IndexedFastaReader.forFile(fasta);
+		final AtomicInteger failures = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i<6; i++) {
+			final int seed = i;
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						checkRandomAccess(reader, new Random(100 + seed));
+					} catch (Throwable t) {
+						t.printStackTrace();
+						failures.incrementAndGet();
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(0, failures.get());
+	}
+
+	@Test
+	public void TestIrregularLines() throws IOException {
+		File bad = File.createTempFile("irregular", ".fa");
+		FileWriter writer = new FileWriter(bad);
+		writer.write(">1\nACGT\nAC\nACGT\n");
+		writer.close();
+		try {
+			new IndexedFastaReader(bad);
+			Assert.fail("Expected irregular line lengths to throw");
+		} catch (IOException expected) {
+			//good
+		}
+
+		//FastaReader still reads the file in order without an index
+		FastaReader reader = new FastaReader(bad);
+		Assert.assertEquals(10, reader.getContigSizes().get("1").intValue());
+		Assert.assertEquals('G', reader.getBaseAt("1", 3));
+		bad.delete();
+	}
+
+	@Test
+	public void TestFastaReaderGoesBackwards() throws IOException {
+		//Read contig 2 of small.fasta the slow way
+		StringBuilder seq = new StringBuilder();
+		BufferedReader lines = new BufferedReader(new FileReader(smallFasta));
+		boolean inContig = false;
+		String line = lines.readLine();
+		while(line != null) {
+			if (line.startsWith(">")) {
+				inContig = line.startsWith(">2");
+			}
+			else if (inContig) {
+				seq.append(line.trim());
+			}
+			line = lines.readLine();
+		}
+		lines.close();
+		Assert.assertEquals(1253, seq.length());
+
+		FastaReader reader = new FastaReader(smallFasta);
+		Assert.assertEquals(seq.charAt(1000), reader.getBaseAt("2", 1001));
+		Assert.assertEquals(seq.charAt(99), reader.getBaseAt("2", 100));
+		Assert.assertEquals(seq.charAt(1252), reader.getBaseAt("chr2", 1253));
+		Assert.assertEquals(seq.substring(500, 800), IndexedFastaReader.forFile(smallFasta).getSequence("2", 501, 800));
+	}
+
+	@Test
+	public void TestSharedReadersReplaced() throws IOException {
+		IndexedFastaReader reader = IndexedFastaReader.forFile(fasta);
+		Assert.assertEquals(seqs[0].substring(0, 10), reader.getSequence("chr1", 1, 10));
+
+		//A changed file gets a new reader, and the old one is closed
+		fasta.setLastModified(fasta.lastModified() - 5000L);
+		IndexedFastaReader replacement = IndexedFastaReader.forFile(fasta);
+		Assert.assertNotSame(reader, replacement);
+		Assert.assertSame(replacement, IndexedFastaReader.forFile(fasta));
+
+		//The closed reader still works, including for contigs it hadn't mapped yet
+		Assert.assertEquals(seqs[0].substring(0, 10), reader.getSequence("chr1", 1, 10));
+		Assert.assertEquals(seqs[1].substring(100, 200), reader.getSequence("chr2", 101, 200));
+
+		//Only the most recently used files keep a shared reader
+		List<File> others = new ArrayList<File>();
+		try {
+			for(int i=0; i<IndexedFastaReader.MAX_SHARED_READERS; i++) {
+				File other = File.createTempFile("indexedfasta", ".fa");
+				FileWriter writer = new FileWriter(other);
+				writer.write(">1\nACGT\n");
+				writer.close();
+				others.add(other);
+				Assert.assertEquals('G', IndexedFastaReader.forFile(other).getBase("1", 3));
+			}
+			Assert.assertNotSame(replacement, IndexedFastaReader.forFile(fasta));
+		}
+		finally {
+			for(File other : others) {
+				new File(other.getPath() + IndexedFastaReader.INDEX_SUFFIX).delete();
+				other.delete();
+			}
+		}
+	}
+}
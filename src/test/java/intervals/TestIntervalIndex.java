@@ -0,0 +1,81 @@
+package intervals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.Interval;
+import util.IntervalIndex;
+
+public class TestIntervalIndex {
+
+	private static List<Interval> bruteForce(List<Interval> intervals, int start, int end) {
+		List<Interval> hits = new ArrayList<Interval>();
+		for(Interval interval : intervals) {
+			if (interval.intersects(start, end)) {
+				hits.add(interval);
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * Random intervals of mixed lengths, including a few very long ones, for every size from 0 up to
+	 * a few hundred so all of the partially filled tree shapes get tested
+	 */
+	@Test
+	public void TestMatchesBruteForce() {
+		Random rng = new Random(17);
+		for(int n=0; n<300; n++) {
+			List<Interval> intervals = new ArrayList<Interval>();
+			for(int i=0; i<n; i++) {
+				int begin = rng.nextInt(10000);
+				int length = rng.nextInt(20)==0 ? rng.nextInt(5000) : rng.nextInt(50);
+				intervals.add(new Interval(begin, begin+length, i));
+			}
+			IntervalIndex index = new IntervalIndex(intervals);
+			Assert.assertEquals(n, index.size());
+
+			List<Interval> hits = new ArrayList<Interval>();
+			for(int q=0; q<50; q++) {
+				int start = rng.nextInt(11000) - 500;
+				int end = start + rng.nextInt(100);
+				hits.clear();
+				int count = index.query(start, end, hits);
+				List<Interval> expected = bruteForce(intervals, start, end);
+				Assert.assertEquals(expected.size(), count);
+				Assert.assertEquals(expected.size(), index.countOverlaps(start, end));
+				Assert.assertEquals(expected.size(), hits.size());
+				Assert.assertTrue(hits.containsAll(expected));
+				for(int i=1; i<hits.size(); i++) {
+					Assert.assertTrue(hits.get(i-1).begin <= hits.get(i).begin);
+				}
+			}
+
+			//Cursor with sorted starts, and ends that may go backwards
+			IntervalIndex.Cursor cursor = index.cursor();
+			int start = -100;
+			for(int q=0; q<200; q++) {
+				start += rng.nextInt(100);
+				int end = start + rng.nextInt(200);
+				hits.clear();
+				cursor.query(start, end, hits);
+				List<Interval> expected = bruteForce(intervals, start, end);
+				Assert.assertEquals(expected.size(), hits.size());
+				Assert.assertTrue(hits.containsAll(expected));
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void TestCursorOrder() {
+		List<Interval> intervals = new ArrayList<Interval>();
+		intervals.add(new Interval(10, 20));
+		IntervalIndex.Cursor cursor = new IntervalIndex(intervals).cursor();
+		Assert.assertEquals(1, cursor.query(15, 16, null));
+		cursor.query(14, 16, null);
+	}
+}
@@ -0,0 +1,100 @@
+package intervals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import buffer.BEDFile;
+import buffer.IntervalsFile;
+import util.Interval;
+import util.PackedIntervals;
+
+public class TestPackedIntervals {
+
+	private static boolean bruteContains(List<Interval> intervals, int pos) {
+		for(Interval interval : intervals) {
+			if (interval.contains(pos)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean bruteIntersects(List<Interval> intervals, int start, int end) {
+		for(Interval interval : intervals) {
+			if (end > start && interval.intersects(start, end)) {
+				return true;
+			}
+			if (end <= start && (interval.contains(start) || interval.begin == start-1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void TestMatchesBruteForce() {
+		Random rng = new Random(3);
+		for(int trial=0; trial<100; trial++) {
+			//Non-overlapping intervals, some of them adjacent
+			List<Interval> intervals = new ArrayList<Interval>();
+			int pos = rng.nextInt(20);
+			int count = rng.nextInt(50);
+			for(int i=0; i<count; i++) {
+				int length = 1 + rng.nextInt(10);
+				intervals.add(new Interval(pos, pos+length));
+				pos += length + rng.nextInt(3)*rng.nextInt(10);
+			}
+			PackedIntervals packed = new PackedIntervals(intervals);
+			PackedIntervals.Cursor cursor = packed.cursor();
+			for(int q=-5; q<pos+5; q++) {
+				Assert.assertEquals(bruteContains(intervals, q), packed.contains(q));
+				Assert.assertEquals(bruteContains(intervals, q), cursor.contains(q));
+				for(int length=0; length<15; length++) {
+					Assert.assertEquals(bruteIntersects(intervals, q, q+length), packed.intersects(q, q+length));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void TestOverlappingAreMerged() {
+		List<Interval> intervals = new ArrayList<Interval>();
+		intervals.add(new Interval(10, 20));
+		intervals.add(new Interval(1, 100));
+		intervals.add(new Interval(100, 110));
+		intervals.add(new Interval(105, 108));
+		PackedIntervals packed = new PackedIntervals(intervals);
+		Assert.assertEquals(2, packed.size());
+		Assert.assertTrue(packed.contains(50));
+		Assert.assertTrue(packed.contains(100));
+		Assert.assertFalse(packed.contains(110));
+
+		//Out of order lookups with a cursor are still right
+		PackedIntervals.Cursor cursor = packed.cursor();
+		Assert.assertTrue(cursor.contains(105));
+		Assert.assertFalse(cursor.contains(0));
+		Assert.assertTrue(cursor.intersects(0, 2));
+	}
+
+	@Test
+	public void TestBEDFileLookups() throws Exception {
+		BEDFile bed = new BEDFile(new File("src/test/java/testBEDs/small.bed"));
+		bed.buildIntervalsMap();
+		IntervalsFile.Cursor cursor = bed.cursor();
+		for(String contig : bed.getContigs()) {
+			List<Interval> intervals = bed.getIntervalsForContig(contig);
+			int last = intervals.get(intervals.size()-1).end;
+			for(int pos=0; pos<last+10; pos++) {
+				Assert.assertEquals(bruteContains(intervals, pos), bed.contains(contig, pos, false));
+				Assert.assertEquals(bruteContains(intervals, pos), cursor.contains(contig, pos));
+				Assert.assertEquals(bruteIntersects(intervals, pos, pos+3), bed.intersects(contig, new Interval(pos, pos+3), false));
+			}
+		}
+		Assert.assertFalse(cursor.contains("NotAContig", 10));
+	}
+}
@@ -0,0 +1,207 @@
+package ncbi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Fetches pubmed records from a stub eutils server to check that ids are batched, each id is only requested 
+ * once and the number of concurrent requests is limited
+ * @author brendan
+ *
+ */
+public class TestBatchFetching {
+
+	HttpServer server;
+	String url;
+	final Map<Integer, AtomicInteger> requestsPerID = new ConcurrentHashMap<Integer, AtomicInteger>();
+	final AtomicInteger requests = new AtomicInteger();
+	final AtomicInteger active = new AtomicInteger();
+	final AtomicInteger maxActive = new AtomicInteger();
+	final AtomicInteger maxBatch = new AtomicInteger();
+
+	/**
+	 * Articles exist for every id that isn't a multiple of 7
+	 */
+	private static String article(int id) {
+		return "<PubmedArticle><MedlineCitation><PMID>" + id + "</PMID><Article><Journal><JournalIssue><Volume>" + (id % 50)
+				+ "</Volume><Issue>2</Issue><PubDate><Year>2001</Year></PubDate></JournalIssue><Title>Journal " + id
+				+ "</Title></Journal><ArticleTitle>Title " + id + "</ArticleTitle><Abstract><AbstractText>Abstract for "
+				+ id + "</AbstractText></Abstract></Article></MedlineCitation></PubmedArticle>";
+	}
+
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/efetch.fcgi", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int now = active.incrementAndGet();
+				synchronized(maxActive) {
+					maxActive.set(Math.max(maxActive.get(), now));
+				}
+				requests.incrementAndGet();
+				StringBuilder body = new StringBuilder("<?xml version=\"1.0\"?><PubmedArticleSet>");
+				String query = exchange.getRequestURI().getQuery();
+				String[] ids = query.substring(query.indexOf("id=") + 3, query.indexOf("&retmode")).split(",");
+				synchronized(maxBatch) {
+					maxBatch.set(Math.max(maxBatch.get(), ids.length));
+				}
+				for(String idStr : ids) {
+					int id = Integer.parseInt(idStr);
+					requestsPerID.putIfAbsent(id, new AtomicInteger());
+					requestsPerID.get(id).incrementAndGet();
+					if (id % 7 != 0) {
+						body.append(article(id));
+					}
+				}
+				body.append("</PubmedArticleSet>");
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				byte[] bytes = body.toString().getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+				active.decrementAndGet();
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/efetch.fcgi?";
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	private static File tempGene2Pubmed() throws IOException {
+		File dir = File.createTempFile("pubmedtest", "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		File gene2pubmed = new File(dir, "gene2pubmed");
+		gene2pubmed.createNewFile();
+		gene2pubmed.deleteOnExit();
+		new File(dir, ".pubmedcache").deleteOnExit();
+		new File(dir, ".pubmedcache" + IndexedRecordCache.INDEX_SUFFIX).deleteOnExit();
+		return gene2pubmed;
+	}
+
+	private static List<Integer> range(int start, int end) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for(int i=start; i<end; i++) {
+			ids.add(i);
+		}
+		return ids;
+	}
+
+	@Test
+	public void TestConcurrentRequests() throws Exception {
+		File gene2pubmed = tempGene2Pubmed();
+		final CachedPubmedAbstractDB db = new CachedPubmedAbstractDB(gene2pubmed.getPath());
+		db.setFetcher(new PubMedFetcher(url), 2, 0);
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<List<PubMedRecord>>> results = new ArrayList<Future<List<PubMedRecord>>>();
+		for(int t=0; t<4; t++) {
+			final List<Integer> ids = range(1 + 150*t, 451 + 150*t);
+			results.add(pool.submit(new Callable<List<PubMedRecord>>() {
+				@Override
+				public List<PubMedRecord> call() throws Exception {
+					return db.getRecordForIDs(ids, false);
+				}
+			}));
+		}
+		for(int t=0; t<4; t++) {
+			List<PubMedRecord> recs = results.get(t).get();
+			List<Integer> expected = new ArrayList<Integer>();
+			for(Integer id : range(1 + 150*t, 451 + 150*t)) {
+				if (id % 7 != 0)
+					expected.add(id);
+			}
+			Assert.assertEquals(expected.size(), recs.size());
+			for(int i=0; i<recs.size(); i++) {
+				Assert.assertEquals(expected.get(i), recs.get(i).pubMedID);
+				Assert.assertEquals("Abstract for " + expected.get(i), recs.get(i).getAbstract());
+			}
+		}
+		pool.shutdown();
+
+		//Every id was requested exactly once, including those with no article, in batches
+		Assert.assertEquals(900, requestsPerID.size());
+		for(AtomicInteger count : requestsPerID.values()) {
+			Assert.assertEquals(1, count.get());
+		}
+		Assert.assertTrue(maxBatch.get() <= CachedPubmedAbstractDB.FETCH_BATCH_SIZE);
+		Assert.assertTrue(maxActive.get() <= 2);
+		int before = requests.get();
+		Assert.assertTrue(before < 20);
+
+		//Downloaded records were written to the cache
+		CachedPubmedAbstractDB reopened = new CachedPubmedAbstractDB(gene2pubmed.getPath());
+		reopened.setProhibitNewDownloads(true);
+		Assert.assertEquals(900 - 900/7, reopened.getMapSize());
+		Assert.assertEquals("Title 12", reopened.getRecordForID(12).getTitle());
+		Assert.assertNull(reopened.getRecordForID(14));
+		Assert.assertEquals(before, requests.get());
+	}
+
+	@Test
+	public void TestPrefetch() throws Exception {
+		File gene2pubmed = tempGene2Pubmed();
+		CachedPubmedAbstractDB db = new CachedPubmedAbstractDB(gene2pubmed.getPath());
+		db.setFetcher(new PubMedFetcher(url), 3, 0);
+		db.prefetch(range(1000, 1500), false);
+		List<PubMedRecord> recs = db.getRecordForIDs(range(1000, 1010), false);
+		Assert.assertEquals(8, recs.size());
+		Assert.assertEquals("Title 1999", db.getRecordForID(1999).getTitle());
+		Assert.assertEquals(1, requestsPerID.get(1005).get());
+	}
+
+	@Test
+	public void TestRateLimit() throws Exception {
+		BatchFetcher<Integer, Integer> fetcher = new BatchFetcher<Integer, Integer>(10, 4, 100) {
+			@Override
+			protected Map<Integer, Integer> fetchBatch(List<Integer> keys) throws Exception {
+				Map<Integer, Integer> values = new HashMap<Integer, Integer>();
+				for(Integer key : keys) {
+					values.put(key, 2*key);
+				}
+				return values;
+			}
+		};
+		long start = System.currentTimeMillis();
+		Map<Integer, Integer> values = fetcher.fetchAndWait(range(0, 40), null);
+		long elapsed = System.currentTimeMillis() - start;
+		fetcher.shutdown();
+		Assert.assertEquals(40, values.size());
+		Assert.assertEquals(Integer.valueOf(78), values.get(39));
+		//Four batches, started at least 100ms apart
+		Assert.assertTrue(elapsed >= 290);
+	}
+}
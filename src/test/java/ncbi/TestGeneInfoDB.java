@@ -0,0 +1,97 @@
+package ncbi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+
+import ncbi.GeneInfoDB.GeneInfo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestGeneInfoDB {
+
+	private static File writeGeneInfo() throws IOException {
+		File file = File.createTempFile("test", ".gene_info");
+		file.deleteOnExit();
+		new File(file.getPath() + GeneInfoDB.COMPACT_SUFFIX).deleteOnExit();
+		PrintStream out = new PrintStream(file);
+		out.println("#Format: tax_id GeneID Symbol LocusTag Synonyms dbXrefs");
+		out.println("9606\t1\tA1BG\t-\tA1B|ABG|GAB|HYST2477\t-");
+		out.println("9606\t2\tA2M\t-\tA2MD|CPAMD5|FWP007|S863-7\t-");
+		out.println("9606\t3\tC1orf112\t-\tFLJ10706\t-");
+		out.println("9606\t4\tGAB\t-\t-\t-");
+		out.println("9606\t5\tXYZ1\t-\tA2MD|SHARED\t-");
+		out.close();
+		return file;
+	}
+
+	private static void checkLookups(GeneInfoDB db) {
+		Assert.assertEquals("A1BG", db.symbolForSynonym("a1b "));
+		Assert.assertEquals("1", db.idForSymbolOrSynonym("HYST2477"));
+		Assert.assertEquals("3", db.idForSymbolOrSynonym("c1orf112"));
+		Assert.assertEquals("3", db.idForSymbolOrSynonym("FLJ10706"));
+		Assert.assertNull(db.findRecordForSynonym("NOTAGENE"));
+		Assert.assertNull(db.findRecordForSynonym("-"));
+
+		//Official symbols win over synonyms, otherwise the first gene in the file
+		Assert.assertEquals("GAB", db.symbolForSynonym("GAB"));
+		Assert.assertTrue(db.isAmbiguous("GAB"));
+		Assert.assertEquals("A2M", db.symbolForSynonym("A2MD"));
+		Assert.assertEquals(2, db.recordsForSynonym("a2md").size());
+		Assert.assertEquals("XYZ1", db.recordsForSynonym("a2md").get(1).symbol);
+		Assert.assertFalse(db.isAmbiguous("SHARED"));
+
+		Assert.assertEquals(5, db.getAllGenes().size());
+		Assert.assertEquals("2", db.idForSymbol("A2M"));
+	}
+
+	@Test
+	public void TestLookups() throws IOException {
+		File file = writeGeneInfo();
+		checkLookups(new GeneInfoDB(file));
+	}
+
+	@Test
+	public void TestCompactForm() throws IOException {
+		File file = writeGeneInfo();
+		File compact = new File(file.getPath() + GeneInfoDB.COMPACT_SUFFIX);
+		Assert.assertFalse(compact.exists());
+		new GeneInfoDB(file);
+		Assert.assertTrue(compact.exists());
+
+		//Read again from the compact file, either found next to the flat file or given directly
+		GeneInfoDB db = new GeneInfoDB(file);
+		checkLookups(db);
+		checkLookups(new GeneInfoDB(compact));
+		GeneInfo rec = db.findRecordForSynonym("S863-7");
+		Assert.assertEquals(4, rec.synonyms.length);
+	}
+
+	@Test
+	public void TestStaleOrTruncatedCompactForm() throws IOException {
+		File file = writeGeneInfo();
+		File compact = new File(file.getPath() + GeneInfoDB.COMPACT_SUFFIX);
+		new GeneInfoDB(file);
+		Assert.assertTrue(compact.exists());
+
+		//A changed flat file is read again even if the compact file looks newer
+		PrintStream out = new PrintStream(new FileOutputStream(file, true));
+		out.println("9606\t6\tNEWGENE\t-\tNG1\t-");
+		out.close();
+		file.setLastModified(compact.lastModified() - 10000L);
+		GeneInfoDB db = new GeneInfoDB(file);
+		Assert.assertEquals("6", db.idForSymbolOrSynonym("NG1"));
+		Assert.assertEquals(6, new GeneInfoDB(compact).getAllGenes().size());
+
+		//A truncated compact file is ignored and rewritten
+		RandomAccessFile raf = new RandomAccessFile(compact, "rw");
+		raf.setLength(raf.length() - 6);
+		raf.close();
+		db = new GeneInfoDB(file);
+		Assert.assertEquals(6, db.getAllGenes().size());
+		Assert.assertEquals(6, new GeneInfoDB(compact).getAllGenes().size());
+	}
+}
@@ -0,0 +1,183 @@
+package ncbi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestIndexedRecordCache {
+
+	private static File tempCache() throws IOException {
+		File file = File.createTempFile("test", ".cache");
+		file.deleteOnExit();
+		new File(file.getPath() + IndexedRecordCache.INDEX_SUFFIX).deleteOnExit();
+		return file;
+	}
+
+	@Test
+	public void TestReopen() throws IOException {
+		File file = tempCache();
+
+		//A cache file written by the old, rewrite-everything versions
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		writer.write("100\t2001\tA title\tSome citation\tAn abstract\n\n200\t2002\tTitle \u00e9\tCite\tAbs\n");
+		writer.close();
+
+		IndexedRecordCache cache = new IndexedRecordCache(file);
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("200\t2002\tTitle \u00e9\tCite\tAbs", cache.get("200"));
+		Assert.assertNull(cache.get("300"));
+
+		cache.put("300\t2003\tT\tC\tA");
+		cache.put("100\t2010\tNew title\tC\tA");
+		cache.flush();
+		cache.put("400\t2004\tAfter the index\tC\tA");
+		cache.close();
+
+		//Open from the index plus the records appended after it
+		cache = new IndexedRecordCache(file);
+		Assert.assertEquals(4, cache.size());
+		Assert.assertEquals("100\t2010\tNew title\tC\tA", cache.get("100"));
+		Assert.assertEquals("400\t2004\tAfter the index\tC\tA", cache.get("400"));
+		cache.close();
+
+		//A record cut off part way through writing is dropped
+		writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		writer.write("500\t2005\tIncompl");
+		writer.close();
+		cache = new IndexedRecordCache(file);
+		Assert.assertEquals(4, cache.size());
+		Assert.assertFalse(cache.containsKey("500"));
+		cache.put("600\t2006\tT\tC\tA");
+		Assert.assertEquals("600\t2006\tT\tC\tA", cache.get("600"));
+		cache.close();
+	}
+
+	@Test
+	public void TestCompaction() throws IOException {
+		File file = tempCache();
+		IndexedRecordCache cache = new IndexedRecordCache(file);
+		StringBuilder padding = new StringBuilder();
+		for(int i=0; i<1000; i++) {
+			padding.append("x");
+		}
+		for(int round=0; round<5; round++) {
+			List<String> records = new ArrayList<String>();
+			for(int i=0; i<1000; i++) {
+				records.add(i + "\t" + round + "\t" + padding);
+			}
+			cache.putAll(records);
+		}
+		long before = file.length();
+		cache.flush();
+		Assert.assertTrue(file.length() < before / 4);
+		Assert.assertEquals(1000, cache.size());
+		Assert.assertEquals("17\t4\t" + padding, cache.get("17"));
+		cache.close();
+
+		cache = new IndexedRecordCache(file);
+		Assert.assertEquals("999\t4\t" + padding, cache.get("999"));
+		cache.close();
+	}
+
+	@Test
+	public void TestConcurrentAccess() throws Exception {
+		File file = tempCache();
+		final IndexedRecordCache cache = new IndexedRecordCache(file);
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for(int t=0; t<8; t++) {
+			final int thread = t;
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for(int i=0; i<500; i++) {
+						String key = thread + "." + i;
+						cache.put(key + "\tvalue " + i);
+						Assert.assertEquals(key + "\tvalue " + i, cache.get(key));
+						if (i % 100 == 0) {
+							cache.flush();
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for(Future<Void> future : futures) {
+			future.get();
+		}
+		pool.shutdown();
+		cache.close();
+
+		IndexedRecordCache reopened = new IndexedRecordCache(file);
+		Assert.assertEquals(4000, reopened.size());
+		Assert.assertEquals("7.499\tvalue 499", reopened.get("7.499"));
+		reopened.close();
+	}
+
+	/**
+	 * Two caches open on the same file, as in two processes, must not write over each other's records,
+	 * even when one of them compacts the file
+	 */
+	@Test
+	public void TestSharedFile() throws IOException {
+		File file = tempCache();
+		IndexedRecordCache first = new IndexedRecordCache(file);
+		IndexedRecordCache second = new IndexedRecordCache(file);
+		first.put("1	one");
+		second.put("2	two");
+		first.put("3	three");
+		Assert.assertEquals("2	two", first.get("2"));
+		Assert.assertEquals(3, first.size());
+
+		second.put("1	uno");
+		second.compact();
+		first.put("4	four");
+		Assert.assertEquals("1	uno", first.get("1"));
+		Assert.assertEquals("4	four", first.get("4"));
+		first.flush();
+		first.close();
+		second.close();
+
+		IndexedRecordCache reopened = new IndexedRecordCache(file);
+		Assert.assertEquals(4, reopened.size());
+		Assert.assertEquals("1	uno", reopened.get("1"));
+		Assert.assertEquals("2	two", reopened.get("2"));
+		Assert.assertEquals("3	three", reopened.get("3"));
+		Assert.assertEquals("4	four", reopened.get("4"));
+		reopened.close();
+	}
+
+	/**
+	 * Appending doesn't touch the index, which is only saved by flush() or close() and only if something changed
+	 */
+	@Test
+	public void TestIndexSavedOnClose() throws IOException {
+		File file = tempCache();
+		File index = new File(file.getPath() + IndexedRecordCache.INDEX_SUFFIX);
+		IndexedRecordCache cache = new IndexedRecordCache(file);
+		for(int i=0; i<100; i++) {
+			cache.put(i + "	value " + i);
+		}
+		Assert.assertFalse(index.exists());
+		cache.close();
+		Assert.assertTrue(index.exists());
+
+		index.setLastModified(1000L);
+		cache = new IndexedRecordCache(file);
+		Assert.assertEquals(100, cache.size());
+		cache.flush();
+		cache.close();
+		Assert.assertEquals(1000L, index.lastModified());
+	}
+}
@@ -0,0 +1,162 @@
+package smallMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.smallMap.KeyRegistry;
+import util.smallMap.SlotMap;
+
+/**
+ * Checks SlotMap against a HashMap under random puts, removes and iteration
+ */
+public class TestSlotMap {
+
+	private static void checkSame(Map<String, Integer> expected, SlotMap<Integer> map) {
+		Assert.assertEquals(expected.size(), map.size());
+		Assert.assertEquals(expected.isEmpty(), map.isEmpty());
+		Assert.assertEquals(expected, map);
+		Assert.assertEquals(map, expected);
+		Assert.assertEquals(expected.hashCode(), map.hashCode());
+
+		//Keys come out in the order they were registered
+		int lastId = -1;
+		int count = 0;
+		for(String key : map.keySet()) {
+			int id = KeyRegistry.lookup(key);
+			Assert.assertTrue(id > lastId);
+			lastId = id;
+			count++;
+		}
+		Assert.assertEquals(expected.size(), count);
+	}
+
+	@Test
+	public void TestRandomOperations() {
+		Random rng = new Random(5);
+		List<String> keys = new ArrayList<String>();
+		for(int i=0; i<40; i++) {
+			keys.add("slotmap.test." + i);
+		}
+
+		for(int round=0; round<50; round++) {
+			Map<String, Integer> expected = new HashMap<String, Integer>();
+			SlotMap<Integer> map = new SlotMap<Integer>();
+			for(int op=0; op<400; op++) {
+				String key = keys.get(rng.nextInt(keys.size()));
+				int value = rng.nextInt(1000);
+				switch(rng.nextInt(7)) {
+				case 0:
+				case 1:
+				case 2:
+					Assert.assertEquals(expected.put(key, value), map.put(key, value));
+					break;
+				case 3:
+					Assert.assertEquals(expected.remove(key), map.remove(key));
+					break;
+				case 4:
+					//Remove some entries while iterating
+					Iterator<Map.Entry<String, Integer>> it = map.entrySet().iterator();
+					while(it.hasNext()) {
+						Map.Entry<String, Integer> entry = it.next();
+						if (entry.getValue() % 3 == 0) {
+							it.remove();
+							Assert.assertEquals(expected.remove(entry.getKey()), entry.getValue());
+						}
+					}
+					break;
+				case 5:
+					//Change values through the entries
+					for(Map.Entry<String, Integer> entry : map.entrySet()) {
+						if (entry.getValue() % 2 == 0) {
+							Integer newValue = entry.getValue() + 1;
+							Assert.assertEquals(expected.put(entry.getKey(), newValue), entry.setValue(newValue));
+							Assert.assertEquals(newValue, entry.getValue());
+						}
+					}
+					break;
+				case 6:
+					Assert.assertEquals(expected.get(key), map.get(key));
+					Assert.assertEquals(expected.containsKey(key), map.containsKey(key));
+					break;
+				}
+				checkSame(expected, map);
+			}
+
+			map.clear();
+			Assert.assertTrue(map.isEmpty());
+			Assert.assertNull(map.get(keys.get(0)));
+		}
+	}
+
+	@Test
+	public void TestGrowthAndOrder() {
+		//Register in a known order, then add in reverse so every put goes before the existing slots
+		List<String> keys = new ArrayList<String>();
+		for(int i=0; i<12; i++) {
+			String key = "slotmap.growth." + i;
+			KeyRegistry.register(key);
+			keys.add(key);
+		}
+
+		SlotMap<Integer> map = new SlotMap<Integer>();
+		for(int i=keys.size()-1; i>=0; i--) {
+			Assert.assertNull(map.put(keys.get(i), i));
+		}
+		Assert.assertEquals(keys.size(), map.size());
+		Assert.assertEquals(keys, new ArrayList<String>(map.keySet()));
+		for(int i=0; i<keys.size(); i++) {
+			Assert.assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+			Assert.assertEquals(Integer.valueOf(i), map.getById(KeyRegistry.lookup(keys.get(i))));
+		}
+
+		//Removing with the key iterator keeps the rest in order
+		Iterator<String> it = map.keySet().iterator();
+		while(it.hasNext()) {
+			if (map.get(it.next()) % 2 == 1) {
+				it.remove();
+			}
+		}
+		List<Integer> values = new ArrayList<Integer>(map.values());
+		Assert.assertEquals(6, values.size());
+		for(int i=0; i<values.size(); i++) {
+			Assert.assertEquals(Integer.valueOf(2*i), values.get(i));
+		}
+
+		try {
+			map.keySet().iterator().remove();
+			Assert.fail("Expected remove before next to throw");
+		} catch (IllegalStateException expected) {
+			//good
+		}
+	}
+
+	@Test
+	public void TestUnregisteredKeys() {
+		SlotMap<Integer> map = new SlotMap<Integer>();
+		map.put("slotmap.unregistered.present", 1);
+		int registered = KeyRegistry.size();
+
+		String absent = "slotmap.unregistered.never.put";
+		Assert.assertNull(map.remove(absent));
+		Assert.assertNull(map.get(absent));
+		Assert.assertFalse(map.containsKey(absent));
+		Assert.assertNull(map.remove(null));
+		Assert.assertFalse(map.containsKey(Integer.valueOf(1)));
+		Assert.assertEquals(registered, KeyRegistry.size());
+		Assert.assertEquals(-1, KeyRegistry.lookup(absent));
+		Assert.assertEquals(1, map.size());
+
+		//A registered key that isn't in this map
+		String other = "slotmap.unregistered.other";
+		KeyRegistry.register(other);
+		Assert.assertNull(map.remove(other));
+		Assert.assertEquals(Integer.valueOf(1), map.get("slotmap.unregistered.present"));
+	}
+}
@@ -0,0 +1,154 @@
+package varFreqDB;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.varFreqDB.ComputeVarFreqs;
+import util.varFreqDB.FrequencyStore;
+
+public class TestComputeVarFreqs {
+
+	static final String[][] SAMPLES = new String[][]{
+		{"s_12345678901", "Exome", "gatksingle.vcf"},
+		{"s_12345678902", "Exome", "a.vcf"},
+		{"s_12345678903", "Myeloid", "myeloid.vcf"},
+		{"s_12345678904", "Aorto", "b.vcf"},
+	};
+
+	/**
+	 * Write a BED covering everything on the contigs used by the test VCFs, so that lots of variants
+	 * are counted
+	 */
+	private static File makeBED(File dir) throws IOException {
+		File bed = new File(dir, "all.bed");
+		PrintStream out = new PrintStream(bed);
+		for(String contig : ComputeVarFreqs.CONTIGS) {
+			out.println("chr" + contig + "\t0\t100000000");
+		}
+		out.close();
+		return bed;
+	}
+
+	private static void makeReviewDir(File root, String[] sample, File bed, long time) throws IOException {
+		File dir = new File(root, sample[0]);
+		new File(dir, "var").mkdirs();
+		new File(dir, "bed").mkdirs();
+		Files.copy(new File("src/test/java/testvcfs/" + sample[2]).toPath(), new File(dir, "var/" + sample[0] + ".vcf").toPath());
+		Files.copy(bed.toPath(), new File(dir, "bed/" + sample[0] + ".bed").toPath());
+		PrintStream manifest = new PrintStream(new File(dir, "sampleManifest.txt"));
+		manifest.println("sample.name=" + sample[0]);
+		manifest.println("analysis.type=" + sample[1]);
+		manifest.println("current.time=" + time);
+		manifest.close();
+	}
+
+	private static void deleteAll(File file) {
+		if (file.isDirectory()) {
+			for(File child : file.listFiles()) {
+				deleteAll(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * The tabulated counts must match those computed independently by FrequencyStore
+	 */
+	@Test
+	public void TestTabulatedMatchesStore() throws Exception {
+		File root = File.createTempFile("testvarfreqs", "");
+		root.delete();
+		root.mkdirs();
+		PrintStream stdout = System.out;
+		try {
+			File bed = makeBED(root);
+			File reviewDirs = new File(root, "samples");
+			for(String[] sample : SAMPLES) {
+				makeReviewDir(reviewDirs, sample, bed, 1000L);
+			}
+
+			FrequencyStore store = new FrequencyStore(new File(root, "store"), ComputeVarFreqs.CONTIGS);
+			for(String[] sample : SAMPLES) {
+				File dir = new File(reviewDirs, sample[0]);
+				store.addSample(FrequencyStore.readSample(sample[0], sample[0], sample[1], 1000L, new File(dir, "var/" + sample[0] + ".vcf"), new File(dir, "bed/" + sample[0] + ".bed")));
+			}
+			ByteArrayOutputStream expectedBytes = new ByteArrayOutputStream();
+			store.writeTable(new PrintStream(expectedBytes));
+			List<String> expected = new ArrayList<String>(Arrays.asList(expectedBytes.toString().split("\n")));
+			Collections.sort(expected);
+			Assert.assertTrue(expected.size() > 100);
+
+			ComputeVarFreqs freqs = new ComputeVarFreqs();
+			freqs.readSamplesInDir(reviewDirs);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(bytes));
+			for(String contig : ComputeVarFreqs.CONTIGS) {
+				freqs.emitTabulatedByContig(3, contig);
+			}
+			System.setOut(stdout);
+			List<String> actual = new ArrayList<String>(Arrays.asList(bytes.toString().split("\n")));
+			Collections.sort(actual);
+			Assert.assertEquals(expected, actual);
+		}
+		finally {
+			System.setOut(stdout);
+			deleteAll(root);
+		}
+	}
+
+	/**
+	 * Updating a store from the review dirs, with fewer reads in flight than samples, must give the same
+	 * table as adding the samples directly
+	 */
+	@Test
+	public void TestUpdateStoreMatchesDirect() throws Exception {
+		File root = File.createTempFile("testvarfreqs", "");
+		root.delete();
+		root.mkdirs();
+		PrintStream stdout = System.out;
+		try {
+			File bed = makeBED(root);
+			File reviewDirs = new File(root, "samples");
+			for(String[] sample : SAMPLES) {
+				makeReviewDir(reviewDirs, sample, bed, 1000L);
+			}
+
+			ComputeVarFreqs freqs = new ComputeVarFreqs();
+			System.setOut(new PrintStream(new ByteArrayOutputStream()));
+			freqs.readSamplesInDir(reviewDirs);
+			System.setOut(stdout);
+			FrequencyStore store = new FrequencyStore(new File(root, "store"), ComputeVarFreqs.CONTIGS);
+			freqs.updateStore(store, 1, false);
+			Assert.assertEquals(SAMPLES.length, store.getSampleCount());
+			ByteArrayOutputStream actual = new ByteArrayOutputStream();
+			store.writeTable(new PrintStream(actual));
+
+			FrequencyStore direct = new FrequencyStore(new File(root, "direct"), ComputeVarFreqs.CONTIGS);
+			for(String[] sample : SAMPLES) {
+				File dir = new File(reviewDirs, sample[0]);
+				direct.addSample(FrequencyStore.readSample(sample[0] + sample[1], sample[0], sample[1], 1000L, new File(dir, "var/" + sample[0] + ".vcf"), new File(dir, "bed/" + sample[0] + ".bed")));
+			}
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			direct.writeTable(new PrintStream(expected));
+			List<String> expectedLines = new ArrayList<String>(Arrays.asList(expected.toString().split("\n")));
+			List<String> actualLines = new ArrayList<String>(Arrays.asList(actual.toString().split("\n")));
+			Collections.sort(expectedLines);
+			Collections.sort(actualLines);
+			Assert.assertEquals(expectedLines, actualLines);
+		}
+		finally {
+			System.setOut(stdout);
+			deleteAll(root);
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package varFreqDB;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import buffer.BEDFile;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+import util.varFreqDB.ComputeVarFreqs;
+import util.varFreqDB.FrequencyStore;
+import util.vcfParser.VCFParser;
+import util.vcfParser.VCFParser.GTType;
+
+public class TestFrequencyStore {
+
+	static final String[] VCFS = new String[]{"gatksingle.vcf", "myeloid.vcf", "a.vcf", "b.vcf"};
+
+	static class Sample {
+		final String key;
+		final String type;
+		final File vcf;
+		final File bed;
+		final long time;
+
+		Sample(String key, String type, String vcf, File bed, long time) {
+			this.key = key;
+			this.type = type;
+			this.vcf = new File("src/test/java/testvcfs/" + vcf);
+			this.bed = bed;
+			this.time = time;
+		}
+
+		FrequencyStore.NewSample read() throws IOException {
+			return FrequencyStore.readSample(key, key, type, time, vcf, bed);
+		}
+	}
+
+	/**
+	 * Write a BED with an interval around a random subset of the variants in all of the test VCFs
+	 */
+	private static File makeBED(File dir, String name, long seed) throws IOException {
+		Random rng = new Random(seed);
+		File bed = new File(dir, name);
+		PrintStream out = new PrintStream(bed);
+		for(String vcf : VCFS) {
+			VariantPool pool = new VariantPool(new VCFParser(new File("src/test/java/testvcfs/" + vcf)));
+			for(String contig : pool.getContigs()) {
+				for(VariantRec var : pool.getVariantsForContig(contig)) {
+					if (rng.nextBoolean()) {
+						int pad = rng.nextInt(3);
+						out.println("chr" + contig + "\t" + Math.max(0, var.getStart()-1-pad) + "\t" + (var.getStart() + pad));
+					}
+				}
+			}
+		}
+		out.close();
+		return bed;
+	}
+
+	/**
+	 * Compute the frequency table from scratch, the same way ComputeVarFreqs does
+	 */
+	private static List<String> bruteForce(Collection<Sample> samples, List<String> types) throws IOException {
+		Map<String, VariantPool> pools = new HashMap<String, VariantPool>();
+		Map<String, BEDFile> beds = new HashMap<String, BEDFile>();
+		Map<String, TreeMap<String, VariantRec>> union = new HashMap<String, TreeMap<String, VariantRec>>();
+		for(Sample sample : samples) {
+			VariantPool pool = new VariantPool(new VCFParser(sample.vcf));
+			pools.put(sample.key, pool);
+			BEDFile bed = new BEDFile(sample.bed);
+			bed.buildIntervalsMap();
+			beds.put(sample.key, bed);
+			for(String contig : pool.getContigs()) {
+				TreeMap<String, VariantRec> vars = union.get(contig);
+				if (vars == null) {
+					vars = new TreeMap<String, VariantRec>();
+					union.put(contig, vars);
+				}
+				for(VariantRec var : pool.getVariantsForContig(contig)) {
+					vars.put(String.format("%012d", var.getStart()) + "\t" + var.getRef() + "\t" + var.getAlt(), var);
+				}
+			}
+		}
+
+		List<String> lines = new ArrayList<String>();
+		for(String contig : ComputeVarFreqs.CONTIGS) {
+			if (! union.containsKey(contig)) {
+				continue;
+			}
+			for(VariantRec var : union.get(contig).values()) {
+				int[] counts = new int[3*types.size()];
+				for(Sample sample : samples) {
+					if (beds.get(sample.key).contains(contig, var.getStart(), false)) {
+						int t = types.indexOf(sample.type);
+						counts[3*t]++;
+						VariantRec found = pools.get(sample.key).findRecord(contig, var.getStart(), var.getRef(), var.getAlt());
+						if (found != null) {
+							counts[3*t + (found.getZygosity() == GTType.HET ? 1 : 2)]++;
+						}
+					}
+				}
+				int tot = 0, hets = 0, homs = 0;
+				for(int t=0; t<types.size(); t++) {
+					tot += counts[3*t];
+					hets += counts[3*t+1];
+					homs += counts[3*t+2];
+				}
+				if (tot == 0) {
+					continue;
+				}
+				String prefix = contig + "\t" + var.getStart() + "\t" + var.getRef() + "\t" + var.getAlt() + "\t";
+				lines.add(prefix + "overall\t" + tot + "\t" + hets + "\t" + homs);
+				for(int t=0; t<types.size(); t++) {
+					if (counts[3*t] > 0) {
+						lines.add(prefix + types.get(t) + "\t" + counts[3*t] + "\t" + counts[3*t+1] + "\t" + counts[3*t+2]);
+					}
+				}
+			}
+		}
+		return lines;
+	}
+
+	private static List<String> table(FrequencyStore store) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		store.writeTable(out);
+		String text = bytes.toString();
+		return text.isEmpty() ? new ArrayList<String>() : Arrays.asList(text.split("\n"));
+	}
+
+	@Test
+	public void TestIncrementalMatchesBruteForce() throws IOException {
+		File dir = File.createTempFile("testfreqstore", "");
+		dir.delete();
+		dir.mkdirs();
+		File storeDir = new File(dir, "store");
+		try {
+			File bedA = makeBED(dir, "a.bed", 1);
+			File bedB = makeBED(dir, "b.bed", 2);
+			File bedC = makeBED(dir, "c.bed", 3);
+			List<String> types = Arrays.asList("Exome", "Myeloid", "Aorto");
+
+			Map<String, Sample> samples = new LinkedHashMap<String, Sample>();
+			samples.put("s1", new Sample("s1", "Exome", "gatksingle.vcf", bedA, 1000L));
+			samples.put("s2", new Sample("s2", "Myeloid", "myeloid.vcf", bedB, 1000L));
+
+			FrequencyStore store = new FrequencyStore(storeDir, ComputeVarFreqs.CONTIGS);
+			for(Sample sample : samples.values()) {
+				store.addSample(sample.read());
+			}
+			store.save();
+			List<String> expected = bruteForce(samples.values(), types);
+			Assert.assertTrue(expected.size() > 100);
+			Assert.assertEquals(expected, table(store));
+
+			//Reopen and add more samples, two of which share BEDs with existing samples
+			store = new FrequencyStore(storeDir, ComputeVarFreqs.CONTIGS);
+			Assert.assertEquals(2, store.getSampleCount());
+			Assert.assertEquals(expected, table(store));
+			samples.put("s3", new Sample("s3", "Exome", "a.vcf", bedA, 1000L));
+			samples.put("s4", new Sample("s4", "Aorto", "b.vcf", bedC, 1000L));
+			samples.put("s5", new Sample("s5", "Myeloid", "gatksingle.vcf", bedB, 1000L));
+			for(String key : new String[]{"s3", "s4", "s5"}) {
+				store.addSample(samples.get(key).read());
+			}
+			Assert.assertEquals(bruteForce(samples.values(), types), table(store));
+
+			//Remove one, and replace another with a newer version with a different BED
+			Assert.assertTrue(store.removeSample("s2"));
+			Assert.assertFalse(store.removeSample("s2"));
+			samples.remove("s2");
+			Assert.assertEquals(bruteForce(samples.values(), types), table(store));
+			samples.put("s1", new Sample("s1", "Exome", "gatksingle.vcf", bedC, 2000L));
+			store.addSample(samples.get("s1").read());
+			Assert.assertEquals(Long.valueOf(2000L), store.getCompletionTime("s1"));
+			expected = bruteForce(samples.values(), types);
+			Assert.assertEquals(expected, table(store));
+			store.save();
+
+			store = new FrequencyStore(storeDir, ComputeVarFreqs.CONTIGS);
+			Assert.assertEquals(4, store.getSampleCount());
+			Assert.assertEquals(expected, table(store));
+
+			//An unsaved addition is discarded when the store is next opened
+			store.addSample(new Sample("s6", "Aorto", "myeloid.vcf", bedA, 1000L).read());
+
+			//..but opening read-only leaves the log alone and can't change the store
+			File log = new File(storeDir, FrequencyStore.LOG_FILENAME);
+			long logLength = log.length();
+			FrequencyStore readOnly = FrequencyStore.openReadOnly(storeDir, ComputeVarFreqs.CONTIGS);
+			Assert.assertEquals(logLength, log.length());
+			Assert.assertFalse(readOnly.containsSample("s6"));
+			Assert.assertEquals(expected, table(readOnly));
+			try {
+				readOnly.save();
+				Assert.fail("Expected saving a read-only store to throw");
+			} catch (IOException expectedEx) {
+				//good
+			}
+
+			store = new FrequencyStore(storeDir, ComputeVarFreqs.CONTIGS);
+			Assert.assertTrue(log.length() < logLength);
+			Assert.assertFalse(store.containsSample("s6"));
+			Assert.assertTrue(store.removeSample("s5"));
+			samples.remove("s5");
+			Assert.assertEquals(bruteForce(samples.values(), types), table(store));
+		}
+		finally {
+			for(File f : storeDir.listFiles()) {
+				f.delete();
+			}
+			storeDir.delete();
+			for(File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void TestMissingTableKeepsLog() throws IOException {
+		File dir = File.createTempFile("testfreqstore", "");
+		dir.delete();
+		dir.mkdirs();
+		File storeDir = new File(dir, "store");
+		try {
+			File bedA = makeBED(dir, "a.bed", 1);
+
+			//A new store has a table before anything is added, so an unsaved first update is just discarded
+			FrequencyStore store = new FrequencyStore(storeDir, ComputeVarFreqs.CONTIGS);
+			File table = new File(storeDir, FrequencyStore.TABLE_FILENAME);
+			File log = new File(storeDir, FrequencyStore.LOG_FILENAME);
+			Assert.assertTrue(table.exists());
+			store.addSample(new Sample("s1", "Exome", "gatksingle.vcf", bedA, 1000L).read());
+			Assert.assertTrue(log.length() > 0);
+			store = new FrequencyStore(storeDir, ComputeVarFreqs.CONTIGS);
+			Assert.assertEquals(0, store.getSampleCount());
+			Assert.assertEquals(0, log.length());
+
+			store.addSample(new Sample("s1", "Exome", "gatksingle.vcf", bedA, 1000L).read());
+			store.addSample(new Sample("s2", "Myeloid", "myeloid.vcf", bedA, 1000L).read());
+			store.save();
+			Assert.assertFalse(new File(storeDir, FrequencyStore.TABLE_FILENAME + ".tmp").exists());
+
+			//Simulate a crash that left the new table unrenamed and the old one gone
+			store.addSample(new Sample("s3", "Exome", "a.vcf", bedA, 1000L).read());
+			store.save();
+			long logLength = log.length();
+			Assert.assertTrue(table.renameTo(new File(storeDir, FrequencyStore.TABLE_FILENAME + ".tmp")));
+			try {
+				new FrequencyStore(storeDir, ComputeVarFreqs.CONTIGS);
+				Assert.fail("Expected opening a store with a log but no table to throw");
+			} catch (IOException expectedEx) {
+				//good
+			}
+			try {
+				FrequencyStore.openReadOnly(storeDir, ComputeVarFreqs.CONTIGS);
+				Assert.fail("Expected opening a store with no table read-only to throw");
+			} catch (IOException expectedEx) {
+				//good
+			}
+			Assert.assertEquals(logLength, log.length());
+			Assert.assertFalse(table.exists());
+		}
+		finally {
+			for(File f : storeDir.listFiles()) {
+				f.delete();
+			}
+			storeDir.delete();
+			for(File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+}
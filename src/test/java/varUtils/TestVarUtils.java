@@ -5,6 +5,11 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -156,4 +161,84 @@ public class TestVarUtils  {
 	}		
 	
 	
+	/**
+	 * Run varUtils with the given arguments and return the lines it writes to System.out
+	 */
+	private static List<String> runVarUtils(String[] args) throws IOException {
+		File outputFile = File.createTempFile("varutils", ".out");
+		PrintStream stdout = System.out;
+		PrintStream output = new PrintStream(new FileOutputStream(outputFile));
+		try {
+			System.setOut(output);
+			VarUtils.main(args);
+		}
+		finally {
+			System.setOut(stdout);
+			output.close();
+		}
+		List<String> lines = Files.readAllLines(outputFile.toPath(), Charset.forName("UTF-8"));
+		outputFile.delete();
+		return lines;
+	}
+	
+	static final String COMBINE_DIR = "src/test/java/testvcfs/combine/";
+	static final String[] COMBINE_FILES = new String[]{COMBINE_DIR + "Exome_1.vcf", COMBINE_DIR + "Exome_2.vcf", COMBINE_DIR + "Aorto_3.vcf"};
+	
+	/**
+	 * Every variant in the first file is kept, including both alts of a multi-alt line, and variants from later files
+	 * are kept only if no earlier variant at their position has the same ref and alt. The quality of each variant
+	 * identifies the file it came from
+	 */
+	@Test
+	public void TestCombine() throws IOException {
+		List<String> lines = runVarUtils(new String[]{"combine", COMBINE_FILES[0], COMBINE_FILES[1], COMBINE_FILES[2]});
+		Assert.assertTrue(lines.get(0).startsWith("#contig"));
+		List<String> found = new ArrayList<String>();
+		for(String line : lines.subList(1, lines.size())) {
+			String[] toks = line.split("\t");
+			found.add(toks[0] + ":" + toks[1] + " " + toks[3] + ">" + toks[4] + " " + toks[5]);
+		}
+		Assert.assertEquals(Arrays.asList(
+				"1:100 C>G 10.0",
+				"1:100 C>T 20.0",
+				"1:150 T>C 20.0",
+				"1:200 A>T 10.0",
+				"1:200 A>C 10.0",
+				"2:50 G>A 10.0",
+				"2:60 A>C 30.0"), found);
+		
+		//Combining a file with itself changes nothing
+		lines = runVarUtils(new String[]{"combine", COMBINE_FILES[1], COMBINE_FILES[1]});
+		Assert.assertEquals(4, lines.size());
+	}
+	
+	/**
+	 * A variant counts toward the first variant at its position from an earlier file, otherwise it starts a new row.
+	 * Its alt is appended to the row's alt unless it equals the whole alt string, so an alt already in a list of
+	 * several is added again. Variants at one position in the same file start separate rows
+	 */
+	@Test
+	public void TestBuildVCFDB() throws IOException {
+		List<String> lines = runVarUtils(new String[]{"buildvcfdb", COMBINE_FILES[0], COMBINE_FILES[1], COMBINE_FILES[2]});
+		
+		//Analysis types come from the file names, in any order
+		List<String> header = Arrays.asList(lines.get(0).split("\t"));
+		Assert.assertEquals(7, header.size());
+		int exome = header.indexOf(COMBINE_DIR + "Exome");
+		int aorto = header.indexOf(COMBINE_DIR + "Aorto");
+		Assert.assertTrue(exome > 4 && aorto > 4);
+		
+		List<String> found = new ArrayList<String>();
+		for(String line : lines.subList(1, lines.size())) {
+			String[] toks = line.split("\t");
+			found.add(toks[0] + ":" + toks[1] + " " + toks[2] + ">" + toks[3] + " total=" + toks[4] + " exome=" + toks[exome] + " aorto=" + toks[aorto]);
+		}
+		Assert.assertEquals(Arrays.asList(
+				"1:100 C>G,T,G total=4.0 exome=3.0 aorto=1.0",
+				"1:150 T>C total=1.0 exome=1.0 aorto=0.0",
+				"1:200 A>T total=1.0 exome=1.0 aorto=0.0",
+				"1:200 A>C total=1.0 exome=1.0 aorto=0.0",
+				"2:50 G>A total=2.0 exome=1.0 aorto=1.0",
+				"2:60 A>C total=1.0 exome=0.0 aorto=1.0"), found);
+	}
 }
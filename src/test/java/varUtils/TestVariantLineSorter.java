@@ -0,0 +1,65 @@
+package varUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.VariantLineSorter;
+
+public class TestVariantLineSorter {
+
+	static final String[] CONTIGS = new String[]{"1", "chr2", "10", "X", "chrX", "MT", "unplaced_7", "Y"};
+
+	@Test
+	public void TestMatchesInMemorySort() throws IOException {
+		Random rng = new Random(11);
+		List<String> lines = new ArrayList<String>();
+		for(int i=0; i<5000; i++) {
+			//Few positions so there are plenty of ties, the index records the order lines were added
+			lines.add(CONTIGS[rng.nextInt(CONTIGS.length)] + "\t" + rng.nextInt(200) + "\t" + i);
+		}
+
+		VariantLineSorter sorter = new VariantLineSorter(2000, null);
+		for(String line : lines) {
+			sorter.add(line);
+		}
+		Assert.assertTrue(sorter.getRunCount() > 10);
+
+		List<String> expected = new ArrayList<String>(lines);
+		Collections.sort(expected, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				String[] as = a.split("\t");
+				String[] bs = b.split("\t");
+				return VariantLineSorter.compare(VariantLineSorter.contigRank(as[0]), as[0], Integer.parseInt(as[1]),
+						VariantLineSorter.contigRank(bs[0]), bs[0], Integer.parseInt(bs[1]));
+			}
+		});
+
+		List<String> actual = new ArrayList<String>();
+		String line = sorter.next();
+		while(line != null) {
+			actual.add(line);
+			line = sorter.next();
+		}
+		sorter.close();
+		Assert.assertEquals(expected, actual);
+
+		//Unknown contigs come first, then contigs in reference order
+		Assert.assertTrue(actual.get(0).startsWith("unplaced_7\t"));
+		Assert.assertTrue(actual.get(actual.size()-1).startsWith("MT\t"));
+	}
+
+	@Test
+	public void TestEmpty() throws IOException {
+		VariantLineSorter sorter = new VariantLineSorter();
+		Assert.assertNull(sorter.next());
+		sorter.close();
+	}
+}
@@ -0,0 +1,129 @@
+package variantPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import buffer.VCFFile;
+import buffer.variant.ColumnarVariantStore;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+import util.vcfParser.VCFParser;
+
+
+public class TestColumnarVariantStore {
+
+	@Test
+	public void TestMatchesVariantPool() {
+		File gatkVCF = new File("src/test/java/testvcfs/gatksingle.vcf");
+		try {
+			VariantPool pool = new VariantPool(new VCFFile(gatkVCF));
+			ColumnarVariantStore store = new ColumnarVariantStore(new VCFParser(gatkVCF));
+
+			Assert.assertEquals(pool.size(), store.size());
+			Assert.assertEquals(pool.getContigCount(), store.getContigCount());
+
+			for(String contig : pool.getContigs()) {
+				List<VariantRec> poolVars = pool.getVariantsForContig(contig);
+				List<VariantRec> storeVars = store.getVariantsForContig(contig);
+				Assert.assertEquals(poolVars.size(), storeVars.size());
+				for(int i=0; i<poolVars.size(); i++) {
+					VariantRec a = poolVars.get(i);
+					VariantRec b = storeVars.get(i);
+					Assert.assertEquals(a.getStart(), b.getStart());
+					Assert.assertEquals(a.getEnd(), b.getEnd());
+					Assert.assertEquals(a.getRef(), b.getRef());
+					Assert.assertEquals(a.getAlt(), b.getAlt());
+					Assert.assertEquals(a.getQuality(), b.getQuality());
+					Assert.assertEquals(a.getZygosity(), b.getZygosity());
+					Assert.assertEquals(a.getProperty(VariantRec.DEPTH), b.getProperty(VariantRec.DEPTH));
+					Assert.assertEquals(a.getPropertyKeys().size(), b.getPropertyKeys().size());
+					Assert.assertEquals(a.getAnnotationKeys().size(), b.getAnnotationKeys().size());
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void TestWriteThroughAndSorting() {
+		ColumnarVariantStore store = new ColumnarVariantStore();
+		store.addRecord(new VariantRec("1", 50, 51, "A", "C"));
+		store.addRecord(new VariantRec("1", 10, 11, "G", "T,C"));
+		store.addRecord(new VariantRec("2", 5, 6, "A", "G"));
+		VariantRec withProps = new VariantRec("1", 30, 31, "T", "A");
+		withProps.addProperty(VariantRec.POP_FREQUENCY, 0.25);
+		withProps.addAnnotation(VariantRec.GENE_NAME, "ABC1");
+		store.addRecord(withProps);
+
+		List<VariantRec> chr1 = store.getVariantsForContig("1");
+		Assert.assertEquals(3, chr1.size());
+		Assert.assertEquals(10, chr1.get(0).getStart());
+		Assert.assertEquals(30, chr1.get(1).getStart());
+		Assert.assertEquals(50, chr1.get(2).getStart());
+		Assert.assertEquals("ABC1", chr1.get(1).getAnnotation(VariantRec.GENE_NAME));
+		Assert.assertEquals(0.25, chr1.get(1).getProperty(VariantRec.POP_FREQUENCY), 0.0);
+		Assert.assertNull(chr1.get(0).getProperty(VariantRec.POP_FREQUENCY));
+
+		//Annotations added through a view must be visible to later lookups
+		chr1.get(2).addAnnotation(VariantRec.GENE_NAME, "XYZ2");
+		chr1.get(2).addPropertyInt(VariantRec.ARUP_HET_COUNT, 7);
+		VariantRec found = store.findRecord("1", 50, "A", "C");
+		Assert.assertNotNull(found);
+		Assert.assertEquals("XYZ2", found.getAnnotation(VariantRec.GENE_NAME));
+		Assert.assertEquals(Integer.valueOf(7), found.getPropertyInt(VariantRec.ARUP_HET_COUNT));
+
+		Assert.assertNotNull(store.findRecord("1", 10, "G", "C"));
+		Assert.assertNull(store.findRecord("1", 10, "G", "A"));
+		Assert.assertNull(store.findRecord("3", 10, "G", "C"));
+
+		ColumnarVariantStore other = new ColumnarVariantStore();
+		other.addAll(store, false);
+		other.addAll(store, false);
+		Assert.assertEquals(4, other.size());
+	}
+
+	/**
+	 * Sorting a contig that has grown past the initial column capacity, with annotation columns created
+	 * while it was still small
+	 */
+	@Test
+	public void TestSortLargeContig() {
+		ColumnarVariantStore store = new ColumnarVariantStore();
+		int count = 3000;
+		for(int i=0; i<count; i++) {
+			//Descending positions, so every row moves
+			int pos = 10 * (count - i);
+			VariantRec rec = new VariantRec("1", pos, pos+1, "A", "C");
+			if (i < 10) {
+				rec.addProperty(VariantRec.POP_FREQUENCY, 0.5);
+				rec.addPropertyInt(VariantRec.ARUP_HET_COUNT, i);
+				rec.addAnnotation(VariantRec.GENE_NAME, "GENE" + i);
+			}
+			store.addRecord(rec);
+		}
+
+		List<VariantRec> vars = store.getVariantsForContig("1");
+		Assert.assertEquals(count, vars.size());
+		for(int i=0; i<count; i++) {
+			VariantRec var = vars.get(i);
+			Assert.assertEquals(10 * (i+1), var.getStart());
+			int added = count - 1 - i;
+			if (added < 10) {
+				Assert.assertEquals(0.5, var.getProperty(VariantRec.POP_FREQUENCY), 0.0);
+				Assert.assertEquals(Integer.valueOf(added), var.getPropertyInt(VariantRec.ARUP_HET_COUNT));
+				Assert.assertEquals("GENE" + added, var.getAnnotation(VariantRec.GENE_NAME));
+			}
+			else {
+				Assert.assertNull(var.getProperty(VariantRec.POP_FREQUENCY));
+				Assert.assertNull(var.getPropertyInt(VariantRec.ARUP_HET_COUNT));
+				Assert.assertNull(var.getAnnotation(VariantRec.GENE_NAME));
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package variantPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import json.JSONArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import buffer.VCFFile;
+import buffer.variant.VariantPool;
+import buffer.variant.VariantRec;
+import buffer.variant.VariantSnapshot;
+import buffer.variant.VariantSnapshotReader;
+
+
+public class TestVariantSnapshot {
+
+	private static void assertSameVariant(VariantRec a, VariantRec b) {
+		Assert.assertEquals(a.getContig(), b.getContig());
+		Assert.assertEquals(a.getStart(), b.getStart());
+		Assert.assertEquals(a.getEnd(), b.getEnd());
+		Assert.assertEquals(a.getRef(), b.getRef());
+		Assert.assertEquals(a.getAlt(), b.getAlt());
+		Assert.assertEquals(a.getQuality(), b.getQuality());
+		Assert.assertEquals(a.getGenotype(), b.getGenotype());
+		Assert.assertEquals(a.getZygosity(), b.getZygosity());
+
+		Assert.assertEquals(a.getPropertyKeys().size(), b.getPropertyKeys().size());
+		for(String key : a.getPropertyKeys()) {
+			Assert.assertEquals(a.getProperty(key), b.getProperty(key));
+		}
+		Assert.assertEquals(a.getIntKeys().size(), b.getIntKeys().size());
+		for(String key : a.getIntKeys()) {
+			Assert.assertTrue(b.getIntKeys().contains(key));
+			Assert.assertEquals(a.getPropertyInt(key), b.getPropertyInt(key));
+		}
+		Assert.assertEquals(a.getAnnotationKeys().size(), b.getAnnotationKeys().size());
+		for(String key : a.getAnnotationKeys()) {
+			Assert.assertEquals(a.getAnnotation(key), b.getAnnotation(key));
+		}
+		Assert.assertEquals(a.getJsonobjKeys().size(), b.getJsonobjKeys().size());
+		for(String key : a.getJsonobjKeys()) {
+			Assert.assertEquals(a.getjsonProperty(key).toString(), b.getjsonProperty(key).toString());
+		}
+	}
+
+	@Test
+	public void TestRoundTrip() throws Exception {
+		File gatkVCF = new File("src/test/java/testvcfs/gatksingle.vcf");
+		File snapFile = File.createTempFile("testsnapshot", ".vsnap");
+		try {
+			VariantPool pool = new VariantPool(new VCFFile(gatkVCF));
+			VariantRec first = pool.getVariantsForContig(pool.getContigs().iterator().next()).get(0);
+			first.addAnnotationJSON("test.json", new JSONArray("[{\"a\":1},\"b\"]"));
+			first.addAnnotation("test.anno", "été");
+
+			VariantSnapshot.write(pool, snapFile);
+			VariantSnapshot snap = new VariantSnapshot(snapFile);
+			Assert.assertEquals(pool.size(), snap.size());
+			Assert.assertEquals(pool.getContigCount(), snap.getContigs().size());
+
+			for(String contig : pool.getContigs()) {
+				List<VariantRec> poolVars = pool.getVariantsForContig(contig);
+				List<VariantRec> snapVars = snap.getVariantsForContig(contig);
+				Assert.assertEquals(poolVars.size(), snapVars.size());
+				for(int i=0; i<poolVars.size(); i++) {
+					assertSameVariant(poolVars.get(i), snapVars.get(i));
+				}
+
+				//Region queries find exactly the overlapping variants
+				int mid = poolVars.get(poolVars.size()/2).getStart();
+				int qStart = mid - 5000;
+				int qEnd = mid + 5000;
+				List<VariantRec> found = snap.query(contig, qStart, qEnd);
+				int expected = 0;
+				for(VariantRec var : poolVars) {
+					if (var.getStart() < qEnd && Math.max(var.getEnd(), var.getStart()+1) > qStart) {
+						assertSameVariant(var, found.get(expected));
+						expected++;
+					}
+				}
+				Assert.assertEquals(expected, found.size());
+			}
+			Assert.assertTrue(snap.query("NotAContig", 1, 100).isEmpty());
+			snap.close();
+
+			//Reading it back through a VariantLineReader gives the same pool, and closes the snapshot at the end
+			VariantSnapshotReader snapReader = new VariantSnapshotReader(snapFile);
+			VariantPool reread = new VariantPool(snapReader);
+			Assert.assertNull(snapReader.getSnapshot());
+			Assert.assertFalse(snapReader.advanceLine());
+			Assert.assertEquals(pool.size(), reread.size());
+			for(String contig : pool.getContigs()) {
+				List<VariantRec> poolVars = pool.getVariantsForContig(contig);
+				List<VariantRec> rereadVars = reread.getVariantsForContig(contig);
+				for(int i=0; i<poolVars.size(); i++) {
+					assertSameVariant(poolVars.get(i), rereadVars.get(i));
+				}
+			}
+		}
+		finally {
+			snapFile.delete();
+		}
+	}
+
+	@Test
+	public void TestInsertionAtContigEnd() throws Exception {
+		File snapFile = File.createTempFile("testsnapshot", ".vsnap");
+		try {
+			VariantPool pool = new VariantPool();
+			pool.addRecord(new VariantRec("1", 50, 51, "A", "T"));
+			pool.addRecord(new VariantRec("1", 100, 100, "-", "AC"));
+			VariantSnapshot.write(pool, snapFile);
+			VariantSnapshot snap = new VariantSnapshot(snapFile);
+			Assert.assertEquals(1, snap.query("1", 100, 101).size());
+			Assert.assertEquals(1, snap.query("1", 99, 101).size());
+			Assert.assertEquals(0, snap.query("1", 101, 200).size());
+			Assert.assertEquals(2, snap.query("1", 1, 200).size());
+			snap.close();
+		}
+		finally {
+			snapFile.delete();
+		}
+	}
+
+	@Test
+	public void TestSmallBlocks() throws Exception {
+		File gatkVCF = new File("src/test/java/testvcfs/gatksingle.vcf");
+		File snapFile = File.createTempFile("testsnapshot", ".vsnap");
+		try {
+			VariantPool pool = new VariantPool(new VCFFile(gatkVCF));
+			VariantSnapshot.write(pool, snapFile, 7);
+			VariantSnapshot snap = new VariantSnapshot(snapFile);
+			Assert.assertEquals(pool.size(), snap.size());
+			for(String contig : pool.getContigs()) {
+				List<VariantRec> poolVars = pool.getVariantsForContig(contig);
+				Assert.assertEquals(poolVars.size(), snap.getVariantCount(contig));
+				List<VariantRec> snapVars = snap.getVariantsForContig(contig);
+				for(int i=0; i<poolVars.size(); i++) {
+					assertSameVariant(poolVars.get(i), snapVars.get(i));
+				}
+
+				//Row ranges that span blocks
+				List<VariantRec> range = snap.getVariants(contig, 5, 20);
+				Assert.assertEquals(Math.max(0, Math.min(20, poolVars.size()) - 5), range.size());
+				for(int i=0; i<range.size(); i++) {
+					assertSameVariant(poolVars.get(5+i), range.get(i));
+				}
+
+				//Queries around every variant find the same ones as a scan
+				for(VariantRec center : poolVars) {
+					int qStart = center.getStart() - 200;
+					int qEnd = center.getStart() + 200;
+					List<VariantRec> found = snap.query(contig, qStart, qEnd);
+					int expected = 0;
+					for(VariantRec var : poolVars) {
+						if (var.getStart() < qEnd && Math.max(var.getEnd(), var.getStart()+1) > qStart) {
+							assertSameVariant(var, found.get(expected));
+							expected++;
+						}
+					}
+					Assert.assertEquals(expected, found.size());
+				}
+			}
+			snap.close();
+		}
+		finally {
+			snapFile.delete();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void TestNotASnapshot() throws IOException {
+		new VariantSnapshot(new File("src/test/java/testvcfs/gatksingle.vcf"));
+	}
+}
@@ -0,0 +1,135 @@
+package vcfLineParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import util.vcfParser.VCFLineTokenizer;
+
+public class TestVCFLineTokenizer {
+
+	File[] vcfs = new File[]{ new File("src/test/java/testvcfs/gatksingle.vcf"),
+			new File("src/test/java/testvcfs/freebayes.single.vcf"),
+			new File("src/test/java/testvcfs/solid_tumor_test1.vcf"),
+			new File("src/test/java/testvcfs/complexVars.vcf"),
+			new File("src/test/java/testvcfs/lofreq_scalpel_manta.vcf"),
+			new File("src/test/java/testvcfs/mnps3.vcf")};
+
+	/**
+	 * The INFO + FORMAT map as VCFParser used to build it
+	 */
+	private static Map<String, String> splitMetrics(String[] toks) {
+		Map<String, String> dict = new HashMap<String, String>();
+		if (toks.length > 9) {
+			String[] formatKeys = toks[8].split(":");
+			String[] formatData = toks[9].split(":");
+			for (int i=0; i < formatData.length; i++)  {
+				dict.put(formatKeys[i], formatData[i]);
+			}
+		}
+		StringTokenizer tokener = new StringTokenizer(toks[7], ";");
+		while(tokener.hasMoreElements()) {
+			String tok = tokener.nextToken();
+			int index = tok.indexOf("=");
+			if (index < 0) {
+				dict.put(tok, tok);
+			} else {
+				dict.put(tok.substring(0, index), tok.substring(index+1, tok.length()));
+			}
+		}
+		return dict;
+	}
+
+	private static void compareLine(VCFLineTokenizer tokenizer, String line) {
+		String[] toks = line.split("\t");
+		Assert.assertEquals(line, tokenizer.getLine());
+		Assert.assertEquals(toks.length, tokenizer.getColumnCount());
+		for(int i=0; i<toks.length; i++) {
+			Assert.assertEquals(toks[i], tokenizer.getColumn(i));
+		}
+		Assert.assertEquals(Integer.parseInt(toks[1]), tokenizer.getIntColumn(VCFLineTokenizer.POS));
+		Assert.assertEquals(toks[0].toUpperCase().replace("CHR",""), tokenizer.getNormalizedContig());
+
+		String[] alts = toks[4].split(",");
+		Assert.assertEquals(alts.length, tokenizer.countSubfields(VCFLineTokenizer.ALT, ','));
+		Assert.assertArrayEquals(alts, tokenizer.getSubfields(VCFLineTokenizer.ALT, ','));
+		for(int i=0; i<alts.length; i++) {
+			Assert.assertEquals(alts[i], tokenizer.getSubfield(VCFLineTokenizer.ALT, ',', i));
+		}
+
+		Map<String, String> expected = splitMetrics(toks);
+		for(String key : expected.keySet()) {
+			Assert.assertTrue(tokenizer.hasMetric(key));
+			Assert.assertEquals(expected.get(key), tokenizer.getMetric(key));
+		}
+		Assert.assertFalse(tokenizer.hasMetric("NotAKey"));
+		Assert.assertNull(tokenizer.getMetric("NotAKey"));
+		Assert.assertEquals(expected, tokenizer.collectMetrics(new HashMap<String, String>()));
+	}
+
+	@Test
+	public void testMatchesSplit() throws IOException {
+		for(File vcf : vcfs) {
+			BufferedReader reader = new BufferedReader(new FileReader(vcf));
+			String line = reader.readLine();
+			while(line != null && line.startsWith("#")) {
+				line = reader.readLine();
+			}
+			VCFLineTokenizer tokenizer = new VCFLineTokenizer();
+			tokenizer.setReader(reader);
+			int lines = 0;
+			while(line != null) {
+				if (line.trim().length() > 0) {
+					tokenizer.setLine(line);
+					compareLine(tokenizer, line);
+					lines++;
+				}
+				line = reader.readLine();
+			}
+			reader.close();
+			Assert.assertTrue(lines > 0);
+		}
+	}
+
+	@Test
+	public void testEdgeCases() throws IOException {
+		String text = "1\t10\t.\tA\tC,G,\t50\tPASS\tDP=10;;FLAG;AF=0.5;DP=12\tGT:AD:DP\t0/1:4,6:\t\r\n"
+				+ "   \n"
+				+ "\n"
+				+ "chrX\t20\t.\tT\tA\t.\t.\tDP=3\tGT:DP:GQ\t1:7\r"
+				+ "chrx\t30\t.\tG\t\t.\t.\tAF=0.1";
+		VCFLineTokenizer tokenizer = new VCFLineTokenizer();
+		tokenizer.setReader(new StringReader(text));
+
+		Assert.assertTrue(tokenizer.nextLine());
+		compareLine(tokenizer, "1\t10\t.\tA\tC,G,\t50\tPASS\tDP=10;;FLAG;AF=0.5;DP=12\tGT:AD:DP\t0/1:4,6:\t");
+		Assert.assertEquals(10, tokenizer.getColumnCount());
+		Assert.assertEquals(2, tokenizer.countSubfields(VCFLineTokenizer.ALT, ','));
+		Assert.assertEquals("12", tokenizer.getMetric("DP")); //INFO wins, and the last one at that
+		Assert.assertEquals("FLAG", tokenizer.getMetric("FLAG"));
+		Assert.assertEquals("4,6", tokenizer.getMetric("AD"));
+
+		Assert.assertTrue(tokenizer.nextLine()); //Skips the blank lines
+		compareLine(tokenizer, "chrX\t20\t.\tT\tA\t.\t.\tDP=3\tGT:DP:GQ\t1:7");
+		Assert.assertEquals("X", tokenizer.getNormalizedContig());
+		Assert.assertEquals("1", tokenizer.getMetric("GT"));
+		Assert.assertFalse(tokenizer.hasMetric("GQ"));
+
+		Assert.assertTrue(tokenizer.nextLine());
+		compareLine(tokenizer, "chrx\t30\t.\tG\t\t.\t.\tAF=0.1");
+		Assert.assertEquals(1, tokenizer.countSubfields(VCFLineTokenizer.ALT, ','));
+		Assert.assertEquals("", tokenizer.getSubfield(VCFLineTokenizer.ALT, ',', 0));
+
+		Assert.assertFalse(tokenizer.nextLine());
+		Assert.assertFalse(tokenizer.hasLine());
+		Assert.assertNull(tokenizer.getLine());
+	}
+}
@@ -2,6 +2,7 @@ package vcfLineParser;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -9,6 +10,8 @@ import java.util.Set;
 import org.junit.Assert;
 import org.junit.Test;
 
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
 import buffer.variant.VariantRec;
 import util.vcfParser.VCFParser;
 import util.vcfParser.VCFParser.EntryType;
@@ -1388,7 +1391,97 @@ public class TestVCFParser {
 		System.err.println("\tVCFLineParser tests passed on Netlen and Inseq VCF ....");
 
      }
-}
-	
+	/**
+	 * Reading a bgzipped copy of a VCF with parallel inflating and parsing must produce the same variants, in the
+	 * same order, as reading the plain file one record at a time
+	 */
+	@Test
+	public void TestBgzippedParallelRead() throws IOException {
+		File gz = File.createTempFile("testvcfparser", ".vcf.gz");
+		try {
+			BlockCompressedOutputStream out = new BlockCompressedOutputStream(gz);
+			byte[] bytes = Files.readAllBytes(gatkVCF.toPath());
+			out.write(bytes);
+			out.close();
+
+			List<VariantRec> expected = new ArrayList<VariantRec>();
+			VCFParser serial = new VCFParser(gatkVCF);
+			while(serial.advanceLine()) {
+				expected.add(serial.toVariantRec());
+			}
 
-	
+			for(int threads : new int[]{1, 4}) {
+				final List<VariantRec> found = new ArrayList<VariantRec>();
+				VCFParser parser = new VCFParser(gz);
+				parser.setThreads(threads);
+				parser.setFile(gz);
+				parser.readAllVariants(new VCFParser.VariantHandler() {
+					@Override
+					public void handleVariant(VariantRec var) {
+						found.add(var);
+					}
+				});
+				Assert.assertFalse(parser.advanceLine());
+
+				Assert.assertEquals(expected.size(), found.size());
+				for(int i=0; i<expected.size(); i++) {
+					VariantRec a = expected.get(i);
+					VariantRec b = found.get(i);
+					Assert.assertEquals(a.toString(), b.toString());
+					Assert.assertEquals(a.getStart(), b.getStart());
+					for(String key : a.getAnnotationKeys()) {
+						Assert.assertEquals(a.getAnnotation(key), b.getAnnotation(key));
+					}
+					for(String key : a.getPropertyKeys()) {
+						Assert.assertEquals(a.getProperty(key), b.getProperty(key));
+					}
+				}
+			}
+		}
+		finally {
+			gz.delete();
+		}
+	}
+
+	/**
+	 * Parsers reading bgzipped files share one pool of inflater threads, and are closed once they reach the end
+	 */
+	@Test
+	public void TestBgzippedParsersShareThreads() throws IOException {
+		File gz = File.createTempFile("testvcfparser", ".vcf.gz");
+		try {
+			BlockCompressedOutputStream out = new BlockCompressedOutputStream(gz);
+			out.write(Files.readAllBytes(gatkVCF.toPath()));
+			out.close();
+
+			for(int i=0; i<10; i++) {
+				VCFParser parser = new VCFParser(gz);
+				parser.setThreads(4);
+				parser.setFile(gz);
+				int count = 0;
+				while(parser.advanceLine()) {
+					count++;
+				}
+				Assert.assertTrue(count > 0);
+				Assert.assertFalse(parser.advanceLine());
+
+				//Left open without reaching the end
+				parser = new VCFParser(gz);
+				parser.setThreads(4);
+				parser.setFile(gz);
+				Assert.assertTrue(parser.advanceLine());
+			}
+
+			int inflaters = 0;
+			for(Thread thread : Thread.getAllStackTraces().keySet()) {
+				if (thread.getName().equals("bgzf-inflater")) {
+					inflaters++;
+				}
+			}
+			Assert.assertTrue("Found " + inflaters + " inflater threads", inflaters <= Runtime.getRuntime().availableProcessors());
+		}
+		finally {
+			gz.delete();
+		}
+	}
+}